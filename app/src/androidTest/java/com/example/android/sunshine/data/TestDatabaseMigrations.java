@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static com.example.android.sunshine.data.TestUtilities.getStaticIntegerField;
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Builds weather.db the way older versions of Sunshine left it, then opens it with the current
+ * {@link WeatherDbHelper} and checks that the upgrade kept every stored day.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestDatabaseMigrations {
+
+    /* The weather table as Sunshine created it in version 3, keyed on the date alone */
+    private static final String SQL_CREATE_VERSION_3_WEATHER_TABLE =
+            "CREATE TABLE " + WeatherEntry.TABLE_NAME + " ("
+                    + WeatherEntry._ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+                    + WeatherEntry.COLUMN_DATE + " INTEGER NOT NULL, "
+                    + WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL,"
+                    + WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, "
+                    + WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, "
+                    + WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, "
+                    + WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, "
+                    + WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "
+                    + WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, "
+                    + " UNIQUE (" + WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+    private final Context context = InstrumentationRegistry.getTargetContext();
+
+    @Before
+    public void before() {
+        context.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    @After
+    public void after() {
+        context.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
+    }
+
+    /**
+     * The current version must be reachable from every version we have steps for. If this fails,
+     * DATABASE_VERSION was incremented without adding a step to WeatherDbMigrations.
+     */
+    @Test
+    public void testEveryVersionCanBeMigrated() throws Exception {
+        int databaseVersion = getStaticIntegerField(WeatherDbHelper.class, "DATABASE_VERSION");
+        for (int version = 3; version < databaseVersion; version++) {
+            assertTrue("No way to migrate from version " + version,
+                    WeatherDbMigrations.canMigrate(version, databaseVersion));
+        }
+    }
+
+    /**
+     * Version 3 had no locations. Its days must end up as the forecast of the location chosen in
+     * the settings, with their _IDs and values unchanged.
+     */
+    @Test
+    public void testMigrateFromVersion3KeepsForecast() {
+        SQLiteDatabase oldDatabase = openDatabaseAtVersion(3);
+        oldDatabase.execSQL(SQL_CREATE_VERSION_3_WEATHER_TABLE);
+        ContentValues[] days = TestUtilities.createBulkInsertTestWeatherValues();
+        long[] ids = insertDays(oldDatabase, days);
+        oldDatabase.close();
+
+        SQLiteDatabase database = new WeatherDbHelper(context).getWritableDatabase();
+        assertForecastKept(database, days, ids);
+
+        /* The rebuilt table must be keyed on location and date */
+        ContentValues otherLocationDay = new ContentValues(days[0]);
+        otherLocationDay.put(WeatherEntry.COLUMN_LOCATION_ID, 42);
+        database.insert(WeatherEntry.TABLE_NAME, null, otherLocationDay);
+        assertEquals(days.length + 1, countRows(database, WeatherEntry.TABLE_NAME));
+
+        database.close();
+    }
+
+    /**
+     * The steps that only add tables must leave the existing ones and their rows alone.
+     */
+    @Test
+    public void testMigrateFromVersion4KeepsForecastAndLocations() {
+        SQLiteDatabase oldDatabase = openDatabaseAtVersion(4);
+        oldDatabase.execSQL(WeatherDbHelper.SQL_CREATE_WEATHER_TABLE);
+        oldDatabase.execSQL(WeatherDbHelper.SQL_CREATE_LOCATION_TABLE);
+        ContentValues[] days = TestUtilities.createBulkInsertTestWeatherValues();
+        long[] ids = insertDays(oldDatabase, days);
+        ContentValues location = new ContentValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_QUERY, "Mountain View, CA");
+        oldDatabase.insert(WeatherContract.LocationEntry.TABLE_NAME, null, location);
+        oldDatabase.close();
+
+        SQLiteDatabase database = new WeatherDbHelper(context).getWritableDatabase();
+        assertForecastKept(database, days, ids);
+        assertEquals(1, countRows(database, WeatherContract.LocationEntry.TABLE_NAME));
+        assertEquals(0, countRows(database, WeatherContract.ArchiveEntry.TABLE_NAME));
+        assertEquals(0, countRows(database, WeatherContract.HourlyEntry.TABLE_NAME));
+        assertEquals(0, countRows(database, WeatherContract.SyncMetricsEntry.TABLE_NAME));
+        assertEquals(0, countRows(database, WeatherContract.SyncRequestEntry.TABLE_NAME));
+        database.close();
+    }
+
+    private SQLiteDatabase openDatabaseAtVersion(int version) {
+        SQLiteDatabase database =
+                context.openOrCreateDatabase(WeatherDbHelper.DATABASE_NAME, 0, null);
+        database.setVersion(version);
+        return database;
+    }
+
+    private static long[] insertDays(SQLiteDatabase database, ContentValues[] days) {
+        long[] ids = new long[days.length];
+        for (int i = 0; i < days.length; i++) {
+            ids[i] = database.insert(WeatherEntry.TABLE_NAME, null, days[i]);
+            assertTrue("Unable to insert day " + i, ids[i] != -1);
+        }
+        return ids;
+    }
+
+    private static void assertForecastKept(SQLiteDatabase database, ContentValues[] days,
+            long[] ids) {
+        Cursor cursor = database.query(WeatherEntry.TABLE_NAME, null, null, null, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Days were lost in the upgrade", days.length, cursor.getCount());
+        for (int i = 0; i < days.length; i++) {
+            assertTrue(cursor.moveToNext());
+            ContentValues expected = new ContentValues(days[i]);
+            expected.put(WeatherEntry._ID, ids[i]);
+            expected.put(WeatherEntry.COLUMN_LOCATION_ID,
+                    WeatherContract.LocationEntry.PREFERRED_LOCATION_ID);
+            TestUtilities.validateCurrentRecord("Day " + i + " changed in the upgrade",
+                    cursor, expected);
+        }
+        cursor.close();
+    }
+
+    private static int countRows(SQLiteDatabase database, String table) {
+        Cursor cursor = database.query(table, null, null, null, null, null, null);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+}
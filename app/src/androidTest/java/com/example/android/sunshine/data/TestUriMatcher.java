@@ -102,4 +102,64 @@ public class TestUriMatcher {
                 expectedWeatherWithDateCode,
                 actualWeatherWithDateCode);
     }
+
+    /**
+     * Tests that the URIs of other locations and of their forecasts are matched as well.
+     */
+    @Test
+    public void testLocationUriMatcher() {
+        long locationId = 4;
+
+        assertEquals("Error: The CODE_LOCATION URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION,
+                testMatcher.match(WeatherContract.LocationEntry.CONTENT_URI));
+
+        assertEquals("Error: The CODE_LOCATION_WITH_ID URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_WITH_ID,
+                testMatcher.match(WeatherContract.LocationEntry.buildLocationUri(locationId)));
+
+        assertEquals("Error: The CODE_LOCATION_WEATHER URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_WEATHER,
+                testMatcher.match(WeatherContract.LocationEntry.buildWeatherUri(locationId)));
+
+        assertEquals("Error: The CODE_LOCATION_WEATHER_WITH_DATE URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_WEATHER_WITH_DATE,
+                testMatcher.match(WeatherContract.LocationEntry.buildWeatherUriWithDate(
+                        locationId, TestUtilities.DATE_NORMALIZED)));
+
+        assertEquals("Error: The CODE_WEATHER_RANGE URI was matched incorrectly.",
+                WeatherProvider.CODE_WEATHER_RANGE,
+                testMatcher.match(WeatherContract.WeatherEntry.buildWeatherRangeUri(
+                        TestUtilities.DATE_NORMALIZED, Long.MAX_VALUE)));
+
+        assertEquals("Error: The CODE_LOCATION_WEATHER_RANGE URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_WEATHER_RANGE,
+                testMatcher.match(WeatherContract.LocationEntry.buildWeatherRangeUri(
+                        locationId, TestUtilities.DATE_NORMALIZED, Long.MAX_VALUE)));
+
+        assertEquals("Error: The CODE_ARCHIVE URI was matched incorrectly.",
+                WeatherProvider.CODE_ARCHIVE,
+                testMatcher.match(WeatherContract.ArchiveEntry.CONTENT_URI));
+
+        assertEquals("Error: The CODE_LOCATION_ARCHIVE URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_ARCHIVE,
+                testMatcher.match(WeatherContract.LocationEntry.buildArchiveUri(locationId)));
+
+        assertEquals("Error: The CODE_HOURLY URI was matched incorrectly.",
+                WeatherProvider.CODE_HOURLY,
+                testMatcher.match(WeatherContract.HourlyEntry.CONTENT_URI));
+
+        assertEquals("Error: The CODE_HOURLY_NEXT URI was matched incorrectly.",
+                WeatherProvider.CODE_HOURLY_NEXT,
+                testMatcher.match(WeatherContract.HourlyEntry.buildNextHoursUri(12)));
+
+        assertEquals("Error: The CODE_LOCATION_HOURLY URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_HOURLY,
+                testMatcher.match(WeatherContract.LocationEntry.buildHourlyUri(locationId)));
+
+        assertEquals("Error: The CODE_LOCATION_HOURLY_NEXT URI was matched incorrectly.",
+                WeatherProvider.CODE_LOCATION_HOURLY_NEXT,
+                testMatcher.match(
+                        WeatherContract.LocationEntry.buildNextHoursUri(locationId, 12)));
+    }
 }
@@ -17,6 +17,7 @@ package com.example.android.sunshine.data;
 
 import android.content.ComponentName;
 import android.content.ContentResolver;
+import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
@@ -24,17 +25,27 @@ import android.content.pm.ProviderInfo;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
+import android.os.Bundle;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
 import static com.example.android.sunshine.data.TestUtilities.BULK_INSERT_RECORDS_TO_INSERT;
 import static com.example.android.sunshine.data.TestUtilities.createBulkInsertTestWeatherValues;
+import static com.example.android.sunshine.data.TestUtilities.getStaticIntegerField;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
@@ -185,6 +196,9 @@ public class TestWeatherProvider {
         /* We are done with the database, close it now. */
         database.close();
 
+        /* We wrote behind the ContentProvider's back, so it can't know its cache is stale */
+        clearQueryCache(mContext);
+
         /*
          * Perform our ContentProvider query. We expect the cursor that is returned will contain
          * the exact same data that is in testWeatherValues and we will validate that in the next
@@ -326,6 +340,1011 @@ public class TestWeatherProvider {
         cursor.close();
     }
 
+    /**
+     * This test inserts the same rows as {@link #testBulkInsert()}, but packed column by column
+     * into a {@link WeatherBatch} and passed through ContentResolver#call. The provider must
+     * store exactly the same data and notify observers just like bulkInsert does.
+     */
+    @Test
+    public void testBulkInsertWeatherBatch() {
+        ContentValues[] expectedValues = createBulkInsertTestWeatherValues();
+
+        WeatherBatch batch = new WeatherBatch();
+        for (ContentValues values : expectedValues) {
+            addToBatch(batch, values,
+                    values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+        }
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        ContentResolver contentResolver = mContext.getContentResolver();
+        contentResolver.registerContentObserver(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                true,
+                weatherObserver);
+
+        Bundle result = contentResolver.call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_BULK_INSERT_WEATHER,
+                null,
+                batch.toBundle());
+
+        weatherObserver.waitForNotificationOrFail();
+        contentResolver.unregisterContentObserver(weatherObserver);
+
+        assertNotNull("call() did not return a result", result);
+        assertEquals("Number of expected records inserted does not match actual inserted count",
+                BULK_INSERT_RECORDS_TO_INSERT,
+                result.getInt(WeatherContract.KEY_ROW_COUNT));
+
+        Cursor cursor = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                null,
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+
+        assertNotNull("Cursor was null.", cursor);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+
+        cursor.moveToFirst();
+        for (int i = 0; i < BULK_INSERT_RECORDS_TO_INSERT; i++, cursor.moveToNext()) {
+            TestUtilities.validateCurrentRecord(
+                    "testBulkInsertWeatherBatch. Error validating WeatherEntry " + i,
+                    cursor,
+                    expectedValues[i]);
+        }
+
+        cursor.close();
+    }
+
+    /**
+     * Writing days that are already stored, through bulkInsert, insert or update, must change
+     * their values in place and keep their _IDs.
+     */
+    @Test
+    public void testUpsertKeepsRowIds() {
+        testBulkInsert();
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        long[] idsBefore = queryRowIds(contentResolver);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, idsBefore.length);
+
+        ContentValues[] changedValues = createBulkInsertTestWeatherValues();
+        for (ContentValues values : changedValues) {
+            values.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 800);
+        }
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                        changedValues));
+        assertTrue("bulkInsert must keep the _IDs of stored days",
+                Arrays.equals(idsBefore, queryRowIds(contentResolver)));
+
+        /* A single insert of a stored day updates it and returns the day's URI */
+        ContentValues firstDay = changedValues[0];
+        long firstDate = firstDay.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        firstDay.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 500);
+        Uri dayUri = contentResolver.insert(WeatherContract.WeatherEntry.CONTENT_URI, firstDay);
+        assertEquals(WeatherContract.WeatherEntry.buildWeatherUriWithDate(firstDate), dayUri);
+
+        ContentValues update = new ContentValues();
+        update.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 99);
+        assertEquals(1, contentResolver.update(dayUri, update, null, null));
+
+        Cursor day = contentResolver.query(dayUri, null, null, null, null);
+        ContentValues expectedDay = new ContentValues();
+        expectedDay.put(WeatherContract.WeatherEntry._ID, idsBefore[0]);
+        expectedDay.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, 500);
+        expectedDay.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, 99);
+        TestUtilities.validateThenCloseCursor("Upserted day has wrong values", day, expectedDay);
+
+        assertTrue("insert and update must keep the _IDs of stored days",
+                Arrays.equals(idsBefore, queryRowIds(contentResolver)));
+    }
+
+    /* The _IDs of the preferred location's weather rows, in date order */
+    private static long[] queryRowIds(ContentResolver contentResolver) {
+        Cursor cursor = contentResolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry._ID},
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull("Cursor was null.", cursor);
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    /**
+     * Replacing the forecast must leave exactly the rows of the new batch in the table, no
+     * matter what was stored before, and report how many rows were removed and inserted.
+     */
+    @Test
+    public void testReplaceForecast() {
+        /* Start out with the ten days that testBulkInsert stores */
+        testBulkInsert();
+
+        ContentValues[] oldValues = createBulkInsertTestWeatherValues();
+        long firstNewDate = oldValues[oldValues.length - 1]
+                .getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+
+        int newDays = 3;
+        WeatherBatch batch = new WeatherBatch();
+        for (int i = 0; i < newDays; i++) {
+            batch.add(firstNewDate + i * SunshineDateUtils.DAY_IN_MILLIS,
+                    800, 10.0 + i, 20.0 + i, 50.0, 1000.0, 2.0, 180.0);
+        }
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        contentResolver.registerContentObserver(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                true,
+                weatherObserver);
+
+        Bundle result = contentResolver.call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_FORECAST,
+                null,
+                batch.toBundle());
+
+        weatherObserver.waitForNotificationOrFail();
+        contentResolver.unregisterContentObserver(weatherObserver);
+
+        assertNotNull("call() did not return a result", result);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                result.getInt(WeatherContract.KEY_DELETED_COUNT));
+        assertEquals(newDays, result.getInt(WeatherContract.KEY_ROW_COUNT));
+
+        Cursor cursor = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_DATE,
+                        WeatherContract.WeatherEntry.COLUMN_WEATHER_ID},
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+
+        assertNotNull("Cursor was null.", cursor);
+        assertEquals("Old forecast was not fully replaced", newDays, cursor.getCount());
+        for (int i = 0; i < newDays; i++) {
+            assertTrue(cursor.moveToPosition(i));
+            assertEquals(firstNewDate + i * SunshineDateUtils.DAY_IN_MILLIS, cursor.getLong(0));
+            assertEquals(800, cursor.getInt(1));
+        }
+        cursor.close();
+    }
+
+    /**
+     * Merging a forecast that differs from the stored one in only a few days must write only
+     * those days. The unchanged days and the updated day must keep their _IDs.
+     */
+    @Test
+    public void testMergeForecastOnlyWritesChangedDays() {
+        testBulkInsert();
+
+        ContentValues[] storedValues = createBulkInsertTestWeatherValues();
+        ContentResolver contentResolver = mContext.getContentResolver();
+        long[] idsBefore = queryIdsByDate(contentResolver, BULK_INSERT_RECORDS_TO_INSERT);
+
+        /*
+         * The new forecast drops the first stored day, changes the weather of the second one,
+         * keeps the rest as they are and adds one day at the end.
+         */
+        WeatherBatch batch = new WeatherBatch();
+        for (int i = 1; i < storedValues.length; i++) {
+            ContentValues values = storedValues[i];
+            int weatherId = values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+            addToBatch(batch, values, i == 1 ? weatherId + 1 : weatherId);
+        }
+        long lastDate = storedValues[storedValues.length - 1]
+                .getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        long addedDate = lastDate + SunshineDateUtils.DAY_IN_MILLIS;
+        batch.add(addedDate, 800, 10.0, 20.0, 50.0, 1000.0, 2.0, 180.0);
+
+        Bundle result = contentResolver.call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MERGE_FORECAST,
+                null,
+                batch.toBundle());
+
+        assertNotNull("call() did not return a result", result);
+        assertEquals(1, result.getInt(WeatherContract.KEY_INSERTED_COUNT));
+        assertEquals(1, result.getInt(WeatherContract.KEY_UPDATED_COUNT));
+        assertEquals(1, result.getInt(WeatherContract.KEY_DELETED_COUNT));
+
+        long[] changedDates = result.getLongArray(WeatherContract.KEY_CHANGED_DATES);
+        assertNotNull(changedDates);
+        Arrays.sort(changedDates);
+        long[] expectedChangedDates = {
+                storedValues[0].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE),
+                storedValues[1].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE),
+                addedDate
+        };
+        assertTrue("Unexpected changed dates: " + Arrays.toString(changedDates),
+                Arrays.equals(expectedChangedDates, changedDates));
+
+        /* Every day that is still stored must have kept the _ID it had before the merge */
+        long[] idsAfter = queryIdsByDate(contentResolver, BULK_INSERT_RECORDS_TO_INSERT);
+        for (int i = 1; i < BULK_INSERT_RECORDS_TO_INSERT; i++) {
+            assertEquals("Row for day " + i + " changed its _ID", idsBefore[i], idsAfter[i - 1]);
+        }
+    }
+
+    private static void addToBatch(WeatherBatch batch, ContentValues values, int weatherId) {
+        batch.add(values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE),
+                weatherId,
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP),
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_HUMIDITY),
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_PRESSURE),
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED),
+                values.getAsDouble(WeatherContract.WeatherEntry.COLUMN_DEGREES));
+    }
+
+    private static long[] queryIdsByDate(ContentResolver contentResolver, int expectedCount) {
+        Cursor cursor = contentResolver.query(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                new String[]{WeatherContract.WeatherEntry._ID},
+                null,
+                null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        assertNotNull("Cursor was null.", cursor);
+        assertEquals(expectedCount, cursor.getCount());
+
+        long[] ids = new long[cursor.getCount()];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            ids[i] = cursor.getLong(0);
+        }
+        cursor.close();
+        return ids;
+    }
+
+    /**
+     * The database must be in WAL mode, and a query must return the last committed forecast
+     * while another connection holds a write transaction, instead of waiting for it to end.
+     */
+    @Test
+    public void testQueryDoesNotWaitForWriteTransaction() throws InterruptedException {
+        testBulkInsert();
+
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        SQLiteDatabase database = helper.getWritableDatabase();
+
+        Cursor journalMode = database.rawQuery("PRAGMA journal_mode", null);
+        assertTrue(journalMode.moveToFirst());
+        assertEquals("Database is not in WAL mode", "wal", journalMode.getString(0).toLowerCase());
+        journalMode.close();
+
+        /* Make sure the query below has to go to the database */
+        clearQueryCache(mContext);
+
+        /* Play the sync: start replacing the forecast, but don't commit yet */
+        database.beginTransactionNonExclusive();
+        try {
+            database.delete(WeatherContract.WeatherEntry.TABLE_NAME, "1", null);
+
+            final int[] rowCount = {-1};
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Cursor cursor = mContext.getContentResolver().query(
+                            WeatherContract.WeatherEntry.CONTENT_URI, null, null, null, null);
+                    if (cursor != null) {
+                        rowCount[0] = cursor.getCount();
+                        cursor.close();
+                    }
+                }
+            });
+            reader.start();
+            reader.join(TimeUnit.SECONDS.toMillis(5));
+
+            assertFalse("Query was blocked by the write transaction", reader.isAlive());
+            assertEquals("Query did not see the committed forecast",
+                    BULK_INSERT_RECORDS_TO_INSERT, rowCount[0]);
+        } finally {
+            /* Roll back, the forecast stays as it was */
+            database.endTransaction();
+            database.close();
+        }
+    }
+
+    /**
+     * A checkpoint requested through call() must report its result, and a passive checkpoint
+     * while nobody else uses the database must copy the whole log.
+     */
+    @Test
+    public void testCheckpoint() {
+        testBulkInsert();
+
+        Bundle result = mContext.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_CHECKPOINT,
+                WeatherContract.CHECKPOINT_PASSIVE,
+                null);
+
+        assertNotNull("call() did not return a result", result);
+        assertFalse(result.getBoolean(WeatherContract.KEY_CHECKPOINT_BUSY));
+        assertEquals(result.getInt(WeatherContract.KEY_LOG_FRAME_COUNT),
+                result.getInt(WeatherContract.KEY_CHECKPOINTED_FRAME_COUNT));
+        assertTrue(result.getLong(WeatherContract.KEY_DURATION_MILLIS) >= 0);
+    }
+
+    /**
+     * The forecast of another location must be stored next to the forecast of the preferred
+     * location without touching it, be reachable through the location's URIs and go away
+     * together with the location.
+     */
+    @Test
+    public void testForecastsAreKeptPerLocation() {
+        testBulkInsert();
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        ContentValues location = new ContentValues();
+        location.put(WeatherContract.LocationEntry.COLUMN_LOCATION_QUERY, "Berlin, DE");
+        Uri locationUri = contentResolver.insert(
+                WeatherContract.LocationEntry.CONTENT_URI, location);
+        assertNotNull("Inserting a location did not return its URI", locationUri);
+        long locationId = ContentUris.parseId(locationUri);
+
+        /* Inserting the same location again must hand out the stored one */
+        assertEquals(locationUri,
+                contentResolver.insert(WeatherContract.LocationEntry.CONTENT_URI, location));
+
+        /* The other location gets a forecast for the very same days */
+        ContentValues[] storedValues = createBulkInsertTestWeatherValues();
+        WeatherBatch batch = new WeatherBatch();
+        for (ContentValues values : storedValues) {
+            addToBatch(batch, values,
+                    values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID));
+        }
+        Bundle extras = batch.toBundle();
+        extras.putLong(WeatherContract.KEY_LOCATION_ID, locationId);
+        Bundle result = contentResolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MERGE_FORECAST, null, extras);
+        assertNotNull("call() did not return a result", result);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                result.getInt(WeatherContract.KEY_INSERTED_COUNT));
+        assertEquals(0, result.getInt(WeatherContract.KEY_DELETED_COUNT));
+
+        Uri locationWeatherUri = WeatherContract.LocationEntry.buildWeatherUri(locationId);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                countRows(contentResolver, WeatherContract.WeatherEntry.CONTENT_URI));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                countRows(contentResolver, locationWeatherUri));
+
+        long firstDate = storedValues[0].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        assertEquals(1, countRows(contentResolver,
+                WeatherContract.LocationEntry.buildWeatherUriWithDate(locationId, firstDate)));
+
+        /* Deleting the location deletes its forecast, but not the preferred location's */
+        assertEquals(1, contentResolver.delete(locationUri, null, null));
+        assertEquals(0, countRows(contentResolver, locationWeatherUri));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                countRows(contentResolver, WeatherContract.WeatherEntry.CONTENT_URI));
+    }
+
+    /**
+     * A range must return exactly its days, and paging by offset or by the date of the last
+     * day must cut the forecast into pages that follow each other without gaps or overlaps.
+     */
+    @Test
+    public void testDateRangeAndPaging() {
+        testBulkInsert();
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        ContentValues[] storedValues = createBulkInsertTestWeatherValues();
+        long[] dates = new long[storedValues.length];
+        for (int i = 0; i < storedValues.length; i++) {
+            dates[i] = storedValues[i].getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        }
+
+        /* The start of a range is part of it, the end is not */
+        Uri rangeUri = WeatherContract.WeatherEntry.buildWeatherRangeUri(dates[2], dates[6]);
+        assertEquals(4, countRows(contentResolver, rangeUri));
+
+        int pageSize = 4;
+        String[] projection = {WeatherContract.WeatherEntry.COLUMN_DATE};
+        Uri forecastUri = WeatherContract.WeatherEntry.CONTENT_URI;
+        long afterDate = 0;
+        int day = 0;
+        for (int page = 0; day < dates.length; page++) {
+            Cursor byOffset = contentResolver.query(
+                    WeatherContract.buildPageUri(forecastUri, pageSize, page * pageSize),
+                    projection, null, null, null);
+            Cursor byDate = contentResolver.query(
+                    WeatherContract.buildPageUriAfterDate(forecastUri, afterDate, pageSize),
+                    projection, null, null, null);
+            assertNotNull("Cursor was null.", byOffset);
+            assertNotNull("Cursor was null.", byDate);
+
+            int expectedCount = Math.min(pageSize, dates.length - day);
+            assertEquals("Wrong size of page " + page, expectedCount, byOffset.getCount());
+            assertEquals("Wrong size of page " + page, expectedCount, byDate.getCount());
+            while (byOffset.moveToNext() && byDate.moveToNext()) {
+                assertEquals(dates[day], byOffset.getLong(0));
+                assertEquals(dates[day], byDate.getLong(0));
+                afterDate = dates[day];
+                day++;
+            }
+            byOffset.close();
+            byDate.close();
+        }
+
+        /*
+         * Every one of these queries must be answered from the (location_id, date) index,
+         * without scanning the table or sorting its rows.
+         */
+        WeatherDbHelper helper = new WeatherDbHelper(mContext);
+        SQLiteDatabase database = helper.getReadableDatabase();
+        Cursor plan = database.rawQuery("EXPLAIN QUERY PLAN SELECT * FROM "
+                        + WeatherContract.WeatherEntry.TABLE_NAME
+                        + " WHERE " + WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = ?"
+                        + " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " > ?"
+                        + " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " < ?"
+                        + " ORDER BY " + WeatherContract.WeatherEntry.COLUMN_DATE + " ASC"
+                        + " LIMIT 4",
+                new String[]{"0", Long.toString(dates[0]), Long.toString(dates[6])});
+        StringBuilder planDetails = new StringBuilder();
+        int detailIndex = plan.getColumnIndex("detail");
+        while (plan.moveToNext()) {
+            planDetails.append(plan.getString(detailIndex)).append('\n');
+        }
+        plan.close();
+        database.close();
+
+        String details = planDetails.toString();
+        assertTrue("Range query does not use the index: " + details,
+                details.contains("USING INDEX") || details.contains("USING COVERING INDEX"));
+        assertFalse("Range query sorts its rows: " + details,
+                details.contains("TEMP B-TREE"));
+    }
+
+    /**
+     * A merge that keeps history must leave past days alone. Compaction must then roll them up
+     * into weeks, the weeks into months, and keep no more summaries than the budget allows.
+     */
+    @Test
+    public void testArchiveCompaction() {
+        /* The bulk insert test days are all in October 2016, long before today */
+        testBulkInsert();
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        ContentValues today = TestUtilities.createTestWeatherContentValues();
+        today.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                SunshineDateUtils.getNormalizedUtcDateForToday());
+        WeatherBatch batch = new WeatherBatch();
+        addToBatch(batch, today, 321);
+        Bundle extras = batch.toBundle();
+        extras.putBoolean(WeatherContract.KEY_KEEP_HISTORY, true);
+        Bundle result = contentResolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MERGE_FORECAST, null, extras);
+        assertNotNull("call() did not return a result", result);
+        assertEquals("Past days must not be deleted when keeping history",
+                0, result.getInt(WeatherContract.KEY_DELETED_COUNT));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT + 1,
+                countRows(contentResolver, WeatherContract.WeatherEntry.CONTENT_URI));
+
+        /*
+         * October 2nd, 2016 was a Sunday, so the ten days fall into three weeks: the one
+         * starting on September 26th with one day, October 3rd with seven and October 10th with
+         * two. Today's forecast is not rolled up.
+         */
+        Bundle policy = new Bundle();
+        policy.putInt(WeatherContract.KEY_DAILY_RETENTION_DAYS, 0);
+        policy.putInt(WeatherContract.KEY_WEEKLY_RETENTION_DAYS, 365 * 1000);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, compactArchive(contentResolver, policy));
+        assertEquals(1, countRows(contentResolver, WeatherContract.WeatherEntry.CONTENT_URI));
+
+        long october3 = TestUtilities.DATE_NORMALIZED + 2 * SunshineDateUtils.DAY_IN_MILLIS;
+        Cursor weeks = contentResolver.query(WeatherContract.ArchiveEntry.CONTENT_URI,
+                null,
+                WeatherContract.ArchiveEntry.COLUMN_PERIOD + " = ?",
+                new String[]{Integer.toString(WeatherContract.ArchiveEntry.PERIOD_WEEK)},
+                WeatherContract.ArchiveEntry.COLUMN_PERIOD_START + " ASC");
+        assertNotNull("Cursor was null.", weeks);
+        assertEquals(3, weeks.getCount());
+        assertTrue(weeks.moveToPosition(1));
+        ContentValues expectedWeek = new ContentValues();
+        expectedWeek.put(WeatherContract.ArchiveEntry.COLUMN_PERIOD_START, october3);
+        expectedWeek.put(WeatherContract.ArchiveEntry.COLUMN_DAY_COUNT, 7);
+        expectedWeek.put(WeatherContract.ArchiveEntry.COLUMN_MIN_TEMP, 58);
+        expectedWeek.put(WeatherContract.ArchiveEntry.COLUMN_MAX_TEMP, 82);
+        expectedWeek.put(WeatherContract.ArchiveEntry.COLUMN_MEAN_TEMP, 70);
+        TestUtilities.validateCurrentRecord("Week of October 3rd was rolled up incorrectly",
+                weeks, expectedWeek);
+        weeks.close();
+
+        /* The first week started in September, the other two in October */
+        policy.putInt(WeatherContract.KEY_WEEKLY_RETENTION_DAYS, 0);
+        assertEquals(3, compactArchive(contentResolver, policy));
+
+        Cursor months = contentResolver.query(WeatherContract.ArchiveEntry.CONTENT_URI,
+                new String[]{
+                        WeatherContract.ArchiveEntry.COLUMN_PERIOD,
+                        WeatherContract.ArchiveEntry.COLUMN_DAY_COUNT},
+                null,
+                null,
+                WeatherContract.ArchiveEntry.COLUMN_PERIOD_START + " ASC");
+        assertNotNull("Cursor was null.", months);
+        assertEquals(2, months.getCount());
+        int[] expectedDayCounts = {1, BULK_INSERT_RECORDS_TO_INSERT - 1};
+        for (int expectedDayCount : expectedDayCounts) {
+            assertTrue(months.moveToNext());
+            assertEquals(WeatherContract.ArchiveEntry.PERIOD_MONTH, months.getInt(0));
+            assertEquals(expectedDayCount, months.getInt(1));
+        }
+        months.close();
+
+        /* Over budget, the oldest summary goes first */
+        policy.putInt(WeatherContract.KEY_MAX_ARCHIVE_ROWS, 1);
+        result = contentResolver.call(WeatherContract.ArchiveEntry.CONTENT_URI,
+                WeatherContract.METHOD_COMPACT_ARCHIVE, null, policy);
+        assertNotNull("call() did not return a result", result);
+        assertEquals(1, result.getInt(WeatherContract.KEY_DELETED_COUNT));
+        assertEquals(1, countRows(contentResolver, WeatherContract.ArchiveEntry.CONTENT_URI));
+    }
+
+    /**
+     * Runs compaction steps until there is nothing left to do.
+     *
+     * @return The number of rows that were rolled up
+     */
+    private static int compactArchive(ContentResolver contentResolver, Bundle policy) {
+        int rolledUpCount = 0;
+        Bundle result;
+        do {
+            result = contentResolver.call(WeatherContract.ArchiveEntry.CONTENT_URI,
+                    WeatherContract.METHOD_COMPACT_ARCHIVE, null, policy);
+            assertNotNull("call() did not return a result", result);
+            rolledUpCount += result.getInt(WeatherContract.KEY_ROW_COUNT);
+        } while (result.getBoolean(WeatherContract.KEY_HAS_MORE));
+        return rolledUpCount;
+    }
+
+    private static int countRows(ContentResolver contentResolver, Uri uri) {
+        Cursor cursor = contentResolver.query(uri, null, null, null, null);
+        assertNotNull("Cursor was null.", cursor);
+        int count = cursor.getCount();
+        cursor.close();
+        return count;
+    }
+
+    /**
+     * Replacing the hourly forecast must swap all stored steps in one call, and the "next hours"
+     * URI must only return the steps from the current one up to the given number of hours.
+     */
+    @Test
+    public void testHourlyForecast() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        long stepMillis = WeatherContract.HourlyEntry.STEP_MILLIS;
+        long currentStep = System.currentTimeMillis() / stepMillis * stepMillis;
+
+        /* Five days of steps, the first two of which have already passed */
+        HourlyBatch batch = new HourlyBatch();
+        for (int i = 0; i < 40; i++) {
+            batch.add(currentStep + (i - 2) * stepMillis, 321, 10 + i, 50, 1010, 3.5, 180);
+        }
+        Bundle result = contentResolver.call(WeatherContract.HourlyEntry.CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_HOURLY_FORECAST, null, batch.toBundle());
+        assertNotNull("call() did not return a result", result);
+        assertEquals(40, result.getInt(WeatherContract.KEY_ROW_COUNT));
+        assertEquals(0, result.getInt(WeatherContract.KEY_DELETED_COUNT));
+
+        Cursor nextHours = contentResolver.query(
+                WeatherContract.HourlyEntry.buildNextHoursUri(12),
+                new String[]{
+                        WeatherContract.HourlyEntry.COLUMN_TIME,
+                        WeatherContract.HourlyEntry.COLUMN_TEMP},
+                null,
+                null,
+                null);
+        assertNotNull("Cursor was null.", nextHours);
+        assertEquals("Twelve hours should hold four steps", 4, nextHours.getCount());
+        for (int i = 0; i < 4; i++) {
+            assertTrue(nextHours.moveToNext());
+            assertEquals(currentStep + i * stepMillis, nextHours.getLong(0));
+            assertEquals(12.0 + i, nextHours.getDouble(1), 0);
+        }
+        nextHours.close();
+
+        /* The next download replaces every stored step */
+        batch.clear();
+        batch.add(currentStep, 800, 20, 40, 1015, 1.5, 90);
+        result = contentResolver.call(WeatherContract.HourlyEntry.CONTENT_URI,
+                WeatherContract.METHOD_REPLACE_HOURLY_FORECAST, null, batch.toBundle());
+        assertNotNull("call() did not return a result", result);
+        assertEquals(1, result.getInt(WeatherContract.KEY_ROW_COUNT));
+        assertEquals(40, result.getInt(WeatherContract.KEY_DELETED_COUNT));
+        assertEquals(1, countRows(contentResolver, WeatherContract.HourlyEntry.CONTENT_URI));
+    }
+
+    /**
+     * Asking the same question twice must be answered from the cache the second time, and a
+     * write through the provider must invalidate the cache, so the next query sees the write.
+     */
+    @Test
+    public void testQueryCache() {
+        testBulkInsert();
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        String[] projection = {WeatherContract.WeatherEntry.COLUMN_DATE};
+        String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+        Bundle before = getQueryCacheStats(contentResolver);
+
+        Cursor first = contentResolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                projection, null, null, sortOrder);
+        assertNotNull(first);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, first.getCount());
+        first.close();
+
+        Cursor second = contentResolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                projection, null, null, sortOrder);
+        assertNotNull(second);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, second.getCount());
+        second.close();
+
+        Bundle after = getQueryCacheStats(contentResolver);
+        assertEquals("Expected the first query to miss the cache",
+                before.getInt(WeatherContract.KEY_MISS_COUNT) + 1,
+                after.getInt(WeatherContract.KEY_MISS_COUNT));
+        assertEquals("Expected the second query to hit the cache",
+                before.getInt(WeatherContract.KEY_HIT_COUNT) + 1,
+                after.getInt(WeatherContract.KEY_HIT_COUNT));
+
+        /* Deleting a day through the provider must be visible to the very next query */
+        int rowsDeleted = contentResolver.delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{String.valueOf(createBulkInsertTestWeatherValues()[0]
+                        .getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE))});
+        assertEquals(1, rowsDeleted);
+
+        Cursor third = contentResolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                projection, null, null, sortOrder);
+        assertNotNull(third);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 1, third.getCount());
+        third.close();
+
+        Bundle afterDelete = getQueryCacheStats(contentResolver);
+        assertEquals(after.getInt(WeatherContract.KEY_INVALIDATION_COUNT) + 1,
+                afterDelete.getInt(WeatherContract.KEY_INVALIDATION_COUNT));
+        assertEquals(after.getInt(WeatherContract.KEY_HIT_COUNT),
+                afterDelete.getInt(WeatherContract.KEY_HIT_COUNT));
+    }
+
+    /**
+     * A query answered from the cache must read exactly like the same query answered by the
+     * database, down to how getString formats a REAL without a fraction.
+     */
+    @Test
+    public void testQueryCacheReadsLikeDatabase() {
+        testBulkInsert();
+
+        ContentResolver contentResolver = mContext.getContentResolver();
+        String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+        Bundle before = getQueryCacheStats(contentResolver);
+
+        Cursor miss = contentResolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                null, null, null, sortOrder);
+        Cursor hit = contentResolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                null, null, null, sortOrder);
+        assertNotNull(miss);
+        assertNotNull(hit);
+
+        Bundle after = getQueryCacheStats(contentResolver);
+        assertEquals("Expected the second query to hit the cache",
+                before.getInt(WeatherContract.KEY_HIT_COUNT) + 1,
+                after.getInt(WeatherContract.KEY_HIT_COUNT));
+
+        assertTrue(Arrays.equals(miss.getColumnNames(), hit.getColumnNames()));
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT, miss.getCount());
+        assertEquals(miss.getCount(), hit.getCount());
+        while (miss.moveToNext()) {
+            assertTrue(hit.moveToNext());
+            for (int column = 0; column < miss.getColumnCount(); column++) {
+                assertEquals("Cached value of " + miss.getColumnName(column)
+                                + " reads differently",
+                        miss.getString(column), hit.getString(column));
+            }
+        }
+        miss.close();
+        hit.close();
+    }
+
+    private static Bundle getQueryCacheStats(ContentResolver contentResolver) {
+        Bundle stats = contentResolver.call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_GET_QUERY_CACHE_STATS,
+                null,
+                null);
+        assertNotNull("call() did not return the cache stats", stats);
+        return stats;
+    }
+
+    /**
+     * Bulk inserts, queries and merges must show up in the metrics under the code of their URI,
+     * and with a threshold of 0 every database query must be logged as slow together with its
+     * plan.
+     */
+    @Test
+    public void testQueryMetrics() throws Exception {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        int weatherCode = getStaticIntegerField(WeatherProvider.class, "CODE_WEATHER");
+        int locationWeatherCode =
+                getStaticIntegerField(WeatherProvider.class, "CODE_LOCATION_WEATHER");
+
+        Bundle thresholdExtras = new Bundle();
+        thresholdExtras.putLong(WeatherContract.KEY_SLOW_QUERY_THRESHOLD_MILLIS, 0);
+        contentResolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_RESET_QUERY_METRICS, null, thresholdExtras);
+
+        try {
+            contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI,
+                    createBulkInsertTestWeatherValues());
+
+            Cursor cursor = contentResolver.query(WeatherContract.WeatherEntry.CONTENT_URI,
+                    null, null, null, WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+            assertNotNull(cursor);
+            cursor.close();
+
+            /* A merge that only changes the weather of the first day writes a single row */
+            ContentValues[] storedValues = createBulkInsertTestWeatherValues();
+            WeatherBatch batch = new WeatherBatch();
+            for (int i = 0; i < storedValues.length; i++) {
+                ContentValues values = storedValues[i];
+                int weatherId =
+                        values.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+                addToBatch(batch, values, i == 0 ? weatherId + 1 : weatherId);
+            }
+            assertNotNull(contentResolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                    WeatherContract.METHOD_MERGE_FORECAST, null, batch.toBundle()));
+
+            Bundle metrics = contentResolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                    WeatherContract.METHOD_GET_QUERY_METRICS, null, null);
+            assertNotNull("call() did not return the query metrics", metrics);
+            assertEquals(0, metrics.getLong(WeatherContract.KEY_SLOW_QUERY_THRESHOLD_MILLIS));
+
+            int histogramSize =
+                    metrics.getLongArray(WeatherContract.KEY_LATENCY_BUCKET_BOUNDS_MILLIS).length
+                            + 1;
+            Bundle queryMetrics = findUriMetrics(metrics, WeatherContract.OPERATION_QUERY,
+                    weatherCode);
+            assertEquals(1, queryMetrics.getInt(WeatherContract.KEY_CALL_COUNT));
+            assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                    queryMetrics.getLong(WeatherContract.KEY_ROW_COUNT));
+            assertEquals(histogramSize,
+                    queryMetrics.getIntArray(WeatherContract.KEY_LATENCY_HISTOGRAM).length);
+
+            Bundle insertMetrics = findUriMetrics(metrics, WeatherContract.OPERATION_BULK_INSERT,
+                    weatherCode);
+            assertEquals(1, insertMetrics.getInt(WeatherContract.KEY_CALL_COUNT));
+            assertEquals(BULK_INSERT_RECORDS_TO_INSERT,
+                    insertMetrics.getLong(WeatherContract.KEY_ROW_COUNT));
+
+            Bundle mergeMetrics = findUriMetrics(metrics, WeatherContract.OPERATION_MERGE,
+                    locationWeatherCode);
+            assertEquals(1, mergeMetrics.getInt(WeatherContract.KEY_CALL_COUNT));
+            assertEquals(1, mergeMetrics.getLong(WeatherContract.KEY_ROW_COUNT));
+            assertEquals(histogramSize,
+                    mergeMetrics.getIntArray(WeatherContract.KEY_LATENCY_HISTOGRAM).length);
+
+            ArrayList<Bundle> slowQueries =
+                    metrics.getParcelableArrayList(WeatherContract.KEY_SLOW_QUERIES);
+            assertNotNull(slowQueries);
+            assertFalse("Expected the query to be logged as slow", slowQueries.isEmpty());
+            Bundle slowQuery = slowQueries.get(slowQueries.size() - 1);
+            assertEquals(WeatherContract.WeatherEntry.CONTENT_URI.toString(),
+                    slowQuery.getString(WeatherContract.KEY_URI));
+            assertTrue(slowQuery.getString(WeatherContract.KEY_SQL)
+                    .contains(WeatherContract.WeatherEntry.TABLE_NAME));
+            String queryPlan = slowQuery.getString(WeatherContract.KEY_QUERY_PLAN);
+            assertTrue("Expected the forecast query to use an index, but its plan was "
+                    + queryPlan, queryPlan.contains("INDEX"));
+        } finally {
+            contentResolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                    WeatherContract.METHOD_RESET_QUERY_METRICS, null, null);
+        }
+    }
+
+    /**
+     * Sync records must come back newest first, with every column, and only the newest
+     * MAX_RECORDS of them may be kept.
+     */
+    @Test
+    public void testSyncRecords() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+        int recordCount = WeatherContract.SyncMetricsEntry.MAX_RECORDS + 2;
+
+        for (int i = 0; i < recordCount; i++) {
+            Bundle record = new Bundle();
+            record.putLong(WeatherContract.SyncMetricsEntry.COLUMN_START_TIME, i);
+            record.putInt(WeatherContract.SyncMetricsEntry.COLUMN_OUTCOME,
+                    WeatherContract.SyncMetricsEntry.OUTCOME_FAILED);
+            record.putString(WeatherContract.SyncMetricsEntry.COLUMN_FAILED_STAGE,
+                    WeatherContract.SyncMetricsEntry.STAGE_FETCH);
+            record.putString(WeatherContract.SyncMetricsEntry.COLUMN_ERROR, null);
+            record.putLong(WeatherContract.SyncMetricsEntry.COLUMN_NETWORK_MILLIS, 10 * i);
+            contentResolver.call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_RECORD_SYNC, null, record);
+        }
+
+        Bundle result = contentResolver.call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_GET_SYNC_RECORDS, null, null);
+        assertNotNull("call() did not return the sync records", result);
+        ArrayList<Bundle> records =
+                result.getParcelableArrayList(WeatherContract.KEY_SYNC_RECORDS);
+        assertEquals(WeatherContract.SyncMetricsEntry.MAX_RECORDS, records.size());
+
+        Bundle newest = records.get(0);
+        assertEquals(recordCount - 1,
+                newest.getLong(WeatherContract.SyncMetricsEntry.COLUMN_START_TIME));
+        assertEquals(WeatherContract.SyncMetricsEntry.OUTCOME_FAILED,
+                newest.getLong(WeatherContract.SyncMetricsEntry.COLUMN_OUTCOME));
+        assertEquals(WeatherContract.SyncMetricsEntry.STAGE_FETCH,
+                newest.getString(WeatherContract.SyncMetricsEntry.COLUMN_FAILED_STAGE));
+        assertNull(newest.getString(WeatherContract.SyncMetricsEntry.COLUMN_ERROR));
+        assertEquals(10 * (recordCount - 1),
+                newest.getLong(WeatherContract.SyncMetricsEntry.COLUMN_NETWORK_MILLIS));
+        assertEquals("Columns that weren't recorded must be 0", 0,
+                newest.getLong(WeatherContract.SyncMetricsEntry.COLUMN_PARSE_MILLIS));
+
+        assertEquals("The oldest records must have been dropped", 2, records
+                .get(records.size() - 1)
+                .getLong(WeatherContract.SyncMetricsEntry.COLUMN_START_TIME));
+    }
+
+    /**
+     * A priority must be queued only once. A failed sync must count an attempt for the requests
+     * it covered and drop those that failed too often, and a successful one must remove them.
+     */
+    @Test
+    public void testSyncRequestQueue() {
+        int lowPriority = 1;
+        int highPriority = 2;
+
+        enqueueSyncRequest(highPriority, 100, 1000);
+        Bundle queue = enqueueSyncRequest(highPriority, 200, 2000);
+        assertEquals("A priority must be queued only once",
+                1, queue.getInt(WeatherContract.KEY_ROW_COUNT));
+        assertEquals("The earlier attempt must be kept",
+                1000, queue.getLong(WeatherContract.KEY_NEXT_ATTEMPT_TIME));
+
+        queue = enqueueSyncRequest(lowPriority, 300, 500);
+        assertEquals(2, queue.getInt(WeatherContract.KEY_ROW_COUNT));
+        assertEquals(500, queue.getLong(WeatherContract.KEY_NEXT_ATTEMPT_TIME));
+        assertEquals(highPriority, queue.getInt(WeatherContract.KEY_SYNC_PRIORITY));
+
+        /* Covers the high priority request by time, the low priority one by its priority */
+        queue = finishSyncRequests(250, highPriority, false, 5000);
+        assertEquals(2, queue.getInt(WeatherContract.KEY_ROW_COUNT));
+        assertEquals(0, queue.getInt(WeatherContract.KEY_DELETED_COUNT));
+        assertEquals(1, queue.getInt(WeatherContract.KEY_ATTEMPT_COUNT));
+        assertEquals(5000, queue.getLong(WeatherContract.KEY_NEXT_ATTEMPT_TIME));
+
+        /* The high priority request is asked for again, after this sync started */
+        enqueueSyncRequest(highPriority, 400, 9000);
+        queue = finishSyncRequests(350, highPriority, false, 6000);
+        assertEquals("The low priority request failed too often",
+                1, queue.getInt(WeatherContract.KEY_DELETED_COUNT));
+        assertEquals(1, queue.getInt(WeatherContract.KEY_ROW_COUNT));
+        assertEquals("A request made after the sync started must not count an attempt",
+                1, queue.getInt(WeatherContract.KEY_ATTEMPT_COUNT));
+        assertEquals(5000, queue.getLong(WeatherContract.KEY_NEXT_ATTEMPT_TIME));
+
+        queue = finishSyncRequests(450, highPriority, true, 0);
+        assertEquals(1, queue.getInt(WeatherContract.KEY_DELETED_COUNT));
+        assertEquals(0, queue.getInt(WeatherContract.KEY_ROW_COUNT));
+        assertFalse(queue.containsKey(WeatherContract.KEY_NEXT_ATTEMPT_TIME));
+    }
+
+    /**
+     * The snapshot must hold the forecast from today onwards in date order, tell a caller with
+     * the current version that nothing changed, keep its version when the same forecast is
+     * written again and get a new version after a write that changes it.
+     */
+    @Test
+    public void testForecastSnapshot() {
+        ContentResolver contentResolver = mContext.getContentResolver();
+
+        /* The test days lie in the past, so move them to start yesterday */
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        ContentValues[] days = createBulkInsertTestWeatherValues();
+        for (int i = 0; i < days.length; i++) {
+            days[i].put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    today + (i - 1) * SunshineDateUtils.DAY_IN_MILLIS);
+        }
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, days);
+
+        Bundle snapshot = getForecastSnapshot(contentResolver, -1);
+        assertFalse(snapshot.getBoolean(WeatherContract.KEY_SNAPSHOT_UNCHANGED));
+        WeatherBatch forecast = WeatherBatch.fromBundle(snapshot);
+        assertEquals("Yesterday must not be in the snapshot", days.length - 1, forecast.size());
+        for (int row = 0; row < forecast.size(); row++) {
+            ContentValues day = days[row + 1];
+            assertEquals(day.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE).longValue(),
+                    forecast.getDate(row));
+            assertEquals(day.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID)
+                    .intValue(), forecast.getWeatherId(row));
+            assertEquals(day.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP),
+                    forecast.getMaxTemp(row), 0.001);
+            assertEquals(day.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP),
+                    forecast.getMinTemp(row), 0.001);
+        }
+
+        long version = snapshot.getLong(WeatherContract.KEY_SNAPSHOT_VERSION);
+        Bundle unchanged = getForecastSnapshot(contentResolver, version);
+        assertTrue("Expected the snapshot to be unchanged",
+                unchanged.getBoolean(WeatherContract.KEY_SNAPSHOT_UNCHANGED));
+        assertEquals(version, unchanged.getLong(WeatherContract.KEY_SNAPSHOT_VERSION));
+        assertNull("An unchanged snapshot must not hold the forecast again",
+                unchanged.getLongArray(WeatherContract.WeatherEntry.COLUMN_DATE));
+
+        /* Writing the same forecast again rebuilds the snapshot, but must keep its version */
+        contentResolver.bulkInsert(WeatherContract.WeatherEntry.CONTENT_URI, days);
+        Bundle rewritten = getForecastSnapshot(contentResolver, version);
+        assertTrue("Expected the rewritten snapshot to be unchanged",
+                rewritten.getBoolean(WeatherContract.KEY_SNAPSHOT_UNCHANGED));
+
+        /* Deleting today must show up in the next snapshot, under a new version */
+        contentResolver.delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " = ?",
+                new String[]{Long.toString(today)});
+        Bundle changed = getForecastSnapshot(contentResolver, version);
+        assertFalse(changed.getBoolean(WeatherContract.KEY_SNAPSHOT_UNCHANGED));
+        assertFalse(version == changed.getLong(WeatherContract.KEY_SNAPSHOT_VERSION));
+        assertEquals(days.length - 2, WeatherBatch.fromBundle(changed).size());
+    }
+
+    private static Bundle getForecastSnapshot(ContentResolver contentResolver, long version) {
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherContract.KEY_SNAPSHOT_VERSION, version);
+        Bundle snapshot = contentResolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_GET_FORECAST_SNAPSHOT, null, extras);
+        assertNotNull("call() did not return the forecast snapshot", snapshot);
+        return snapshot;
+    }
+
+    private Bundle enqueueSyncRequest(int priority, long requestedTime, long nextAttemptTime) {
+        Bundle extras = new Bundle();
+        extras.putInt(WeatherContract.KEY_SYNC_PRIORITY, priority);
+        extras.putLong(WeatherContract.KEY_REQUESTED_TIME, requestedTime);
+        extras.putLong(WeatherContract.KEY_NEXT_ATTEMPT_TIME, nextAttemptTime);
+        Bundle queue = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_ENQUEUE_SYNC_REQUEST, null, extras);
+        assertNotNull("call() did not return the sync queue", queue);
+        return queue;
+    }
+
+    /* Requests are dropped after their second failed attempt */
+    private Bundle finishSyncRequests(long startTime, int priority, boolean succeeded,
+            long nextAttemptTime) {
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherContract.KEY_SYNC_START_TIME, startTime);
+        extras.putInt(WeatherContract.KEY_SYNC_PRIORITY, priority);
+        extras.putBoolean(WeatherContract.KEY_SYNC_SUCCEEDED, succeeded);
+        extras.putLong(WeatherContract.KEY_NEXT_ATTEMPT_TIME, nextAttemptTime);
+        extras.putInt(WeatherContract.KEY_MAX_ATTEMPTS, 2);
+        Bundle queue = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_FINISH_SYNC_REQUESTS, null, extras);
+        assertNotNull("call() did not return the sync queue", queue);
+        return queue;
+    }
+
+    private static Bundle findUriMetrics(Bundle metrics, String operation, int uriCode) {
+        ArrayList<Bundle> uriMetrics =
+                metrics.getParcelableArrayList(WeatherContract.KEY_URI_METRICS);
+        assertNotNull(uriMetrics);
+        for (Bundle candidate : uriMetrics) {
+            if (operation.equals(candidate.getString(WeatherContract.KEY_OPERATION))
+                    && uriCode == candidate.getInt(WeatherContract.KEY_URI_CODE)) {
+                return candidate;
+            }
+        }
+        fail("No " + operation + " metrics for URI code " + uriCode);
+        return null;
+    }
+
     /**
      * This test deletes all records from the weather table using the ContentProvider. It also
      * verifies that registered ContentObservers receive onChange callbacks when data is deleted.
@@ -442,8 +1461,23 @@ public class TestWeatherProvider {
 
         /* The delete method deletes all of the desired rows from the table, not the table itself */
         database.delete(WeatherContract.WeatherEntry.TABLE_NAME, null, null);
+        database.delete(WeatherContract.LocationEntry.TABLE_NAME, null, null);
+        database.delete(WeatherContract.ArchiveEntry.TABLE_NAME, null, null);
+        database.delete(WeatherContract.HourlyEntry.TABLE_NAME, null, null);
+        database.delete(WeatherContract.SyncMetricsEntry.TABLE_NAME, null, null);
+        database.delete(WeatherContract.SyncRequestEntry.TABLE_NAME, null, null);
 
         /* Always close the database when you're through with it */
         database.close();
+
+        clearQueryCache(InstrumentationRegistry.getTargetContext());
+    }
+
+    private static void clearQueryCache(Context context) {
+        context.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_CLEAR_QUERY_CACHE,
+                null,
+                null);
     }
 }
\ No newline at end of file
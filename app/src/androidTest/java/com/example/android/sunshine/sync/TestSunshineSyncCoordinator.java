@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.os.CancellationSignal;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Tests how {@link SunshineSyncCoordinator} merges, preempts and stops syncs. Instead of the real
+ * sync, the coordinator runs a fake one that blocks until the test lets it finish, or until it
+ * is cancelled. That way the test decides exactly which requests arrive while a sync is running.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSunshineSyncCoordinator {
+
+    /* How long to wait for something the coordinator is expected to do */
+    private static final long TIMEOUT_MILLIS = 5000;
+
+    /* How long to wait before concluding that something the test forbids did not happen */
+    private static final long QUIET_MILLIS = 300;
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private BlockingSyncRunner mSyncRunner;
+    private SunshineSyncCoordinator mCoordinator;
+
+    @Before
+    public void setUp() {
+        mSyncRunner = new BlockingSyncRunner();
+        mCoordinator = new SunshineSyncCoordinator(mContext, mSyncRunner);
+    }
+
+    /**
+     * Periodic and wearable requests that arrive while a sync is running are merged into it, and
+     * any request that arrives while a sync is queued is merged into the queued one.
+     */
+    @Test
+    public void testRequestsAreMerged() throws InterruptedException {
+        long periodicTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_PERIODIC);
+        CancellationSignal running = mSyncRunner.awaitSyncStart();
+
+        long wearTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_WEAR);
+        CountDownLatch wearDone = whenComplete(wearTicket);
+        mSyncRunner.assertNoSyncStarts();
+        assertFalse(running.isCanceled());
+
+        mSyncRunner.finishSync();
+        assertCompleted(whenComplete(periodicTicket));
+        assertCompleted(wearDone);
+        mSyncRunner.assertNoSyncStarts();
+
+        /* Keep a user sync running, so that the next requests have to wait in the queue */
+        long userTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_USER);
+        mSyncRunner.awaitSyncStart();
+        long queuedTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_USER);
+        long mergedPeriodicTicket =
+                mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_PERIODIC);
+        long mergedWearTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_WEAR);
+
+        mSyncRunner.finishSync();
+        assertCompleted(whenComplete(userTicket));
+        mSyncRunner.awaitSyncStart();
+        mSyncRunner.finishSync();
+        assertCompleted(whenComplete(queuedTicket));
+        assertCompleted(whenComplete(mergedPeriodicTicket));
+        assertCompleted(whenComplete(mergedWearTicket));
+        mSyncRunner.assertNoSyncStarts();
+    }
+
+    /**
+     * A user request cancels a running periodic sync, which may be for stale settings, and
+     * queues a new sync. The cancelled sync satisfies nobody, so the periodic request is only
+     * complete once the new sync has finished.
+     */
+    @Test
+    public void testUserRequestPreemptsPeriodicSync() throws InterruptedException {
+        long periodicTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_PERIODIC);
+        CancellationSignal periodicSync = mSyncRunner.awaitSyncStart();
+        CountDownLatch periodicDone = whenComplete(periodicTicket);
+
+        long userTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_USER);
+        assertTrue("The periodic sync was not cancelled", periodicSync.isCanceled());
+
+        CancellationSignal userSync = mSyncRunner.awaitSyncStart();
+        assertFalse(userSync.isCanceled());
+        assertNotCompleted(periodicDone);
+
+        mSyncRunner.finishSync();
+        assertCompleted(periodicDone);
+        assertCompleted(whenComplete(userTicket));
+    }
+
+    /**
+     * A second user request may come with settings the running user sync doesn't know about
+     * yet. The running sync must be left to finish, and a new one must run after it.
+     */
+    @Test
+    public void testSecondUserRequestQueuesBehindUserSync() throws InterruptedException {
+        long firstTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_USER);
+        CancellationSignal firstSync = mSyncRunner.awaitSyncStart();
+
+        long secondTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_USER);
+        CountDownLatch secondDone = whenComplete(secondTicket);
+        assertFalse("The running user sync must not be cancelled", firstSync.isCanceled());
+        mSyncRunner.assertNoSyncStarts();
+
+        mSyncRunner.finishSync();
+        assertCompleted(whenComplete(firstTicket));
+        CancellationSignal secondSync = mSyncRunner.awaitSyncStart();
+        assertNotCompleted(secondDone);
+        assertFalse(secondSync.isCanceled());
+
+        mSyncRunner.finishSync();
+        assertCompleted(secondDone);
+    }
+
+    /**
+     * Stopping a periodic ticket cancels the running sync only if periodic requests are the only
+     * ones waiting for it.
+     */
+    @Test
+    public void testStopSyncCancelsOnlyPeriodicSync() throws InterruptedException {
+        long stoppedTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_PERIODIC);
+        CancellationSignal stoppedSync = mSyncRunner.awaitSyncStart();
+        assertTrue("A purely periodic sync must be stopped", mCoordinator.stopSync(stoppedTicket));
+        assertTrue(stoppedSync.isCanceled());
+        mSyncRunner.assertNoSyncStarts();
+
+        /* The wearable now waits for the same sync, so it must run to the end */
+        long periodicTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_PERIODIC);
+        CancellationSignal sharedSync = mSyncRunner.awaitSyncStart();
+        long wearTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_WEAR);
+        assertFalse("A sync the wearable waits for must not be stopped",
+                mCoordinator.stopSync(periodicTicket));
+        assertFalse(sharedSync.isCanceled());
+
+        mSyncRunner.finishSync();
+        assertCompleted(whenComplete(wearTicket));
+
+        /* The same goes for a sync the user asked for */
+        long userTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_USER);
+        CancellationSignal userSync = mSyncRunner.awaitSyncStart();
+        assertFalse(mCoordinator.stopSync(userTicket));
+        assertFalse(userSync.isCanceled());
+        mSyncRunner.finishSync();
+        assertCompleted(whenComplete(userTicket));
+    }
+
+    /**
+     * A callback must run exactly once: when its ticket completes, or right away if it already
+     * has. Later syncs must not run it again.
+     */
+    @Test
+    public void testRunWhenCompleteRunsOnce() throws InterruptedException {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch ran = new CountDownLatch(1);
+        Runnable callback = new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                ran.countDown();
+            }
+        };
+
+        long ticket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_PERIODIC);
+        mSyncRunner.awaitSyncStart();
+        assertTrue(mCoordinator.runWhenComplete(ticket, callback));
+        mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_WEAR);
+        assertEquals(0, runs.get());
+
+        mSyncRunner.finishSync();
+        assertCompleted(ran);
+
+        long laterTicket = mCoordinator.requestSync(SunshineSyncCoordinator.PRIORITY_USER);
+        mSyncRunner.awaitSyncStart();
+        mSyncRunner.finishSync();
+        assertCompleted(whenComplete(laterTicket));
+        assertEquals("The callback ran more than once", 1, runs.get());
+
+        /* A ticket that already completed runs its callback on the calling thread */
+        final AtomicInteger lateRuns = new AtomicInteger();
+        assertTrue(mCoordinator.runWhenComplete(ticket, new Runnable() {
+            @Override
+            public void run() {
+                lateRuns.incrementAndGet();
+            }
+        }));
+        assertEquals(1, lateRuns.get());
+
+        assertFalse("A ticket that was never issued must be refused",
+                mCoordinator.runWhenComplete(laterTicket + 1, callback));
+        assertEquals(1, runs.get());
+    }
+
+    private CountDownLatch whenComplete(long ticket) {
+        final CountDownLatch completed = new CountDownLatch(1);
+        assertTrue(mCoordinator.runWhenComplete(ticket, new Runnable() {
+            @Override
+            public void run() {
+                completed.countDown();
+            }
+        }));
+        return completed;
+    }
+
+    private static void assertCompleted(CountDownLatch completed) throws InterruptedException {
+        assertTrue("Ticket did not complete",
+                completed.await(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+    private static void assertNotCompleted(CountDownLatch completed) {
+        assertEquals("Ticket completed too early", 1, completed.getCount());
+    }
+
+    /**
+     * Stands in for the real sync. Each sync reports that it started, then blocks until the test
+     * calls {@link #finishSync()} or the coordinator cancels it.
+     */
+    private static class BlockingSyncRunner implements SunshineSyncCoordinator.SyncRunner {
+
+        private final BlockingQueue<CancellationSignal> mStarted =
+                new LinkedBlockingQueue<CancellationSignal>();
+        private final Semaphore mFinishPermits = new Semaphore(0);
+
+        @Override
+        public void runSync(Context context, CancellationSignal cancellationSignal) {
+            mStarted.add(cancellationSignal);
+            try {
+                while (!cancellationSignal.isCanceled()) {
+                    if (mFinishPermits.tryAcquire(10, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        /* Waits for the next sync to start and returns its signal */
+        CancellationSignal awaitSyncStart() throws InterruptedException {
+            CancellationSignal started = mStarted.poll(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            assertNotNull("No sync was started", started);
+            return started;
+        }
+
+        void assertNoSyncStarts() throws InterruptedException {
+            assertNull("A sync was started that nobody asked for",
+                    mStarted.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS));
+        }
+
+        /* Lets the running sync, or the next one to start, return normally */
+        void finishSync() {
+            mFinishPermits.release();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that the delays of {@link SyncRequestQueue} back off exponentially, stay within their
+ * bounds, and are jittered within the upper half of the backoff.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncRequestQueue {
+
+    /* The largest random number that getRetryDelayMillis can be given */
+    private static final double ALMOST_ONE = 0.999999;
+
+    @Test
+    public void testRetryDelayDoubles() {
+        long base = SyncRequestQueue.BASE_RETRY_DELAY_MILLIS;
+
+        assertEquals(base / 2, SyncRequestQueue.getRetryDelayMillis(1, 0));
+        assertEquals(base, SyncRequestQueue.getRetryDelayMillis(2, 0));
+        assertEquals(base * 2, SyncRequestQueue.getRetryDelayMillis(3, 0));
+
+        long previous = 0;
+        for (int attempt = 1; attempt <= SyncRequestQueue.MAX_ATTEMPTS; attempt++) {
+            long delay = SyncRequestQueue.getRetryDelayMillis(attempt, 0);
+            assertTrue("The delay must never shrink", delay >= previous);
+            previous = delay;
+        }
+    }
+
+    @Test
+    public void testRetryDelayIsCapped() {
+        long max = SyncRequestQueue.MAX_RETRY_DELAY_MILLIS;
+
+        assertEquals(max / 2, SyncRequestQueue.getRetryDelayMillis(100, 0));
+        assertTrue(SyncRequestQueue.getRetryDelayMillis(100, ALMOST_ONE) <= max);
+        assertTrue("A huge number of attempts must not overflow",
+                SyncRequestQueue.getRetryDelayMillis(Integer.MAX_VALUE, ALMOST_ONE) <= max);
+    }
+
+    @Test
+    public void testRetryDelayIsJittered() {
+        long base = SyncRequestQueue.BASE_RETRY_DELAY_MILLIS;
+        long low = SyncRequestQueue.getRetryDelayMillis(1, 0);
+        long middle = SyncRequestQueue.getRetryDelayMillis(1, 0.5);
+        long high = SyncRequestQueue.getRetryDelayMillis(1, ALMOST_ONE);
+
+        assertTrue(low < middle && middle < high);
+        assertTrue("The jitter must stay within the backoff", high < base);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherBatch;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks how {@link SyncSchedule} adapts the sync interval to the forecast and when it plans
+ * the next sync.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestSyncSchedule {
+
+    private static final long DATE = 1475280000000L;
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    @Test
+    public void testOnlySignificantChangesToTheNextDaysCount() {
+        WeatherBatch before = new WeatherBatch();
+        WeatherBatch after = new WeatherBatch();
+        for (int day = 0; day < 5; day++) {
+            long date = DATE + day * SunshineDateUtils.DAY_IN_MILLIS;
+            before.add(date, 800, 10, 20, 80, 1010, 4, 90);
+            /* Small changes to the first days, big ones to the days after */
+            after.add(date, 800, 10.5, day < SyncSchedule.SIGNIFICANT_DAYS ? 20.5 : 25,
+                    70, 1000, 6, 180);
+        }
+        assertEquals(0, SyncSchedule.countSignificantChanges(before, after));
+
+        after = new WeatherBatch();
+        after.add(DATE, 500, 10, 20, 80, 1010, 4, 90);
+        after.add(DATE + SunshineDateUtils.DAY_IN_MILLIS, 800, 8, 20, 80, 1010, 4, 90);
+        after.add(DATE + 9 * SunshineDateUtils.DAY_IN_MILLIS, 800, 10, 20, 80, 1010, 4, 90);
+        assertEquals("A new condition, a colder night and a new day all count",
+                3, SyncSchedule.countSignificantChanges(before, after));
+    }
+
+    @Test
+    public void testIntervalStaysWithinBounds() {
+        long interval = SyncSchedule.DEFAULT_INTERVAL_SECONDS;
+        for (int sync = 0; sync < 10; sync++) {
+            interval = SyncSchedule.adaptInterval(interval, 0);
+        }
+        assertEquals(SyncSchedule.MAX_INTERVAL_SECONDS, interval);
+
+        for (int sync = 0; sync < 10; sync++) {
+            interval = SyncSchedule.adaptInterval(interval, SyncSchedule.SIGNIFICANT_DAYS);
+        }
+        assertEquals(SyncSchedule.MIN_INTERVAL_SECONDS, interval);
+
+        assertEquals("A single changed day leaves the interval as it is",
+                interval, SyncSchedule.adaptInterval(interval, 1));
+    }
+
+    @Test
+    public void testDataIsFreshForHalfTheInterval() {
+        long interval = SyncSchedule.DEFAULT_INTERVAL_SECONDS;
+        long halfInterval = TimeUnit.SECONDS.toMillis(interval) / 2;
+
+        assertFalse(SyncSchedule.isFresh(0, interval, DATE));
+        assertTrue(SyncSchedule.isFresh(DATE, interval, DATE + halfInterval - 1));
+        assertFalse(SyncSchedule.isFresh(DATE, interval, DATE + halfInterval));
+    }
+
+    @Test
+    public void testNextSyncDelay() {
+        long interval = SyncSchedule.DEFAULT_INTERVAL_SECONDS;
+        long morning = DATE + TimeUnit.HOURS.toMillis(8);
+
+        assertEquals("Right after a sync, the next one is an interval away", interval,
+                SyncSchedule.getNextSyncDelaySeconds(morning, interval, morning, UTC));
+        assertEquals("A failed sync is retried", SyncSchedule.RETRY_DELAY_SECONDS,
+                SyncSchedule.getNextSyncDelaySeconds(0, interval, morning, UTC));
+
+        long lateEvening = DATE + TimeUnit.HOURS.toMillis(23);
+        assertEquals("The new day is fetched shortly after midnight",
+                TimeUnit.HOURS.toSeconds(1) + SyncSchedule.DAY_CHANGE_DELAY_SECONDS,
+                SyncSchedule.getNextSyncDelaySeconds(lateEvening, interval, lateEvening, UTC));
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Checks that {@link UsagePredictor} learns the times the app is usually opened, and that
+ * {@link SyncSchedule} only prefetches when the forecast would be stale by then.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestUsagePredictor {
+
+    private static final long DATE = 1475280000000L;
+    private static final long DAY_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static final long EIGHT_AM = TimeUnit.HOURS.toMillis(8);
+
+    @Test
+    public void testOpensAreCountedOnceAndFade() {
+        float[] weights = new float[UsagePredictor.BUCKETS_PER_DAY];
+        long open = DATE + EIGHT_AM;
+        int bucket = (int) (EIGHT_AM / UsagePredictor.BUCKET_MILLIS);
+
+        assertTrue(UsagePredictor.recordOpen(weights, 0, open, UTC));
+        assertFalse("Turning the screen doesn't count as another open",
+                UsagePredictor.recordOpen(weights, open, open + 1000, UTC));
+        assertEquals(1f, weights[bucket], 0.0001f);
+
+        assertTrue(UsagePredictor.recordOpen(weights, open, open + DAY_MILLIS, UTC));
+        assertEquals((float) UsagePredictor.DAILY_DECAY + 1f, weights[bucket], 0.0001f);
+    }
+
+    @Test
+    public void testPrefetchRunsAheadOfTheUsualOpen() {
+        float[] weights = new float[UsagePredictor.BUCKETS_PER_DAY];
+        long lastOpen = 0;
+        for (int day = 0; day < 5; day++) {
+            long open = DATE + day * DAY_MILLIS + EIGHT_AM;
+            UsagePredictor.recordOpen(weights, lastOpen, open, UTC);
+            lastOpen = open;
+        }
+
+        long evening = DATE + 5 * DAY_MILLIS + TimeUnit.HOURS.toMillis(20);
+        long expected = TimeUnit.MILLISECONDS.toSeconds(TimeUnit.HOURS.toMillis(12)
+                - UsagePredictor.PREFETCH_LEAD_MILLIS);
+        assertEquals(expected, UsagePredictor.getSecondsUntilPrefetch(weights, evening, UTC));
+
+        assertEquals("Nothing is known before enough opens", -1,
+                UsagePredictor.getSecondsUntilPrefetch(
+                        new float[UsagePredictor.BUCKETS_PER_DAY], evening, UTC));
+    }
+
+    @Test
+    public void testPrefetchOnlyWhenTheForecastWouldBeStale() {
+        long now = DATE;
+        long hour = TimeUnit.HOURS.toSeconds(1);
+
+        assertEquals(hour, SyncSchedule.getPrefetchDelaySeconds(3 * hour, hour, now, now));
+        assertEquals("The periodic sync comes first", -1,
+                SyncSchedule.getPrefetchDelaySeconds(3 * hour, 4 * hour, now, now));
+        assertEquals("The forecast would still be fresh", -1,
+                SyncSchedule.getPrefetchDelaySeconds(3 * hour, 60, now, now));
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.example.android.sunshine.data.WeatherBatch;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotSame;
+import static junit.framework.Assert.assertSame;
+
+/**
+ * Checks that {@link ForecastPresentationTable} hands out the same strings the forecast list
+ * used to format on every bind, and only formats a day again when its forecast changed.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestForecastPresentationTable {
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    @Test
+    public void testRowMatchesFormattedStrings() {
+        long tomorrow = SunshineDateUtils.getNormalizedUtcDateForToday()
+                + SunshineDateUtils.DAY_IN_MILLIS;
+        ForecastPresentationTable.Row row =
+                ForecastPresentationTable.getRow(mContext, tomorrow, 800, 21.4, 12.6);
+
+        assertEquals(SunshineDateUtils.getFriendlyDateString(mContext, tomorrow, false),
+                row.getDate());
+        assertEquals(SunshineWeatherUtils.getStringForWeatherCondition(mContext, 800),
+                row.getDescription());
+        assertEquals(SunshineWeatherUtils.formatTemperature(mContext, 21.4, true),
+                row.getHighTemperature(true));
+        assertEquals(SunshineWeatherUtils.formatTemperature(mContext, 21.4, false),
+                row.getHighTemperature(false));
+        assertEquals(SunshineWeatherUtils.formatTemperature(mContext, 12.6, true),
+                row.getLowTemperature(true));
+        assertEquals(SunshineWeatherUtils.formatTemperature(mContext, 12.6, false),
+                row.getLowTemperature(false));
+        assertFalse("Both units must be formatted",
+                row.getHighTemperature(true).equals(row.getHighTemperature(false)));
+    }
+
+    @Test
+    public void testRowIsOnlyFormattedAgainWhenTheForecastChanged() {
+        long date = SunshineDateUtils.getNormalizedUtcDateForToday()
+                + 2 * SunshineDateUtils.DAY_IN_MILLIS;
+
+        WeatherBatch forecast = new WeatherBatch();
+        forecast.add(date, 500, 10, 18, 80, 1010, 4, 90);
+        ForecastPresentationTable.precompute(mContext, forecast);
+
+        ForecastPresentationTable.Row precomputed =
+                ForecastPresentationTable.getRow(mContext, date, 500, 18, 10);
+        assertSame("The precomputed row must be handed out as it is", precomputed,
+                ForecastPresentationTable.getRow(mContext, date, 500, 18, 10));
+
+        ForecastPresentationTable.Row changed =
+                ForecastPresentationTable.getRow(mContext, date, 500, 19, 10);
+        assertNotSame(precomputed, changed);
+        assertEquals(SunshineWeatherUtils.formatTemperature(mContext, 19, true),
+                changed.getHighTemperature(true));
+    }
+}
@@ -0,0 +1,500 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+
+import com.example.android.sunshine.BuildConfig;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Tests the compression, revalidation and timeout handling of
+ * {@link NetworkUtils#readResponseFromHttpUrl} against a tiny HTTP server running on the device
+ * itself. The server answers every request with the same body, either as it is or compressed
+ * with the encoding the test asks for, or with "304 Not Modified" once the test tells it to.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TestNetworkUtils {
+
+    /* A stand-in for the forecast JSON. It repeats a lot, just like the real thing. */
+    private static final String TEST_BODY;
+
+    static {
+        StringBuilder body = new StringBuilder("{\"list\":[");
+        for (int i = 0; i < 14; i++) {
+            if (i > 0) body.append(',');
+            body.append("{\"pressure\":1013.25,\"humidity\":74,\"speed\":1.2,\"deg\":90,")
+                    .append("\"temp\":{\"min\":12.5,\"max\":21.0},\"weather\":[{\"id\":800}]}");
+        }
+        TEST_BODY = body.append("]}").toString();
+    }
+
+    /* Short enough to keep the test fast, long enough for the loopback connection */
+    private static final int STALL_READ_TIMEOUT_MILLIS = 500;
+
+    /* How long the cancel test lets the request block before cancelling it */
+    private static final long CANCEL_DELAY_MILLIS = 200;
+
+    /* Validators the server sends along with the body in the revalidation tests */
+    private static final String TEST_ETAG = "\"forecast-v1\"";
+    private static final String TEST_LAST_MODIFIED = "Wed, 21 Oct 2015 07:28:00 GMT";
+
+    private final Context mContext = InstrumentationRegistry.getTargetContext();
+
+    private StubHttpServer mServer;
+
+    @Before
+    public void setUp() throws IOException {
+        /* Stored validators would make our requests conditional, so start without any */
+        NetworkUtils.clearResponseValidators(mContext);
+        mServer = new StubHttpServer();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        mServer.close();
+    }
+
+    /**
+     * A gzip encoded body must reach the handler decompressed, and the stats must show both the
+     * size on the wire and the size after decompression.
+     */
+    @Test
+    public void testGzipBodyIsDecompressed() throws IOException {
+        byte[] uncompressed = TEST_BODY.getBytes("UTF-8");
+        byte[] compressed = gzip(uncompressed);
+        mServer.serve("gzip", compressed);
+
+        TransferStats stats = new TransferStats();
+        String received = readBody(stats);
+
+        assertEquals("Decompressed body does not match what the server sent", TEST_BODY, received);
+        assertEquals("gzip", stats.getContentEncoding());
+        assertEquals(compressed.length, stats.getCompressedBytes());
+        assertEquals(uncompressed.length, stats.getUncompressedBytes());
+        assertTrue("Compressed body should be smaller than the original",
+                stats.getCompressedBytes() < stats.getUncompressedBytes());
+
+        String acceptEncoding = mServer.getLastAcceptEncoding();
+        assertNotNull("Request did not send Accept-Encoding", acceptEncoding);
+        assertTrue("Request does not accept gzip: " + acceptEncoding,
+                acceptEncoding.contains("gzip"));
+    }
+
+    /**
+     * A deflate encoded body must reach the handler decompressed as well.
+     */
+    @Test
+    public void testDeflateBodyIsDecompressed() throws IOException {
+        byte[] uncompressed = TEST_BODY.getBytes("UTF-8");
+        byte[] compressed = deflate(uncompressed);
+        mServer.serve("deflate", compressed);
+
+        TransferStats stats = new TransferStats();
+        String received = readBody(stats);
+
+        assertEquals("Decompressed body does not match what the server sent", TEST_BODY, received);
+        assertEquals("deflate", stats.getContentEncoding());
+        assertEquals(compressed.length, stats.getCompressedBytes());
+        assertEquals(uncompressed.length, stats.getUncompressedBytes());
+    }
+
+    /**
+     * A body without Content-Encoding must be passed through untouched, with equal byte counts.
+     */
+    @Test
+    public void testIdentityBodyIsPassedThrough() throws IOException {
+        byte[] uncompressed = TEST_BODY.getBytes("UTF-8");
+        mServer.serve(null, uncompressed);
+
+        TransferStats stats = new TransferStats();
+        String received = readBody(stats);
+
+        assertEquals("Body does not match what the server sent", TEST_BODY, received);
+        assertNull(stats.getContentEncoding());
+        assertEquals(uncompressed.length, stats.getCompressedBytes());
+        assertEquals(uncompressed.length, stats.getUncompressedBytes());
+    }
+
+    /**
+     * A server that accepts the connection but never answers must not hang the request forever.
+     * The read timeout of the shared client has to end it.
+     */
+    @Test
+    public void testStalledResponseTimesOut() throws IOException {
+        mServer.stall();
+
+        SunshineHttpClient httpClient = SunshineHttpClient.getInstance();
+        int connectTimeout = httpClient.getConnectTimeoutMillis();
+        int readTimeout = httpClient.getReadTimeoutMillis();
+        httpClient.setTimeouts(connectTimeout, STALL_READ_TIMEOUT_MILLIS);
+        try {
+            NetworkUtils.readResponseFromHttpUrl(mContext, mServer.getUrl(),
+                    new NetworkUtils.ResponseHandler() {
+                        @Override
+                        public void onResponse(InputStream in) throws IOException {
+                            fail("Handler must not be called without a response");
+                        }
+                    },
+                    new TransferStats());
+            fail("A stalled response should have timed out");
+        } catch (SocketTimeoutException e) {
+            /* This is what we expect */
+        } finally {
+            httpClient.setTimeouts(connectTimeout, readTimeout);
+        }
+    }
+
+    /**
+     * Cancelling must end a request that is blocked waiting for the server right away, rather
+     * than once the read timeout has passed.
+     */
+    @Test
+    public void testCancelDisconnectsStalledResponse() throws IOException {
+        mServer.stall();
+
+        final CancellationSignal cancellationSignal = new CancellationSignal();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                SystemClock.sleep(CANCEL_DELAY_MILLIS);
+                cancellationSignal.cancel();
+            }
+        }).start();
+
+        long startMillis = SystemClock.elapsedRealtime();
+        try {
+            NetworkUtils.readResponseFromHttpUrl(mContext, mServer.getUrl(),
+                    new NetworkUtils.ResponseHandler() {
+                        @Override
+                        public void onResponse(InputStream in) throws IOException {
+                            fail("Handler must not be called without a response");
+                        }
+                    },
+                    new TransferStats(),
+                    cancellationSignal);
+            fail("A cancelled request should have thrown");
+        } catch (OperationCanceledException e) {
+            /* This is what we expect */
+        }
+
+        long elapsedMillis = SystemClock.elapsedRealtime() - startMillis;
+        assertTrue("Cancel took " + elapsedMillis + "ms, as long as a read timeout",
+                elapsedMillis < SunshineHttpClient.getInstance().getReadTimeoutMillis());
+    }
+
+    /**
+     * Once a response with an ETag and a Last-Modified date has been handled, the next request
+     * for the same URL must send them back as If-None-Match and If-Modified-Since.
+     */
+    @Test
+    public void testValidatorsAreSentOnNextRequest() throws IOException {
+        mServer.serve(null, TEST_BODY.getBytes("UTF-8"));
+        mServer.setValidators(TEST_ETAG, TEST_LAST_MODIFIED);
+
+        readBody(new TransferStats());
+        assertNull("First request must not be conditional", mServer.getLastIfNoneMatch());
+        assertNull("First request must not be conditional", mServer.getLastIfModifiedSince());
+
+        readBody(new TransferStats());
+        assertEquals(TEST_ETAG, mServer.getLastIfNoneMatch());
+        assertEquals(TEST_LAST_MODIFIED, mServer.getLastIfModifiedSince());
+    }
+
+    /**
+     * A "304 Not Modified" answer means we already have the content, so the request must report
+     * that nothing was handled without ever calling the handler.
+     */
+    @Test
+    public void testNotModifiedSkipsHandler() throws IOException {
+        mServer.serve(null, TEST_BODY.getBytes("UTF-8"));
+        mServer.setValidators(TEST_ETAG, TEST_LAST_MODIFIED);
+        readBody(new TransferStats());
+
+        mServer.notModified();
+        boolean handled = NetworkUtils.readResponseFromHttpUrl(mContext, mServer.getUrl(),
+                new NetworkUtils.ResponseHandler() {
+                    @Override
+                    public void onResponse(InputStream in) throws IOException {
+                        fail("Handler must not be called for a 304 response");
+                    }
+                },
+                new TransferStats());
+
+        assertFalse("A 304 response must not count as handled", handled);
+        assertEquals(TEST_ETAG, mServer.getLastIfNoneMatch());
+    }
+
+    /**
+     * If the handler fails, the validators of that response must not be stored. Otherwise the
+     * server would answer the next request with a 304, and the content we failed to process
+     * would never be downloaded again.
+     */
+    @Test
+    public void testValidatorsAreNotStoredWhenHandlerFails() throws IOException {
+        mServer.serve(null, TEST_BODY.getBytes("UTF-8"));
+        mServer.setValidators(TEST_ETAG, TEST_LAST_MODIFIED);
+
+        try {
+            NetworkUtils.readResponseFromHttpUrl(mContext, mServer.getUrl(),
+                    new NetworkUtils.ResponseHandler() {
+                        @Override
+                        public void onResponse(InputStream in) throws IOException {
+                            throw new IOException("Handler failed");
+                        }
+                    },
+                    new TransferStats());
+            fail("The handler's exception should have been passed on");
+        } catch (IOException e) {
+            assertEquals("Handler failed", e.getMessage());
+        }
+
+        readBody(new TransferStats());
+        assertNull("Validators of a failed response were sent", mServer.getLastIfNoneMatch());
+        assertNull("Validators of a failed response were sent",
+                mServer.getLastIfModifiedSince());
+    }
+
+    /**
+     * OpenWeatherMap turns away every request without an API key, so the hourly forecast must
+     * send the one the app was built with. The fake weather server of the daily forecast gets
+     * none.
+     */
+    @Test
+    public void testOnlyHourlyUrlSendsApiKey() {
+        Uri hourlyUri = Uri.parse(
+                NetworkUtils.getHourlyUrlForLocationQuery("94043,USA").toString());
+        assertEquals(BuildConfig.OPEN_WEATHER_MAP_API_KEY, hourlyUri.getQueryParameter("appid"));
+
+        Uri dailyUri = Uri.parse(NetworkUtils.getUrlForLocationQuery("94043,USA").toString());
+        assertNull(dailyUri.getQueryParameter("appid"));
+    }
+
+    /**
+     * Requests the stub server's only resource and returns the body the handler received.
+     */
+    private String readBody(TransferStats stats) throws IOException {
+        final ByteArrayOutputStream received = new ByteArrayOutputStream();
+        boolean handled = NetworkUtils.readResponseFromHttpUrl(mContext, mServer.getUrl(),
+                new NetworkUtils.ResponseHandler() {
+                    @Override
+                    public void onResponse(InputStream in) throws IOException {
+                        byte[] buffer = new byte[256];
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            received.write(buffer, 0, read);
+                        }
+                    }
+                },
+                stats);
+
+        assertTrue("Handler was not called for a 200 response", handled);
+        return received.toString("UTF-8");
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] deflate(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+        out.write(data);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * A minimal HTTP/1.1 server that answers each connection with one canned response and then
+     * closes it. It remembers the Accept-Encoding, If-None-Match and If-Modified-Since headers of
+     * the last request it saw.
+     */
+    private static class StubHttpServer implements Runnable {
+
+        private final ServerSocket mServerSocket;
+        private final Thread mThread;
+
+        private volatile String mContentEncoding;
+        private volatile byte[] mBody = new byte[0];
+        private volatile String mEntityTag;
+        private volatile String mLastModified;
+        private volatile String mLastAcceptEncoding;
+        private volatile String mLastIfNoneMatch;
+        private volatile String mLastIfModifiedSince;
+        private volatile boolean mStalled;
+        private volatile boolean mNotModified;
+
+        StubHttpServer() throws IOException {
+            mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+            mThread = new Thread(this, "StubHttpServer");
+            mThread.start();
+        }
+
+        void serve(String contentEncoding, byte[] body) {
+            mContentEncoding = contentEncoding;
+            mBody = body;
+            mStalled = false;
+            mNotModified = false;
+        }
+
+        /* Send these as ETag and Last-Modified along with the body, null leaves one out */
+        void setValidators(String entityTag, String lastModified) {
+            mEntityTag = entityTag;
+            mLastModified = lastModified;
+        }
+
+        /* From now on, read requests but never answer them */
+        void stall() {
+            mStalled = true;
+        }
+
+        /* From now on, answer every request with "304 Not Modified" */
+        void notModified() {
+            mNotModified = true;
+        }
+
+        URL getUrl() throws IOException {
+            return new URL("http://127.0.0.1:" + mServerSocket.getLocalPort() + "/forecast");
+        }
+
+        String getLastAcceptEncoding() {
+            return mLastAcceptEncoding;
+        }
+
+        String getLastIfNoneMatch() {
+            return mLastIfNoneMatch;
+        }
+
+        String getLastIfModifiedSince() {
+            return mLastIfModifiedSince;
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    Socket socket = mServerSocket.accept();
+                    try {
+                        respond(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    /* The server socket was closed by the test, or the client went away */
+                }
+            }
+        }
+
+        private void respond(Socket socket) throws IOException {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), "ISO-8859-1"));
+
+            /* Skip the request line and read headers up to the blank line that ends them */
+            String line = reader.readLine();
+            String ifNoneMatch = null;
+            String ifModifiedSince = null;
+            while ((line = reader.readLine()) != null && line.length() > 0) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim();
+                String value = line.substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Accept-Encoding")) {
+                    mLastAcceptEncoding = value;
+                } else if (name.equalsIgnoreCase("If-None-Match")) {
+                    ifNoneMatch = value;
+                } else if (name.equalsIgnoreCase("If-Modified-Since")) {
+                    ifModifiedSince = value;
+                }
+            }
+            mLastIfNoneMatch = ifNoneMatch;
+            mLastIfModifiedSince = ifModifiedSince;
+
+            if (mStalled) {
+                /* Hold the connection open until the client gives up and closes it */
+                while (socket.getInputStream().read() != -1) {
+                    /* Wait for the client to go away */
+                }
+                return;
+            }
+
+            /* A 304 carries the validators again, but never a body */
+            byte[] body = mNotModified ? new byte[0] : mBody;
+            StringBuilder headers = new StringBuilder(mNotModified
+                    ? "HTTP/1.1 304 Not Modified\r\n" : "HTTP/1.1 200 OK\r\n");
+            if (!mNotModified) {
+                headers.append("Content-Type: application/json; charset=utf-8\r\n")
+                        .append("Content-Length: ").append(body.length).append("\r\n");
+                if (mContentEncoding != null) {
+                    headers.append("Content-Encoding: ").append(mContentEncoding)
+                            .append("\r\n");
+                }
+            }
+            if (mEntityTag != null) {
+                headers.append("ETag: ").append(mEntityTag).append("\r\n");
+            }
+            if (mLastModified != null) {
+                headers.append("Last-Modified: ").append(mLastModified).append("\r\n");
+            }
+            headers.append("Connection: close\r\n\r\n");
+
+            OutputStream out = socket.getOutputStream();
+            out.write(headers.toString().getBytes("ISO-8859-1"));
+            out.write(body);
+            out.flush();
+        }
+    }
+}
@@ -18,6 +18,7 @@ package com.example.android.sunshine;
 import android.content.Context;
 import android.database.Cursor;
 import android.support.annotation.NonNull;
+import android.support.v7.util.DiffUtil;
 import android.support.v7.widget.RecyclerView;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -25,7 +26,9 @@ import android.view.ViewGroup;
 import android.widget.ImageView;
 import android.widget.TextView;
 
-import com.example.android.sunshine.utilities.SunshineDateUtils;
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.utilities.ForecastPresentationTable;
+import com.example.android.sunshine.utilities.StartupTracer;
 import com.example.android.sunshine.utilities.SunshineWeatherUtils;
 
 /**
@@ -65,6 +68,9 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
 
     private Cursor mCursor;
 
+    /* The units the user prefers, read once per cursor instead of once per temperature */
+    private boolean mIsMetric;
+
     /**
      * Creates a ForecastAdapter.
      *
@@ -76,6 +82,13 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
         mContext = context;
         mClickHandler = clickHandler;
         mUseTodayLayout = mContext.getResources().getBoolean(R.bool.use_today_layout);
+
+        /*
+         * The provider updates the stored days in place, so a day keeps its _ID from one sync to
+         * the next. With stable IDs, the RecyclerView can tell which items merely changed and
+         * animate those, instead of rebinding the whole list on every new cursor.
+         */
+        setHasStableIds(true);
     }
 
     /**
@@ -157,62 +170,51 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
 
         forecastAdapterViewHolder.iconView.setImageResource(weatherImageId);
 
+        /*
+         * Every string of the day comes ready-made from the presentation table. Right after a
+         * sync, the sync has already formatted them. Otherwise they are formatted here once,
+         * and every later bind of the same day only looks them up.
+         */
+        long dateInMillis = mCursor.getLong(MainActivity.INDEX_WEATHER_DATE);
+        ForecastPresentationTable.Row row = ForecastPresentationTable.getRow(mContext,
+                dateInMillis,
+                weatherId,
+                mCursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP),
+                mCursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP));
+
         /****************
          * Weather Date *
          ****************/
-         /* Read date from the cursor */
-        long dateInMillis = mCursor.getLong(MainActivity.INDEX_WEATHER_DATE);
-         /* Get human readable string using our utility method */
-        String dateString = SunshineDateUtils.getFriendlyDateString(mContext, dateInMillis, false);
-
-         /* Display friendly date string */
-        forecastAdapterViewHolder.dateView.setText(dateString);
+        forecastAdapterViewHolder.dateView.setText(row.getDate());
 
         /***********************
          * Weather Description *
          ***********************/
-        String description = SunshineWeatherUtils.getStringForWeatherCondition(mContext, weatherId);
-         /* Create the accessibility (a11y) String from the weather description */
-        String descriptionA11y = mContext.getString(R.string.a11y_forecast, description);
-
          /* Set the text and content description (for accessibility purposes) */
-        forecastAdapterViewHolder.descriptionView.setText(description);
-        forecastAdapterViewHolder.descriptionView.setContentDescription(descriptionA11y);
+        forecastAdapterViewHolder.descriptionView.setText(row.getDescription());
+        forecastAdapterViewHolder.descriptionView.setContentDescription(
+                row.getDescriptionA11y());
 
         /**************************
          * High (max) temperature *
          **************************/
-         /* Read high temperature from the cursor (in degrees celsius) */
-        double highInCelsius = mCursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP);
          /*
-          * If the user's preference for weather is fahrenheit, formatTemperature will convert
-          * the temperature. This method will also append either °C or °F to the temperature
-          * String.
+          * The row holds the temperature in both units, with either °C or °F appended, so we
+          * only pick the one the user prefers.
           */
-        String highString = SunshineWeatherUtils.formatTemperature(mContext, highInCelsius);
-         /* Create the accessibility (a11y) String from the weather description */
-        String highA11y = mContext.getString(R.string.a11y_high_temp, highString);
-
-         /* Set the text and content description (for accessibility purposes) */
-        forecastAdapterViewHolder.highTempView.setText(highString);
-        forecastAdapterViewHolder.highTempView.setContentDescription(highA11y);
+        forecastAdapterViewHolder.highTempView.setText(row.getHighTemperature(mIsMetric));
+        forecastAdapterViewHolder.highTempView.setContentDescription(
+                row.getHighTemperatureA11y(mIsMetric));
 
         /*************************
          * Low (min) temperature *
          *************************/
-         /* Read low temperature from the cursor (in degrees celsius) */
-        double lowInCelsius = mCursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP);
-         /*
-          * If the user's preference for weather is fahrenheit, formatTemperature will convert
-          * the temperature. This method will also append either °C or °F to the temperature
-          * String.
-          */
-        String lowString = SunshineWeatherUtils.formatTemperature(mContext, lowInCelsius);
-        String lowA11y = mContext.getString(R.string.a11y_low_temp, lowString);
+        forecastAdapterViewHolder.lowTempView.setText(row.getLowTemperature(mIsMetric));
+        forecastAdapterViewHolder.lowTempView.setContentDescription(
+                row.getLowTemperatureA11y(mIsMetric));
 
-         /* Set the text and content description (for accessibility purposes) */
-        forecastAdapterViewHolder.lowTempView.setText(lowString);
-        forecastAdapterViewHolder.lowTempView.setContentDescription(lowA11y);
+        /* Only the first bind of this process counts, every later one returns right away */
+        StartupTracer.mark(StartupTracer.MILESTONE_FIRST_FORECAST_ROW);
     }
 
     /**
@@ -227,6 +229,19 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
         return mCursor.getCount();
     }
 
+    /**
+     * Returns the _ID of the day at the given position, which stays the same for as long as the
+     * day is stored.
+     *
+     * @param position index within our RecyclerView and Cursor
+     * @return the _ID of the weather row
+     */
+    @Override
+    public long getItemId(int position) {
+        mCursor.moveToPosition(position);
+        return mCursor.getLong(MainActivity.INDEX_WEATHER_ROW_ID);
+    }
+
     /**
      * Returns an integer code related to the type of View we want the ViewHolder to be at a given
      * position. This method is useful when we want to use different layouts for different items
@@ -249,14 +264,86 @@ class ForecastAdapter extends RecyclerView.Adapter<ForecastAdapter.ForecastAdapt
     /**
      * Swaps the cursor used by the ForecastAdapter for its weather data. This method is called by
      * MainActivity after a load has finished, as well as when the Loader responsible for loading
-     * the weather data is reset. When this method is called, we assume we have a completely new
-     * set of data, so we call notifyDataSetChanged to tell the RecyclerView to update.
+     * the weather data is reset.
+     * <p>
+     * A sync usually changes only a few days, so we compare the new cursor with the old one,
+     * matching the days by their _ID, and tell the RecyclerView exactly which items were
+     * inserted, removed, moved or changed. Only those get rebound and animated. If there is no
+     * old cursor to compare with, or the units changed and every temperature has to be shown
+     * again, we call notifyDataSetChanged instead.
      *
      * @param newCursor the new cursor to use as ForecastAdapter's data source
      */
     void swapCursor(Cursor newCursor) {
+        Cursor oldCursor = mCursor;
+        boolean wasMetric = mIsMetric;
+        /* Changing the units reloads the forecast, so a new cursor is when they can change */
+        mIsMetric = SunshinePreferences.isMetric(mContext);
+
+        if (oldCursor == null || newCursor == null || oldCursor == newCursor
+                || wasMetric != mIsMetric) {
+            mCursor = newCursor;
+            notifyDataSetChanged();
+            return;
+        }
+
+        /* The loader closes the old cursor only after this returns, so we can still read it */
+        DiffUtil.DiffResult diff = DiffUtil.calculateDiff(
+                new ForecastDiffCallback(oldCursor, newCursor, mUseTodayLayout));
         mCursor = newCursor;
-        notifyDataSetChanged();
+        diff.dispatchUpdatesTo(this);
+    }
+
+    /**
+     * Compares the days of two forecast cursors for DiffUtil. A day is the same item if it has
+     * the same _ID, and its contents are the same if everything that onBindViewHolder shows is.
+     */
+    private static class ForecastDiffCallback extends DiffUtil.Callback {
+        private final Cursor mOldCursor;
+        private final Cursor mNewCursor;
+        private final boolean mUseTodayLayout;
+
+        ForecastDiffCallback(Cursor oldCursor, Cursor newCursor, boolean useTodayLayout) {
+            mOldCursor = oldCursor;
+            mNewCursor = newCursor;
+            mUseTodayLayout = useTodayLayout;
+        }
+
+        @Override
+        public int getOldListSize() {
+            return mOldCursor.getCount();
+        }
+
+        @Override
+        public int getNewListSize() {
+            return mNewCursor.getCount();
+        }
+
+        @Override
+        public boolean areItemsTheSame(int oldItemPosition, int newItemPosition) {
+            mOldCursor.moveToPosition(oldItemPosition);
+            mNewCursor.moveToPosition(newItemPosition);
+            return mOldCursor.getLong(MainActivity.INDEX_WEATHER_ROW_ID)
+                    == mNewCursor.getLong(MainActivity.INDEX_WEATHER_ROW_ID);
+        }
+
+        @Override
+        public boolean areContentsTheSame(int oldItemPosition, int newItemPosition) {
+            /* A day that moves into or out of the first position changes its layout */
+            if (mUseTodayLayout && (oldItemPosition == 0) != (newItemPosition == 0)) {
+                return false;
+            }
+            mOldCursor.moveToPosition(oldItemPosition);
+            mNewCursor.moveToPosition(newItemPosition);
+            return mOldCursor.getLong(MainActivity.INDEX_WEATHER_DATE)
+                    == mNewCursor.getLong(MainActivity.INDEX_WEATHER_DATE)
+                    && mOldCursor.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID)
+                    == mNewCursor.getInt(MainActivity.INDEX_WEATHER_CONDITION_ID)
+                    && mOldCursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP)
+                    == mNewCursor.getDouble(MainActivity.INDEX_WEATHER_MAX_TEMP)
+                    && mOldCursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP)
+                    == mNewCursor.getDouble(MainActivity.INDEX_WEATHER_MIN_TEMP);
+        }
     }
 
     /**
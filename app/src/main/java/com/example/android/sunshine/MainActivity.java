@@ -36,7 +36,12 @@ import android.widget.ProgressBar;
 
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.sync.SunshineSyncCoordinator;
 import com.example.android.sunshine.sync.SunshineSyncUtils;
+import com.example.android.sunshine.sync.UsagePredictor;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.StartupTracer;
+import com.example.android.sunshine.utilities.SunshineHttpClient;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.wearable.MessageApi;
@@ -51,14 +56,11 @@ public class MainActivity extends AppCompatActivity implements
 
     /*
      * The columns of data that we are interested in displaying within our MainActivity's list of
-     * weather data.
+     * weather data. They are defined in the contract, because the provider preloads this very
+     * query at startup.
      */
-    public static final String[] MAIN_FORECAST_PROJECTION = {
-            WeatherContract.WeatherEntry.COLUMN_DATE,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-    };
+    public static final String[] MAIN_FORECAST_PROJECTION =
+            WeatherContract.WeatherEntry.FORECAST_LIST_PROJECTION;
 
     /*
      * We store the indices of the values in the array of Strings above to more quickly be able to
@@ -69,6 +71,7 @@ public class MainActivity extends AppCompatActivity implements
     public static final int INDEX_WEATHER_MAX_TEMP = 1;
     public static final int INDEX_WEATHER_MIN_TEMP = 2;
     public static final int INDEX_WEATHER_CONDITION_ID = 3;
+    public static final int INDEX_WEATHER_ROW_ID = 4;
 
 
     /*
@@ -165,6 +168,23 @@ public class MainActivity extends AppCompatActivity implements
                 .build();
         SunshineSyncUtils.initialize(this);
 
+        /*
+         * The user is likely to refresh or change settings while the app is open. Opening a
+         * connection to the weather server now means those syncs don't pay for DNS and TLS.
+         */
+        SunshineHttpClient.getInstance().prewarm(NetworkUtils.getUrl(this));
+
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+
+        /*
+         * Teach the sync at what times of the day the forecast is looked at, so it can have
+         * fresh weather ready before then.
+         */
+        UsagePredictor.recordAppOpen(this);
     }
 
     @Override
@@ -215,21 +235,19 @@ public class MainActivity extends AppCompatActivity implements
         switch (loaderId) {
 
             case ID_FORECAST_LOADER:
-                /* URI for all rows of weather data in our weather table */
-                Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
-                /* Sort order: Ascending by date */
-                String sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
                 /*
-                 * A SELECTION in SQL declares which rows you'd like to return. In our case, we
-                 * want all weather data from today onwards that is stored in our weather table.
-                 * We created a handy method to do that in our WeatherEntry class.
+                 * URI for the weather from today onwards. Past days may be kept for the
+                 * archive, so we ask for a range of dates, which the provider looks up in its
+                 * index instead of filtering every stored row.
                  */
-                String selection = WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards();
+                Uri forecastQueryUri = WeatherContract.WeatherEntry.buildWeatherUriFromToday();
+                /* Sort order: Ascending by date */
+                String sortOrder = WeatherContract.WeatherEntry.FORECAST_LIST_SORT_ORDER;
 
                 return new CursorLoader(this,
                         forecastQueryUri,
                         MAIN_FORECAST_PROJECTION,
-                        selection,
+                        null,
                         null,
                         sortOrder);
 
@@ -256,7 +274,10 @@ public class MainActivity extends AppCompatActivity implements
         mForecastAdapter.swapCursor(data);
         if (mPosition == RecyclerView.NO_POSITION) mPosition = 0;
         mRecyclerView.smoothScrollToPosition(mPosition);
-        if (data.getCount() != 0) showWeatherDataView();
+        if (data.getCount() != 0) {
+            StartupTracer.mark(StartupTracer.MILESTONE_FORECAST_LOADED);
+            showWeatherDataView();
+        }
     }
 
     /**
@@ -374,7 +395,8 @@ public class MainActivity extends AppCompatActivity implements
     @Override
     public void onMessageReceived(MessageEvent messageEvent) {
         if (messageEvent.getPath().equals("/messagePath")) {
-            SunshineSyncUtils.startImmediateSync(this);
+            /* Watches ask again on every reconnect, the coordinator merges those requests */
+            SunshineSyncUtils.startImmediateSync(this, SunshineSyncCoordinator.PRIORITY_WEAR);
         }
     }
 
@@ -16,6 +16,7 @@
 package com.example.android.sunshine;
 
 import android.app.Activity;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.Bundle;
 import android.support.v7.preference.CheckBoxPreference;
@@ -27,6 +28,7 @@ import android.support.v7.preference.PreferenceScreen;
 import com.example.android.sunshine.data.SunshinePreferences;
 import com.example.android.sunshine.data.WeatherContract;
 import com.example.android.sunshine.sync.SunshineSyncUtils;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
 
 /**
  * The SettingsFragment serves as the display for all of the user's settings. In Sunshine, the
@@ -98,9 +100,29 @@ public class SettingsFragment extends PreferenceFragmentCompat implements
             // we've changed the location
             // Wipe out any potential PlacePicker latlng values so that we can use this text entry.
             SunshinePreferences.resetLocationCoordinates(activity);
-            SunshineSyncUtils.startImmediateSync(activity);
+            final Context context = activity.getApplicationContext();
+            /*
+             * The history and the hourly forecast we kept belong to the old location, so don't
+             * mix them with the new one. Deleting them may wait for a sync's transaction, so it
+             * can't run on the main thread. The sync is only started once they are gone.
+             */
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    context.getContentResolver().delete(WeatherContract.ArchiveEntry.CONTENT_URI,
+                            null, null);
+                    context.getContentResolver().delete(WeatherContract.WeatherEntry.CONTENT_URI,
+                            WeatherContract.WeatherEntry.COLUMN_DATE + " < ?",
+                            new String[]{Long.toString(
+                                    SunshineDateUtils.getNormalizedUtcDateForToday())});
+                    context.getContentResolver().delete(WeatherContract.HourlyEntry.CONTENT_URI,
+                            null, null);
+                    SunshineSyncUtils.startImmediateSync(context);
+                }
+            }).start();
         } else if (key.equals(getString(R.string.pref_units_key))) {
-            // units have changed. update lists of weather entries accordingly
+            // units have changed. update lists of weather entries accordingly. The list's
+            // strings are formatted in both units ahead of time, so it only swaps them.
             activity.getContentResolver().notifyChange(WeatherContract.WeatherEntry.CONTENT_URI, null);
         }
         Preference preference = findPreference(key);
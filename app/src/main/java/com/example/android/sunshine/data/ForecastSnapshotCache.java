@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.os.Bundle;
+import android.support.v4.util.LongSparseArray;
+
+/**
+ * Keeps the snapshots that {@link WeatherContract#METHOD_GET_FORECAST_SNAPSHOT} hands out, one
+ * per location, so that the notification, the wearable and the check for an empty forecast get
+ * theirs from memory instead of from SQLite, as long as nothing was written in between.
+ * <p>
+ * Snapshots follow the generations of {@link WeatherQueryCache}: once the generation moves on,
+ * because a write was committed, every snapshot is dropped. They are also dropped when the day
+ * changes, since a snapshot only holds the forecast from its day onwards.
+ * <p>
+ * A snapshot that is built only gets a new version if its forecast differs from the last one
+ * built for its location. Any write drops every snapshot, even one to another location or to the
+ * archive, but a snapshot rebuilt with the same forecast keeps its version, so a caller that
+ * already has it can still skip its work. Versions start from the time the provider was created,
+ * so a version handed out by an earlier process is never mistaken for a current one.
+ */
+class ForecastSnapshotCache {
+
+    private final LongSparseArray<Bundle> mSnapshots = new LongSparseArray<Bundle>();
+
+    /* The last snapshot built for each location, kept across generations to compare with */
+    private final LongSparseArray<Bundle> mLatestSnapshots = new LongSparseArray<Bundle>();
+
+    /* The generation of the query cache and the day the stored snapshots belong to */
+    private long mGeneration;
+    private long mToday;
+
+    private long mLastVersion = System.currentTimeMillis();
+
+    /**
+     * Returns the stored snapshot of a location's forecast.
+     *
+     * @param locationId The location
+     * @param today      The normalized date of today
+     * @param generation The current generation of the query cache
+     * @return The snapshot, or null if there is none for this generation and day
+     */
+    synchronized Bundle get(long locationId, long today, long generation) {
+        if (generation != mGeneration || today != mToday) {
+            mSnapshots.clear();
+            mGeneration = generation;
+            mToday = today;
+            return null;
+        }
+        return mSnapshots.get(locationId);
+    }
+
+    /**
+     * Turns a forecast that was just read into a snapshot and stores it, unless the query cache
+     * was invalidated while the forecast was read. The snapshot gets the next version, unless
+     * the forecast is the same as in the last snapshot of the location.
+     *
+     * @param locationId The location
+     * @param today      The normalized date of today
+     * @param generation What the query cache's getGeneration returned before the forecast was
+     *                   read
+     * @param forecast   The forecast of the location from today onwards
+     * @return The snapshot, packed by WeatherBatch#toBundle, with its version under
+     * KEY_SNAPSHOT_VERSION
+     */
+    synchronized Bundle put(long locationId, long today, long generation, WeatherBatch forecast) {
+        Bundle snapshot = mLatestSnapshots.get(locationId);
+        if (snapshot == null || !WeatherBatch.fromBundle(snapshot).hasSameRows(forecast)) {
+            snapshot = forecast.toBundle();
+            snapshot.putLong(WeatherContract.KEY_SNAPSHOT_VERSION, ++mLastVersion);
+            mLatestSnapshots.put(locationId, snapshot);
+        }
+        if (generation == mGeneration && today == mToday) {
+            mSnapshots.put(locationId, snapshot);
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.os.Bundle;
+
+import com.example.android.sunshine.data.WeatherContract.HourlyEntry;
+
+import java.util.Arrays;
+
+/**
+ * The steps of an hourly forecast, stored column by column in primitive arrays. This is the
+ * hourly counterpart of {@link WeatherBatch}: a forecast of 40 steps crosses into the
+ * ContentProvider as a handful of arrays in one Bundle.
+ * <p>
+ * Use {@link #toBundle()} and {@link WeatherContract#METHOD_REPLACE_HOURLY_FORECAST} to store
+ * the batch through {@link android.content.ContentResolver#call}.
+ */
+public final class HourlyBatch {
+
+    /* Five days of three hour steps, which is what the server sends */
+    private static final int DEFAULT_CAPACITY = 40;
+
+    private int mSize;
+
+    private long[] mTimes;
+    private int[] mWeatherIds;
+    private double[] mTemps;
+    private double[] mHumidities;
+    private double[] mPressures;
+    private double[] mWindSpeeds;
+    private double[] mDegrees;
+
+    public HourlyBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of steps the batch can hold before its arrays have to grow
+     */
+    public HourlyBatch(int capacity) {
+        mTimes = new long[capacity];
+        mWeatherIds = new int[capacity];
+        mTemps = new double[capacity];
+        mHumidities = new double[capacity];
+        mPressures = new double[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+    }
+
+    /**
+     * Appends one step of weather to the batch.
+     *
+     * @param time      Start of the step in milliseconds since the epoch
+     * @param weatherId Weather condition code as returned by the API
+     * @param temp      Temperature in °C
+     * @param humidity  Humidity in percent
+     * @param pressure  Pressure in hPa
+     * @param windSpeed Wind speed
+     * @param degrees   Meteorological direction of the wind
+     */
+    public void add(long time, int weatherId, double temp, double humidity, double pressure,
+            double windSpeed, double degrees) {
+        if (mSize == mTimes.length) {
+            grow();
+        }
+        mTimes[mSize] = time;
+        mWeatherIds[mSize] = weatherId;
+        mTemps[mSize] = temp;
+        mHumidities[mSize] = humidity;
+        mPressures[mSize] = pressure;
+        mWindSpeeds[mSize] = windSpeed;
+        mDegrees[mSize] = degrees;
+        mSize++;
+    }
+
+    /**
+     * Empties the batch while keeping its arrays, so it can be filled again without allocating.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getTime(int row) {
+        return mTimes[row];
+    }
+
+    public int getWeatherId(int row) {
+        return mWeatherIds[row];
+    }
+
+    public double getTemp(int row) {
+        return mTemps[row];
+    }
+
+    public double getHumidity(int row) {
+        return mHumidities[row];
+    }
+
+    public double getPressure(int row) {
+        return mPressures[row];
+    }
+
+    public double getWindSpeed(int row) {
+        return mWindSpeeds[row];
+    }
+
+    public double getDegrees(int row) {
+        return mDegrees[row];
+    }
+
+    /**
+     * Packs the steps of this batch into a Bundle, one primitive array per column, keyed by the
+     * column names of {@link HourlyEntry}.
+     *
+     * @return A Bundle that {@link #fromBundle(Bundle)} turns back into an equal batch
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(HourlyEntry.COLUMN_TIME, Arrays.copyOf(mTimes, mSize));
+        bundle.putIntArray(HourlyEntry.COLUMN_WEATHER_ID, Arrays.copyOf(mWeatherIds, mSize));
+        bundle.putDoubleArray(HourlyEntry.COLUMN_TEMP, Arrays.copyOf(mTemps, mSize));
+        bundle.putDoubleArray(HourlyEntry.COLUMN_HUMIDITY, Arrays.copyOf(mHumidities, mSize));
+        bundle.putDoubleArray(HourlyEntry.COLUMN_PRESSURE, Arrays.copyOf(mPressures, mSize));
+        bundle.putDoubleArray(HourlyEntry.COLUMN_WIND_SPEED, Arrays.copyOf(mWindSpeeds, mSize));
+        bundle.putDoubleArray(HourlyEntry.COLUMN_DEGREES, Arrays.copyOf(mDegrees, mSize));
+        return bundle;
+    }
+
+    /**
+     * Reads a batch that was packed with {@link #toBundle()}.
+     *
+     * @param bundle The packed batch
+     * @return The batch, which takes ownership of the Bundle's arrays
+     * @throws IllegalArgumentException If a column is missing or the columns differ in length
+     */
+    public static HourlyBatch fromBundle(Bundle bundle) {
+        if (bundle == null) {
+            throw new IllegalArgumentException("No hourly batch given");
+        }
+        HourlyBatch batch = new HourlyBatch(0);
+        batch.mTimes = bundle.getLongArray(HourlyEntry.COLUMN_TIME);
+        batch.mWeatherIds = bundle.getIntArray(HourlyEntry.COLUMN_WEATHER_ID);
+        batch.mTemps = bundle.getDoubleArray(HourlyEntry.COLUMN_TEMP);
+        batch.mHumidities = bundle.getDoubleArray(HourlyEntry.COLUMN_HUMIDITY);
+        batch.mPressures = bundle.getDoubleArray(HourlyEntry.COLUMN_PRESSURE);
+        batch.mWindSpeeds = bundle.getDoubleArray(HourlyEntry.COLUMN_WIND_SPEED);
+        batch.mDegrees = bundle.getDoubleArray(HourlyEntry.COLUMN_DEGREES);
+
+        if (batch.mTimes == null || batch.mWeatherIds == null || batch.mTemps == null
+                || batch.mHumidities == null || batch.mPressures == null
+                || batch.mWindSpeeds == null || batch.mDegrees == null) {
+            throw new IllegalArgumentException("Hourly batch is missing a column");
+        }
+
+        int size = batch.mTimes.length;
+        if (batch.mWeatherIds.length != size || batch.mTemps.length != size
+                || batch.mHumidities.length != size || batch.mPressures.length != size
+                || batch.mWindSpeeds.length != size || batch.mDegrees.length != size) {
+            throw new IllegalArgumentException("Hourly batch columns differ in length");
+        }
+        batch.mSize = size;
+        return batch;
+    }
+
+    private void grow() {
+        int capacity = Math.max(DEFAULT_CAPACITY, mTimes.length * 2);
+        mTimes = Arrays.copyOf(mTimes, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+        mTemps = Arrays.copyOf(mTemps, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mPressures = Arrays.copyOf(mPressures, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract.HourlyEntry;
+
+/**
+ * Inserts the steps of an hourly forecast with a single precompiled INSERT statement, the same
+ * way {@link WeatherBulkWriter} inserts days. A sync writes about 40 steps per location, so
+ * compiling the statement once instead of once per row matters even more here.
+ * <p>
+ * Every step is written for the location the writer was created for. A writer is meant to live
+ * for one transaction and must be closed before the transaction ends.
+ */
+class HourlyBulkWriter {
+
+    private static final String TAG = HourlyBulkWriter.class.getSimpleName();
+
+    /* The bind index of each column in the INSERT statement below */
+    private static final int BIND_TIME = 1;
+    private static final int BIND_WEATHER_ID = 2;
+    private static final int BIND_TEMP = 3;
+    private static final int BIND_HUMIDITY = 4;
+    private static final int BIND_PRESSURE = 5;
+    private static final int BIND_WIND_SPEED = 6;
+    private static final int BIND_DEGREES = 7;
+    private static final int BIND_LOCATION_ID = 8;
+
+    /* Honors "UNIQUE (location_id, time) ON CONFLICT REPLACE", so a stored step is replaced */
+    private static final String SQL_INSERT_HOURLY = "INSERT INTO " + HourlyEntry.TABLE_NAME
+            + " (" + HourlyEntry.COLUMN_TIME
+            + ", " + HourlyEntry.COLUMN_WEATHER_ID
+            + ", " + HourlyEntry.COLUMN_TEMP
+            + ", " + HourlyEntry.COLUMN_HUMIDITY
+            + ", " + HourlyEntry.COLUMN_PRESSURE
+            + ", " + HourlyEntry.COLUMN_WIND_SPEED
+            + ", " + HourlyEntry.COLUMN_DEGREES
+            + ", " + HourlyEntry.COLUMN_LOCATION_ID
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private final SQLiteStatement mInsertStatement;
+    private final long mLocationId;
+
+    /**
+     * @param database   The database, with a transaction already begun
+     * @param locationId The location every step is written for
+     */
+    HourlyBulkWriter(SQLiteDatabase database, long locationId) {
+        mInsertStatement = database.compileStatement(SQL_INSERT_HOURLY);
+        mLocationId = locationId;
+    }
+
+    /**
+     * Inserts every step of a columnar batch. No value is boxed along the way.
+     *
+     * @param batch The steps to insert
+     * @return The number of steps that were inserted
+     */
+    int insert(HourlyBatch batch) {
+        int rowsInserted = 0;
+        for (int row = 0; row < batch.size(); row++) {
+            mInsertStatement.bindLong(BIND_TIME, batch.getTime(row));
+            mInsertStatement.bindLong(BIND_WEATHER_ID, batch.getWeatherId(row));
+            mInsertStatement.bindDouble(BIND_TEMP, batch.getTemp(row));
+            mInsertStatement.bindDouble(BIND_HUMIDITY, batch.getHumidity(row));
+            mInsertStatement.bindDouble(BIND_PRESSURE, batch.getPressure(row));
+            mInsertStatement.bindDouble(BIND_WIND_SPEED, batch.getWindSpeed(row));
+            mInsertStatement.bindDouble(BIND_DEGREES, batch.getDegrees(row));
+            mInsertStatement.bindLong(BIND_LOCATION_ID, mLocationId);
+
+            if (executeInsert() != -1) {
+                rowsInserted++;
+            }
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Releases the compiled statement. Must be called before the transaction ends.
+     */
+    void close() {
+        mInsertStatement.close();
+    }
+
+    /* Like WeatherBulkWriter, a single bad step doesn't roll back the rest of the batch */
+    private long executeInsert() {
+        try {
+            return mInsertStatement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(TAG, "Error inserting hourly row", e);
+            return -1;
+        } finally {
+            mInsertStatement.clearBindings();
+        }
+    }
+}
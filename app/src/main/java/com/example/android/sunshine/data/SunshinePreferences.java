@@ -17,8 +17,11 @@ package com.example.android.sunshine.data;
 
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.os.Bundle;
 import android.preference.PreferenceManager;
+import android.text.TextUtils;
 
+import com.example.android.sunshine.BuildConfig;
 import com.example.android.sunshine.R;
 
 public final class SunshinePreferences {
@@ -31,6 +34,44 @@ public final class SunshinePreferences {
     public static final String PREF_COORD_LAT = "coord_lat";
     public static final String PREF_COORD_LONG = "coord_long";
 
+    /*
+     * Size of the forecast body transferred by the last sync that downloaded one, both as it was
+     * received over the network and after decompression.
+     */
+    public static final String PREF_LAST_SYNC_COMPRESSED_BYTES = "last_sync_compressed_bytes";
+    public static final String PREF_LAST_SYNC_UNCOMPRESSED_BYTES = "last_sync_uncompressed_bytes";
+
+    /*
+     * Whether past days are kept in the weather archive, and how it is compacted. See
+     * WeatherContract.METHOD_COMPACT_ARCHIVE for what the numbers mean.
+     */
+    public static final String PREF_ARCHIVE_ENABLED = "archive_enabled";
+    public static final String PREF_ARCHIVE_DAILY_RETENTION_DAYS = "archive_daily_retention_days";
+    public static final String PREF_ARCHIVE_WEEKLY_RETENTION_DAYS =
+            "archive_weekly_retention_days";
+    public static final String PREF_ARCHIVE_MAX_ROWS = "archive_max_rows";
+
+    /*
+     * Whether a sync downloads the forecast in three hour steps too. The fake weather server
+     * doesn't offer one, so it comes from OpenWeatherMap and needs an API key, see NetworkUtils.
+     * It is on by default once the app was built with a key.
+     */
+    public static final String PREF_HOURLY_FORECAST_ENABLED = "hourly_forecast_enabled";
+
+    /*
+     * When the last sync that reached the server succeeded, and how long the periodic sync
+     * waits after it. The interval adapts to how much the forecast changes, see SyncSchedule.
+     */
+    public static final String PREF_LAST_SUCCESSFUL_SYNC_TIME = "last_successful_sync_time";
+    public static final String PREF_SYNC_INTERVAL_SECONDS = "sync_interval_seconds";
+
+    /*
+     * When the user opens the forecast list, as learned by UsagePredictor: how much weight each
+     * part of the day has, separated by commas, and when the list was last opened.
+     */
+    public static final String PREF_APP_OPEN_WEIGHTS = "app_open_weights";
+    public static final String PREF_LAST_APP_OPEN_TIME = "last_app_open_time";
+
     /**
      * Helper method to handle setting location details in Preferences (city name, latitude,
      * longitude)
@@ -242,4 +283,222 @@ public final class SunshinePreferences {
         editor.putLong(lastNotificationKey, timeOfNotification);
         editor.apply();
     }
-}
\ No newline at end of file
+
+    /**
+     * Saves how many bytes the forecast of the last sync took over the network and how many it
+     * took once decompressed.
+     *
+     * @param context           Used to access SharedPreferences
+     * @param compressedBytes   Bytes of the response body as received from the network
+     * @param uncompressedBytes Bytes of the response body after decompression
+     */
+    public static void saveLastSyncTransferBytes(Context context, long compressedBytes,
+            long uncompressedBytes) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putLong(PREF_LAST_SYNC_COMPRESSED_BYTES, compressedBytes);
+        editor.putLong(PREF_LAST_SYNC_UNCOMPRESSED_BYTES, uncompressedBytes);
+        editor.apply();
+    }
+
+    /**
+     * Saves the time of a successful sync together with the interval until the next periodic
+     * one.
+     *
+     * @param context         Used to access SharedPreferences
+     * @param timeOfSync      Time the sync finished (in UNIX time)
+     * @param intervalSeconds Seconds the periodic sync waits after this one
+     */
+    public static void saveSuccessfulSync(Context context, long timeOfSync,
+            long intervalSeconds) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putLong(PREF_LAST_SUCCESSFUL_SYNC_TIME, timeOfSync);
+        editor.putLong(PREF_SYNC_INTERVAL_SECONDS, intervalSeconds);
+        editor.apply();
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @return The time saved by {@link #saveSuccessfulSync} (in UNIX time), or 0 if no sync
+     * has succeeded yet
+     */
+    public static long getLastSuccessfulSyncTime(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_LAST_SUCCESSFUL_SYNC_TIME, 0);
+    }
+
+    /**
+     * @param context                Used to access SharedPreferences
+     * @param defaultIntervalSeconds Returned if no sync has succeeded yet
+     * @return The interval saved by {@link #saveSuccessfulSync}, in seconds
+     */
+    public static long getSyncIntervalSeconds(Context context, long defaultIntervalSeconds) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_SYNC_INTERVAL_SECONDS, defaultIntervalSeconds);
+    }
+
+    /**
+     * Saves the weights UsagePredictor learned from the times the forecast list was opened,
+     * together with the time of the latest open.
+     *
+     * @param context    Used to access SharedPreferences
+     * @param weights    The weight of each part of the day
+     * @param timeOfOpen Time the forecast list was opened (in UNIX time)
+     */
+    public static void saveAppOpen(Context context, float[] weights, long timeOfOpen) {
+        StringBuilder serialized = new StringBuilder();
+        for (int i = 0; i < weights.length; i++) {
+            if (i > 0) {
+                serialized.append(',');
+            }
+            serialized.append(weights[i]);
+        }
+
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putString(PREF_APP_OPEN_WEIGHTS, serialized.toString());
+        editor.putLong(PREF_LAST_APP_OPEN_TIME, timeOfOpen);
+        editor.apply();
+    }
+
+    /**
+     * Returns the weights saved by {@link #saveAppOpen}.
+     *
+     * @param context Used to access SharedPreferences
+     * @param count   The number of weights expected
+     * @return The saved weights, or as many zeros if none were saved or their number differs
+     */
+    public static float[] getAppOpenWeights(Context context, int count) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        String serialized = sp.getString(PREF_APP_OPEN_WEIGHTS, null);
+
+        float[] weights = new float[count];
+        if (serialized != null) {
+            String[] parts = serialized.split(",");
+            if (parts.length == count) {
+                try {
+                    for (int i = 0; i < count; i++) {
+                        weights[i] = Float.parseFloat(parts[i]);
+                    }
+                } catch (NumberFormatException e) {
+                    return new float[count];
+                }
+            }
+        }
+        return weights;
+    }
+
+    /**
+     * @param context Used to access SharedPreferences
+     * @return The time saved by {@link #saveAppOpen} (in UNIX time), or 0 if the forecast list
+     * was never opened
+     */
+    public static long getLastAppOpenTime(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getLong(PREF_LAST_APP_OPEN_TIME, 0);
+    }
+
+    /**
+     * Returns the bytes saved by {@link #saveLastSyncTransferBytes}.
+     *
+     * @param context Used to access SharedPreferences
+     * @return An array of the compressed and the uncompressed byte count, in that order. Both
+     * are 0 if no forecast has been downloaded yet.
+     */
+    public static long[] getLastSyncTransferBytes(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+
+        long[] transferBytes = new long[2];
+        transferBytes[0] = sp.getLong(PREF_LAST_SYNC_COMPRESSED_BYTES, 0);
+        transferBytes[1] = sp.getLong(PREF_LAST_SYNC_UNCOMPRESSED_BYTES, 0);
+        return transferBytes;
+    }
+
+    /**
+     * Sets whether past days are kept and how much of them.
+     *
+     * @param context             Used to access SharedPreferences
+     * @param enabled             true to keep past days in the archive, false to drop them
+     * @param dailyRetentionDays  Days kept as they are before being rolled up into weeks
+     * @param weeklyRetentionDays Days after which weeks are rolled up into months
+     * @param maxRows             The most weekly and monthly summaries to keep
+     */
+    public static void setArchivePolicy(Context context, boolean enabled,
+            int dailyRetentionDays, int weeklyRetentionDays, int maxRows) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putBoolean(PREF_ARCHIVE_ENABLED, enabled);
+        editor.putInt(PREF_ARCHIVE_DAILY_RETENTION_DAYS, dailyRetentionDays);
+        editor.putInt(PREF_ARCHIVE_WEEKLY_RETENTION_DAYS, weeklyRetentionDays);
+        editor.putInt(PREF_ARCHIVE_MAX_ROWS, maxRows);
+        editor.apply();
+    }
+
+    /**
+     * Returns true if past days are kept in the archive. They are unless this was turned off.
+     *
+     * @param context Used to access SharedPreferences
+     * @return true if past days are kept, false if a sync drops them
+     */
+    public static boolean isArchiveEnabled(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getBoolean(PREF_ARCHIVE_ENABLED, true);
+    }
+
+    /**
+     * Returns the archive policy set by {@link #setArchivePolicy}, ready to be passed to
+     * WeatherContract.METHOD_COMPACT_ARCHIVE. Values that were never set are left out, so the
+     * provider's defaults apply.
+     *
+     * @param context Used to access SharedPreferences
+     * @return The extras of a compaction step
+     */
+    public static Bundle getArchiveCompactionExtras(Context context) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+
+        Bundle extras = new Bundle();
+        if (sp.contains(PREF_ARCHIVE_DAILY_RETENTION_DAYS)) {
+            extras.putInt(WeatherContract.KEY_DAILY_RETENTION_DAYS,
+                    sp.getInt(PREF_ARCHIVE_DAILY_RETENTION_DAYS, 0));
+        }
+        if (sp.contains(PREF_ARCHIVE_WEEKLY_RETENTION_DAYS)) {
+            extras.putInt(WeatherContract.KEY_WEEKLY_RETENTION_DAYS,
+                    sp.getInt(PREF_ARCHIVE_WEEKLY_RETENTION_DAYS, 0));
+        }
+        if (sp.contains(PREF_ARCHIVE_MAX_ROWS)) {
+            extras.putInt(WeatherContract.KEY_MAX_ARCHIVE_ROWS,
+                    sp.getInt(PREF_ARCHIVE_MAX_ROWS, 0));
+        }
+        return extras;
+    }
+
+    /**
+     * Turns syncing of the hourly forecast on or off.
+     *
+     * @param context Used to access SharedPreferences
+     * @param enabled true to download the hourly forecast of every location on each sync
+     */
+    public static void setHourlyForecastEnabled(Context context, boolean enabled) {
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        SharedPreferences.Editor editor = sp.edit();
+        editor.putBoolean(PREF_HOURLY_FORECAST_ENABLED, enabled);
+        editor.apply();
+    }
+
+    /**
+     * Returns true if a sync downloads the hourly forecast. It does if the app was built with an
+     * OpenWeatherMap API key, unless this was turned off.
+     *
+     * @param context Used to access SharedPreferences
+     * @return true if the hourly forecast is synced
+     */
+    public static boolean isHourlyForecastEnabled(Context context) {
+        if (TextUtils.isEmpty(BuildConfig.OPEN_WEATHER_MAP_API_KEY)) {
+            /* Every request would be turned away without a key */
+            return false;
+        }
+        SharedPreferences sp = PreferenceManager.getDefaultSharedPreferences(context);
+        return sp.getBoolean(PREF_HOURLY_FORECAST_ENABLED, true);
+    }
+}
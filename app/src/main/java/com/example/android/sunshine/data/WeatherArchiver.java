@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.text.format.DateUtils;
+
+import com.example.android.sunshine.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * Rolls old weather up into the archive, so that keeping history doesn't make the database grow
+ * without bounds. One {@link #compactStep(long, long, int)} does three things:
+ * <ol>
+ * <li>Days before the daily cutoff are summed up into one row per location and week, and
+ * deleted.</li>
+ * <li>Weeks before the weekly cutoff are summed up into one row per location and month, and
+ * deleted. A week counts toward the month it starts in.</li>
+ * <li>The oldest summaries are deleted until the archive is within its budget.</li>
+ * </ol>
+ * Only whole weeks and months are rolled up, so a summary is written once and only changes
+ * again if days of its period are stored after it was written, which are then added to it.
+ * <p>
+ * A step rolls up at most {@link #MAX_PERIODS_PER_STEP} periods of each kind, so that its
+ * transaction stays short however much history has piled up. The caller runs steps until
+ * {@link #compactStep(long, long, int)} reports that nothing is left. Each step must be run
+ * inside a transaction.
+ */
+class WeatherArchiver {
+
+    /* Periods written per step. A week of days is a handful of rows, so this is quick. */
+    private static final int MAX_PERIODS_PER_STEP = 16;
+
+    /*
+     * The Monday a normalized date belongs to. January 1st, 1970 was a Thursday, so counting
+     * days since then, Monday is the day whose number plus 3 is divisible by 7.
+     */
+    private static final String SQL_WEEK_START = "(" + WeatherEntry.COLUMN_DATE + " - (("
+            + WeatherEntry.COLUMN_DATE + " / " + DateUtils.DAY_IN_MILLIS + " + 3) % 7) * "
+            + DateUtils.DAY_IN_MILLIS + ")";
+
+    /* The first of the month a week starts in, at midnight UTC */
+    private static final String SQL_MONTH_START = "(CAST(strftime('%s', "
+            + ArchiveEntry.COLUMN_PERIOD_START + " / 1000, 'unixepoch', 'start of month')"
+            + " AS INTEGER) * 1000)";
+
+    private static final String SQL_SELECT_DAYS_BY_WEEK = "SELECT "
+            + WeatherEntry.COLUMN_LOCATION_ID + ", "
+            + SQL_WEEK_START + " AS bucket, "
+            + "COUNT(*), "
+            + "MIN(" + WeatherEntry.COLUMN_MIN_TEMP + "), "
+            + "MAX(" + WeatherEntry.COLUMN_MAX_TEMP + "), "
+            + "AVG((" + WeatherEntry.COLUMN_MIN_TEMP + " + " + WeatherEntry.COLUMN_MAX_TEMP
+            + ") / 2.0), "
+            + "AVG(" + WeatherEntry.COLUMN_HUMIDITY + "), "
+            + "AVG(" + WeatherEntry.COLUMN_PRESSURE + ")"
+            + " FROM " + WeatherEntry.TABLE_NAME
+            + " WHERE " + WeatherEntry.COLUMN_DATE + " < ?"
+            + " GROUP BY " + WeatherEntry.COLUMN_LOCATION_ID + ", bucket"
+            + " ORDER BY bucket"
+            + " LIMIT " + (MAX_PERIODS_PER_STEP + 1);
+
+    private static final String SQL_SELECT_WEEKS_BY_MONTH = "SELECT "
+            + ArchiveEntry.COLUMN_LOCATION_ID + ", "
+            + SQL_MONTH_START + " AS bucket, "
+            + "SUM(" + ArchiveEntry.COLUMN_DAY_COUNT + "), "
+            + "MIN(" + ArchiveEntry.COLUMN_MIN_TEMP + "), "
+            + "MAX(" + ArchiveEntry.COLUMN_MAX_TEMP + "), "
+            + weightedMean(ArchiveEntry.COLUMN_MEAN_TEMP) + ", "
+            + weightedMean(ArchiveEntry.COLUMN_MEAN_HUMIDITY) + ", "
+            + weightedMean(ArchiveEntry.COLUMN_MEAN_PRESSURE)
+            + " FROM " + ArchiveEntry.TABLE_NAME
+            + " WHERE " + ArchiveEntry.COLUMN_PERIOD + " = " + ArchiveEntry.PERIOD_WEEK
+            + " AND " + ArchiveEntry.COLUMN_PERIOD_START + " < ?"
+            + " GROUP BY " + ArchiveEntry.COLUMN_LOCATION_ID + ", bucket"
+            + " ORDER BY bucket"
+            + " LIMIT " + (MAX_PERIODS_PER_STEP + 1);
+
+    /* Both selects above return their columns in this order */
+    private static final int INDEX_LOCATION_ID = 0;
+    private static final int INDEX_PERIOD_START = 1;
+    private static final int INDEX_DAY_COUNT = 2;
+    private static final int INDEX_MIN_TEMP = 3;
+    private static final int INDEX_MAX_TEMP = 4;
+    private static final int INDEX_MEAN_TEMP = 5;
+    private static final int INDEX_MEAN_HUMIDITY = 6;
+    private static final int INDEX_MEAN_PRESSURE = 7;
+
+    /* A range of the (location_id, date) index, so this doesn't scan the table */
+    private static final String SQL_DELETE_WEEK_OF_DAYS = "DELETE FROM " + WeatherEntry.TABLE_NAME
+            + " WHERE " + WeatherEntry.COLUMN_LOCATION_ID + " = ?"
+            + " AND " + WeatherEntry.COLUMN_DATE + " >= ?"
+            + " AND " + WeatherEntry.COLUMN_DATE + " < ?";
+
+    private static final String SQL_DELETE_MONTH_OF_WEEKS = "DELETE FROM "
+            + ArchiveEntry.TABLE_NAME
+            + " WHERE " + ArchiveEntry.COLUMN_LOCATION_ID + " = ?"
+            + " AND " + ArchiveEntry.COLUMN_PERIOD + " = " + ArchiveEntry.PERIOD_WEEK
+            + " AND " + ArchiveEntry.COLUMN_PERIOD_START + " < ?"
+            + " AND " + SQL_MONTH_START + " = ?";
+
+    private static final String[] SUMMARY_PROJECTION = {
+            ArchiveEntry.COLUMN_DAY_COUNT,
+            ArchiveEntry.COLUMN_MIN_TEMP,
+            ArchiveEntry.COLUMN_MAX_TEMP,
+            ArchiveEntry.COLUMN_MEAN_TEMP,
+            ArchiveEntry.COLUMN_MEAN_HUMIDITY,
+            ArchiveEntry.COLUMN_MEAN_PRESSURE,
+    };
+
+    private static final String SELECT_SUMMARY = ArchiveEntry.COLUMN_LOCATION_ID + " = ? AND "
+            + ArchiveEntry.COLUMN_PERIOD + " = ? AND "
+            + ArchiveEntry.COLUMN_PERIOD_START + " = ?";
+
+    /* Oldest first, and of two summaries starting on the same day, the one written first */
+    private static final String SQL_DELETE_OLDEST = "DELETE FROM " + ArchiveEntry.TABLE_NAME
+            + " WHERE " + ArchiveEntry._ID + " IN (SELECT " + ArchiveEntry._ID
+            + " FROM " + ArchiveEntry.TABLE_NAME
+            + " ORDER BY " + ArchiveEntry.COLUMN_PERIOD_START + ", " + ArchiveEntry._ID
+            + " LIMIT ?)";
+
+    private final SQLiteDatabase mDatabase;
+
+    private int mRolledUpCount;
+    private int mDeletedCount;
+
+    /**
+     * @param database The database, with a transaction already begun
+     */
+    WeatherArchiver(SQLiteDatabase database) {
+        mDatabase = database;
+    }
+
+    /**
+     * Does one step of compaction.
+     *
+     * @param dailyCutoff    Days before this normalized date are rolled up into weeks. Rounded
+     *                       down to the start of its week.
+     * @param weeklyCutoff   Weeks starting before this normalized date are rolled up into months.
+     *                       Rounded down to the start of its month.
+     * @param maxArchiveRows The most summaries to keep, over all locations
+     * @return true if another step has more to roll up
+     */
+    boolean compactStep(long dailyCutoff, long weeklyCutoff, int maxArchiveRows) {
+        boolean hasMore = rollUpDays(getWeekStart(dailyCutoff));
+        hasMore |= rollUpWeeks(getMonthStart(weeklyCutoff));
+        enforceBudget(maxArchiveRows);
+        return hasMore;
+    }
+
+    /**
+     * @return The number of days and weeks that were rolled up into summaries
+     */
+    int getRolledUpCount() {
+        return mRolledUpCount;
+    }
+
+    /**
+     * @return The number of summaries deleted to keep the archive within its budget
+     */
+    int getDeletedCount() {
+        return mDeletedCount;
+    }
+
+    private boolean rollUpDays(long cutoff) {
+        Cursor cursor = mDatabase.rawQuery(SQL_SELECT_DAYS_BY_WEEK,
+                new String[]{Long.toString(cutoff)});
+        SQLiteStatement deleteStatement = mDatabase.compileStatement(SQL_DELETE_WEEK_OF_DAYS);
+        try {
+            /* The days are only deleted once the cursor is done with the table */
+            int weekCount = Math.min(cursor.getCount(), MAX_PERIODS_PER_STEP);
+            long[] locationIds = new long[weekCount];
+            long[] weekStarts = new long[weekCount];
+            for (int week = 0; week < weekCount; week++) {
+                cursor.moveToPosition(week);
+                locationIds[week] = cursor.getLong(INDEX_LOCATION_ID);
+                weekStarts[week] = cursor.getLong(INDEX_PERIOD_START);
+                addToSummary(ArchiveEntry.PERIOD_WEEK, cursor);
+            }
+            for (int week = 0; week < weekCount; week++) {
+                deleteStatement.bindLong(1, locationIds[week]);
+                deleteStatement.bindLong(2, weekStarts[week]);
+                deleteStatement.bindLong(3, weekStarts[week] + DateUtils.WEEK_IN_MILLIS);
+                mRolledUpCount += deleteStatement.executeUpdateDelete();
+            }
+            return cursor.getCount() > MAX_PERIODS_PER_STEP;
+        } finally {
+            deleteStatement.close();
+            cursor.close();
+        }
+    }
+
+    private boolean rollUpWeeks(long cutoff) {
+        Cursor cursor = mDatabase.rawQuery(SQL_SELECT_WEEKS_BY_MONTH,
+                new String[]{Long.toString(cutoff)});
+        SQLiteStatement deleteStatement = mDatabase.compileStatement(SQL_DELETE_MONTH_OF_WEEKS);
+        try {
+            int monthCount = Math.min(cursor.getCount(), MAX_PERIODS_PER_STEP);
+            long[] locationIds = new long[monthCount];
+            long[] monthStarts = new long[monthCount];
+            for (int month = 0; month < monthCount; month++) {
+                cursor.moveToPosition(month);
+                locationIds[month] = cursor.getLong(INDEX_LOCATION_ID);
+                monthStarts[month] = cursor.getLong(INDEX_PERIOD_START);
+                addToSummary(ArchiveEntry.PERIOD_MONTH, cursor);
+            }
+            for (int month = 0; month < monthCount; month++) {
+                deleteStatement.bindLong(1, locationIds[month]);
+                deleteStatement.bindLong(2, cutoff);
+                deleteStatement.bindLong(3, monthStarts[month]);
+                mRolledUpCount += deleteStatement.executeUpdateDelete();
+            }
+            return cursor.getCount() > MAX_PERIODS_PER_STEP;
+        } finally {
+            deleteStatement.close();
+            cursor.close();
+        }
+    }
+
+    /**
+     * Writes the summary the cursor is on. If the period already has a summary, both are
+     * combined, weighing each by the number of days it covers.
+     *
+     * @param period One of the PERIOD constants of {@link ArchiveEntry}
+     * @param cursor Positioned on a row of one of the rolling up selects
+     */
+    private void addToSummary(int period, Cursor cursor) {
+        long locationId = cursor.getLong(INDEX_LOCATION_ID);
+        long periodStart = cursor.getLong(INDEX_PERIOD_START);
+
+        int dayCount = cursor.getInt(INDEX_DAY_COUNT);
+        double minTemp = cursor.getDouble(INDEX_MIN_TEMP);
+        double maxTemp = cursor.getDouble(INDEX_MAX_TEMP);
+        double meanTemp = cursor.getDouble(INDEX_MEAN_TEMP);
+        double meanHumidity = cursor.getDouble(INDEX_MEAN_HUMIDITY);
+        double meanPressure = cursor.getDouble(INDEX_MEAN_PRESSURE);
+
+        Cursor stored = mDatabase.query(ArchiveEntry.TABLE_NAME, SUMMARY_PROJECTION,
+                SELECT_SUMMARY,
+                new String[]{
+                        Long.toString(locationId),
+                        Integer.toString(period),
+                        Long.toString(periodStart)},
+                null, null, null);
+        try {
+            if (stored.moveToFirst()) {
+                int storedDayCount = stored.getInt(0);
+                int totalDayCount = dayCount + storedDayCount;
+                minTemp = Math.min(minTemp, stored.getDouble(1));
+                maxTemp = Math.max(maxTemp, stored.getDouble(2));
+                meanTemp = (meanTemp * dayCount + stored.getDouble(3) * storedDayCount)
+                        / totalDayCount;
+                meanHumidity = (meanHumidity * dayCount + stored.getDouble(4) * storedDayCount)
+                        / totalDayCount;
+                meanPressure = (meanPressure * dayCount + stored.getDouble(5) * storedDayCount)
+                        / totalDayCount;
+                dayCount = totalDayCount;
+            }
+        } finally {
+            stored.close();
+        }
+
+        ContentValues summary = new ContentValues();
+        summary.put(ArchiveEntry.COLUMN_LOCATION_ID, locationId);
+        summary.put(ArchiveEntry.COLUMN_PERIOD, period);
+        summary.put(ArchiveEntry.COLUMN_PERIOD_START, periodStart);
+        summary.put(ArchiveEntry.COLUMN_DAY_COUNT, dayCount);
+        summary.put(ArchiveEntry.COLUMN_MIN_TEMP, minTemp);
+        summary.put(ArchiveEntry.COLUMN_MAX_TEMP, maxTemp);
+        summary.put(ArchiveEntry.COLUMN_MEAN_TEMP, meanTemp);
+        summary.put(ArchiveEntry.COLUMN_MEAN_HUMIDITY, meanHumidity);
+        summary.put(ArchiveEntry.COLUMN_MEAN_PRESSURE, meanPressure);
+
+        /* The table replaces the stored summary on conflict */
+        mDatabase.insert(ArchiveEntry.TABLE_NAME, null, summary);
+    }
+
+    private void enforceBudget(int maxArchiveRows) {
+        long excess = DatabaseUtils.queryNumEntries(mDatabase, ArchiveEntry.TABLE_NAME)
+                - Math.max(0, maxArchiveRows);
+        if (excess <= 0) {
+            return;
+        }
+
+        SQLiteStatement deleteStatement = mDatabase.compileStatement(SQL_DELETE_OLDEST);
+        try {
+            deleteStatement.bindLong(1, excess);
+            mDeletedCount += deleteStatement.executeUpdateDelete();
+        } finally {
+            deleteStatement.close();
+        }
+    }
+
+    private static String weightedMean(String column) {
+        return "SUM(" + column + " * " + ArchiveEntry.COLUMN_DAY_COUNT + ") / SUM("
+                + ArchiveEntry.COLUMN_DAY_COUNT + ")";
+    }
+
+    private static long getWeekStart(long normalizedDate) {
+        return normalizedDate
+                - ((normalizedDate / DateUtils.DAY_IN_MILLIS + 3) % 7) * DateUtils.DAY_IN_MILLIS;
+    }
+
+    private static long getMonthStart(long normalizedDate) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        calendar.setTimeInMillis(normalizedDate);
+        calendar.set(Calendar.DAY_OF_MONTH, 1);
+        calendar.set(Calendar.HOUR_OF_DAY, 0);
+        calendar.set(Calendar.MINUTE, 0);
+        calendar.set(Calendar.SECOND, 0);
+        calendar.set(Calendar.MILLISECOND, 0);
+        return calendar.getTimeInMillis();
+    }
+}
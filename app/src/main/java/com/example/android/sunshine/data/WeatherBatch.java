@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.os.Bundle;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+
+/**
+ * A set of weather rows stored column by column in primitive arrays. Compared to an array of
+ * ContentValues, there is no HashMap and no boxed number per value, and the whole batch crosses
+ * into the ContentProvider as a handful of arrays in one Bundle.
+ * <p>
+ * Use {@link #toBundle()} and {@link WeatherContract#METHOD_BULK_INSERT_WEATHER} to insert the
+ * batch through {@link android.content.ContentResolver#call}.
+ */
+public final class WeatherBatch {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int mSize;
+
+    private long[] mDates;
+    private int[] mWeatherIds;
+    private double[] mMinTemps;
+    private double[] mMaxTemps;
+    private double[] mHumidities;
+    private double[] mPressures;
+    private double[] mWindSpeeds;
+    private double[] mDegrees;
+
+    public WeatherBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity Number of rows the batch can hold before its arrays have to grow
+     */
+    public WeatherBatch(int capacity) {
+        mDates = new long[capacity];
+        mWeatherIds = new int[capacity];
+        mMinTemps = new double[capacity];
+        mMaxTemps = new double[capacity];
+        mHumidities = new double[capacity];
+        mPressures = new double[capacity];
+        mWindSpeeds = new double[capacity];
+        mDegrees = new double[capacity];
+    }
+
+    /**
+     * Appends one day of weather to the batch.
+     *
+     * @param date      Normalized UTC date of the day, in milliseconds
+     * @param weatherId Weather condition code as returned by the API
+     * @param minTemp   Minimum temperature in °C
+     * @param maxTemp   Maximum temperature in °C
+     * @param humidity  Humidity in percent
+     * @param pressure  Pressure in hPa
+     * @param windSpeed Wind speed
+     * @param degrees   Meteorological direction of the wind
+     */
+    public void add(long date, int weatherId, double minTemp, double maxTemp, double humidity,
+            double pressure, double windSpeed, double degrees) {
+        if (mSize == mDates.length) {
+            grow();
+        }
+        mDates[mSize] = date;
+        mWeatherIds[mSize] = weatherId;
+        mMinTemps[mSize] = minTemp;
+        mMaxTemps[mSize] = maxTemp;
+        mHumidities[mSize] = humidity;
+        mPressures[mSize] = pressure;
+        mWindSpeeds[mSize] = windSpeed;
+        mDegrees[mSize] = degrees;
+        mSize++;
+    }
+
+    /**
+     * Empties the batch while keeping its arrays, so it can be filled again without allocating.
+     */
+    public void clear() {
+        mSize = 0;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public long getDate(int row) {
+        return mDates[row];
+    }
+
+    public int getWeatherId(int row) {
+        return mWeatherIds[row];
+    }
+
+    public double getMinTemp(int row) {
+        return mMinTemps[row];
+    }
+
+    public double getMaxTemp(int row) {
+        return mMaxTemps[row];
+    }
+
+    public double getHumidity(int row) {
+        return mHumidities[row];
+    }
+
+    public double getPressure(int row) {
+        return mPressures[row];
+    }
+
+    public double getWindSpeed(int row) {
+        return mWindSpeeds[row];
+    }
+
+    public double getDegrees(int row) {
+        return mDegrees[row];
+    }
+
+    /**
+     * @param other Another batch
+     * @return true if both batches hold the same rows in the same order
+     */
+    public boolean hasSameRows(WeatherBatch other) {
+        if (mSize != other.mSize) {
+            return false;
+        }
+        for (int row = 0; row < mSize; row++) {
+            if (mDates[row] != other.mDates[row]
+                    || mWeatherIds[row] != other.mWeatherIds[row]
+                    || Double.compare(mMinTemps[row], other.mMinTemps[row]) != 0
+                    || Double.compare(mMaxTemps[row], other.mMaxTemps[row]) != 0
+                    || Double.compare(mHumidities[row], other.mHumidities[row]) != 0
+                    || Double.compare(mPressures[row], other.mPressures[row]) != 0
+                    || Double.compare(mWindSpeeds[row], other.mWindSpeeds[row]) != 0
+                    || Double.compare(mDegrees[row], other.mDegrees[row]) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Packs the rows of this batch into a Bundle, one primitive array per column, keyed by the
+     * column names of {@link WeatherEntry}.
+     *
+     * @return A Bundle that {@link #fromBundle(Bundle)} turns back into an equal batch
+     */
+    public Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLongArray(WeatherEntry.COLUMN_DATE, Arrays.copyOf(mDates, mSize));
+        bundle.putIntArray(WeatherEntry.COLUMN_WEATHER_ID, Arrays.copyOf(mWeatherIds, mSize));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_MIN_TEMP, Arrays.copyOf(mMinTemps, mSize));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_MAX_TEMP, Arrays.copyOf(mMaxTemps, mSize));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_HUMIDITY, Arrays.copyOf(mHumidities, mSize));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_PRESSURE, Arrays.copyOf(mPressures, mSize));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_WIND_SPEED, Arrays.copyOf(mWindSpeeds, mSize));
+        bundle.putDoubleArray(WeatherEntry.COLUMN_DEGREES, Arrays.copyOf(mDegrees, mSize));
+        return bundle;
+    }
+
+    /**
+     * Reads a batch that was packed with {@link #toBundle()}.
+     *
+     * @param bundle The packed batch
+     * @return The batch, which takes ownership of the Bundle's arrays
+     * @throws IllegalArgumentException If a column is missing or the columns differ in length
+     */
+    public static WeatherBatch fromBundle(Bundle bundle) {
+        if (bundle == null) {
+            throw new IllegalArgumentException("No weather batch given");
+        }
+        WeatherBatch batch = new WeatherBatch(0);
+        batch.mDates = bundle.getLongArray(WeatherEntry.COLUMN_DATE);
+        batch.mWeatherIds = bundle.getIntArray(WeatherEntry.COLUMN_WEATHER_ID);
+        batch.mMinTemps = bundle.getDoubleArray(WeatherEntry.COLUMN_MIN_TEMP);
+        batch.mMaxTemps = bundle.getDoubleArray(WeatherEntry.COLUMN_MAX_TEMP);
+        batch.mHumidities = bundle.getDoubleArray(WeatherEntry.COLUMN_HUMIDITY);
+        batch.mPressures = bundle.getDoubleArray(WeatherEntry.COLUMN_PRESSURE);
+        batch.mWindSpeeds = bundle.getDoubleArray(WeatherEntry.COLUMN_WIND_SPEED);
+        batch.mDegrees = bundle.getDoubleArray(WeatherEntry.COLUMN_DEGREES);
+
+        if (batch.mDates == null || batch.mWeatherIds == null || batch.mMinTemps == null
+                || batch.mMaxTemps == null || batch.mHumidities == null
+                || batch.mPressures == null || batch.mWindSpeeds == null
+                || batch.mDegrees == null) {
+            throw new IllegalArgumentException("Weather batch is missing a column");
+        }
+
+        int size = batch.mDates.length;
+        if (batch.mWeatherIds.length != size || batch.mMinTemps.length != size
+                || batch.mMaxTemps.length != size || batch.mHumidities.length != size
+                || batch.mPressures.length != size || batch.mWindSpeeds.length != size
+                || batch.mDegrees.length != size) {
+            throw new IllegalArgumentException("Weather batch columns differ in length");
+        }
+        batch.mSize = size;
+        return batch;
+    }
+
+    private void grow() {
+        int capacity = Math.max(DEFAULT_CAPACITY, mDates.length * 2);
+        mDates = Arrays.copyOf(mDates, capacity);
+        mWeatherIds = Arrays.copyOf(mWeatherIds, capacity);
+        mMinTemps = Arrays.copyOf(mMinTemps, capacity);
+        mMaxTemps = Arrays.copyOf(mMaxTemps, capacity);
+        mHumidities = Arrays.copyOf(mHumidities, capacity);
+        mPressures = Arrays.copyOf(mPressures, capacity);
+        mWindSpeeds = Arrays.copyOf(mWindSpeeds, capacity);
+        mDegrees = Arrays.copyOf(mDegrees, capacity);
+    }
+}
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.content.ContentValues;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Log;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+import com.example.android.sunshine.utilities.SunshineDateUtils;
+
+/**
+ * Inserts many weather rows with a single precompiled INSERT statement. SQLiteDatabase#insert
+ * builds and compiles a new statement for every row and boxes every value into a ContentValues;
+ * here the SQL is compiled once and each row only binds its values and executes.
+ * <p>
+ * The upsert methods first try to update the stored row of the same day in place and only
+ * insert if there is none. Unlike the table's ON CONFLICT REPLACE, which deletes the old row and
+ * inserts a new one, this keeps the _ID of every day that was already stored.
+ * <p>
+ * Every row is written for the location the writer was created for. A writer is meant to live
+ * for one transaction. The caller opens the transaction, inserts as
+ * many batches as it likes and closes the writer before ending the transaction.
+ */
+class WeatherBulkWriter {
+
+    private static final String TAG = WeatherBulkWriter.class.getSimpleName();
+
+    /*
+     * The bind index of each column in the INSERT statement below. If the order of the columns
+     * in the statement changes, these must be adjusted to match.
+     */
+    private static final int BIND_DATE = 1;
+    private static final int BIND_WEATHER_ID = 2;
+    private static final int BIND_MIN_TEMP = 3;
+    private static final int BIND_MAX_TEMP = 4;
+    private static final int BIND_HUMIDITY = 5;
+    private static final int BIND_PRESSURE = 6;
+    private static final int BIND_WIND_SPEED = 7;
+    private static final int BIND_DEGREES = 8;
+    private static final int BIND_LOCATION_ID = 9;
+
+    /*
+     * The bind index of each value in the UPDATE statement below. The values come in the same
+     * order as COLUMNS without the date, which moves into the WHERE clause.
+     */
+    private static final int UPDATE_BIND_WEATHER_ID = 1;
+    private static final int UPDATE_BIND_MIN_TEMP = 2;
+    private static final int UPDATE_BIND_MAX_TEMP = 3;
+    private static final int UPDATE_BIND_HUMIDITY = 4;
+    private static final int UPDATE_BIND_PRESSURE = 5;
+    private static final int UPDATE_BIND_WIND_SPEED = 6;
+    private static final int UPDATE_BIND_DEGREES = 7;
+    private static final int UPDATE_BIND_LOCATION_ID = 8;
+    private static final int UPDATE_BIND_DATE = 9;
+
+    /* Columns that callers bind through ContentValues, in bind index order */
+    private static final String[] COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+    };
+
+    /*
+     * A plain INSERT still honors the table's "UNIQUE (location_id, date) ON CONFLICT REPLACE"
+     * clause, so a row for a day that is already stored replaces the old one, just like
+     * db.insert does.
+     */
+    private static final String SQL_INSERT_WEATHER = "INSERT INTO " + WeatherEntry.TABLE_NAME
+            + " (" + WeatherEntry.COLUMN_DATE
+            + ", " + WeatherEntry.COLUMN_WEATHER_ID
+            + ", " + WeatherEntry.COLUMN_MIN_TEMP
+            + ", " + WeatherEntry.COLUMN_MAX_TEMP
+            + ", " + WeatherEntry.COLUMN_HUMIDITY
+            + ", " + WeatherEntry.COLUMN_PRESSURE
+            + ", " + WeatherEntry.COLUMN_WIND_SPEED
+            + ", " + WeatherEntry.COLUMN_DEGREES
+            + ", " + WeatherEntry.COLUMN_LOCATION_ID
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    /* Looks the day up through the (location_id, date) index behind the UNIQUE constraint */
+    private static final String SQL_UPDATE_WEATHER = "UPDATE " + WeatherEntry.TABLE_NAME
+            + " SET " + WeatherEntry.COLUMN_WEATHER_ID + " = ?"
+            + ", " + WeatherEntry.COLUMN_MIN_TEMP + " = ?"
+            + ", " + WeatherEntry.COLUMN_MAX_TEMP + " = ?"
+            + ", " + WeatherEntry.COLUMN_HUMIDITY + " = ?"
+            + ", " + WeatherEntry.COLUMN_PRESSURE + " = ?"
+            + ", " + WeatherEntry.COLUMN_WIND_SPEED + " = ?"
+            + ", " + WeatherEntry.COLUMN_DEGREES + " = ?"
+            + " WHERE " + WeatherEntry.COLUMN_LOCATION_ID + " = ?"
+            + " AND " + WeatherEntry.COLUMN_DATE + " = ?";
+
+    private static final String SELECT_LOCATION_AND_DATE = WeatherEntry.COLUMN_LOCATION_ID
+            + " = ? AND " + WeatherEntry.COLUMN_DATE + " = ?";
+
+    private final SQLiteDatabase mDatabase;
+    private final SQLiteStatement mInsertStatement;
+    private final long mLocationId;
+
+    /* Only compiled once the writer is first asked to upsert */
+    private SQLiteStatement mUpdateStatement;
+
+    /**
+     * @param database   The database, with a transaction already begun
+     * @param locationId The location every row is written for
+     */
+    WeatherBulkWriter(SQLiteDatabase database, long locationId) {
+        mDatabase = database;
+        mInsertStatement = database.compileStatement(SQL_INSERT_WEATHER);
+        mLocationId = locationId;
+    }
+
+    /**
+     * Inserts every row of a columnar batch. No value is boxed along the way.
+     *
+     * @param batch The rows to insert
+     * @return The number of rows that were inserted
+     * @throws IllegalArgumentException If a date is not normalized
+     */
+    int insert(WeatherBatch batch) {
+        int rowsInserted = 0;
+        for (int row = 0; row < batch.size(); row++) {
+            if (insert(batch, row)) {
+                rowsInserted++;
+            }
+        }
+        return rowsInserted;
+    }
+
+    /**
+     * Inserts a single row of a columnar batch.
+     *
+     * @param batch The batch holding the row
+     * @param row   Index of the row within the batch
+     * @return true if the row was inserted
+     * @throws IllegalArgumentException If the date is not normalized
+     */
+    boolean insert(WeatherBatch batch, int row) {
+        long weatherDate = batch.getDate(row);
+        if (!SunshineDateUtils.isDateNormalized(weatherDate)) {
+            throw new IllegalArgumentException("Date must be normalized to insert");
+        }
+
+        mInsertStatement.bindLong(BIND_DATE, weatherDate);
+        mInsertStatement.bindLong(BIND_WEATHER_ID, batch.getWeatherId(row));
+        mInsertStatement.bindDouble(BIND_MIN_TEMP, batch.getMinTemp(row));
+        mInsertStatement.bindDouble(BIND_MAX_TEMP, batch.getMaxTemp(row));
+        mInsertStatement.bindDouble(BIND_HUMIDITY, batch.getHumidity(row));
+        mInsertStatement.bindDouble(BIND_PRESSURE, batch.getPressure(row));
+        mInsertStatement.bindDouble(BIND_WIND_SPEED, batch.getWindSpeed(row));
+        mInsertStatement.bindDouble(BIND_DEGREES, batch.getDegrees(row));
+        mInsertStatement.bindLong(BIND_LOCATION_ID, mLocationId);
+
+        return executeInsert() != -1;
+    }
+
+    /**
+     * Writes every row of a columnar batch, updating the days that are already stored in place
+     * and inserting the others.
+     *
+     * @param batch The rows to write
+     * @return The number of rows that were updated or inserted
+     * @throws IllegalArgumentException If a date is not normalized
+     */
+    int upsert(WeatherBatch batch) {
+        int rowsWritten = 0;
+        for (int row = 0; row < batch.size(); row++) {
+            long weatherDate = batch.getDate(row);
+            if (!SunshineDateUtils.isDateNormalized(weatherDate)) {
+                throw new IllegalArgumentException("Date must be normalized to insert");
+            }
+
+            SQLiteStatement update = getUpdateStatement();
+            update.bindLong(UPDATE_BIND_WEATHER_ID, batch.getWeatherId(row));
+            update.bindDouble(UPDATE_BIND_MIN_TEMP, batch.getMinTemp(row));
+            update.bindDouble(UPDATE_BIND_MAX_TEMP, batch.getMaxTemp(row));
+            update.bindDouble(UPDATE_BIND_HUMIDITY, batch.getHumidity(row));
+            update.bindDouble(UPDATE_BIND_PRESSURE, batch.getPressure(row));
+            update.bindDouble(UPDATE_BIND_WIND_SPEED, batch.getWindSpeed(row));
+            update.bindDouble(UPDATE_BIND_DEGREES, batch.getDegrees(row));
+            update.bindLong(UPDATE_BIND_LOCATION_ID, mLocationId);
+            update.bindLong(UPDATE_BIND_DATE, weatherDate);
+
+            if (executeUpdate() > 0 || insert(batch, row)) {
+                rowsWritten++;
+            }
+        }
+        return rowsWritten;
+    }
+
+    /**
+     * Writes every set of ContentValues, updating the days that are already stored in place and
+     * inserting the others. See {@link #upsert(ContentValues)}.
+     *
+     * @param values The rows to write
+     * @return The number of rows that were updated or inserted
+     * @throws IllegalArgumentException If a date is missing or not normalized
+     */
+    int upsert(ContentValues[] values) {
+        int rowsWritten = 0;
+        for (ContentValues value : values) {
+            if (upsert(value, false) != -1) {
+                rowsWritten++;
+            }
+        }
+        return rowsWritten;
+    }
+
+    /**
+     * Writes one day of weather. Values that hold exactly the weather columns of the precompiled
+     * statements are bound to them. Anything else falls back to SQLiteDatabase#update and
+     * SQLiteDatabase#insert, so callers get the same behavior as before for unusual rows.
+     *
+     * @param value The row to write
+     * @return The _ID of the row, or -1 if it could not be written
+     * @throws IllegalArgumentException If the date is missing or not normalized
+     */
+    long upsert(ContentValues value) {
+        return upsert(value, true);
+    }
+
+    /*
+     * An update doesn't tell us the _ID of the row it changed. Looking it up costs another query,
+     * so a bulk write that only counts its rows returns 0 for updated rows instead.
+     */
+    private long upsert(ContentValues value, boolean needsId) {
+        Long weatherDate = value.getAsLong(WeatherEntry.COLUMN_DATE);
+        if (weatherDate == null || !SunshineDateUtils.isDateNormalized(weatherDate)) {
+            throw new IllegalArgumentException("Date must be normalized to insert");
+        }
+
+        if (matchesStatement(value)) {
+            SQLiteStatement update = getUpdateStatement();
+            /* COLUMNS[0] is the date, which the UPDATE binds last */
+            for (int i = 1; i < COLUMNS.length; i++) {
+                bindValue(update, i, value.get(COLUMNS[i]));
+            }
+            update.bindLong(UPDATE_BIND_LOCATION_ID, mLocationId);
+            update.bindLong(UPDATE_BIND_DATE, weatherDate);
+            if (executeUpdate() > 0) {
+                return needsId ? queryId(weatherDate) : 0;
+            }
+
+            for (int i = 0; i < COLUMNS.length; i++) {
+                bindValue(mInsertStatement, i + 1, value.get(COLUMNS[i]));
+            }
+            mInsertStatement.bindLong(BIND_LOCATION_ID, mLocationId);
+            return executeInsert();
+        }
+
+        /* The location of the URI the rows were written at wins over the values */
+        ContentValues locatedValue = new ContentValues(value);
+        locatedValue.put(WeatherEntry.COLUMN_LOCATION_ID, mLocationId);
+        String[] locationAndDate = {Long.toString(mLocationId), Long.toString(weatherDate)};
+        if (mDatabase.update(WeatherEntry.TABLE_NAME, locatedValue,
+                SELECT_LOCATION_AND_DATE, locationAndDate) > 0) {
+            return needsId ? queryId(weatherDate) : 0;
+        }
+        return mDatabase.insert(WeatherEntry.TABLE_NAME, null, locatedValue);
+    }
+
+    /**
+     * Releases the compiled statement. Must be called before the transaction ends.
+     */
+    void close() {
+        mInsertStatement.close();
+        if (mUpdateStatement != null) {
+            mUpdateStatement.close();
+        }
+    }
+
+    private SQLiteStatement getUpdateStatement() {
+        if (mUpdateStatement == null) {
+            mUpdateStatement = mDatabase.compileStatement(SQL_UPDATE_WEATHER);
+        }
+        return mUpdateStatement;
+    }
+
+    /* The _ID of the row stored for a day of our location */
+    private long queryId(long weatherDate) {
+        return DatabaseUtils.longForQuery(mDatabase,
+                "SELECT " + WeatherEntry._ID + " FROM " + WeatherEntry.TABLE_NAME
+                        + " WHERE " + SELECT_LOCATION_AND_DATE,
+                new String[]{Long.toString(mLocationId), Long.toString(weatherDate)});
+    }
+
+    /*
+     * SQLiteDatabase#insert logs failures and returns -1 instead of throwing. We do the same, so
+     * that a single bad row does not roll back the rest of the batch.
+     */
+    private long executeInsert() {
+        try {
+            return mInsertStatement.executeInsert();
+        } catch (SQLException e) {
+            Log.e(TAG, "Error inserting weather row", e);
+            return -1;
+        } finally {
+            mInsertStatement.clearBindings();
+        }
+    }
+
+    /* Failures are logged and reported as 0 rows, just like executeInsert does */
+    private int executeUpdate() {
+        try {
+            return mUpdateStatement.executeUpdateDelete();
+        } catch (SQLException e) {
+            Log.e(TAG, "Error updating weather row", e);
+            return 0;
+        } finally {
+            mUpdateStatement.clearBindings();
+        }
+    }
+
+    private static boolean matchesStatement(ContentValues value) {
+        if (value.size() != COLUMNS.length) return false;
+        for (String column : COLUMNS) {
+            if (!value.containsKey(column)) return false;
+        }
+        return true;
+    }
+
+    private static void bindValue(SQLiteStatement statement, int index, Object value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else if (value instanceof Double || value instanceof Float) {
+            statement.bindDouble(index, ((Number) value).doubleValue());
+        } else if (value instanceof Number) {
+            statement.bindLong(index, ((Number) value).longValue());
+        } else if (value instanceof Boolean) {
+            statement.bindLong(index, (Boolean) value ? 1 : 0);
+        } else if (value instanceof byte[]) {
+            statement.bindBlob(index, (byte[]) value);
+        } else {
+            statement.bindString(index, value.toString());
+        }
+    }
+}
@@ -15,6 +15,7 @@
  */
 package com.example.android.sunshine.data;
 
+import android.content.ContentUris;
 import android.net.Uri;
 import android.provider.BaseColumns;
 
@@ -56,6 +57,673 @@ public class WeatherContract {
      */
     public static final String PATH_WEATHER = "weather";
 
+    /*
+     * Sunshine can keep forecasts for other places besides the one chosen in the settings. Each
+     * of them is a row in the location table, and its weather lives below its own URI:
+     *
+     *     content://com.example.android.sunshine/location/
+     *     content://com.example.android.sunshine/location/4
+     *     content://com.example.android.sunshine/location/4/weather/
+     *     content://com.example.android.sunshine/location/4/weather/1472214172
+     *
+     * The weather below PATH_WEATHER alone always belongs to the location chosen in the settings.
+     */
+    public static final String PATH_LOCATION = "location";
+
+    /*
+     * Past days can be kept in an archive instead of being dropped. Old days are rolled up into
+     * weekly and then monthly summaries, which are stored below their own URIs:
+     *
+     *     content://com.example.android.sunshine/archive/
+     *     content://com.example.android.sunshine/location/4/archive/
+     *
+     * The archive below PATH_ARCHIVE alone belongs to the location chosen in the settings.
+     */
+    public static final String PATH_ARCHIVE = "archive";
+
+    /*
+     * Besides the daily forecast, Sunshine can keep a forecast in steps of three hours for the
+     * next few days. It lives below its own URIs, and "next" asks for the steps of the next
+     * number of hours only:
+     *
+     *     content://com.example.android.sunshine/hourly/
+     *     content://com.example.android.sunshine/hourly/next/12
+     *     content://com.example.android.sunshine/location/4/hourly/next/12
+     *
+     * The forecast below PATH_HOURLY alone belongs to the location chosen in the settings.
+     */
+    public static final String PATH_HOURLY = "hourly";
+    public static final String PATH_NEXT = "next";
+
+    /*
+     * Below any forecast URI, a range of days from a start date up to, but not including, an
+     * end date:
+     *
+     *     content://com.example.android.sunshine/weather/range/1475280000000/1475884800000
+     *
+     * Weather is stored in an index on location and date, so a range is a seek to its first day
+     * followed by a walk along the index. It costs the same however many days are stored before
+     * or after it, unlike a selection on the date column, which the provider can't tell apart
+     * from any other selection.
+     */
+    public static final String PATH_RANGE = "range";
+
+    /*
+     * Query parameters that page through any forecast URI, including ranges.
+     *
+     * QUERY_PARAMETER_LIMIT returns at most that many days. QUERY_PARAMETER_OFFSET skips that
+     * many days first. SQLite still has to step over the skipped days, so the further a page
+     * is, the longer it takes.
+     *
+     * QUERY_PARAMETER_AFTER_DATE returns only the days after a date, which is the date of the
+     * last day of the previous page. This is keyset paging: every page is a seek in the index,
+     * so the hundredth page is as quick as the first one. It requires the rows to be sorted by
+     * ascending date, which is how paged queries are sorted unless a sort order is given.
+     */
+    public static final String QUERY_PARAMETER_LIMIT = "limit";
+    public static final String QUERY_PARAMETER_OFFSET = "offset";
+    public static final String QUERY_PARAMETER_AFTER_DATE = "after";
+
+    /*
+     * Methods that can be passed to ContentResolver#call on any of Sunshine's URIs, for work
+     * that does not fit into insert, update, delete and query. The methods that write weather
+     * write it for the location under KEY_LOCATION_ID, or for the preferred location if there
+     * is no such key.
+     */
+
+    /*
+     * Inserts the WeatherBatch packed into the extras, like bulkInsert does with ContentValues.
+     * Days that are already stored are updated in place and keep their _ID. Returns KEY_ROW_COUNT.
+     */
+    public static final String METHOD_BULK_INSERT_WEATHER = "bulkInsertWeather";
+
+    /*
+     * Replaces the stored forecast with the WeatherBatch from the extras in one transaction, so
+     * readers never see an empty table, and notifies once. Returns KEY_ROW_COUNT and
+     * KEY_DELETED_COUNT.
+     */
+    public static final String METHOD_REPLACE_FORECAST = "replaceForecast";
+
+    /*
+     * Same outcome as METHOD_REPLACE_FORECAST, but only writes the days that differ from what is
+     * stored, keeps the _ID of changed days and only notifies their per-date URIs. Takes
+     * KEY_KEEP_HISTORY, returns KEY_INSERTED_COUNT, KEY_UPDATED_COUNT, KEY_DELETED_COUNT and
+     * KEY_CHANGED_DATES.
+     */
+    public static final String METHOD_MERGE_FORECAST = "mergeForecast";
+
+    /*
+     * Replaces the stored hourly forecast with the HourlyBatch from the extras in one
+     * transaction. Returns KEY_ROW_COUNT and KEY_DELETED_COUNT.
+     */
+    public static final String METHOD_REPLACE_HOURLY_FORECAST = "replaceHourlyForecast";
+
+    /*
+     * Copies the write-ahead log back into the database file. The arg is one of the CHECKPOINT
+     * modes below, CHECKPOINT_PASSIVE by default. Returns KEY_CHECKPOINT_BUSY,
+     * KEY_LOG_FRAME_COUNT, KEY_CHECKPOINTED_FRAME_COUNT and KEY_DURATION_MILLIS.
+     */
+    public static final String METHOD_CHECKPOINT = "checkpoint";
+
+    /*
+     * Does one short step of rolling old days up into weekly and monthly rows of ArchiveEntry,
+     * then trims the archive to its budget. Takes KEY_DAILY_RETENTION_DAYS,
+     * KEY_WEEKLY_RETENTION_DAYS and KEY_MAX_ARCHIVE_ROWS, which default to those of
+     * ArchiveEntry. Returns KEY_ROW_COUNT, KEY_DELETED_COUNT and KEY_HAS_MORE.
+     */
+    public static final String METHOD_COMPACT_ARCHIVE = "compactArchive";
+
+    /*
+     * Reports on the provider's cache of query results. Returns KEY_HIT_COUNT, KEY_MISS_COUNT,
+     * KEY_INVALIDATION_COUNT and KEY_CACHED_ROW_COUNT.
+     */
+    public static final String METHOD_GET_QUERY_CACHE_STATS = "getQueryCacheStats";
+
+    /*
+     * Empties the query cache. Writes through the provider do this on their own, so only code
+     * that writes to weather.db behind its back, like a test, needs it.
+     */
+    public static final String METHOD_CLEAR_QUERY_CACHE = "clearQueryCache";
+
+    /*
+     * Reports how long queries and writes took, per operation and URI code, under
+     * KEY_URI_METRICS, and the recent slow queries under KEY_SLOW_QUERIES. The methods that
+     * write a forecast are reported under their location's weather or hourly URI code.
+     */
+    public static final String METHOD_GET_QUERY_METRICS = "getQueryMetrics";
+
+    /*
+     * Forgets everything measured so far. Takes KEY_SLOW_QUERY_THRESHOLD_MILLIS.
+     */
+    public static final String METHOD_RESET_QUERY_METRICS = "resetQueryMetrics";
+
+    /*
+     * Returns the forecast from today onwards as a WeatherBatch packed into the Bundle, which
+     * WeatherBatch#fromBundle reads back. It is the cheapest way to read every day, and is kept
+     * in memory until the next write. Takes KEY_LOCATION_ID and KEY_SNAPSHOT_VERSION, returns
+     * KEY_SNAPSHOT_VERSION and KEY_SNAPSHOT_UNCHANGED. Its arrays may be shared, don't modify
+     * them.
+     */
+    public static final String METHOD_GET_FORECAST_SNAPSHOT = "getForecastSnapshot";
+
+    /*
+     * Stores the sync record in the extras, keyed by the columns of SyncMetricsEntry, and keeps
+     * only the last SyncMetricsEntry.MAX_RECORDS. Returns nothing.
+     */
+    public static final String METHOD_RECORD_SYNC = "recordSync";
+
+    /*
+     * Returns the stored sync records, newest first, under KEY_SYNC_RECORDS.
+     */
+    public static final String METHOD_GET_SYNC_RECORDS = "getSyncRecords";
+
+    /*
+     * Queues a sync request in SyncRequestEntry, at most one per priority. Takes
+     * KEY_SYNC_PRIORITY, KEY_REQUESTED_TIME and KEY_NEXT_ATTEMPT_TIME. Asking again for a queued
+     * priority keeps the later request time, the earlier next attempt and the attempt count.
+     * Returns the queue as METHOD_GET_SYNC_QUEUE does.
+     */
+    public static final String METHOD_ENQUEUE_SYNC_REQUEST = "enqueueSyncRequest";
+
+    /*
+     * Tells the queue how a sync ended. It covers every request made before KEY_SYNC_START_TIME
+     * and every request below KEY_SYNC_PRIORITY. If KEY_SYNC_SUCCEEDED, they are deleted,
+     * otherwise they are retried at KEY_NEXT_ATTEMPT_TIME until they reach KEY_MAX_ATTEMPTS.
+     * Returns KEY_DELETED_COUNT and the queue as METHOD_GET_SYNC_QUEUE does.
+     */
+    public static final String METHOD_FINISH_SYNC_REQUESTS = "finishSyncRequests";
+
+    /*
+     * Describes the sync queue: KEY_ROW_COUNT and, if it isn't empty, KEY_NEXT_ATTEMPT_TIME,
+     * KEY_SYNC_PRIORITY and KEY_ATTEMPT_COUNT.
+     */
+    public static final String METHOD_GET_SYNC_QUEUE = "getSyncQueue";
+
+    /* The location a method works on, as in LocationEntry */
+    public static final String KEY_LOCATION_ID = "location_id";
+
+    /* The number of rows a method read, inserted, wrote, rolled up or holds */
+    public static final String KEY_ROW_COUNT = "row_count";
+
+    /* The number of rows METHOD_MERGE_FORECAST inserted, updated and deleted */
+    public static final String KEY_INSERTED_COUNT = "inserted_count";
+    public static final String KEY_UPDATED_COUNT = "updated_count";
+    /* Also the rows a replace or METHOD_FINISH_SYNC_REQUESTS deleted, or the archive trimmed */
+    public static final String KEY_DELETED_COUNT = "deleted_count";
+
+    /* The dates of every row METHOD_MERGE_FORECAST wrote or deleted */
+    public static final String KEY_CHANGED_DATES = "changed_dates";
+
+    /*
+     * The result of METHOD_CHECKPOINT: whether a reader or writer blocked it, the frames in the
+     * log and how many of them are now in the database. Both counts are -1 if the database is
+     * not in WAL mode.
+     */
+    public static final String KEY_CHECKPOINT_BUSY = "checkpoint_busy";
+    public static final String KEY_LOG_FRAME_COUNT = "log_frame_count";
+    public static final String KEY_CHECKPOINTED_FRAME_COUNT = "checkpointed_frame_count";
+
+    /* How long a checkpoint or a slow query took */
+    public static final String KEY_DURATION_MILLIS = "duration_millis";
+
+    /*
+     * The stats of METHOD_GET_QUERY_CACHE_STATS: queries answered from the cache, queries that
+     * went to the database, how often a write emptied the cache, and the rows it holds now.
+     */
+    public static final String KEY_HIT_COUNT = "hit_count";
+    public static final String KEY_MISS_COUNT = "miss_count";
+    public static final String KEY_INVALIDATION_COUNT = "invalidation_count";
+    public static final String KEY_CACHED_ROW_COUNT = "cached_row_count";
+
+    /*
+     * If true, METHOD_MERGE_FORECAST keeps the stored days before today, so that
+     * METHOD_COMPACT_ARCHIVE can archive them later.
+     */
+    public static final String KEY_KEEP_HISTORY = "keep_history";
+
+    /*
+     * The budget of METHOD_COMPACT_ARCHIVE: days older than the daily retention are rolled up
+     * into whole weeks, weeks older than the weekly retention into whole months, and the oldest
+     * rows beyond the maximum are deleted.
+     */
+    public static final String KEY_DAILY_RETENTION_DAYS = "daily_retention_days";
+    public static final String KEY_WEEKLY_RETENTION_DAYS = "weekly_retention_days";
+    public static final String KEY_MAX_ARCHIVE_ROWS = "max_archive_rows";
+
+    /* True if another step of METHOD_COMPACT_ARCHIVE has work to do */
+    public static final String KEY_HAS_MORE = "has_more";
+
+    /* Queries that take at least this long are logged as slow */
+    public static final String KEY_SLOW_QUERY_THRESHOLD_MILLIS = "slow_query_threshold_millis";
+
+    /*
+     * The upper bounds of the latency buckets of KEY_LATENCY_HISTOGRAM. The last bucket holds
+     * every call slower than the last bound.
+     */
+    public static final String KEY_LATENCY_BUCKET_BOUNDS_MILLIS = "latency_bucket_bounds_millis";
+
+    /*
+     * One Bundle per operation and URI code. Each holds the operation, one of the OPERATION
+     * constants below, its URI code, how often it ran, the rows it returned or wrote under
+     * KEY_ROW_COUNT, its total and longest time in microseconds and how many calls fell into
+     * each latency bucket.
+     */
+    public static final String KEY_URI_METRICS = "uri_metrics";
+    public static final String KEY_OPERATION = "operation";
+    public static final String KEY_URI_CODE = "uri_code";
+    public static final String KEY_CALL_COUNT = "call_count";
+    public static final String KEY_TOTAL_MICROS = "total_micros";
+    public static final String KEY_MAX_MICROS = "max_micros";
+    public static final String KEY_LATENCY_HISTOGRAM = "latency_histogram";
+
+    /*
+     * The most recent slow queries. Each holds its URI, its SQL, the output of EXPLAIN QUERY
+     * PLAN, KEY_DURATION_MILLIS and KEY_ROW_COUNT.
+     */
+    public static final String KEY_SLOW_QUERIES = "slow_queries";
+    public static final String KEY_URI = "uri";
+    public static final String KEY_SQL = "sql";
+    public static final String KEY_QUERY_PLAN = "query_plan";
+
+    /*
+     * The version of a forecast snapshot. Passing the version a caller already has gets back
+     * only that version and true under KEY_SNAPSHOT_UNCHANGED, as long as the forecast hasn't
+     * changed since.
+     */
+    public static final String KEY_SNAPSHOT_VERSION = "snapshot_version";
+    public static final String KEY_SNAPSHOT_UNCHANGED = "snapshot_unchanged";
+
+    /* One Bundle per sync record, keyed by the columns of SyncMetricsEntry */
+    public static final String KEY_SYNC_RECORDS = "sync_records";
+
+    /* A sync request: its priority, when it was made and when to attempt it again */
+    public static final String KEY_SYNC_PRIORITY = "sync_priority";
+    public static final String KEY_REQUESTED_TIME = "requested_time";
+    public static final String KEY_NEXT_ATTEMPT_TIME = "next_attempt_time";
+
+    /* The most attempts a queued request has had, and after how many it is given up */
+    public static final String KEY_ATTEMPT_COUNT = "attempt_count";
+    public static final String KEY_MAX_ATTEMPTS = "max_attempts";
+
+    /* How a sync ended, for METHOD_FINISH_SYNC_REQUESTS */
+    public static final String KEY_SYNC_START_TIME = "sync_start_time";
+    public static final String KEY_SYNC_SUCCEEDED = "sync_succeeded";
+
+    /*
+     * The operations METHOD_GET_QUERY_METRICS reports on. METHOD_BULK_INSERT_WEATHER counts as
+     * a bulk insert, the two replace methods as a replace and METHOD_MERGE_FORECAST as a merge.
+     */
+    public static final String OPERATION_QUERY = "query";
+    public static final String OPERATION_BULK_INSERT = "bulkInsert";
+    public static final String OPERATION_DELETE = "delete";
+    public static final String OPERATION_REPLACE = "replace";
+    public static final String OPERATION_MERGE = "merge";
+
+    /*
+     * Checkpoint modes for METHOD_CHECKPOINT. A passive checkpoint copies what it can without
+     * waiting for anyone, so it never holds up a reader or the sync. A full checkpoint waits for
+     * the writer to finish and for readers of old data to move on, then copies the whole log.
+     * A restart checkpoint also waits until the next writer can start over at the beginning of
+     * the log, which keeps the log file from growing.
+     */
+    public static final String CHECKPOINT_PASSIVE = "PASSIVE";
+    public static final String CHECKPOINT_FULL = "FULL";
+    public static final String CHECKPOINT_RESTART = "RESTART";
+
+    /**
+     * Builds a URI for a page of the weather at a forecast URI, by position.
+     *
+     * @param weatherUri Any forecast or range URI
+     * @param limit      The most days on the page
+     * @param offset     The number of days before the page
+     * @return Uri to query the page
+     */
+    public static Uri buildPageUri(Uri weatherUri, int limit, int offset) {
+        return weatherUri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, Integer.toString(limit))
+                .appendQueryParameter(QUERY_PARAMETER_OFFSET, Integer.toString(offset))
+                .build();
+    }
+
+    /**
+     * Builds a URI for the page of the weather at a forecast URI that follows a given day.
+     *
+     * @param weatherUri Any forecast or range URI
+     * @param afterDate  Normalized date of the last day of the previous page
+     * @param limit      The most days on the page
+     * @return Uri to query the page
+     */
+    public static Uri buildPageUriAfterDate(Uri weatherUri, long afterDate, int limit) {
+        return weatherUri.buildUpon()
+                .appendQueryParameter(QUERY_PARAMETER_AFTER_DATE, Long.toString(afterDate))
+                .appendQueryParameter(QUERY_PARAMETER_LIMIT, Integer.toString(limit))
+                .build();
+    }
+
+    /* Inner class that defines the table contents of the location table */
+    public static final class LocationEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the location table from the content provider */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_LOCATION)
+                .build();
+
+        /* Used internally as the name of our location table. */
+        public static final String TABLE_NAME = "location";
+
+        /*
+         * The location setting sent to the weather server, like "Mountain View, CA 94043". It is
+         * unique, so each place is only stored and downloaded once.
+         */
+        public static final String COLUMN_LOCATION_QUERY = "location_query";
+
+        /* Coordinates of the city the server picked for the query, 0 until the first sync */
+        public static final String COLUMN_COORD_LAT = "coord_lat";
+        public static final String COLUMN_COORD_LONG = "coord_long";
+
+        /*
+         * The location chosen in the settings doesn't have a row in the location table. It can
+         * be a query or a pair of coordinates and lives in SunshinePreferences. Its weather is
+         * stored with this location ID, which AUTOINCREMENT never hands out.
+         */
+        public static final long PREFERRED_LOCATION_ID = 0;
+
+        /**
+         * Builds a URI for a single location.
+         *
+         * @param locationId _ID of the location
+         * @return Uri to query, update or delete the location
+         */
+        public static Uri buildLocationUri(long locationId) {
+            return ContentUris.withAppendedId(CONTENT_URI, locationId);
+        }
+
+        /**
+         * Builds a URI for the forecast of a single location.
+         *
+         * @param locationId _ID of the location
+         * @return Uri to query the forecast of the location
+         */
+        public static Uri buildWeatherUri(long locationId) {
+            return buildLocationUri(locationId).buildUpon()
+                    .appendPath(PATH_WEATHER)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the weather of a single location on a single day.
+         *
+         * @param locationId _ID of the location
+         * @param date       Normalized date in milliseconds
+         * @return Uri to query the weather of the location on that day
+         */
+        public static Uri buildWeatherUriWithDate(long locationId, long date) {
+            return buildWeatherUri(locationId).buildUpon()
+                    .appendPath(Long.toString(date))
+                    .build();
+        }
+
+        /**
+         * Builds a URI for a range of days of the forecast of a single location.
+         *
+         * @param locationId _ID of the location
+         * @param startDate  Normalized date of the first day of the range
+         * @param endDate    Normalized date of the first day after the range
+         * @return Uri to query the location's weather on the days of the range
+         */
+        public static Uri buildWeatherRangeUri(long locationId, long startDate, long endDate) {
+            return buildWeatherUri(locationId).buildUpon()
+                    .appendPath(PATH_RANGE)
+                    .appendPath(Long.toString(startDate))
+                    .appendPath(Long.toString(endDate))
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the hourly forecast of a single location.
+         *
+         * @param locationId _ID of the location
+         * @return Uri to query every stored step of the location's hourly forecast
+         */
+        public static Uri buildHourlyUri(long locationId) {
+            return buildLocationUri(locationId).buildUpon()
+                    .appendPath(PATH_HOURLY)
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the next hours of the hourly forecast of a single location.
+         *
+         * @param locationId _ID of the location
+         * @param hours      How many hours ahead to look, starting with the current step
+         * @return Uri to query the steps of the next hours
+         */
+        public static Uri buildNextHoursUri(long locationId, int hours) {
+            return buildHourlyUri(locationId).buildUpon()
+                    .appendPath(PATH_NEXT)
+                    .appendPath(Integer.toString(hours))
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the archive of a single location.
+         *
+         * @param locationId _ID of the location
+         * @return Uri to query the weekly and monthly summaries of the location
+         */
+        public static Uri buildArchiveUri(long locationId) {
+            return buildLocationUri(locationId).buildUpon()
+                    .appendPath(PATH_ARCHIVE)
+                    .build();
+        }
+    }
+
+    /* Inner class that defines the table contents of the hourly weather table */
+    public static final class HourlyEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the hourly forecast of the preferred location */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_HOURLY)
+                .build();
+
+        /* Used internally as the name of our hourly weather table. */
+        public static final String TABLE_NAME = "hourly_weather";
+
+        /* The location the step belongs to, like WeatherEntry.COLUMN_LOCATION_ID */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
+        /*
+         * Start of the step in milliseconds since the epoch. Unlike the dates of the daily
+         * forecast, these are actual points in time, always a multiple of STEP_MILLIS.
+         */
+        public static final String COLUMN_TIME = "time";
+
+        /* Weather ID as returned by API, used to identify the icon to be used */
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+
+        /* Temperature in °C during the step */
+        public static final String COLUMN_TEMP = "temp";
+
+        /* Same units as their counterparts in WeatherEntry */
+        public static final String COLUMN_HUMIDITY = "humidity";
+        public static final String COLUMN_PRESSURE = "pressure";
+        public static final String COLUMN_WIND_SPEED = "wind";
+        public static final String COLUMN_DEGREES = "degrees";
+
+        /* The length of a step of the hourly forecast */
+        public static final long STEP_MILLIS = 3 * 60 * 60 * 1000;
+
+        /**
+         * Builds a URI for the next hours of the hourly forecast of the location chosen in the
+         * settings. The steps start with the one that is going on right now.
+         *
+         * @param hours How many hours ahead to look
+         * @return Uri to query the steps of the next hours
+         */
+        public static Uri buildNextHoursUri(int hours) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_NEXT)
+                    .appendPath(Integer.toString(hours))
+                    .build();
+        }
+    }
+
+    /* Inner class that defines the table contents of the weather archive table */
+    public static final class ArchiveEntry implements BaseColumns {
+
+        /* The base CONTENT_URI used to query the archive of the preferred location */
+        public static final Uri CONTENT_URI = BASE_CONTENT_URI.buildUpon()
+                .appendPath(PATH_ARCHIVE)
+                .build();
+
+        /* Used internally as the name of our archive table. */
+        public static final String TABLE_NAME = "weather_archive";
+
+        /* The location the summary belongs to, like WeatherEntry.COLUMN_LOCATION_ID */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
+        /* Whether the row sums up a week or a month, one of the PERIOD constants below */
+        public static final String COLUMN_PERIOD = "period";
+
+        /*
+         * Normalized date of the first day of the period. Weeks start on Monday and months on
+         * the first, both at midnight UTC, like every date in WeatherEntry.
+         */
+        public static final String COLUMN_PERIOD_START = "period_start";
+
+        /* How many days of weather went into the summary */
+        public static final String COLUMN_DAY_COUNT = "day_count";
+
+        /* Lowest and highest temperature in °C of all days of the period */
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+
+        /*
+         * Means over all days of the period. The mean temperature of a single day is taken as
+         * the middle between its min and max, as that is all a forecast tells us about it.
+         */
+        public static final String COLUMN_MEAN_TEMP = "mean_temp";
+        public static final String COLUMN_MEAN_HUMIDITY = "mean_humidity";
+        public static final String COLUMN_MEAN_PRESSURE = "mean_pressure";
+
+        public static final int PERIOD_WEEK = 1;
+        public static final int PERIOD_MONTH = 2;
+
+        /*
+         * Used by METHOD_COMPACT_ARCHIVE when the extras don't say otherwise. A month of days
+         * is enough to look back at recent weather in detail, and half a year of weeks covers a
+         * season. A thousand summaries are a few dozen kilobytes.
+         */
+        public static final int DEFAULT_DAILY_RETENTION_DAYS = 31;
+        public static final int DEFAULT_WEEKLY_RETENTION_DAYS = 182;
+        public static final int DEFAULT_MAX_ARCHIVE_ROWS = 1000;
+    }
+
+    /*
+     * Inner class that defines the table contents of the sync metrics table. Every sync leaves
+     * a record of where its time went, so a slow sync can be traced to the network, the parser
+     * or the database. The table is only written and read through METHOD_RECORD_SYNC and
+     * METHOD_GET_SYNC_RECORDS.
+     */
+    public static final class SyncMetricsEntry implements BaseColumns {
+
+        /* Used internally as the name of our sync metrics table. */
+        public static final String TABLE_NAME = "sync_metrics";
+
+        /* When the sync started, in milliseconds since the epoch */
+        public static final String COLUMN_START_TIME = "start_time";
+
+        /* How the sync ended, one of the OUTCOME constants below */
+        public static final String COLUMN_OUTCOME = "outcome";
+
+        /*
+         * The stage the sync failed or was cancelled in, one of the STAGE constants below, and
+         * what went wrong. Both are null if the sync succeeded.
+         */
+        public static final String COLUMN_FAILED_STAGE = "failed_stage";
+        public static final String COLUMN_ERROR = "error";
+
+        /* How long the whole sync took, from start to end */
+        public static final String COLUMN_TOTAL_MILLIS = "total_millis";
+
+        /*
+         * How long each stage took, from start to end. Stages that didn't run took 0. In the
+         * fetch stage, the locations are synced next to each other.
+         */
+        public static final String COLUMN_FETCH_MILLIS = "fetch_millis";
+        public static final String COLUMN_ARCHIVE_MILLIS = "archive_millis";
+        public static final String COLUMN_CHECKPOINT_MILLIS = "checkpoint_millis";
+        public static final String COLUMN_PUBLISH_MILLIS = "publish_millis";
+
+        /*
+         * Where the time of the fetch stage went, summed over all locations: waiting for the
+         * network, parsing the forecasts and writing them to the database. As the locations are
+         * synced next to each other, the sum can be larger than the fetch stage.
+         */
+        public static final String COLUMN_NETWORK_MILLIS = "network_millis";
+        public static final String COLUMN_PARSE_MILLIS = "parse_millis";
+        public static final String COLUMN_WRITE_MILLIS = "write_millis";
+
+        /* How many locations were synced, and how many of them failed */
+        public static final String COLUMN_LOCATION_COUNT = "location_count";
+        public static final String COLUMN_FAILED_LOCATION_COUNT = "failed_location_count";
+
+        /* Bytes of all responses as received from the network, and after decompression */
+        public static final String COLUMN_COMPRESSED_BYTES = "compressed_bytes";
+        public static final String COLUMN_UNCOMPRESSED_BYTES = "uncompressed_bytes";
+
+        /* Rows of weather, hourly weather and archive the sync inserted, updated or deleted */
+        public static final String COLUMN_ROWS_CHANGED = "rows_changed";
+
+        /*
+         * The outcomes of a sync. It updated the stored weather, or found it unchanged, or
+         * updated the location chosen in the settings but failed for another one, or failed for
+         * the location chosen in the settings or in a later stage, or was cancelled.
+         */
+        public static final int OUTCOME_UPDATED = 1;
+        public static final int OUTCOME_UNCHANGED = 2;
+        public static final int OUTCOME_PARTIAL = 3;
+        public static final int OUTCOME_FAILED = 4;
+        public static final int OUTCOME_CANCELLED = 5;
+
+        /*
+         * The stages of a sync, in the order they run. Fetch downloads, parses and writes the
+         * forecast of every location, archive rolls past days up, checkpoint copies the
+         * write-ahead log into the database, and publish hands the new forecast to the forecast
+         * list, the notification and the wearable.
+         */
+        public static final String STAGE_FETCH = "fetch";
+        public static final String STAGE_ARCHIVE = "archive";
+        public static final String STAGE_CHECKPOINT = "checkpoint";
+        public static final String STAGE_PUBLISH = "publish";
+
+        /* The number of records METHOD_RECORD_SYNC keeps */
+        public static final int MAX_RECORDS = 50;
+    }
+
+    /*
+     * Inner class that defines the table contents of the sync request queue. A request stays
+     * in the queue until a sync that covers it succeeds, so a request survives the death of
+     * our process and is attempted again once it is due.
+     */
+    public static final class SyncRequestEntry implements BaseColumns {
+
+        /* Used internally as the name of our sync request table. */
+        public static final String TABLE_NAME = "sync_requests";
+
+        /* The priority the sync was asked for with. Each priority is queued at most once. */
+        public static final String COLUMN_PRIORITY = "priority";
+
+        /* When the sync was last asked for, in milliseconds since the epoch */
+        public static final String COLUMN_REQUESTED_TIME = "requested_time";
+
+        /* How many syncs that covered the request have failed */
+        public static final String COLUMN_ATTEMPT_COUNT = "attempt_count";
+
+        /* When the request is due to be attempted again, in milliseconds since the epoch */
+        public static final String COLUMN_NEXT_ATTEMPT_TIME = "next_attempt_time";
+    }
+
     /* Inner class that defines the table contents of the weather table */
     public static final class WeatherEntry implements BaseColumns {
 
@@ -109,6 +777,29 @@ public class WeatherContract {
          */
         public static final String COLUMN_DEGREES = "degrees";
 
+        /*
+         * The _ID of the location in the location table this weather belongs to, or
+         * LocationEntry.PREFERRED_LOCATION_ID for the location chosen in the settings. There is
+         * one row per location and day.
+         */
+        public static final String COLUMN_LOCATION_ID = "location_id";
+
+        /*
+         * The columns the forecast list shows, together with FORECAST_LIST_SORT_ORDER. The
+         * provider preloads exactly this query while the process starts, so the list's first
+         * query is answered from memory. A list that asks for other columns still works, it
+         * just doesn't find its result waiting.
+         */
+        public static final String[] FORECAST_LIST_PROJECTION = {
+                COLUMN_DATE,
+                COLUMN_MAX_TEMP,
+                COLUMN_MIN_TEMP,
+                COLUMN_WEATHER_ID,
+                _ID,
+        };
+
+        public static final String FORECAST_LIST_SORT_ORDER = COLUMN_DATE + " ASC";
+
         /**
          * Builds a URI that adds the weather date to the end of the forecast content URI path.
          * This is used to query details about a single weather entry by date. This is what we
@@ -123,6 +814,33 @@ public class WeatherContract {
                     .build();
         }
 
+        /**
+         * Builds a URI for a range of days of the forecast of the location chosen in the
+         * settings.
+         *
+         * @param startDate Normalized date of the first day of the range
+         * @param endDate   Normalized date of the first day after the range
+         * @return Uri to query the weather on the days of the range
+         */
+        public static Uri buildWeatherRangeUri(long startDate, long endDate) {
+            return CONTENT_URI.buildUpon()
+                    .appendPath(PATH_RANGE)
+                    .appendPath(Long.toString(startDate))
+                    .appendPath(Long.toString(endDate))
+                    .build();
+        }
+
+        /**
+         * Builds a URI for the forecast from today onwards. This is what the forecast list
+         * shows, and what the sync checks for to tell whether it has to download at all.
+         *
+         * @return Uri to query the weather from today onwards
+         */
+        public static Uri buildWeatherUriFromToday() {
+            long normalizedUtcNow = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+            return buildWeatherRangeUri(normalizedUtcNow, Long.MAX_VALUE);
+        }
+
         /**
          * Returns just the selection part of the weather query from a normalized today value.
          * This is used to get a weather forecast from today's date. To make this easy to use
@@ -18,11 +18,29 @@ package com.example.android.sunshine.data;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
 
+import com.example.android.sunshine.data.WeatherContract.ArchiveEntry;
+import com.example.android.sunshine.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.data.WeatherContract.SyncRequestEntry;
 import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
 
 /**
  * Manages a local database for weather data.
+ * <p>
+ * The database is opened in write-ahead logging (WAL) mode. With the default rollback journal,
+ * a sync that holds a write transaction locks every reader out until it commits, so the forecast
+ * list and the detail screen would stall behind it. In WAL mode, the writer appends its changes
+ * to a separate log while readers keep reading the last committed state, and the framework
+ * gives readers their own connections from a small pool, so they run next to the writer instead
+ * of queueing behind it.
+ * <p>
+ * The log is copied back into the database by checkpoints. SQLite runs one on its own whenever
+ * the log grows past a threshold; on top of that, {@link WeatherProvider} runs one on request
+ * through {@link WeatherContract#METHOD_CHECKPOINT}, which the sync does after it wrote a new
+ * forecast.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
 
@@ -42,11 +60,196 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      * versions of Sunshine could cause everything to break. Although that is certainly a rare
      * use-case, we wanted to watch out for it and warn you what could happen if you mistakenly
      * version your databases.
+     *
+     * Version 4 added the location table and keyed the weather table on location and date.
+     * Version 5 added the weather archive table.
+     * Version 6 added the hourly weather table.
+     * Version 7 added the sync metrics table.
+     * Version 8 added the sync request queue.
+     *
+     * Every new version needs a step in WeatherDbMigrations that upgrades from the one before.
+     */
+    private static final int DATABASE_VERSION = 8;
+
+    /*
+     * This String will contain a simple SQL statement that will create a table that will
+     * cache our weather data.
+     */
+    static final String SQL_CREATE_WEATHER_TABLE =
+
+            "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
+
+            /*
+             * WeatherEntry did not explicitly declare a column called "_ID". However,
+             * WeatherEntry implements the interface, "BaseColumns", which does have a field
+             * named "_ID". We use that here to designate our table's primary key.
+             */
+            WeatherEntry._ID               + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+
+            WeatherEntry.COLUMN_DATE       + " INTEGER NOT NULL, "                 +
+
+            WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL,"                  +
+
+            WeatherEntry.COLUMN_MIN_TEMP   + " REAL NOT NULL, "                    +
+            WeatherEntry.COLUMN_MAX_TEMP   + " REAL NOT NULL, "                    +
+
+            WeatherEntry.COLUMN_HUMIDITY   + " REAL NOT NULL, "                    +
+            WeatherEntry.COLUMN_PRESSURE   + " REAL NOT NULL, "                    +
+
+            WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "                    +
+            WeatherEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                    +
+
+            /*
+             * Rows that don't name a location belong to the location chosen in the settings.
+             */
+            WeatherEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL DEFAULT "
+                    + LocationEntry.PREFERRED_LOCATION_ID + ", "                  +
+
+            /*
+             * To ensure this table can only contain one weather entry per location and date,
+             * we declare the pair to be unique. We also specify "ON CONFLICT REPLACE". This
+             * tells SQLite that if we have a weather entry for a certain location and date
+             * and we attempt to insert another one, we replace the old weather entry.
+             *
+             * SQLite backs the constraint with an index on (location_id, date). With the
+             * location first, every query for one location's forecast, a single day of it or
+             * a range of its days is a lookup in that index instead of a scan of the table.
+             */
+            " UNIQUE (" + WeatherEntry.COLUMN_LOCATION_ID + ", "
+                    + WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
+
+    /*
+     * The places whose forecasts we keep besides the one chosen in the settings. The unique
+     * query is indexed as well, so looking a place up by its name doesn't scan the table.
      */
-    private static final int DATABASE_VERSION = 3;
+    static final String SQL_CREATE_LOCATION_TABLE =
+
+            "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
+
+            LocationEntry._ID                   + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            LocationEntry.COLUMN_LOCATION_QUERY + " TEXT NOT NULL, "                    +
+            LocationEntry.COLUMN_COORD_LAT      + " REAL NOT NULL DEFAULT 0, "          +
+            LocationEntry.COLUMN_COORD_LONG     + " REAL NOT NULL DEFAULT 0, "          +
+
+            " UNIQUE (" + LocationEntry.COLUMN_LOCATION_QUERY + ") ON CONFLICT IGNORE);";
+
+    /*
+     * Weekly and monthly summaries of past weather. There is one row per location, kind of
+     * period and start of the period, and writing a summary again replaces the old one. The
+     * index behind the constraint serves both the archive queries of a location and the
+     * lookup of a single summary while compacting.
+     */
+    static final String SQL_CREATE_ARCHIVE_TABLE =
+
+            "CREATE TABLE " + ArchiveEntry.TABLE_NAME + " (" +
+
+            ArchiveEntry._ID                  + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            ArchiveEntry.COLUMN_LOCATION_ID   + " INTEGER NOT NULL, "                 +
+            ArchiveEntry.COLUMN_PERIOD        + " INTEGER NOT NULL, "                 +
+            ArchiveEntry.COLUMN_PERIOD_START  + " INTEGER NOT NULL, "                 +
+            ArchiveEntry.COLUMN_DAY_COUNT     + " INTEGER NOT NULL, "                 +
+            ArchiveEntry.COLUMN_MIN_TEMP      + " REAL NOT NULL, "                    +
+            ArchiveEntry.COLUMN_MAX_TEMP      + " REAL NOT NULL, "                    +
+            ArchiveEntry.COLUMN_MEAN_TEMP     + " REAL NOT NULL, "                    +
+            ArchiveEntry.COLUMN_MEAN_HUMIDITY + " REAL NOT NULL, "                    +
+            ArchiveEntry.COLUMN_MEAN_PRESSURE + " REAL NOT NULL, "                    +
+
+            " UNIQUE (" + ArchiveEntry.COLUMN_LOCATION_ID + ", "
+                    + ArchiveEntry.COLUMN_PERIOD + ", "
+                    + ArchiveEntry.COLUMN_PERIOD_START + ") ON CONFLICT REPLACE);";
+
+    /*
+     * The forecast in steps of three hours. With about eight steps per day, this table
+     * grows much faster than the daily one, so it is keyed the same way: the unique
+     * (location_id, time) pair is backed by an index that serves every read of the next
+     * hours of a location as a seek followed by a short walk in time order.
+     */
+    static final String SQL_CREATE_HOURLY_TABLE =
+
+            "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+
+            HourlyEntry._ID               + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            HourlyEntry.COLUMN_LOCATION_ID + " INTEGER NOT NULL, "                 +
+            HourlyEntry.COLUMN_TIME       + " INTEGER NOT NULL, "                  +
+            HourlyEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, "                  +
+            HourlyEntry.COLUMN_TEMP       + " REAL NOT NULL, "                     +
+            HourlyEntry.COLUMN_HUMIDITY   + " REAL NOT NULL, "                     +
+            HourlyEntry.COLUMN_PRESSURE   + " REAL NOT NULL, "                     +
+            HourlyEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "                     +
+            HourlyEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                     +
+
+            " UNIQUE (" + HourlyEntry.COLUMN_LOCATION_ID + ", "
+                    + HourlyEntry.COLUMN_TIME + ") ON CONFLICT REPLACE);";
+
+    /*
+     * The records of the last syncs. They are only ever appended and read newest first, which
+     * the order of the _IDs already gives, so there is no other index.
+     */
+    static final String SQL_CREATE_SYNC_METRICS_TABLE =
+
+            "CREATE TABLE " + SyncMetricsEntry.TABLE_NAME + " (" +
+
+            SyncMetricsEntry._ID                          + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            SyncMetricsEntry.COLUMN_START_TIME            + " INTEGER NOT NULL, "                  +
+            SyncMetricsEntry.COLUMN_OUTCOME               + " INTEGER NOT NULL, "                  +
+            SyncMetricsEntry.COLUMN_FAILED_STAGE          + " TEXT, "                              +
+            SyncMetricsEntry.COLUMN_ERROR                 + " TEXT, "                              +
+            SyncMetricsEntry.COLUMN_TOTAL_MILLIS          + " INTEGER NOT NULL DEFAULT 0, "        +
+            SyncMetricsEntry.COLUMN_FETCH_MILLIS          + " INTEGER NOT NULL DEFAULT 0, "        +
+            SyncMetricsEntry.COLUMN_ARCHIVE_MILLIS        + " INTEGER NOT NULL DEFAULT 0, "        +
+            SyncMetricsEntry.COLUMN_CHECKPOINT_MILLIS     + " INTEGER NOT NULL DEFAULT 0, "        +
+            SyncMetricsEntry.COLUMN_PUBLISH_MILLIS        + " INTEGER NOT NULL DEFAULT 0, "        +
+            SyncMetricsEntry.COLUMN_NETWORK_MILLIS        + " INTEGER NOT NULL DEFAULT 0, "        +
+            SyncMetricsEntry.COLUMN_PARSE_MILLIS          + " INTEGER NOT NULL DEFAULT 0, "        +
+            SyncMetricsEntry.COLUMN_WRITE_MILLIS          + " INTEGER NOT NULL DEFAULT 0, "        +
+            SyncMetricsEntry.COLUMN_LOCATION_COUNT        + " INTEGER NOT NULL DEFAULT 0, "        +
+            SyncMetricsEntry.COLUMN_FAILED_LOCATION_COUNT + " INTEGER NOT NULL DEFAULT 0, "        +
+            SyncMetricsEntry.COLUMN_COMPRESSED_BYTES      + " INTEGER NOT NULL DEFAULT 0, "        +
+            SyncMetricsEntry.COLUMN_UNCOMPRESSED_BYTES    + " INTEGER NOT NULL DEFAULT 0, "        +
+            SyncMetricsEntry.COLUMN_ROWS_CHANGED          + " INTEGER NOT NULL DEFAULT 0);";
+
+    /*
+     * The queue of sync requests. It holds at most one row per priority, which the unique
+     * constraint enforces, so it never grows beyond a handful of rows.
+     */
+    static final String SQL_CREATE_SYNC_REQUEST_TABLE =
+
+            "CREATE TABLE " + SyncRequestEntry.TABLE_NAME + " (" +
+
+            SyncRequestEntry._ID                      + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
+            SyncRequestEntry.COLUMN_PRIORITY          + " INTEGER NOT NULL, "                  +
+            SyncRequestEntry.COLUMN_REQUESTED_TIME    + " INTEGER NOT NULL, "                  +
+            SyncRequestEntry.COLUMN_ATTEMPT_COUNT     + " INTEGER NOT NULL DEFAULT 0, "        +
+            SyncRequestEntry.COLUMN_NEXT_ATTEMPT_TIME + " INTEGER NOT NULL, "                  +
+
+            " UNIQUE (" + SyncRequestEntry.COLUMN_PRIORITY + "));";
 
     public WeatherDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+
+        /*
+         * From Jelly Bean on, the helper switches the database to WAL before it is handed out and
+         * sizes the reader connection pool for it. Older versions are switched in onOpen.
+         */
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            setWriteAheadLoggingEnabled(true);
+        }
+    }
+
+    /**
+     * Called once the database has been opened, created or upgraded. Before Jelly Bean, this is
+     * where we switch the database to WAL. It can't be done inside a transaction, and onOpen is
+     * the first callback that doesn't run inside one.
+     *
+     * @param sqLiteDatabase The database.
+     */
+    @Override
+    public void onOpen(SQLiteDatabase sqLiteDatabase) {
+        super.onOpen(sqLiteDatabase);
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                && !sqLiteDatabase.isReadOnly()) {
+            sqLiteDatabase.enableWriteAheadLogging();
+        }
     }
 
     /**
@@ -58,56 +261,28 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
 
-        /*
-         * This String will contain a simple SQL statement that will create a table that will
-         * cache our weather data.
-         */
-        final String SQL_CREATE_WEATHER_TABLE =
-
-                "CREATE TABLE " + WeatherEntry.TABLE_NAME + " (" +
-
-                /*
-                 * WeatherEntry did not explicitly declare a column called "_ID". However,
-                 * WeatherEntry implements the interface, "BaseColumns", which does have a field
-                 * named "_ID". We use that here to designate our table's primary key.
-                 */
-                WeatherEntry._ID               + " INTEGER PRIMARY KEY AUTOINCREMENT, " +
-
-                WeatherEntry.COLUMN_DATE       + " INTEGER NOT NULL, "                 +
-
-                WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL,"                  +
-
-                WeatherEntry.COLUMN_MIN_TEMP   + " REAL NOT NULL, "                    +
-                WeatherEntry.COLUMN_MAX_TEMP   + " REAL NOT NULL, "                    +
-
-                WeatherEntry.COLUMN_HUMIDITY   + " REAL NOT NULL, "                    +
-                WeatherEntry.COLUMN_PRESSURE   + " REAL NOT NULL, "                    +
-
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, "                    +
-                WeatherEntry.COLUMN_DEGREES    + " REAL NOT NULL, "                    +
-
-                /*
-                 * To ensure this table can only contain one weather entry per date, we declare
-                 * the date column to be unique. We also specify "ON CONFLICT REPLACE". This tells
-                 * SQLite that if we have a weather entry for a certain date and we attempt to
-                 * insert another weather entry with that date, we replace the old weather entry.
-                 */
-                " UNIQUE (" + WeatherEntry.COLUMN_DATE + ") ON CONFLICT REPLACE);";
-
         /*
          * After we've spelled out our SQLite table creation statement above, we actually execute
          * that SQL with the execSQL method of our SQLite database object.
          */
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_ARCHIVE_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_METRICS_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_SYNC_REQUEST_TABLE);
     }
 
     /**
-     * This database is only a cache for online data, so its upgrade policy is simply to discard
-     * the data and call through to onCreate to recreate the table. Note that this only fires if
-     * you change the version number for your database (in our case, DATABASE_VERSION). It does NOT
-     * depend on the version number for your application found in your app/build.gradle file. If
-     * you want to update the schema without wiping data, commenting out the current body of this
-     * method should be your top priority before modifying this method.
+     * Upgrades the database in place, one version at a time, with the steps of
+     * {@link WeatherDbMigrations}. The stored forecasts survive the upgrade, so the app can show
+     * them as soon as it starts instead of waiting for a sync. Note that this only fires if you
+     * change the version number for your database (in our case, DATABASE_VERSION). It does NOT
+     * depend on the version number for your application found in your app/build.gradle file.
+     * <p>
+     * This database is still only a cache for online data. If there is no way to migrate from
+     * the old version, for example because it predates the migrations, the tables are dropped
+     * and recreated, and the next sync downloads everything again.
      *
      * @param sqLiteDatabase Database that is being upgraded
      * @param oldVersion     The old database version
@@ -115,7 +290,17 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
      */
     @Override
     public void onUpgrade(SQLiteDatabase sqLiteDatabase, int oldVersion, int newVersion) {
+        if (WeatherDbMigrations.canMigrate(oldVersion, newVersion)) {
+            WeatherDbMigrations.migrate(sqLiteDatabase, oldVersion, newVersion);
+            return;
+        }
+
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ArchiveEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncMetricsEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + SyncRequestEntry.TABLE_NAME);
         onCreate(sqLiteDatabase);
     }
-}
\ No newline at end of file
+}
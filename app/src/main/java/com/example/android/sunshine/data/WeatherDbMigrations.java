@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.sqlite.SQLiteDatabase;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+/**
+ * The steps that bring weather.db from one version of its schema to the next while keeping the
+ * stored forecasts. After an app update, the forecast list can show what was stored before right
+ * away, instead of staying empty until the first sync has downloaded everything again.
+ * <p>
+ * Each {@link Migration} upgrades the database by exactly one version. An upgrade over several
+ * versions runs the steps one after the other, inside the transaction SQLiteOpenHelper opens
+ * for onUpgrade, so a step that fails leaves the database at its old version.
+ * <p>
+ * When the schema changes, add a step from the previous version and increment
+ * WeatherDbHelper's DATABASE_VERSION. A step that creates a table uses WeatherDbHelper's
+ * statement for it. If a later version changes that table, the earlier step must keep its own
+ * copy of the old statement, so that every step keeps producing the schema of its version.
+ */
+final class WeatherDbMigrations {
+
+    /**
+     * Upgrades the database from one version to the next.
+     */
+    abstract static class Migration {
+
+        private final int mFromVersion;
+
+        /**
+         * @param fromVersion The version this step upgrades from. It upgrades to the one after.
+         */
+        Migration(int fromVersion) {
+            mFromVersion = fromVersion;
+        }
+
+        int getFromVersion() {
+            return mFromVersion;
+        }
+
+        /**
+         * Changes the schema and moves the stored rows along with it.
+         *
+         * @param db The database, with the upgrade transaction already begun
+         */
+        abstract void migrate(SQLiteDatabase db);
+    }
+
+    /* The name the version 3 weather table is given while its rows are copied */
+    private static final String OLD_WEATHER_TABLE_NAME = WeatherEntry.TABLE_NAME + "_old";
+
+    /* The columns the weather table had in version 3. All of them are kept in version 4. */
+    private static final String VERSION_3_WEATHER_COLUMNS = WeatherEntry._ID
+            + ", " + WeatherEntry.COLUMN_DATE
+            + ", " + WeatherEntry.COLUMN_WEATHER_ID
+            + ", " + WeatherEntry.COLUMN_MIN_TEMP
+            + ", " + WeatherEntry.COLUMN_MAX_TEMP
+            + ", " + WeatherEntry.COLUMN_HUMIDITY
+            + ", " + WeatherEntry.COLUMN_PRESSURE
+            + ", " + WeatherEntry.COLUMN_WIND_SPEED
+            + ", " + WeatherEntry.COLUMN_DEGREES;
+
+    /* Every step, ordered by the version it upgrades from */
+    private static final Migration[] MIGRATIONS = {
+
+            /*
+             * Version 4 keys the weather table on location and date, and adds the location
+             * table. SQLite can't change the constraints of a table, so the weather table is
+             * rebuilt. Every stored day belonged to the location chosen in the settings, which
+             * is what the new column's default says. The rows keep their _IDs.
+             */
+            new Migration(3) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL("ALTER TABLE " + WeatherEntry.TABLE_NAME
+                            + " RENAME TO " + OLD_WEATHER_TABLE_NAME);
+                    db.execSQL(WeatherDbHelper.SQL_CREATE_WEATHER_TABLE);
+                    db.execSQL("INSERT INTO " + WeatherEntry.TABLE_NAME
+                            + " (" + VERSION_3_WEATHER_COLUMNS + ")"
+                            + " SELECT " + VERSION_3_WEATHER_COLUMNS
+                            + " FROM " + OLD_WEATHER_TABLE_NAME);
+                    db.execSQL("DROP TABLE " + OLD_WEATHER_TABLE_NAME);
+                    db.execSQL(WeatherDbHelper.SQL_CREATE_LOCATION_TABLE);
+                }
+            },
+
+            /* Version 5 adds the weather archive, which starts out empty */
+            new Migration(4) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(WeatherDbHelper.SQL_CREATE_ARCHIVE_TABLE);
+                }
+            },
+
+            /* Version 6 adds the hourly forecast, which the next sync fills */
+            new Migration(5) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(WeatherDbHelper.SQL_CREATE_HOURLY_TABLE);
+                }
+            },
+
+            /* Version 7 adds the sync metrics, which start out empty */
+            new Migration(6) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(WeatherDbHelper.SQL_CREATE_SYNC_METRICS_TABLE);
+                }
+            },
+
+            /* Version 8 adds the queue of sync requests, which starts out empty */
+            new Migration(7) {
+                @Override
+                void migrate(SQLiteDatabase db) {
+                    db.execSQL(WeatherDbHelper.SQL_CREATE_SYNC_REQUEST_TABLE);
+                }
+            },
+    };
+
+    private WeatherDbMigrations() {
+    }
+
+    /**
+     * Checks whether there is a step for every version between the two.
+     *
+     * @param oldVersion The version the database is at
+     * @param newVersion The version it should be upgraded to
+     * @return true if {@link #migrate} can bring the database from one to the other
+     */
+    static boolean canMigrate(int oldVersion, int newVersion) {
+        if (oldVersion > newVersion) return false;
+        for (int version = oldVersion; version < newVersion; version++) {
+            if (findMigration(version) == null) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Runs every step from the old version up to the new one, in order.
+     *
+     * @param db         The database, with the upgrade transaction already begun
+     * @param oldVersion The version the database is at
+     * @param newVersion The version it should be upgraded to
+     * @throws IllegalStateException If a step is missing. Call {@link #canMigrate} first.
+     */
+    static void migrate(SQLiteDatabase db, int oldVersion, int newVersion) {
+        for (int version = oldVersion; version < newVersion; version++) {
+            Migration migration = findMigration(version);
+            if (migration == null) {
+                throw new IllegalStateException("No migration from version " + version);
+            }
+            migration.migrate(db);
+        }
+    }
+
+    private static Migration findMigration(int fromVersion) {
+        for (Migration migration : MIGRATIONS) {
+            if (migration.getFromVersion() == fromVersion) {
+                return migration;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import com.example.android.sunshine.data.WeatherContract.WeatherEntry;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Brings the stored forecast in line with a freshly downloaded one while touching as few rows as
+ * possible. Each incoming day is compared with the stored row for the same date:
+ * <ul>
+ * <li>days that are not stored yet are inserted,</li>
+ * <li>days whose values differ are updated in place, so they keep their _ID,</li>
+ * <li>days that are identical are left alone,</li>
+ * <li>stored days that are missing from the new forecast are deleted.</li>
+ * </ul>
+ * The dates of every inserted, updated and deleted row are collected, so the caller can notify
+ * exactly the URIs that changed. Only the forecast of the merger's location is touched. Must be
+ * run inside a transaction.
+ * <p>
+ * A merger can be told to keep the history before a certain date. Stored days before it are
+ * then left out of the comparison, so they stay in the table until {@link WeatherArchiver}
+ * rolls them up, instead of being deleted for missing from the new forecast.
+ */
+class WeatherMerger {
+
+    /* Columns read from the stored forecast, and the index of each of them */
+    private static final String[] STORED_PROJECTION = {
+            WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+    };
+
+    private static final int INDEX_ID = 0;
+    private static final int INDEX_DATE = 1;
+    private static final int INDEX_WEATHER_ID = 2;
+    private static final int INDEX_MIN_TEMP = 3;
+    private static final int INDEX_MAX_TEMP = 4;
+    private static final int INDEX_HUMIDITY = 5;
+    private static final int INDEX_PRESSURE = 6;
+    private static final int INDEX_WIND_SPEED = 7;
+    private static final int INDEX_DEGREES = 8;
+
+    private static final String SQL_UPDATE_WEATHER = "UPDATE " + WeatherEntry.TABLE_NAME
+            + " SET " + WeatherEntry.COLUMN_WEATHER_ID + " = ?"
+            + ", " + WeatherEntry.COLUMN_MIN_TEMP + " = ?"
+            + ", " + WeatherEntry.COLUMN_MAX_TEMP + " = ?"
+            + ", " + WeatherEntry.COLUMN_HUMIDITY + " = ?"
+            + ", " + WeatherEntry.COLUMN_PRESSURE + " = ?"
+            + ", " + WeatherEntry.COLUMN_WIND_SPEED + " = ?"
+            + ", " + WeatherEntry.COLUMN_DEGREES + " = ?"
+            + " WHERE " + WeatherEntry._ID + " = ?";
+
+    private static final String SQL_DELETE_WEATHER = "DELETE FROM " + WeatherEntry.TABLE_NAME
+            + " WHERE " + WeatherEntry._ID + " = ?";
+
+    private static final String SELECT_LOCATION_FROM_DATE = WeatherEntry.COLUMN_LOCATION_ID
+            + " = ? AND " + WeatherEntry.COLUMN_DATE + " >= ?";
+
+    private final SQLiteDatabase mDatabase;
+    private final long mLocationId;
+    private final long mKeepHistoryBefore;
+
+    private int mInsertedCount;
+    private int mUpdatedCount;
+    private int mDeletedCount;
+
+    private long[] mChangedDates = new long[0];
+
+    /**
+     * @param database   The database, with a transaction already begun
+     * @param locationId The location whose forecast is merged
+     */
+    WeatherMerger(SQLiteDatabase database, long locationId) {
+        this(database, locationId, Long.MIN_VALUE);
+    }
+
+    /**
+     * @param database          The database, with a transaction already begun
+     * @param locationId        The location whose forecast is merged
+     * @param keepHistoryBefore Normalized date before which stored days are kept as they are
+     */
+    WeatherMerger(SQLiteDatabase database, long locationId, long keepHistoryBefore) {
+        mDatabase = database;
+        mLocationId = locationId;
+        mKeepHistoryBefore = keepHistoryBefore;
+    }
+
+    /**
+     * Merges the batch into the stored forecast of the location.
+     *
+     * @param batch The complete new forecast
+     */
+    void merge(WeatherBatch batch) {
+        HashMap<Long, Integer> incomingRows = new HashMap<Long, Integer>(batch.size() * 2);
+        for (int row = 0; row < batch.size(); row++) {
+            incomingRows.put(batch.getDate(row), row);
+        }
+
+        /*
+         * First decide what has to happen to each row, then write. The table is not modified
+         * while the cursor over it is still open.
+         */
+        long[] storedIds = new long[batch.size()];
+        boolean[] needsUpdate = new boolean[batch.size()];
+        boolean[] isStored = new boolean[batch.size()];
+        long[] deleteIds = new long[0];
+        long[] deleteDates = new long[0];
+        int deleteCount = 0;
+
+        Cursor cursor = mDatabase.query(WeatherEntry.TABLE_NAME, STORED_PROJECTION,
+                SELECT_LOCATION_FROM_DATE,
+                new String[]{Long.toString(mLocationId), Long.toString(mKeepHistoryBefore)},
+                null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                long id = cursor.getLong(INDEX_ID);
+                long date = cursor.getLong(INDEX_DATE);
+                Integer incomingRow = incomingRows.get(date);
+
+                if (incomingRow == null) {
+                    deleteIds = appendLong(deleteIds, deleteCount, id);
+                    deleteDates = appendLong(deleteDates, deleteCount, date);
+                    deleteCount++;
+                } else {
+                    int row = incomingRow;
+                    isStored[row] = true;
+                    storedIds[row] = id;
+                    needsUpdate[row] = !isUnchanged(cursor, batch, row);
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        long[] changedDates = new long[batch.size() + deleteCount];
+        int changedCount = 0;
+
+        SQLiteStatement deleteStatement = mDatabase.compileStatement(SQL_DELETE_WEATHER);
+        try {
+            for (int i = 0; i < deleteCount; i++) {
+                deleteStatement.bindLong(1, deleteIds[i]);
+                deleteStatement.executeUpdateDelete();
+                mDeletedCount++;
+                changedDates[changedCount++] = deleteDates[i];
+            }
+        } finally {
+            deleteStatement.close();
+        }
+
+        WeatherBulkWriter writer = new WeatherBulkWriter(mDatabase, mLocationId);
+        SQLiteStatement updateStatement = mDatabase.compileStatement(SQL_UPDATE_WEATHER);
+        try {
+            for (int row = 0; row < batch.size(); row++) {
+                if (!isStored[row]) {
+                    if (writer.insert(batch, row)) {
+                        mInsertedCount++;
+                        changedDates[changedCount++] = batch.getDate(row);
+                    }
+                } else if (needsUpdate[row]) {
+                    /* Updating in place keeps the row's _ID, unlike a REPLACE would */
+                    updateStatement.bindLong(1, batch.getWeatherId(row));
+                    updateStatement.bindDouble(2, batch.getMinTemp(row));
+                    updateStatement.bindDouble(3, batch.getMaxTemp(row));
+                    updateStatement.bindDouble(4, batch.getHumidity(row));
+                    updateStatement.bindDouble(5, batch.getPressure(row));
+                    updateStatement.bindDouble(6, batch.getWindSpeed(row));
+                    updateStatement.bindDouble(7, batch.getDegrees(row));
+                    updateStatement.bindLong(8, storedIds[row]);
+                    updateStatement.executeUpdateDelete();
+                    mUpdatedCount++;
+                    changedDates[changedCount++] = batch.getDate(row);
+                }
+            }
+        } finally {
+            updateStatement.close();
+            writer.close();
+        }
+
+        mChangedDates = Arrays.copyOf(changedDates, changedCount);
+    }
+
+    int getInsertedCount() {
+        return mInsertedCount;
+    }
+
+    int getUpdatedCount() {
+        return mUpdatedCount;
+    }
+
+    int getDeletedCount() {
+        return mDeletedCount;
+    }
+
+    /**
+     * @return The dates of every row that was inserted, updated or deleted
+     */
+    long[] getChangedDates() {
+        return mChangedDates;
+    }
+
+    /*
+     * The values we compare were parsed from JSON, stored as REAL and read back, which returns
+     * exactly the same double. Exact comparison is therefore what we want here.
+     */
+    private static boolean isUnchanged(Cursor cursor, WeatherBatch batch, int row) {
+        return cursor.getInt(INDEX_WEATHER_ID) == batch.getWeatherId(row)
+                && cursor.getDouble(INDEX_MIN_TEMP) == batch.getMinTemp(row)
+                && cursor.getDouble(INDEX_MAX_TEMP) == batch.getMaxTemp(row)
+                && cursor.getDouble(INDEX_HUMIDITY) == batch.getHumidity(row)
+                && cursor.getDouble(INDEX_PRESSURE) == batch.getPressure(row)
+                && cursor.getDouble(INDEX_WIND_SPEED) == batch.getWindSpeed(row)
+                && cursor.getDouble(INDEX_DEGREES) == batch.getDegrees(row);
+    }
+
+    private static long[] appendLong(long[] values, int count, long value) {
+        if (count == values.length) {
+            values = Arrays.copyOf(values, Math.max(8, count * 2));
+        }
+        values[count] = value;
+        return values;
+    }
+}
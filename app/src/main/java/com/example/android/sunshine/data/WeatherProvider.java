@@ -17,27 +17,45 @@ package com.example.android.sunshine.data;
 
 import android.annotation.TargetApi;
 import android.content.ContentProvider;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.text.format.DateUtils;
+import android.util.Log;
 
+import com.example.android.sunshine.utilities.StartupTracer;
 import com.example.android.sunshine.utilities.SunshineDateUtils;
 
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * This class serves as the ContentProvider for all of Sunshine's data. This class allows us to
- * bulkInsert data, query data, and delete data.
+ * bulkInsert data, insert and update single rows, query data, and delete data. A few more
+ * operations are reachable through {@link #call(String, String, Bundle)}.
+ * <p>
+ * Writes of weather are upserts: bulkInsert and insert update a day that is already stored in
+ * place instead of adding a second row for its date, and update changes rows in place as well.
+ * Either way, a day keeps its _ID for as long as it is stored, so a list that shows it doesn't
+ * lose its position when the forecast is written again.
  * <p>
- * Although ContentProvider implementation requires the implementation of additional methods to
- * perform single inserts, updates, and the ability to get the type of the data from a URI.
- * However, here, they are not implemented for the sake of brevity and simplicity. If you would
- * like, you may implement them on your own. However, we are not going to be teaching how to do
- * so in this course.
+ * Getting the type of the data from a URI is not implemented for the sake of brevity and
+ * simplicity. If you would like, you may implement it on your own.
  */
 public class WeatherProvider extends ContentProvider {
 
+    private static final String TAG = WeatherProvider.class.getSimpleName();
+
     /*
      * These constant will be used to match URIs with the data they are looking for. We will take
      * advantage of the UriMatcher class to make that matching MUCH easier than doing something
@@ -45,6 +63,21 @@ public class WeatherProvider extends ContentProvider {
      */
     public static final int CODE_WEATHER = 100;
     public static final int CODE_WEATHER_WITH_DATE = 101;
+    public static final int CODE_WEATHER_RANGE = 102;
+
+    public static final int CODE_LOCATION = 200;
+    public static final int CODE_LOCATION_WITH_ID = 201;
+    public static final int CODE_LOCATION_WEATHER = 202;
+    public static final int CODE_LOCATION_WEATHER_WITH_DATE = 203;
+    public static final int CODE_LOCATION_ARCHIVE = 204;
+    public static final int CODE_LOCATION_WEATHER_RANGE = 205;
+    public static final int CODE_LOCATION_HOURLY = 206;
+    public static final int CODE_LOCATION_HOURLY_NEXT = 207;
+
+    public static final int CODE_ARCHIVE = 300;
+
+    public static final int CODE_HOURLY = 400;
+    public static final int CODE_HOURLY_NEXT = 401;
 
     /*
      * The URI Matcher used by this content provider. The leading "s" in this variable name
@@ -52,11 +85,58 @@ public class WeatherProvider extends ContentProvider {
      * common convention in Android programming.
      */
     private static final UriMatcher sUriMatcher = buildUriMatcher();
+
+    /*
+     * When merging a forecast, up to this many changed days are announced one URI at a time.
+     * Above that, the whole forecast is announced at once. See notifyChangedDates.
+     */
+    private static final int MAX_PER_DATE_NOTIFICATIONS = 3;
+
+    /* The columns of a forecast snapshot, in the order WeatherBatch#add takes them */
+    private static final String[] SNAPSHOT_PROJECTION = {
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+    };
+
+    private static final int INDEX_SNAPSHOT_DATE = 0;
+    private static final int INDEX_SNAPSHOT_WEATHER_ID = 1;
+    private static final int INDEX_SNAPSHOT_MIN_TEMP = 2;
+    private static final int INDEX_SNAPSHOT_MAX_TEMP = 3;
+    private static final int INDEX_SNAPSHOT_HUMIDITY = 4;
+    private static final int INDEX_SNAPSHOT_PRESSURE = 5;
+    private static final int INDEX_SNAPSHOT_WIND_SPEED = 6;
+    private static final int INDEX_SNAPSHOT_DEGREES = 7;
+
+    /* Restricts a query of the weather, hourly or archive table to one location */
+    private static final String SELECT_LOCATION =
+            WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + " = ?";
+
     private WeatherDbHelper mOpenHelper;
 
+    /*
+     * Recent query results. Every write below that changes rows invalidates it once the write
+     * has been committed and before observers are notified.
+     */
+    private final WeatherQueryCache mQueryCache = new WeatherQueryCache();
+
+    /* How long queries, bulk inserts and deletes take, per URI code */
+    private final WeatherProviderMetrics mMetrics = new WeatherProviderMetrics();
+
+    /* The forecast snapshots of METHOD_GET_FORECAST_SNAPSHOT, valid until the next write */
+    private final ForecastSnapshotCache mSnapshots = new ForecastSnapshotCache();
+
     /**
-     * Creates the UriMatcher that will match each URI to the CODE_WEATHER and
-     * CODE_WEATHER_WITH_DATE constants defined above.
+     * Creates the UriMatcher that will match each URI to one of the CODE constants defined
+     * above: the weather of the preferred location (CODE_WEATHER, CODE_WEATHER_WITH_DATE and
+     * CODE_WEATHER_RANGE), the locations and the weather of each of them (the CODE_LOCATION
+     * codes), the archive (CODE_ARCHIVE) and the hourly forecast (CODE_HOURLY and
+     * CODE_HOURLY_NEXT).
      * <p>
      * It's possible you might be thinking, "Why create a UriMatcher when you can use regular
      * expressions instead? After all, we really just need to match some patterns, and we can
@@ -68,7 +148,8 @@ public class WeatherProvider extends ContentProvider {
      * been tested and proven, you should almost always use it unless there is a compelling
      * reason not to.
      *
-     * @return A UriMatcher that correctly matches the constants for CODE_WEATHER and CODE_WEATHER_WITH_DATE
+     * @return A UriMatcher that correctly matches the weather, location, range, archive and
+     * hourly URIs to their CODE constants
      */
     public static UriMatcher buildUriMatcher() {
 
@@ -83,7 +164,8 @@ public class WeatherProvider extends ContentProvider {
         /*
          * For each type of URI you want to add, create a corresponding code. Preferably, these are
          * constant fields in your class so that you can use them throughout the class and you no
-         * they aren't going to change. In Sunshine, we use CODE_WEATHER or CODE_WEATHER_WITH_DATE.
+         * they aren't going to change. In Sunshine, we use the CODE constants defined above, one
+         * for each kind of weather, location, archive and hourly URI.
          */
 
         /* This URI is content://com.example.android.sunshine/weather/ */
@@ -96,6 +178,48 @@ public class WeatherProvider extends ContentProvider {
          */
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/#", CODE_WEATHER_WITH_DATE);
 
+        /* A range of days, from a start date up to but not including an end date */
+        matcher.addURI(authority,
+                WeatherContract.PATH_WEATHER + "/" + WeatherContract.PATH_RANGE + "/#/#",
+                CODE_WEATHER_RANGE);
+
+        /*
+         * The locations we keep forecasts for, and below each of them its own forecast:
+         *
+         *      content://com.example.android.sunshine/location/4/weather/1472214172
+         */
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION, CODE_LOCATION);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/#", CODE_LOCATION_WITH_ID);
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER,
+                CODE_LOCATION_WEATHER);
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER + "/#",
+                CODE_LOCATION_WEATHER_WITH_DATE);
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_WEATHER + "/"
+                        + WeatherContract.PATH_RANGE + "/#/#",
+                CODE_LOCATION_WEATHER_RANGE);
+
+        /* The archive of the preferred location, and of every other location below it */
+        matcher.addURI(authority, WeatherContract.PATH_ARCHIVE, CODE_ARCHIVE);
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_ARCHIVE,
+                CODE_LOCATION_ARCHIVE);
+
+        /* The hourly forecast, as a whole or only the steps of the next number of hours */
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, CODE_HOURLY);
+        matcher.addURI(authority,
+                WeatherContract.PATH_HOURLY + "/" + WeatherContract.PATH_NEXT + "/#",
+                CODE_HOURLY_NEXT);
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_HOURLY,
+                CODE_LOCATION_HOURLY);
+        matcher.addURI(authority,
+                WeatherContract.PATH_LOCATION + "/#/" + WeatherContract.PATH_HOURLY + "/"
+                        + WeatherContract.PATH_NEXT + "/#",
+                CODE_LOCATION_HOURLY_NEXT);
+
         return matcher;
     }
 
@@ -112,53 +236,104 @@ public class WeatherProvider extends ContentProvider {
      * provider turns out not to be needed, and stops database errors (such as a full disk) from
      * halting application launch.
      *
+     * In Sunshine, the provider is almost always needed right away: the forecast list asks for
+     * the forecast as soon as it is created. So instead of waiting for that query, we start
+     * opening the database on a background thread of its own, while the main thread goes on
+     * to create the activity. See {@link #warmUp()}.
+     *
      * @return true if the provider was successfully loaded, false otherwise
      */
     @Override
     public boolean onCreate() {
+        StartupTracer.mark(StartupTracer.MILESTONE_PROVIDER_CREATED);
+
         /*
          * As noted in the comment above, onCreate is run on the main thread, so performing any
          * lengthy operations will cause lag in your app. Since WeatherDbHelper's constructor is
          * very lightweight, we are safe to perform that initialization here.
          */
         mOpenHelper = new WeatherDbHelper(getContext());
+
+        Thread warmUp = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                warmUp();
+            }
+        }, "WeatherDbWarmUp");
+        warmUp.start();
         return true;
     }
 
     /**
-     * Handles requests to insert a set of new rows. In Sunshine, we are only going to be
-     * inserting multiple rows of data at a time from a weather forecast. There is no use case
-     * for inserting a single row of data into our ContentProvider, and so we are only going to
-     * implement bulkInsert. In a normal ContentProvider's implementation, you will probably want
-     * to provide proper functionality for the insert method as well.
+     * Gets the database ready for the forecast list before the list asks for it. Opening the
+     * database checks its schema, upgrades it if needed and switches it to WAL. After that,
+     * the list's query is run once: SQLite compiles its statement, which the connection keeps
+     * for the next time, reads the index and the day rows into its page cache, and our query
+     * cache keeps the result. The forecast snapshot is read as well, for the notification and
+     * the wearable.
+     * <p>
+     * If the list's query arrives while this is still running, it waits for the database to be
+     * open and then runs on its own. Nothing is lost, the warm-up just didn't help that time.
+     */
+    private void warmUp() {
+        StartupTracer.beginSection("WeatherProvider.warmUp");
+        try {
+            mOpenHelper.getWritableDatabase();
+            StartupTracer.mark(StartupTracer.MILESTONE_DATABASE_OPEN);
+
+            Cursor cursor = query(WeatherContract.WeatherEntry.buildWeatherUriFromToday(),
+                    WeatherContract.WeatherEntry.FORECAST_LIST_PROJECTION,
+                    null,
+                    null,
+                    WeatherContract.WeatherEntry.FORECAST_LIST_SORT_ORDER);
+            cursor.close();
+            getForecastSnapshot(Bundle.EMPTY);
+            StartupTracer.mark(StartupTracer.MILESTONE_FORECAST_PRELOADED);
+        } catch (SQLException e) {
+            /* The first real query runs into the same problem and reports it to its caller */
+            Log.e(TAG, "Unable to warm up the database", e);
+        } finally {
+            StartupTracer.endSection();
+        }
+    }
+
+    /**
+     * Handles requests to insert a set of new rows. In Sunshine, we are mostly going to be
+     * inserting multiple rows of data at a time from a weather forecast, which is what this
+     * method is for. A day that is already stored is updated in place, so its row keeps its _ID.
      *
      * @param uri    The content:// URI of the insertion request.
      * @param values An array of sets of column_name/value pairs to add to the database.
      *               This must not be {@code null}.
      *
-     * @return The number of values that were inserted.
+     * @return The number of values that were inserted or updated.
      */
     @Override
     public int bulkInsert(@NonNull Uri uri, @NonNull ContentValues[] values) {
+        long startNanos = System.nanoTime();
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
-        switch (sUriMatcher.match(uri)) {
+        int match = sUriMatcher.match(uri);
+        switch (match) {
 
             case CODE_WEATHER:
-                db.beginTransaction();
-                int rowsInserted = 0;
+            case CODE_LOCATION_WEATHER:
+                /*
+                 * A non-exclusive transaction only keeps other writers out. Since the database is
+                 * in WAL mode, queries keep reading the last committed forecast meanwhile.
+                 */
+                db.beginTransactionNonExclusive();
+                int rowsInserted;
                 try {
-                    for (ContentValues value : values) {
-                        long weatherDate =
-                                value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-                        if (!SunshineDateUtils.isDateNormalized(weatherDate)) {
-                            throw new IllegalArgumentException("Date must be normalized to insert");
-                        }
-
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
-                        if (_id != -1) {
-                            rowsInserted++;
-                        }
+                    /*
+                     * The writer compiles its INSERT statement once and reuses it for every
+                     * row, instead of having SQLite parse the same SQL again for each day.
+                     */
+                    WeatherBulkWriter writer = new WeatherBulkWriter(db, getLocationId(uri));
+                    try {
+                        rowsInserted = writer.upsert(values);
+                    } finally {
+                        writer.close();
                     }
                     db.setTransactionSuccessful();
                 } finally {
@@ -166,9 +341,12 @@ public class WeatherProvider extends ContentProvider {
                 }
 
                 if (rowsInserted > 0) {
+                    mQueryCache.invalidate();
                     getContext().getContentResolver().notifyChange(uri, null);
                 }
 
+                mMetrics.record(WeatherProviderMetrics.OPERATION_BULK_INSERT, match,
+                        System.nanoTime() - startNanos, rowsInserted);
                 return rowsInserted;
 
             default:
@@ -176,6 +354,717 @@ public class WeatherProvider extends ContentProvider {
         }
     }
 
+    /**
+     * Handles the provider methods that are declared in {@link WeatherContract}, such as
+     * inserting a columnar {@link WeatherBatch} or replacing the whole forecast at once.
+     *
+     * @param method One of the METHOD constants of {@link WeatherContract}
+     * @param arg    The checkpoint mode for METHOD_CHECKPOINT, not used by the other methods
+     * @param extras The method's input
+     * @return The method's result
+     */
+    @Override
+    public Bundle call(@NonNull String method, String arg, Bundle extras) {
+        switch (method) {
+
+            case WeatherContract.METHOD_BULK_INSERT_WEATHER: {
+                long startNanos = System.nanoTime();
+                WeatherBatch batch = WeatherBatch.fromBundle(extras);
+                long locationId = getLocationId(extras);
+                final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+                db.beginTransactionNonExclusive();
+                int rowsInserted;
+                try {
+                    WeatherBulkWriter writer = new WeatherBulkWriter(db, locationId);
+                    try {
+                        rowsInserted = writer.upsert(batch);
+                    } finally {
+                        writer.close();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                if (rowsInserted > 0) {
+                    mQueryCache.invalidate();
+                    getContext().getContentResolver()
+                            .notifyChange(buildWeatherUri(locationId), null);
+                }
+
+                /* Timed under the code of the location's weather URI, which is what it writes */
+                mMetrics.record(WeatherProviderMetrics.OPERATION_BULK_INSERT,
+                        CODE_LOCATION_WEATHER, System.nanoTime() - startNanos, rowsInserted);
+
+                Bundle result = new Bundle();
+                result.putInt(WeatherContract.KEY_ROW_COUNT, rowsInserted);
+                return result;
+            }
+
+            case WeatherContract.METHOD_REPLACE_FORECAST: {
+                long startNanos = System.nanoTime();
+                WeatherBatch batch = WeatherBatch.fromBundle(extras);
+                long locationId = getLocationId(extras);
+                final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+                /*
+                 * Deleting and inserting in one transaction means that a query running at the
+                 * same time sees either the old forecast or the new one, never an empty table.
+                 */
+                db.beginTransactionNonExclusive();
+                int rowsDeleted;
+                int rowsInserted;
+                try {
+                    rowsDeleted = db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                            SELECT_LOCATION, new String[]{Long.toString(locationId)});
+
+                    WeatherBulkWriter writer = new WeatherBulkWriter(db, locationId);
+                    try {
+                        rowsInserted = writer.insert(batch);
+                    } finally {
+                        writer.close();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                /* One notification for the whole replacement, so every loader reloads once */
+                if (rowsDeleted > 0 || rowsInserted > 0) {
+                    mQueryCache.invalidate();
+                    getContext().getContentResolver()
+                            .notifyChange(buildWeatherUri(locationId), null);
+                }
+
+                mMetrics.record(WeatherProviderMetrics.OPERATION_REPLACE, CODE_LOCATION_WEATHER,
+                        System.nanoTime() - startNanos, rowsDeleted + rowsInserted);
+
+                Bundle result = new Bundle();
+                result.putInt(WeatherContract.KEY_ROW_COUNT, rowsInserted);
+                result.putInt(WeatherContract.KEY_DELETED_COUNT, rowsDeleted);
+                return result;
+            }
+
+            case WeatherContract.METHOD_REPLACE_HOURLY_FORECAST: {
+                long startNanos = System.nanoTime();
+                HourlyBatch batch = HourlyBatch.fromBundle(extras);
+                long locationId = getLocationId(extras);
+                final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+                /*
+                 * The hourly forecast changes in almost every step from one download to the
+                 * next, so comparing it step by step like a merge would rarely save a write.
+                 * Replacing it in one transaction writes it as a single commit instead.
+                 */
+                db.beginTransactionNonExclusive();
+                int rowsDeleted;
+                int rowsInserted;
+                try {
+                    rowsDeleted = db.delete(WeatherContract.HourlyEntry.TABLE_NAME,
+                            SELECT_LOCATION, new String[]{Long.toString(locationId)});
+
+                    HourlyBulkWriter writer = new HourlyBulkWriter(db, locationId);
+                    try {
+                        rowsInserted = writer.insert(batch);
+                    } finally {
+                        writer.close();
+                    }
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                if (rowsDeleted > 0 || rowsInserted > 0) {
+                    mQueryCache.invalidate();
+                    getContext().getContentResolver()
+                            .notifyChange(buildHourlyUri(locationId), null);
+                }
+
+                mMetrics.record(WeatherProviderMetrics.OPERATION_REPLACE, CODE_LOCATION_HOURLY,
+                        System.nanoTime() - startNanos, rowsDeleted + rowsInserted);
+
+                Bundle result = new Bundle();
+                result.putInt(WeatherContract.KEY_ROW_COUNT, rowsInserted);
+                result.putInt(WeatherContract.KEY_DELETED_COUNT, rowsDeleted);
+                return result;
+            }
+
+            case WeatherContract.METHOD_MERGE_FORECAST: {
+                long startNanos = System.nanoTime();
+                WeatherBatch batch = WeatherBatch.fromBundle(extras);
+                long locationId = getLocationId(extras);
+                final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+                /*
+                 * Today is part of the forecast, so only the days before it are history. The
+                 * server never sends past days, so without this they would all be deleted.
+                 */
+                long keepHistoryBefore = Long.MIN_VALUE;
+                if (extras.getBoolean(WeatherContract.KEY_KEEP_HISTORY)) {
+                    keepHistoryBefore = SunshineDateUtils.getNormalizedUtcDateForToday();
+                }
+
+                WeatherMerger merger = new WeatherMerger(db, locationId, keepHistoryBefore);
+                db.beginTransactionNonExclusive();
+                try {
+                    merger.merge(batch);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+
+                if (merger.getChangedDates().length > 0) {
+                    mQueryCache.invalidate();
+                }
+                notifyChangedDates(locationId, merger.getChangedDates());
+
+                /* A merge that finds nothing changed writes no rows, but is still timed */
+                mMetrics.record(WeatherProviderMetrics.OPERATION_MERGE, CODE_LOCATION_WEATHER,
+                        System.nanoTime() - startNanos, merger.getInsertedCount()
+                                + merger.getUpdatedCount() + merger.getDeletedCount());
+
+                Bundle result = new Bundle();
+                result.putInt(WeatherContract.KEY_INSERTED_COUNT, merger.getInsertedCount());
+                result.putInt(WeatherContract.KEY_UPDATED_COUNT, merger.getUpdatedCount());
+                result.putInt(WeatherContract.KEY_DELETED_COUNT, merger.getDeletedCount());
+                result.putLongArray(WeatherContract.KEY_CHANGED_DATES, merger.getChangedDates());
+                return result;
+            }
+
+            case WeatherContract.METHOD_CHECKPOINT:
+                return checkpoint(arg == null ? WeatherContract.CHECKPOINT_PASSIVE : arg);
+
+            case WeatherContract.METHOD_COMPACT_ARCHIVE:
+                return compactArchive(extras == null ? Bundle.EMPTY : extras);
+
+            case WeatherContract.METHOD_GET_QUERY_CACHE_STATS: {
+                Bundle result = new Bundle();
+                result.putInt(WeatherContract.KEY_HIT_COUNT, mQueryCache.getHitCount());
+                result.putInt(WeatherContract.KEY_MISS_COUNT, mQueryCache.getMissCount());
+                result.putInt(WeatherContract.KEY_INVALIDATION_COUNT,
+                        mQueryCache.getInvalidationCount());
+                result.putInt(WeatherContract.KEY_CACHED_ROW_COUNT,
+                        mQueryCache.getCachedRowCount());
+                return result;
+            }
+
+            case WeatherContract.METHOD_CLEAR_QUERY_CACHE:
+                mQueryCache.invalidate();
+                return null;
+
+            case WeatherContract.METHOD_GET_QUERY_METRICS:
+                return mMetrics.toBundle();
+
+            case WeatherContract.METHOD_RESET_QUERY_METRICS:
+                mMetrics.reset(extras == null
+                        ? WeatherProviderMetrics.DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS
+                        : extras.getLong(WeatherContract.KEY_SLOW_QUERY_THRESHOLD_MILLIS,
+                                WeatherProviderMetrics.DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS));
+                return null;
+
+            case WeatherContract.METHOD_GET_FORECAST_SNAPSHOT:
+                return getForecastSnapshot(extras == null ? Bundle.EMPTY : extras);
+
+            case WeatherContract.METHOD_RECORD_SYNC:
+                recordSync(extras);
+                return null;
+
+            case WeatherContract.METHOD_GET_SYNC_RECORDS:
+                return getSyncRecords();
+
+            case WeatherContract.METHOD_ENQUEUE_SYNC_REQUEST:
+                return enqueueSyncRequest(extras);
+
+            case WeatherContract.METHOD_FINISH_SYNC_REQUESTS:
+                return finishSyncRequests(extras);
+
+            case WeatherContract.METHOD_GET_SYNC_QUEUE:
+                return describeSyncQueue(mOpenHelper.getReadableDatabase());
+
+            default:
+                return super.call(method, arg, extras);
+        }
+    }
+
+    /**
+     * Hands out the forecast of a location from today onwards, from memory if it was read since
+     * the last write.
+     *
+     * @param extras The extras of the call, with the location and the version the caller has
+     * @return The snapshot, as described at {@link WeatherContract#METHOD_GET_FORECAST_SNAPSHOT}
+     */
+    private Bundle getForecastSnapshot(Bundle extras) {
+        long locationId = getLocationId(extras);
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+
+        /* Read before the snapshot, like the query cache does, so a racing write isn't missed */
+        long generation = mQueryCache.getGeneration();
+        Bundle snapshot = mSnapshots.get(locationId, today, generation);
+
+        if (snapshot == null) {
+            Uri weatherUri = WeatherContract.LocationEntry.buildWeatherUri(locationId);
+            Cursor cursor = queryDatabase(
+                    weatherUri,
+                    WeatherContract.WeatherEntry.TABLE_NAME,
+                    SNAPSHOT_PROJECTION,
+                    SELECT_LOCATION + " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ?",
+                    new String[]{Long.toString(locationId), Long.toString(today)},
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " ASC",
+                    null);
+
+            WeatherBatch batch;
+            try {
+                batch = new WeatherBatch(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    batch.add(cursor.getLong(INDEX_SNAPSHOT_DATE),
+                            cursor.getInt(INDEX_SNAPSHOT_WEATHER_ID),
+                            cursor.getDouble(INDEX_SNAPSHOT_MIN_TEMP),
+                            cursor.getDouble(INDEX_SNAPSHOT_MAX_TEMP),
+                            cursor.getDouble(INDEX_SNAPSHOT_HUMIDITY),
+                            cursor.getDouble(INDEX_SNAPSHOT_PRESSURE),
+                            cursor.getDouble(INDEX_SNAPSHOT_WIND_SPEED),
+                            cursor.getDouble(INDEX_SNAPSHOT_DEGREES));
+                }
+            } finally {
+                cursor.close();
+            }
+            snapshot = mSnapshots.put(locationId, today, generation, batch);
+        }
+
+        long version = snapshot.getLong(WeatherContract.KEY_SNAPSHOT_VERSION);
+        if (extras.getLong(WeatherContract.KEY_SNAPSHOT_VERSION, -1) == version) {
+            Bundle result = new Bundle();
+            result.putLong(WeatherContract.KEY_SNAPSHOT_VERSION, version);
+            result.putBoolean(WeatherContract.KEY_SNAPSHOT_UNCHANGED, true);
+            return result;
+        }
+
+        /*
+         * A caller in our own process gets the very Bundle we return, without any parceling. A
+         * copy keeps it from changing the snapshot other callers get. The arrays are shared.
+         */
+        return new Bundle(snapshot);
+    }
+
+    /**
+     * Stores the record of a sync and drops the records beyond the newest
+     * {@link WeatherContract.SyncMetricsEntry#MAX_RECORDS}.
+     *
+     * @param extras The record, with the columns of the sync metrics table as keys
+     */
+    private void recordSync(Bundle extras) {
+        if (extras == null) {
+            throw new IllegalArgumentException("No sync record given");
+        }
+
+        ContentValues record = new ContentValues();
+        for (String column : extras.keySet()) {
+            Object value = extras.get(column);
+            if (value instanceof Long) {
+                record.put(column, (Long) value);
+            } else if (value instanceof Integer) {
+                record.put(column, (Integer) value);
+            } else if (value == null || value instanceof String) {
+                record.put(column, (String) value);
+            } else {
+                throw new IllegalArgumentException("Unsupported value for " + column);
+            }
+        }
+
+        /* The records are few and small, so pruning on every insert costs next to nothing */
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            db.insertOrThrow(WeatherContract.SyncMetricsEntry.TABLE_NAME, null, record);
+            db.delete(WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                    WeatherContract.SyncMetricsEntry._ID + " NOT IN (SELECT "
+                            + WeatherContract.SyncMetricsEntry._ID + " FROM "
+                            + WeatherContract.SyncMetricsEntry.TABLE_NAME + " ORDER BY "
+                            + WeatherContract.SyncMetricsEntry._ID + " DESC LIMIT "
+                            + WeatherContract.SyncMetricsEntry.MAX_RECORDS + ")",
+                    null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @return The stored sync records, as described at
+     * {@link WeatherContract#METHOD_GET_SYNC_RECORDS}
+     */
+    private Bundle getSyncRecords() {
+        ArrayList<Bundle> records = new ArrayList<Bundle>();
+        Cursor cursor = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.SyncMetricsEntry.TABLE_NAME,
+                null,
+                null,
+                null,
+                null,
+                null,
+                WeatherContract.SyncMetricsEntry._ID + " DESC");
+        try {
+            while (cursor.moveToNext()) {
+                Bundle record = new Bundle();
+                for (int column = 0; column < cursor.getColumnCount(); column++) {
+                    String name = cursor.getColumnName(column);
+                    switch (cursor.getType(column)) {
+                        case Cursor.FIELD_TYPE_INTEGER:
+                            record.putLong(name, cursor.getLong(column));
+                            break;
+                        case Cursor.FIELD_TYPE_STRING:
+                            record.putString(name, cursor.getString(column));
+                            break;
+                        default:
+                            /* NULL, the only other type the table holds */
+                            record.putString(name, null);
+                    }
+                }
+                records.add(record);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        Bundle result = new Bundle();
+        result.putParcelableArrayList(WeatherContract.KEY_SYNC_RECORDS, records);
+        return result;
+    }
+
+    /**
+     * Adds a sync request to the queue, or brings the queued request of the same priority up to
+     * date.
+     *
+     * @param extras The priority, the time of the request and the time of the next attempt
+     * @return The queue, as described at {@link WeatherContract#METHOD_GET_SYNC_QUEUE}
+     */
+    private Bundle enqueueSyncRequest(Bundle extras) {
+        if (extras == null || !extras.containsKey(WeatherContract.KEY_SYNC_PRIORITY)
+                || !extras.containsKey(WeatherContract.KEY_REQUESTED_TIME)
+                || !extras.containsKey(WeatherContract.KEY_NEXT_ATTEMPT_TIME)) {
+            throw new IllegalArgumentException("Sync request is incomplete");
+        }
+        int priority = extras.getInt(WeatherContract.KEY_SYNC_PRIORITY);
+        long requestedTime = extras.getLong(WeatherContract.KEY_REQUESTED_TIME);
+        long nextAttemptTime = extras.getLong(WeatherContract.KEY_NEXT_ATTEMPT_TIME);
+        String[] selectionArgs = {Integer.toString(priority)};
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            /* Asking twice for the same sync doesn't make it run twice */
+            Cursor cursor = db.query(WeatherContract.SyncRequestEntry.TABLE_NAME,
+                    new String[]{
+                            WeatherContract.SyncRequestEntry.COLUMN_REQUESTED_TIME,
+                            WeatherContract.SyncRequestEntry.COLUMN_NEXT_ATTEMPT_TIME
+                    },
+                    WeatherContract.SyncRequestEntry.COLUMN_PRIORITY + " = ?",
+                    selectionArgs,
+                    null,
+                    null,
+                    null);
+            boolean queued;
+            try {
+                queued = cursor.moveToFirst();
+                if (queued) {
+                    /* A request that is handed to us again must not move back in time */
+                    requestedTime = Math.max(requestedTime, cursor.getLong(0));
+                    nextAttemptTime = Math.min(nextAttemptTime, cursor.getLong(1));
+                }
+            } finally {
+                cursor.close();
+            }
+
+            ContentValues request = new ContentValues();
+            request.put(WeatherContract.SyncRequestEntry.COLUMN_REQUESTED_TIME, requestedTime);
+            request.put(WeatherContract.SyncRequestEntry.COLUMN_NEXT_ATTEMPT_TIME,
+                    nextAttemptTime);
+            if (queued) {
+                db.update(WeatherContract.SyncRequestEntry.TABLE_NAME, request,
+                        WeatherContract.SyncRequestEntry.COLUMN_PRIORITY + " = ?",
+                        selectionArgs);
+            } else {
+                request.put(WeatherContract.SyncRequestEntry.COLUMN_PRIORITY, priority);
+                db.insertOrThrow(WeatherContract.SyncRequestEntry.TABLE_NAME, null, request);
+            }
+
+            Bundle result = describeSyncQueue(db);
+            db.setTransactionSuccessful();
+            return result;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Removes the requests a successful sync covered from the queue, or plans the next attempt
+     * of the requests a failed sync covered.
+     *
+     * @param extras When the sync started, its priority, whether it succeeded, and for a failed
+     *               sync the time of the next attempt and the most attempts a request gets
+     * @return The queue, as described at {@link WeatherContract#METHOD_FINISH_SYNC_REQUESTS}
+     */
+    private Bundle finishSyncRequests(Bundle extras) {
+        if (extras == null || !extras.containsKey(WeatherContract.KEY_SYNC_START_TIME)) {
+            throw new IllegalArgumentException("No sync start time given");
+        }
+        boolean succeeded = extras.getBoolean(WeatherContract.KEY_SYNC_SUCCEEDED);
+        if (!succeeded && (!extras.containsKey(WeatherContract.KEY_NEXT_ATTEMPT_TIME)
+                || !extras.containsKey(WeatherContract.KEY_MAX_ATTEMPTS))) {
+            throw new IllegalArgumentException("No next attempt given for a failed sync");
+        }
+
+        String covered = WeatherContract.SyncRequestEntry.COLUMN_REQUESTED_TIME + " <= ? OR "
+                + WeatherContract.SyncRequestEntry.COLUMN_PRIORITY + " < ?";
+        String[] coveredArgs = {
+                Long.toString(extras.getLong(WeatherContract.KEY_SYNC_START_TIME)),
+                Integer.toString(extras.getInt(WeatherContract.KEY_SYNC_PRIORITY))
+        };
+
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransactionNonExclusive();
+        try {
+            int deleted;
+            if (succeeded) {
+                deleted = db.delete(WeatherContract.SyncRequestEntry.TABLE_NAME, covered,
+                        coveredArgs);
+            } else {
+                db.execSQL("UPDATE " + WeatherContract.SyncRequestEntry.TABLE_NAME
+                                + " SET " + WeatherContract.SyncRequestEntry.COLUMN_ATTEMPT_COUNT
+                                + " = " + WeatherContract.SyncRequestEntry.COLUMN_ATTEMPT_COUNT
+                                + " + 1, "
+                                + WeatherContract.SyncRequestEntry.COLUMN_NEXT_ATTEMPT_TIME
+                                + " = ? WHERE " + covered,
+                        new Object[]{
+                                extras.getLong(WeatherContract.KEY_NEXT_ATTEMPT_TIME),
+                                coveredArgs[0],
+                                coveredArgs[1]
+                        });
+                /* Requests that keep failing are left to the periodic sync */
+                deleted = db.delete(WeatherContract.SyncRequestEntry.TABLE_NAME,
+                        WeatherContract.SyncRequestEntry.COLUMN_ATTEMPT_COUNT + " >= ?",
+                        new String[]{Integer.toString(
+                                extras.getInt(WeatherContract.KEY_MAX_ATTEMPTS))});
+            }
+
+            Bundle result = describeSyncQueue(db);
+            result.putInt(WeatherContract.KEY_DELETED_COUNT, deleted);
+            db.setTransactionSuccessful();
+            return result;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * @param db The database to read the queue from
+     * @return The queue, as described at {@link WeatherContract#METHOD_GET_SYNC_QUEUE}
+     */
+    private static Bundle describeSyncQueue(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery("SELECT COUNT(*), "
+                + "MIN(" + WeatherContract.SyncRequestEntry.COLUMN_NEXT_ATTEMPT_TIME + "), "
+                + "MAX(" + WeatherContract.SyncRequestEntry.COLUMN_PRIORITY + "), "
+                + "MAX(" + WeatherContract.SyncRequestEntry.COLUMN_ATTEMPT_COUNT + ")"
+                + " FROM " + WeatherContract.SyncRequestEntry.TABLE_NAME, null);
+        Bundle result = new Bundle();
+        try {
+            cursor.moveToFirst();
+            int count = cursor.getInt(0);
+            result.putInt(WeatherContract.KEY_ROW_COUNT, count);
+            if (count > 0) {
+                result.putLong(WeatherContract.KEY_NEXT_ATTEMPT_TIME, cursor.getLong(1));
+                result.putInt(WeatherContract.KEY_SYNC_PRIORITY, cursor.getInt(2));
+                result.putInt(WeatherContract.KEY_ATTEMPT_COUNT, cursor.getInt(3));
+            }
+        } finally {
+            cursor.close();
+        }
+        return result;
+    }
+
+    /**
+     * Runs a checkpoint of the write-ahead log and reports how it went. SQLite also checkpoints
+     * on its own once the log is big enough, but that happens in the middle of whichever commit
+     * crosses the threshold. Asking for a checkpoint once a sync is done keeps the log short, so
+     * readers have less of it to look through, and keeps that work on the sync's thread.
+     *
+     * @param mode One of the CHECKPOINT constants of {@link WeatherContract}
+     * @return The result of the checkpoint, as described at {@link WeatherContract#METHOD_CHECKPOINT}
+     */
+    private Bundle checkpoint(String mode) {
+        if (!WeatherContract.CHECKPOINT_PASSIVE.equals(mode)
+                && !WeatherContract.CHECKPOINT_FULL.equals(mode)
+                && !WeatherContract.CHECKPOINT_RESTART.equals(mode)) {
+            throw new IllegalArgumentException("Unknown checkpoint mode: " + mode);
+        }
+
+        /*
+         * Before Jelly Bean, Android ships a SQLite that doesn't know about checkpoint modes. The
+         * plain pragma runs a passive checkpoint, which is the best we can do there.
+         */
+        String sql = "PRAGMA wal_checkpoint";
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            sql += "(" + mode + ")";
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long startMillis = SystemClock.elapsedRealtime();
+
+        /* The pragma answers with a single row: busy, frames in the log, frames checkpointed */
+        boolean busy = false;
+        int logFrameCount = -1;
+        int checkpointedFrameCount = -1;
+        Cursor cursor = db.rawQuery(sql, null);
+        try {
+            if (cursor.moveToFirst()) {
+                busy = cursor.getInt(0) != 0;
+                logFrameCount = cursor.getInt(1);
+                checkpointedFrameCount = cursor.getInt(2);
+            }
+        } finally {
+            cursor.close();
+        }
+
+        long durationMillis = SystemClock.elapsedRealtime() - startMillis;
+        Log.d(TAG, "Checkpoint " + mode + ": " + checkpointedFrameCount + " of " + logFrameCount
+                + " frames in " + durationMillis + " ms" + (busy ? ", busy" : ""));
+
+        Bundle result = new Bundle();
+        result.putBoolean(WeatherContract.KEY_CHECKPOINT_BUSY, busy);
+        result.putInt(WeatherContract.KEY_LOG_FRAME_COUNT, logFrameCount);
+        result.putInt(WeatherContract.KEY_CHECKPOINTED_FRAME_COUNT, checkpointedFrameCount);
+        result.putLong(WeatherContract.KEY_DURATION_MILLIS, durationMillis);
+        return result;
+    }
+
+    /**
+     * Runs one step of rolling old weather up into the archive. The step is kept small and runs
+     * in a transaction of its own, so the sync can interleave it with its other work and stop
+     * between steps.
+     *
+     * @param extras The retention and budget, as described at
+     *               {@link WeatherContract#METHOD_COMPACT_ARCHIVE}
+     * @return The result of the step
+     */
+    private Bundle compactArchive(Bundle extras) {
+        long today = SunshineDateUtils.getNormalizedUtcDateForToday();
+        long dailyCutoff = today - DateUtils.DAY_IN_MILLIS * extras.getInt(
+                WeatherContract.KEY_DAILY_RETENTION_DAYS,
+                WeatherContract.ArchiveEntry.DEFAULT_DAILY_RETENTION_DAYS);
+        long weeklyCutoff = today - DateUtils.DAY_IN_MILLIS * extras.getInt(
+                WeatherContract.KEY_WEEKLY_RETENTION_DAYS,
+                WeatherContract.ArchiveEntry.DEFAULT_WEEKLY_RETENTION_DAYS);
+        int maxArchiveRows = extras.getInt(WeatherContract.KEY_MAX_ARCHIVE_ROWS,
+                WeatherContract.ArchiveEntry.DEFAULT_MAX_ARCHIVE_ROWS);
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        WeatherArchiver archiver = new WeatherArchiver(db);
+        boolean hasMore;
+        db.beginTransactionNonExclusive();
+        try {
+            hasMore = archiver.compactStep(dailyCutoff, weeklyCutoff, maxArchiveRows);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (archiver.getRolledUpCount() != 0 || archiver.getDeletedCount() != 0) {
+            mQueryCache.invalidate();
+            /* A step can touch the weather and archive of any location, so tell everyone */
+            getContext().getContentResolver()
+                    .notifyChange(WeatherContract.BASE_CONTENT_URI, null);
+        }
+
+        Bundle result = new Bundle();
+        result.putInt(WeatherContract.KEY_ROW_COUNT, archiver.getRolledUpCount());
+        result.putInt(WeatherContract.KEY_DELETED_COUNT, archiver.getDeletedCount());
+        result.putBoolean(WeatherContract.KEY_HAS_MORE, hasMore);
+        return result;
+    }
+
+    /**
+     * Notifies observers of the days that changed. A screen that shows a single day only reloads
+     * if that day is among them. Every notification also reaches the observers of the whole
+     * forecast, so once more than a few days changed, a single notification for the whole
+     * forecast is cheaper than one per day.
+     *
+     * @param locationId   The location whose forecast changed
+     * @param changedDates Normalized dates of the rows that were inserted, updated or deleted
+     */
+    private void notifyChangedDates(long locationId, long[] changedDates) {
+        if (changedDates.length == 0) {
+            return;
+        }
+
+        ContentResolver contentResolver = getContext().getContentResolver();
+        if (changedDates.length > MAX_PER_DATE_NOTIFICATIONS) {
+            contentResolver.notifyChange(buildWeatherUri(locationId), null);
+            return;
+        }
+
+        for (long changedDate : changedDates) {
+            contentResolver.notifyChange(buildWeatherUri(locationId, changedDate), null);
+        }
+    }
+
+    /**
+     * @param locationId _ID of a location, or the preferred location
+     * @return The URI that observers of the location's forecast listen to
+     */
+    private static Uri buildWeatherUri(long locationId) {
+        if (locationId == WeatherContract.LocationEntry.PREFERRED_LOCATION_ID) {
+            return WeatherContract.WeatherEntry.CONTENT_URI;
+        }
+        return WeatherContract.LocationEntry.buildWeatherUri(locationId);
+    }
+
+    /**
+     * @param locationId _ID of a location, or the preferred location
+     * @param date       Normalized date in milliseconds
+     * @return The URI that observers of the location's weather on that day listen to
+     */
+    private static Uri buildWeatherUri(long locationId, long date) {
+        if (locationId == WeatherContract.LocationEntry.PREFERRED_LOCATION_ID) {
+            return WeatherContract.WeatherEntry.buildWeatherUriWithDate(date);
+        }
+        return WeatherContract.LocationEntry.buildWeatherUriWithDate(locationId, date);
+    }
+
+    /**
+     * @param locationId _ID of a location, or the preferred location
+     * @return The URI that observers of the location's hourly forecast listen to
+     */
+    private static Uri buildHourlyUri(long locationId) {
+        if (locationId == WeatherContract.LocationEntry.PREFERRED_LOCATION_ID) {
+            return WeatherContract.HourlyEntry.CONTENT_URI;
+        }
+        return WeatherContract.LocationEntry.buildHourlyUri(locationId);
+    }
+
+    /**
+     * Finds the location a weather URI belongs to. The URIs below PATH_WEATHER belong to the
+     * preferred location, the ones below PATH_LOCATION name their location's _ID.
+     *
+     * @param uri A weather or location URI
+     * @return The _ID of the location
+     */
+    private static long getLocationId(Uri uri) {
+        if (WeatherContract.PATH_LOCATION.equals(uri.getPathSegments().get(0))) {
+            return Long.parseLong(uri.getPathSegments().get(1));
+        }
+        return WeatherContract.LocationEntry.PREFERRED_LOCATION_ID;
+    }
+
+    /**
+     * @param extras The extras of a call() that writes weather
+     * @return The location the weather is written for
+     */
+    private static long getLocationId(Bundle extras) {
+        return extras.getLong(WeatherContract.KEY_LOCATION_ID,
+                WeatherContract.LocationEntry.PREFERRED_LOCATION_ID);
+    }
+
     /**
      * Handles query requests from clients. We will use this method in Sunshine to query for all
      * of our weather data as well as to query for the weather on a particular day.
@@ -195,13 +1084,39 @@ public class WeatherProvider extends ContentProvider {
     public Cursor query(@NonNull Uri uri, String[] projection, String selection,
                         String[] selectionArgs, String sortOrder) {
 
-        Cursor cursor;
+        /*
+         * "The next hours" means something else a minute from now, so it can't be cached as it
+         * is. Turned into a fixed window of time on the location's hourly forecast, it can.
+         */
+        int match = sUriMatcher.match(uri);
+        if (match == CODE_HOURLY_NEXT || match == CODE_LOCATION_HOURLY_NEXT) {
+            /* Timed as the query of the hourly URI it turns into */
+            return queryNextHours(uri, projection, selection, selectionArgs, sortOrder);
+        }
+
+        /* Cache hits are timed too, so the histogram shows what callers actually wait for */
+        long startNanos = System.nanoTime();
+
+        /*
+         * If the same query was asked before and nothing was written since, the answer is still
+         * in our cache and we don't have to go to the database at all.
+         */
+        WeatherQueryCache.Key cacheKey = new WeatherQueryCache.Key(
+                uri, projection, selection, selectionArgs, sortOrder);
+        Cursor cursor = mQueryCache.get(cacheKey);
+        if (cursor != null) {
+            cursor.setNotificationUri(getContext().getContentResolver(), getNotificationUri(uri));
+            mMetrics.record(WeatherProviderMetrics.OPERATION_QUERY, match,
+                    System.nanoTime() - startNanos, cursor.getCount());
+            return cursor;
+        }
+        long cacheGeneration = mQueryCache.getGeneration();
 
         /*
          * Here's the switch statement that, given a URI, will determine what kind of request is
          * being made and query the database accordingly.
          */
-        switch (sUriMatcher.match(uri)) {
+        switch (match) {
 
             /*
              * When sUriMatcher's match method is called with a URI that looks something like this
@@ -214,9 +1129,11 @@ public class WeatherProvider extends ContentProvider {
              * programmatically using Uri's getLastPathSegment method.
              *
              * In this case, we want to return a cursor that contains one row of weather data for
-             * a particular date.
+             * a particular date. The same goes for a date below a location's URI, except that
+             * the row belongs to that location instead of the one chosen in the settings.
              */
-            case CODE_WEATHER_WITH_DATE: {
+            case CODE_WEATHER_WITH_DATE:
+            case CODE_LOCATION_WEATHER_WITH_DATE: {
 
                 /*
                  * In order to determine the date associated with this URI, we look at the last
@@ -227,13 +1144,16 @@ public class WeatherProvider extends ContentProvider {
 
                 /*
                  * The query method accepts a string array of arguments, as there may be more
-                 * than one "?" in the selection statement. Even though in our case, we only have
-                 * one "?", we have to create a string array that only contains one element
-                 * because this method signature accepts a string array.
+                 * than one "?" in the selection statement. We have one for the location and one
+                 * for the date.
                  */
-                String[] selectionArguments = new String[]{normalizedUtcDateString};
+                String[] selectionArguments = new String[]{
+                        Long.toString(getLocationId(uri)),
+                        normalizedUtcDateString
+                };
 
-                cursor = mOpenHelper.getReadableDatabase().query(
+                cursor = queryDatabase(
+                        uri,
                         /* Table we are going to query */
                         WeatherContract.WeatherEntry.TABLE_NAME,
                         /*
@@ -252,11 +1172,11 @@ public class WeatherProvider extends ContentProvider {
                          * within the selectionArguments array will be inserted into the
                          * selection statement by SQLite under the hood.
                          */
-                        WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
+                        SELECT_LOCATION + " AND "
+                                + WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ",
                         selectionArguments,
-                        null,
-                        null,
-                        sortOrder);
+                        sortOrder,
+                        null);
 
                 break;
             }
@@ -270,17 +1190,73 @@ public class WeatherProvider extends ContentProvider {
              * to return all of the weather in our weather table.
              *
              * In this case, we want to return a cursor that contains every row of weather data
-             * in our weather table.
+             * of the location chosen in the settings, or of the location the URI names.
              */
-            case CODE_WEATHER: {
-                cursor = mOpenHelper.getReadableDatabase().query(
-                        WeatherContract.WeatherEntry.TABLE_NAME,
+            case CODE_WEATHER:
+            case CODE_LOCATION_WEATHER:
+            case CODE_WEATHER_RANGE:
+            case CODE_LOCATION_WEATHER_RANGE: {
+                cursor = queryForecast(uri, projection, selection, selectionArgs, sortOrder);
+                break;
+            }
+
+            /* Every stored step of a location's hourly forecast, in time order by default */
+            case CODE_HOURLY:
+            case CODE_LOCATION_HOURLY: {
+                cursor = queryDatabase(
+                        uri,
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        DatabaseUtils.concatenateWhere(SELECT_LOCATION, selection),
+                        DatabaseUtils.appendSelectionArgs(
+                                new String[]{Long.toString(getLocationId(uri))}, selectionArgs),
+                        sortOrder == null
+                                ? WeatherContract.HourlyEntry.COLUMN_TIME + " ASC"
+                                : sortOrder,
+                        null);
+
+                break;
+            }
+
+            /* The weekly and monthly summaries of a location's past weather */
+            case CODE_ARCHIVE:
+            case CODE_LOCATION_ARCHIVE: {
+                cursor = queryDatabase(
+                        uri,
+                        WeatherContract.ArchiveEntry.TABLE_NAME,
+                        projection,
+                        DatabaseUtils.concatenateWhere(SELECT_LOCATION, selection),
+                        DatabaseUtils.appendSelectionArgs(
+                                new String[]{Long.toString(getLocationId(uri))}, selectionArgs),
+                        sortOrder,
+                        null);
+
+                break;
+            }
+
+            /* Every location we keep a forecast for, besides the one chosen in the settings */
+            case CODE_LOCATION: {
+                cursor = queryDatabase(
+                        uri,
+                        WeatherContract.LocationEntry.TABLE_NAME,
                         projection,
                         selection,
                         selectionArgs,
-                        null,
-                        null,
-                        sortOrder);
+                        sortOrder,
+                        null);
+
+                break;
+            }
+
+            case CODE_LOCATION_WITH_ID: {
+                cursor = queryDatabase(
+                        uri,
+                        WeatherContract.LocationEntry.TABLE_NAME,
+                        projection,
+                        WeatherContract.LocationEntry._ID + " = ?",
+                        new String[]{Long.toString(getLocationId(uri))},
+                        sortOrder,
+                        null);
 
                 break;
             }
@@ -289,10 +1265,217 @@ public class WeatherProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
-        cursor.setNotificationUri(getContext().getContentResolver(), uri);
+        cursor = mQueryCache.put(cacheKey, cursor, cacheGeneration);
+        cursor.setNotificationUri(getContext().getContentResolver(), getNotificationUri(uri));
+        mMetrics.record(WeatherProviderMetrics.OPERATION_QUERY, match,
+                System.nanoTime() - startNanos, cursor.getCount());
+        return cursor;
+    }
+
+    /**
+     * Runs a query on the database, the same way SQLiteDatabase#query does. The query is run
+     * right away instead of when the cursor is first read, so that it can be timed. If it was
+     * slow, its SQL and query plan are logged and kept in the slow query log, where a scan of a
+     * whole table or a sort without an index stands out.
+     *
+     * @param uri           The URI the query answers, for the slow query log
+     * @param table         The table to query
+     * @param projection    The columns to return
+     * @param selection     The rows to return
+     * @param selectionArgs Used in conjunction with the selection
+     * @param sortOrder     How to sort the rows
+     * @param limit         How many rows to return, or null for all of them
+     * @return A cursor over the rows
+     */
+    private Cursor queryDatabase(Uri uri, String table, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder, String limit) {
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+
+        long startNanos = System.nanoTime();
+        Cursor cursor = db.query(table, projection, selection, selectionArgs,
+                null, null, sortOrder, limit);
+        /* A cursor only runs its query once it is asked about its rows */
+        int rowCount = cursor.getCount();
+        long durationNanos = System.nanoTime() - startNanos;
+
+        if (durationNanos >= mMetrics.getSlowQueryThresholdNanos()) {
+            String sql = SQLiteQueryBuilder.buildQueryString(false, table, projection,
+                    selection, null, null, sortOrder, limit);
+            String queryPlan = explainQueryPlan(db, sql, selectionArgs);
+            Log.w(TAG, "Slow query: " + (durationNanos / 1000000) + " ms, " + rowCount
+                    + " rows for " + uri + "\n" + sql + "\n" + queryPlan);
+            mMetrics.recordSlowQuery(uri, sql, queryPlan, durationNanos, rowCount);
+        }
         return cursor;
     }
 
+    /**
+     * Asks SQLite how it runs a query.
+     *
+     * @return The detail column of every step of the plan, one step per line
+     */
+    private static String explainQueryPlan(SQLiteDatabase db, String sql,
+            String[] selectionArgs) {
+        StringBuilder queryPlan = new StringBuilder();
+        Cursor cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, selectionArgs);
+        try {
+            int detailIndex = cursor.getColumnIndex("detail");
+            while (cursor.moveToNext()) {
+                if (queryPlan.length() != 0) {
+                    queryPlan.append('\n');
+                }
+                queryPlan.append(cursor.getString(detailIndex));
+            }
+        } finally {
+            cursor.close();
+        }
+        return queryPlan.toString();
+    }
+
+    /**
+     * Queries the forecast of a location, or a range of its days, optionally a page at a time.
+     * <p>
+     * Everything the URI asks for is turned into conditions on location_id and date, which
+     * SQLite answers from the (location_id, date) index behind the weather table's unique
+     * constraint: the location and the start of the range or page are a seek in the index, the
+     * end of the range stops the walk along it, and since the index is already sorted by date,
+     * a page sorted by date stops as soon as it has enough rows instead of sorting them all.
+     *
+     * @param uri           A forecast or range URI, with optional paging parameters
+     * @param projection    The columns to return
+     * @param selection     An additional selection, or null
+     * @param selectionArgs Used in conjunction with the selection
+     * @param sortOrder     How to sort the rows. A paged query defaults to ascending dates.
+     * @return A cursor over the days
+     */
+    private Cursor queryForecast(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+
+        String forecastSelection = SELECT_LOCATION;
+        String[] forecastSelectionArgs = new String[]{Long.toString(getLocationId(uri))};
+
+        List<String> pathSegments = uri.getPathSegments();
+        int pathSegmentCount = pathSegments.size();
+        if (pathSegmentCount >= 3
+                && WeatherContract.PATH_RANGE.equals(pathSegments.get(pathSegmentCount - 3))) {
+            forecastSelection = DatabaseUtils.concatenateWhere(forecastSelection,
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND "
+                            + WeatherContract.WeatherEntry.COLUMN_DATE + " < ?");
+            forecastSelectionArgs = DatabaseUtils.appendSelectionArgs(forecastSelectionArgs,
+                    new String[]{
+                            pathSegments.get(pathSegmentCount - 2),
+                            pathSegments.get(pathSegmentCount - 1)});
+        }
+
+        String afterDate = uri.getQueryParameter(WeatherContract.QUERY_PARAMETER_AFTER_DATE);
+        if (afterDate != null) {
+            forecastSelection = DatabaseUtils.concatenateWhere(forecastSelection,
+                    WeatherContract.WeatherEntry.COLUMN_DATE + " > ?");
+            forecastSelectionArgs = DatabaseUtils.appendSelectionArgs(forecastSelectionArgs,
+                    new String[]{Long.toString(parseQueryParameter(uri,
+                            WeatherContract.QUERY_PARAMETER_AFTER_DATE, Long.MIN_VALUE))});
+        }
+
+        String limit = null;
+        String limitParameter = uri.getQueryParameter(WeatherContract.QUERY_PARAMETER_LIMIT);
+        String offsetParameter = uri.getQueryParameter(WeatherContract.QUERY_PARAMETER_OFFSET);
+        if (limitParameter != null || offsetParameter != null) {
+            long pageLimit = parseQueryParameter(uri,
+                    WeatherContract.QUERY_PARAMETER_LIMIT, Integer.MAX_VALUE);
+            long pageOffset = parseQueryParameter(uri,
+                    WeatherContract.QUERY_PARAMETER_OFFSET, 0);
+            if (pageLimit < 0 || pageOffset < 0) {
+                throw new IllegalArgumentException("Negative page limit or offset: " + uri);
+            }
+            /* SQLite's "LIMIT offset, count" */
+            limit = pageOffset + "," + pageLimit;
+        }
+
+        /* Pages only follow each other if they are cut from the same order */
+        if (sortOrder == null && (limit != null || afterDate != null)) {
+            sortOrder = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+        }
+
+        return queryDatabase(
+                uri,
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                projection,
+                DatabaseUtils.concatenateWhere(forecastSelection, selection),
+                DatabaseUtils.appendSelectionArgs(forecastSelectionArgs, selectionArgs),
+                sortOrder,
+                limit);
+    }
+
+    /**
+     * Queries the steps of the next hours of a location's hourly forecast. The window starts
+     * with the step that is going on right now and covers as many hours as the URI asks for.
+     * Since both ends of the window are multiples of the step length, the same window, and so
+     * the same cached result, is used until the next step begins.
+     *
+     * @param uri           An hourly URI ending in the number of hours
+     * @param projection    The columns to return
+     * @param selection     An additional selection, or null
+     * @param selectionArgs Used in conjunction with the selection
+     * @param sortOrder     How to sort the steps
+     * @return A cursor over the steps
+     */
+    private Cursor queryNextHours(Uri uri, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        long hours = Long.parseLong(uri.getLastPathSegment());
+        long stepMillis = WeatherContract.HourlyEntry.STEP_MILLIS;
+        long windowStart = System.currentTimeMillis() / stepMillis * stepMillis;
+        long windowEnd = windowStart + hours * DateUtils.HOUR_IN_MILLIS;
+
+        return query(buildHourlyUri(getLocationId(uri)),
+                projection,
+                DatabaseUtils.concatenateWhere(
+                        WeatherContract.HourlyEntry.COLUMN_TIME + " >= ? AND "
+                                + WeatherContract.HourlyEntry.COLUMN_TIME + " < ?",
+                        selection),
+                DatabaseUtils.appendSelectionArgs(
+                        new String[]{Long.toString(windowStart), Long.toString(windowEnd)},
+                        selectionArgs),
+                sortOrder);
+    }
+
+    /**
+     * @param uri          The URI whose query parameter to read
+     * @param name         The name of the query parameter
+     * @param defaultValue Returned if the URI doesn't have the parameter
+     * @return The value of the parameter
+     * @throws IllegalArgumentException If the parameter is not a number
+     */
+    private static long parseQueryParameter(Uri uri, String name, long defaultValue) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " in " + uri, e);
+        }
+    }
+
+    /**
+     * Returns the URI a query's cursor watches for changes. A range is watched through the
+     * forecast it is part of, because the sync notifies single days and the forecast as a whole,
+     * but never a range. Below the forecast URI, the range hears of both.
+     *
+     * @param uri The URI that was queried
+     * @return The URI to set as the cursor's notification URI
+     */
+    private static Uri getNotificationUri(Uri uri) {
+        switch (sUriMatcher.match(uri)) {
+            case CODE_WEATHER_RANGE:
+            case CODE_LOCATION_WEATHER_RANGE:
+                return buildWeatherUri(getLocationId(uri));
+
+            default:
+                return uri;
+        }
+    }
+
     /**
      * Deletes data at a given URI with optional arguments for more fine tuned deletions.
      *
@@ -316,25 +1499,99 @@ public class WeatherProvider extends ContentProvider {
          */
         if (null == selection) selection = "1";
 
-        switch (sUriMatcher.match(uri)) {
+        long startNanos = System.nanoTime();
+
+        int match = sUriMatcher.match(uri);
+        switch (match) {
 
             case CODE_WEATHER:
+            case CODE_LOCATION_WEATHER:
                 numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
                         WeatherContract.WeatherEntry.TABLE_NAME,
-                        selection,
-                        selectionArgs);
+                        DatabaseUtils.concatenateWhere(SELECT_LOCATION, selection),
+                        DatabaseUtils.appendSelectionArgs(
+                                new String[]{Long.toString(getLocationId(uri))}, selectionArgs));
 
                 break;
 
+            case CODE_HOURLY:
+            case CODE_LOCATION_HOURLY:
+                numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        DatabaseUtils.concatenateWhere(SELECT_LOCATION, selection),
+                        DatabaseUtils.appendSelectionArgs(
+                                new String[]{Long.toString(getLocationId(uri))}, selectionArgs));
+
+                break;
+
+            case CODE_ARCHIVE:
+            case CODE_LOCATION_ARCHIVE:
+                numRowsDeleted = mOpenHelper.getWritableDatabase().delete(
+                        WeatherContract.ArchiveEntry.TABLE_NAME,
+                        DatabaseUtils.concatenateWhere(SELECT_LOCATION, selection),
+                        DatabaseUtils.appendSelectionArgs(
+                                new String[]{Long.toString(getLocationId(uri))}, selectionArgs));
+
+                break;
+
+            case CODE_LOCATION_WITH_ID:
+                selection = DatabaseUtils.concatenateWhere(
+                        WeatherContract.LocationEntry._ID + " = ?", selection);
+                selectionArgs = DatabaseUtils.appendSelectionArgs(
+                        new String[]{Long.toString(getLocationId(uri))}, selectionArgs);
+                numRowsDeleted = deleteLocations(selection, selectionArgs);
+                break;
+
+            case CODE_LOCATION:
+                numRowsDeleted = deleteLocations(selection, selectionArgs);
+                break;
+
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
 
         /* If we actually deleted any rows, notify that a change has occurred to this URI */
         if (numRowsDeleted != 0) {
+            mQueryCache.invalidate();
             getContext().getContentResolver().notifyChange(uri, null);
         }
 
+        mMetrics.record(WeatherProviderMetrics.OPERATION_DELETE, match,
+                System.nanoTime() - startNanos, numRowsDeleted);
+        return numRowsDeleted;
+    }
+
+    /**
+     * Deletes locations together with their forecasts and archives, in one transaction.
+     *
+     * @param selection     Selects the rows of the location table to delete
+     * @param selectionArgs Used in conjunction with the selection statement
+     * @return The number of locations deleted
+     */
+    private int deleteLocations(String selection, String[] selectionArgs) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        int numRowsDeleted;
+
+        db.beginTransactionNonExclusive();
+        try {
+            String selectLocationIds = " IN (SELECT " + WeatherContract.LocationEntry._ID
+                    + " FROM " + WeatherContract.LocationEntry.TABLE_NAME
+                    + " WHERE " + selection + ")";
+            db.delete(WeatherContract.WeatherEntry.TABLE_NAME,
+                    WeatherContract.WeatherEntry.COLUMN_LOCATION_ID + selectLocationIds,
+                    selectionArgs);
+            db.delete(WeatherContract.ArchiveEntry.TABLE_NAME,
+                    WeatherContract.ArchiveEntry.COLUMN_LOCATION_ID + selectLocationIds,
+                    selectionArgs);
+            db.delete(WeatherContract.HourlyEntry.TABLE_NAME,
+                    WeatherContract.HourlyEntry.COLUMN_LOCATION_ID + selectLocationIds,
+                    selectionArgs);
+            numRowsDeleted = db.delete(WeatherContract.LocationEntry.TABLE_NAME,
+                    selection, selectionArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
         return numRowsDeleted;
     }
 
@@ -354,25 +1611,170 @@ public class WeatherProvider extends ContentProvider {
     }
 
     /**
-     * In Sunshine, we aren't going to do anything with this method. However, we are required to
-     * override it as WeatherProvider extends ContentProvider and insert is an abstract method in
-     * ContentProvider. Rather than the single insert method, we are only going to implement
-     * {@link WeatherProvider#bulkInsert}.
+     * Adds a location to keep a forecast for, or a single day of weather to a location's
+     * forecast. A day that is already stored is updated in place, so it keeps its _ID, just like
+     * in {@link WeatherProvider#bulkInsert}.
      *
      * @param uri    The URI of the insertion request. This must not be null.
      * @param values A set of column_name/value pairs to add to the database.
      *               This must not be null
-     * @return nothing in Sunshine, but normally the URI for the newly inserted item.
+     * @return The URI of the location or of the day. If the location was already stored, the
+     * URI of the stored location is returned.
      */
     @Override
     public Uri insert(@NonNull Uri uri, ContentValues values) {
-        throw new RuntimeException(
-                "We are not implementing insert in Sunshine. Use bulkInsert instead");
+        switch (sUriMatcher.match(uri)) {
+            case CODE_WEATHER:
+            case CODE_LOCATION_WEATHER:
+                return insertWeather(uri, values);
+
+            case CODE_LOCATION:
+                break;
+
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+
+        String locationQuery =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_QUERY);
+        if (locationQuery == null) {
+            throw new IllegalArgumentException("A location needs a location query");
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        long locationId = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
+        if (locationId == -1) {
+            /* The location table ignores a query that is already stored. Hand out that one. */
+            locationId = DatabaseUtils.longForQuery(db,
+                    "SELECT " + WeatherContract.LocationEntry._ID
+                            + " FROM " + WeatherContract.LocationEntry.TABLE_NAME
+                            + " WHERE " + WeatherContract.LocationEntry.COLUMN_LOCATION_QUERY
+                            + " = ?",
+                    new String[]{locationQuery});
+        } else {
+            mQueryCache.invalidate();
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+
+        return WeatherContract.LocationEntry.buildLocationUri(locationId);
+    }
+
+    /**
+     * Inserts a day of weather, or updates the stored row of that day in place.
+     *
+     * @param uri    The weather URI of the location the day belongs to
+     * @param values The weather of the day
+     * @return The URI of the day, or null if it could not be written
+     */
+    private Uri insertWeather(Uri uri, ContentValues values) {
+        long locationId = getLocationId(uri);
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        db.beginTransactionNonExclusive();
+        long weatherId;
+        try {
+            WeatherBulkWriter writer = new WeatherBulkWriter(db, locationId);
+            try {
+                weatherId = writer.upsert(values);
+            } finally {
+                writer.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        if (weatherId == -1) {
+            return null;
+        }
+
+        Uri dayUri = buildWeatherUri(locationId,
+                values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+        mQueryCache.invalidate();
+        getContext().getContentResolver().notifyChange(dayUri, null);
+        return dayUri;
     }
 
+    /**
+     * Updates a location, for example with the coordinates the weather server found for it, or
+     * the weather of a location's days. Weather rows are updated in place, so they keep their
+     * _ID. A day can't be moved to another date or location this way, as that would change
+     * which day the row stands for.
+     *
+     * @param uri           The URI of the location to update
+     * @param values        The new values
+     * @param selection     An optional restriction to apply to the row being updated
+     * @param selectionArgs Used in conjunction with the selection statement
+     * @return The number of rows updated
+     */
     @Override
     public int update(@NonNull Uri uri, ContentValues values, String selection, String[] selectionArgs) {
-        throw new RuntimeException("We are not implementing update in Sunshine");
+        switch (sUriMatcher.match(uri)) {
+            case CODE_WEATHER:
+            case CODE_LOCATION_WEATHER:
+            case CODE_WEATHER_WITH_DATE:
+            case CODE_LOCATION_WEATHER_WITH_DATE:
+                return updateWeather(uri, values, selection, selectionArgs);
+
+            case CODE_LOCATION_WITH_ID:
+                break;
+
+            default:
+                throw new UnsupportedOperationException("Unknown uri: " + uri);
+        }
+
+        int numRowsUpdated = mOpenHelper.getWritableDatabase().update(
+                WeatherContract.LocationEntry.TABLE_NAME,
+                values,
+                DatabaseUtils.concatenateWhere(
+                        WeatherContract.LocationEntry._ID + " = ?", selection),
+                DatabaseUtils.appendSelectionArgs(
+                        new String[]{Long.toString(getLocationId(uri))}, selectionArgs));
+
+        if (numRowsUpdated != 0) {
+            mQueryCache.invalidate();
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return numRowsUpdated;
+    }
+
+    /**
+     * Updates the weather of a location's days in place.
+     *
+     * @param uri           A weather URI of the location, for all of its days or for one day
+     * @param values        The new values, which must not touch the _ID, date or location
+     * @param selection     An optional restriction to apply to the rows being updated
+     * @param selectionArgs Used in conjunction with the selection statement
+     * @return The number of rows updated
+     */
+    private int updateWeather(Uri uri, ContentValues values, String selection,
+            String[] selectionArgs) {
+        if (values.containsKey(WeatherContract.WeatherEntry._ID)
+                || values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)
+                || values.containsKey(WeatherContract.WeatherEntry.COLUMN_LOCATION_ID)) {
+            throw new IllegalArgumentException(
+                    "The _ID, date and location of a day can't be updated");
+        }
+
+        String[] locationArgs = {Long.toString(getLocationId(uri))};
+        String locationSelection = SELECT_LOCATION;
+        int match = sUriMatcher.match(uri);
+        if (match == CODE_WEATHER_WITH_DATE || match == CODE_LOCATION_WEATHER_WITH_DATE) {
+            locationSelection += " AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " = ?";
+            locationArgs = new String[]{locationArgs[0], uri.getLastPathSegment()};
+        }
+
+        int numRowsUpdated = mOpenHelper.getWritableDatabase().update(
+                WeatherContract.WeatherEntry.TABLE_NAME,
+                values,
+                DatabaseUtils.concatenateWhere(locationSelection, selection),
+                DatabaseUtils.appendSelectionArgs(locationArgs, selectionArgs));
+
+        if (numRowsUpdated != 0) {
+            mQueryCache.invalidate();
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+        return numRowsUpdated;
     }
 
     /**
@@ -386,4 +1788,4 @@ public class WeatherProvider extends ContentProvider {
         mOpenHelper.close();
         super.shutdown();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.net.Uri;
+import android.os.Bundle;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps track of how long the operations of {@link WeatherProvider} take on this device, so that
+ * a missing index or a query that suddenly scans a whole table shows up in numbers instead of in
+ * a list that stutters.
+ * <p>
+ * For every operation and URI code, it counts the calls and their rows and sorts their latencies
+ * into a histogram with buckets that double in size. Database queries that are slower than a
+ * threshold are kept, together with their query plan, in a short log of the most recent ones.
+ * Recording only takes a few additions under a lock, so it is always on.
+ */
+final class WeatherProviderMetrics {
+
+    /* The operations that are timed, used as indices into mStatsByOperation */
+    static final int OPERATION_QUERY = 0;
+    static final int OPERATION_BULK_INSERT = 1;
+    static final int OPERATION_DELETE = 2;
+    static final int OPERATION_REPLACE = 3;
+    static final int OPERATION_MERGE = 4;
+
+    /* Their names in the Bundle of METHOD_GET_QUERY_METRICS, in the order of the indices */
+    private static final String[] OPERATION_NAMES = {
+            WeatherContract.OPERATION_QUERY,
+            WeatherContract.OPERATION_BULK_INSERT,
+            WeatherContract.OPERATION_DELETE,
+            WeatherContract.OPERATION_REPLACE,
+            WeatherContract.OPERATION_MERGE,
+    };
+
+    /*
+     * Upper bounds of the latency buckets in milliseconds. A result from the query cache lands in
+     * the first bucket, a query that makes a frame late in one of the last few. There is one more
+     * bucket for everything slower than the last bound.
+     */
+    private static final long[] BUCKET_BOUNDS_MILLIS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512};
+
+    /* A query this slow keeps a loader from delivering its forecast within a few frames */
+    static final long DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS = 50;
+
+    /* The slow query log only keeps the most recent entries */
+    private static final int MAX_SLOW_QUERIES = 20;
+
+    /**
+     * What was measured for one operation at one URI code.
+     */
+    private static class Stats {
+        int callCount;
+        long rowCount;
+        long totalNanos;
+        long maxNanos;
+        final int[] histogram = new int[BUCKET_BOUNDS_MILLIS.length + 1];
+    }
+
+    @SuppressWarnings("unchecked")
+    private final SparseArray<Stats>[] mStatsByOperation = new SparseArray[]{
+            new SparseArray<Stats>(),
+            new SparseArray<Stats>(),
+            new SparseArray<Stats>(),
+            new SparseArray<Stats>(),
+            new SparseArray<Stats>(),
+    };
+
+    private final LinkedList<Bundle> mSlowQueries = new LinkedList<Bundle>();
+
+    private volatile long mSlowQueryThresholdNanos =
+            TimeUnit.MILLISECONDS.toNanos(DEFAULT_SLOW_QUERY_THRESHOLD_MILLIS);
+
+    /**
+     * Records one call of an operation.
+     *
+     * @param operation     One of the OPERATION constants of this class
+     * @param uriCode       The code the provider's UriMatcher matched the URI to
+     * @param durationNanos How long the call took
+     * @param rowCount      The number of rows it returned or wrote
+     */
+    synchronized void record(int operation, int uriCode, long durationNanos, int rowCount) {
+        SparseArray<Stats> statsByUriCode = mStatsByOperation[operation];
+        Stats stats = statsByUriCode.get(uriCode);
+        if (stats == null) {
+            stats = new Stats();
+            statsByUriCode.put(uriCode, stats);
+        }
+
+        stats.callCount++;
+        stats.rowCount += rowCount;
+        stats.totalNanos += durationNanos;
+        stats.maxNanos = Math.max(stats.maxNanos, durationNanos);
+        stats.histogram[getBucket(durationNanos)]++;
+    }
+
+    /**
+     * @return How long a database query may take before it is logged as slow
+     */
+    long getSlowQueryThresholdNanos() {
+        return mSlowQueryThresholdNanos;
+    }
+
+    /**
+     * Adds a query to the slow query log, dropping the oldest entry if the log is full.
+     *
+     * @param uri           The URI that was queried
+     * @param sql           The SQL the query ran
+     * @param queryPlan     What EXPLAIN QUERY PLAN said about the SQL
+     * @param durationNanos How long the query took
+     * @param rowCount      The number of rows it returned
+     */
+    synchronized void recordSlowQuery(Uri uri, String sql, String queryPlan,
+            long durationNanos, int rowCount) {
+        Bundle slowQuery = new Bundle();
+        slowQuery.putString(WeatherContract.KEY_URI, uri.toString());
+        slowQuery.putString(WeatherContract.KEY_SQL, sql);
+        slowQuery.putString(WeatherContract.KEY_QUERY_PLAN, queryPlan);
+        slowQuery.putLong(WeatherContract.KEY_DURATION_MILLIS,
+                TimeUnit.NANOSECONDS.toMillis(durationNanos));
+        slowQuery.putInt(WeatherContract.KEY_ROW_COUNT, rowCount);
+
+        if (mSlowQueries.size() == MAX_SLOW_QUERIES) {
+            mSlowQueries.removeFirst();
+        }
+        mSlowQueries.addLast(slowQuery);
+    }
+
+    /**
+     * Forgets everything that was measured.
+     *
+     * @param slowQueryThresholdMillis How long a query may take from now on before it is logged
+     *                                 as slow
+     */
+    synchronized void reset(long slowQueryThresholdMillis) {
+        for (SparseArray<Stats> statsByUriCode : mStatsByOperation) {
+            statsByUriCode.clear();
+        }
+        mSlowQueries.clear();
+        mSlowQueryThresholdNanos = TimeUnit.MILLISECONDS.toNanos(slowQueryThresholdMillis);
+    }
+
+    /**
+     * @return Everything measured so far, laid out as described at
+     * {@link WeatherContract#METHOD_GET_QUERY_METRICS}
+     */
+    synchronized Bundle toBundle() {
+        ArrayList<Bundle> uriMetrics = new ArrayList<Bundle>();
+        for (int operation = 0; operation < mStatsByOperation.length; operation++) {
+            SparseArray<Stats> statsByUriCode = mStatsByOperation[operation];
+            for (int i = 0; i < statsByUriCode.size(); i++) {
+                Stats stats = statsByUriCode.valueAt(i);
+
+                Bundle metrics = new Bundle();
+                metrics.putString(WeatherContract.KEY_OPERATION, OPERATION_NAMES[operation]);
+                metrics.putInt(WeatherContract.KEY_URI_CODE, statsByUriCode.keyAt(i));
+                metrics.putInt(WeatherContract.KEY_CALL_COUNT, stats.callCount);
+                metrics.putLong(WeatherContract.KEY_ROW_COUNT, stats.rowCount);
+                metrics.putLong(WeatherContract.KEY_TOTAL_MICROS,
+                        TimeUnit.NANOSECONDS.toMicros(stats.totalNanos));
+                metrics.putLong(WeatherContract.KEY_MAX_MICROS,
+                        TimeUnit.NANOSECONDS.toMicros(stats.maxNanos));
+                metrics.putIntArray(WeatherContract.KEY_LATENCY_HISTOGRAM,
+                        stats.histogram.clone());
+                uriMetrics.add(metrics);
+            }
+        }
+
+        Bundle result = new Bundle();
+        result.putLong(WeatherContract.KEY_SLOW_QUERY_THRESHOLD_MILLIS,
+                TimeUnit.NANOSECONDS.toMillis(mSlowQueryThresholdNanos));
+        result.putLongArray(WeatherContract.KEY_LATENCY_BUCKET_BOUNDS_MILLIS,
+                BUCKET_BOUNDS_MILLIS.clone());
+        result.putParcelableArrayList(WeatherContract.KEY_URI_METRICS, uriMetrics);
+        result.putParcelableArrayList(WeatherContract.KEY_SLOW_QUERIES,
+                new ArrayList<Bundle>(mSlowQueries));
+        return result;
+    }
+
+    private static int getBucket(long durationNanos) {
+        for (int bucket = 0; bucket < BUCKET_BOUNDS_MILLIS.length; bucket++) {
+            if (durationNanos <= TimeUnit.MILLISECONDS.toNanos(BUCKET_BOUNDS_MILLIS[bucket])) {
+                return bucket;
+            }
+        }
+        return BUCKET_BOUNDS_MILLIS.length;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.net.Uri;
+import android.support.v4.util.LruCache;
+
+import java.util.Arrays;
+
+/**
+ * Remembers the results of recent queries to {@link WeatherProvider}, so that asking the same
+ * question twice only goes to SQLite once. Sunshine asks the same few questions all the time:
+ * the forecast list, today's weather for the notification and the wearable, and the day shown
+ * in the detail screen.
+ * <p>
+ * A result is kept as a snapshot of plain values. The query that missed the cache gets the
+ * database cursor itself, and every hit hands out a new MatrixCursor over the snapshot, so
+ * callers can move and close their cursor without affecting anyone else. Both must read the
+ * same: a cursor of SQLite turns a REAL like 75.0 into the String "75", while a MatrixCursor
+ * would return "75.0". The snapshot therefore keeps the String SQLite made of each REAL, and its
+ * cursors return that one.
+ * <p>
+ * Every write to the weather table must call {@link #invalidate()} once it has been committed.
+ * A query that was already running when the write committed may have read the old data, so each
+ * result is stored together with the generation of the cache that was current when its query
+ * started, and dropped if an invalidation happened in the meantime.
+ */
+class WeatherQueryCache {
+
+    /* The cache holds at most this many rows, summed over all cached results */
+    private static final int MAX_CACHED_ROWS = 256;
+
+    /* Results with more rows than this are not worth a copy and are returned as they are */
+    private static final int MAX_ROWS_PER_RESULT = 64;
+
+    private final LruCache<Key, Snapshot> mSnapshots = new LruCache<Key, Snapshot>(MAX_CACHED_ROWS) {
+        @Override
+        protected int sizeOf(Key key, Snapshot snapshot) {
+            /* An empty result still takes a slot */
+            return Math.max(1, snapshot.mRows.length);
+        }
+    };
+
+    private long mGeneration;
+
+    private int mHitCount;
+    private int mMissCount;
+    private int mInvalidationCount;
+
+    /**
+     * Returns a cursor over the cached result of a query.
+     *
+     * @param key The query
+     * @return A new cursor over the cached result, or null if the result is not cached
+     */
+    Cursor get(Key key) {
+        Snapshot snapshot;
+        synchronized (this) {
+            snapshot = mSnapshots.get(key);
+            if (snapshot == null) {
+                mMissCount++;
+                return null;
+            }
+            mHitCount++;
+        }
+        return snapshot.newCursor();
+    }
+
+    /**
+     * Must be called before the query whose result is later passed to
+     * {@link #put(Key, Cursor, long)}.
+     *
+     * @return The current generation of the cache
+     */
+    synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Caches the result of a query, unless it is too big or the cache was invalidated since the
+     * query started.
+     *
+     * @param key        The query
+     * @param cursor     The result of the query, read from the database
+     * @param generation What {@link #getGeneration()} returned before the query ran
+     * @return The cursor the caller should hand out, which is always the given cursor. If it
+     * was copied, it has been moved back before its first row.
+     */
+    Cursor put(Key key, Cursor cursor, long generation) {
+        if (cursor.getCount() > MAX_ROWS_PER_RESULT) {
+            return cursor;
+        }
+
+        Snapshot snapshot = new Snapshot(cursor);
+        cursor.moveToPosition(-1);
+
+        synchronized (this) {
+            if (generation == mGeneration) {
+                mSnapshots.put(key, snapshot);
+            }
+        }
+        return cursor;
+    }
+
+    /**
+     * Drops every cached result. Call after every committed write to the weather table, before
+     * observers are notified of the change, so that they reload the new data.
+     */
+    synchronized void invalidate() {
+        mGeneration++;
+        mInvalidationCount++;
+        mSnapshots.evictAll();
+    }
+
+    synchronized int getHitCount() {
+        return mHitCount;
+    }
+
+    synchronized int getMissCount() {
+        return mMissCount;
+    }
+
+    synchronized int getInvalidationCount() {
+        return mInvalidationCount;
+    }
+
+    /**
+     * @return The number of rows held by the cache right now
+     */
+    synchronized int getCachedRowCount() {
+        return mSnapshots.size();
+    }
+
+    /**
+     * Identifies a query by everything that can change its result.
+     */
+    static final class Key {
+
+        private final Uri mUri;
+        private final String[] mProjection;
+        private final String mSelection;
+        private final String[] mSelectionArgs;
+        private final String mSortOrder;
+
+        private final int mHashCode;
+
+        Key(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                String sortOrder) {
+            mUri = uri;
+            /* Copied, so a caller that reuses its arrays can't change a key that is cached */
+            mProjection = projection == null ? null : projection.clone();
+            mSelection = selection;
+            mSelectionArgs = selectionArgs == null ? null : selectionArgs.clone();
+            mSortOrder = sortOrder;
+
+            int hashCode = mUri.hashCode();
+            hashCode = 31 * hashCode + Arrays.hashCode(mProjection);
+            hashCode = 31 * hashCode + (mSelection == null ? 0 : mSelection.hashCode());
+            hashCode = 31 * hashCode + Arrays.hashCode(mSelectionArgs);
+            hashCode = 31 * hashCode + (mSortOrder == null ? 0 : mSortOrder.hashCode());
+            mHashCode = hashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+
+            Key other = (Key) o;
+            return mHashCode == other.mHashCode
+                    && mUri.equals(other.mUri)
+                    && Arrays.equals(mProjection, other.mProjection)
+                    && equal(mSelection, other.mSelection)
+                    && Arrays.equals(mSelectionArgs, other.mSelectionArgs)
+                    && equal(mSortOrder, other.mSortOrder);
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        private static boolean equal(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    /**
+     * The rows of a query result, copied out of the cursor with each value in its original type.
+     * For every REAL, the String the cursor returned for it is kept as well.
+     */
+    private static final class Snapshot {
+
+        private final String[] mColumnNames;
+        private final Object[][] mRows;
+        private final String[][] mRealStrings;
+
+        Snapshot(Cursor cursor) {
+            mColumnNames = cursor.getColumnNames();
+            mRows = new Object[cursor.getCount()][];
+            mRealStrings = new String[mRows.length][];
+
+            int columnCount = mColumnNames.length;
+            cursor.moveToPosition(-1);
+            for (int row = 0; cursor.moveToNext(); row++) {
+                Object[] values = new Object[columnCount];
+                String[] realStrings = new String[columnCount];
+                for (int column = 0; column < columnCount; column++) {
+                    values[column] = readValue(cursor, column);
+                    if (values[column] instanceof Double) {
+                        realStrings[column] = cursor.getString(column);
+                    }
+                }
+                mRows[row] = values;
+                mRealStrings[row] = realStrings;
+            }
+        }
+
+        Cursor newCursor() {
+            MatrixCursor cursor = new SnapshotCursor(this);
+            for (Object[] row : mRows) {
+                cursor.addRow(row);
+            }
+            return cursor;
+        }
+
+        private static Object readValue(Cursor cursor, int column) {
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return cursor.getLong(column);
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return cursor.getDouble(column);
+                case Cursor.FIELD_TYPE_STRING:
+                    return cursor.getString(column);
+                case Cursor.FIELD_TYPE_BLOB:
+                    return cursor.getBlob(column);
+                default:
+                    return null;
+            }
+        }
+    }
+    /**
+     * A MatrixCursor over a snapshot that returns REALs as Strings the way SQLite does.
+     */
+    private static final class SnapshotCursor extends MatrixCursor {
+
+        private final Snapshot mSnapshot;
+
+        SnapshotCursor(Snapshot snapshot) {
+            super(snapshot.mColumnNames, snapshot.mRows.length);
+            mSnapshot = snapshot;
+        }
+
+        @Override
+        public String getString(int column) {
+            /* Checks the position and the column first */
+            String value = super.getString(column);
+            String realString = mSnapshot.mRealStrings[getPosition()][column];
+            return realString != null ? realString : value;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
+import android.util.Log;
+
+import com.example.android.sunshine.data.HourlyBatch;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+import com.example.android.sunshine.utilities.TransferStats;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.concurrent.Callable;
+
+/**
+ * Downloads the forecast of one location and merges it into the stored forecast of that
+ * location. {@link LocationSyncEngine} runs one of these per location, several at a time.
+ * <p>
+ * If the hourly forecast is synced too, it is downloaded after the daily one and replaces the
+ * stored hourly forecast of the location as a whole.
+ * <p>
+ * A location whose download or parsing fails records the error and leaves its stored forecast
+ * alone. It never keeps the other locations from being synced. Only a cancellation is passed on
+ * to the caller.
+ */
+class LocationSync implements Callable<Void> {
+
+    private static final String TAG = LocationSync.class.getSimpleName();
+
+    private final Context mContext;
+    private final long mLocationId;
+    private final URL mUrl;
+    private final Uri mWeatherUri;
+    private final URL mHourlyUrl;
+    private final Uri mHourlyUri;
+    private final CancellationSignal mCancellationSignal;
+
+    private final TransferStats mTransferStats = new TransferStats();
+    private final TransferStats mHourlyTransferStats = new TransferStats();
+    private boolean mModified;
+    private int mRowsChanged;
+    private int mHourlyRowsChanged;
+    private long mWriteMillis;
+    private Exception mError;
+
+    /**
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param locationId         _ID of the location, or the preferred location
+     * @param url                The URL of the location's forecast
+     * @param weatherUri         The URI the location's forecast is stored at
+     * @param hourlyUrl          The URL of the location's hourly forecast, or null if the
+     *                           hourly forecast isn't synced
+     * @param hourlyUri          The URI the location's hourly forecast is stored at, or null
+     * @param cancellationSignal Stops the sync before anything is written, and disconnects
+     *                           the download that is in flight. Must not be shared with another
+     *                           location, as each download sets its cancel listener.
+     */
+    LocationSync(Context context, long locationId, URL url, Uri weatherUri,
+            URL hourlyUrl, Uri hourlyUri, CancellationSignal cancellationSignal) {
+        mContext = context;
+        mLocationId = locationId;
+        mUrl = url;
+        mWeatherUri = weatherUri;
+        mHourlyUrl = hourlyUrl;
+        mHourlyUri = hourlyUri;
+        mCancellationSignal = cancellationSignal;
+    }
+
+    @Override
+    public Void call() {
+        try {
+            mCancellationSignal.throwIfCanceled();
+
+            /*
+             * The server is asked to answer "304 Not Modified" if the forecast hasn't changed
+             * since our last download. That only makes sense while we still hold that forecast,
+             * so without any stored rows we make sure the request is unconditional.
+             */
+            if (!hasForecastFromToday()) {
+                NetworkUtils.clearResponseValidators(mContext, mUrl);
+            }
+
+            /*
+             * Use the URL to stream the JSON. Each day is parsed into a compact batch as it
+             * arrives, without buffering the whole response first. Once the response has been
+             * read, the batch is merged into the location's stored forecast in a transaction of
+             * its own, which only writes the days that changed. The merge is part of handling
+             * the response, so a forecast that failed to be written is downloaded in full again
+             * next time. Its time is measured on its own, to tell it apart from the parsing.
+             */
+            final WeatherStreamWriter weatherWriter =
+                    new WeatherStreamWriter(mContext, mCancellationSignal, mLocationId);
+            mModified = NetworkUtils.readResponseFromHttpUrl(mContext, mUrl,
+                    new NetworkUtils.ResponseHandler() {
+                        @Override
+                        public void onResponse(InputStream in) throws IOException {
+                            OpenWeatherJsonUtils.readWeatherBatchFromStream(
+                                    in, weatherWriter.getBatch(), weatherWriter);
+                            long writeStartMillis = SystemClock.elapsedRealtime();
+                            weatherWriter.finish();
+                            mWriteMillis += SystemClock.elapsedRealtime() - writeStartMillis;
+                        }
+                    },
+                    mTransferStats,
+                    mCancellationSignal);
+            mRowsChanged = weatherWriter.getRowsChanged();
+
+            Log.d(TAG, "Location " + mLocationId + " transfer: " + mTransferStats);
+
+            if (mHourlyUrl != null) {
+                syncHourlyForecast();
+            }
+
+        } catch (OperationCanceledException e) {
+            /* Not an error of this location. The caller has to learn that the sync stopped. */
+            throw e;
+        } catch (Exception e) {
+            /* Server probably invalid */
+            Log.e(TAG, "Sync of location " + mLocationId + " failed", e);
+            mError = e;
+        }
+        return null;
+    }
+
+    /**
+     * Downloads the hourly forecast and replaces the stored one with it. The forecast is parsed
+     * straight from the response into a columnar batch, which is written with a single call.
+     * A failure here is logged but doesn't fail the location, as its daily forecast is already
+     * stored.
+     */
+    private void syncHourlyForecast() {
+        try {
+            mCancellationSignal.throwIfCanceled();
+
+            if (!hasHourlyForecast()) {
+                NetworkUtils.clearResponseValidators(mContext, mHourlyUrl);
+            }
+
+            final HourlyBatch batch = new HourlyBatch();
+            NetworkUtils.readResponseFromHttpUrl(mContext, mHourlyUrl,
+                    new NetworkUtils.ResponseHandler() {
+                        @Override
+                        public void onResponse(InputStream in) throws IOException {
+                            OpenWeatherJsonUtils.readHourlyBatchFromStream(in, batch,
+                                    new OpenWeatherJsonUtils.HourlyBatchHandler() {
+                                        @Override
+                                        public void onStepRead(HourlyBatch steps) {
+                                            mCancellationSignal.throwIfCanceled();
+                                        }
+                                    });
+                        }
+                    },
+                    mHourlyTransferStats,
+                    mCancellationSignal);
+
+            /* An error code or an unchanged forecast leave the batch empty */
+            if (batch.size() != 0) {
+                mCancellationSignal.throwIfCanceled();
+
+                Bundle extras = batch.toBundle();
+                extras.putLong(WeatherContract.KEY_LOCATION_ID, mLocationId);
+                long writeStartMillis = SystemClock.elapsedRealtime();
+                Bundle result = mContext.getContentResolver().call(
+                        mHourlyUri,
+                        WeatherContract.METHOD_REPLACE_HOURLY_FORECAST,
+                        null,
+                        extras);
+                mWriteMillis += SystemClock.elapsedRealtime() - writeStartMillis;
+                if (result != null) {
+                    mHourlyRowsChanged = result.getInt(WeatherContract.KEY_ROW_COUNT)
+                            + result.getInt(WeatherContract.KEY_DELETED_COUNT);
+                }
+            }
+
+            Log.d(TAG, "Location " + mLocationId + " hourly transfer: " + mHourlyTransferStats);
+
+        } catch (OperationCanceledException e) {
+            throw e;
+        } catch (Exception e) {
+            Log.e(TAG, "Hourly sync of location " + mLocationId + " failed", e);
+        }
+    }
+
+    long getLocationId() {
+        return mLocationId;
+    }
+
+    /**
+     * @return true if a new forecast was downloaded, false if the server reported that it did
+     * not change or the download failed
+     */
+    boolean isModified() {
+        return mModified;
+    }
+
+    /**
+     * @return The number of rows the merge inserted, updated or deleted
+     */
+    int getRowsChanged() {
+        return mRowsChanged;
+    }
+
+    /**
+     * @return The encoding, sizes and timings of the download
+     */
+    TransferStats getTransferStats() {
+        return mTransferStats;
+    }
+
+    /**
+     * @return The number of rows of the hourly forecast that were replaced
+     */
+    int getHourlyRowsChanged() {
+        return mHourlyRowsChanged;
+    }
+
+    /**
+     * @return The encoding, sizes and timings of the hourly download, all zero if the hourly
+     * forecast isn't synced
+     */
+    TransferStats getHourlyTransferStats() {
+        return mHourlyTransferStats;
+    }
+
+    /**
+     * @return The time it took to write the daily and the hourly forecast to the database
+     */
+    long getWriteMillis() {
+        return mWriteMillis;
+    }
+
+    /**
+     * @return The time it took to parse the daily and the hourly forecast
+     */
+    long getParseMillis() {
+        /* The daily forecast is written while its response is being handled */
+        return Math.max(0, mTransferStats.getHandlerMillis()
+                + mHourlyTransferStats.getHandlerMillis() - mWriteMillis);
+    }
+
+    /**
+     * @return The time spent waiting for the network: connecting, waiting for the first byte
+     * and reading both forecasts, including decompression
+     */
+    long getNetworkMillis() {
+        return getNetworkMillis(mTransferStats) + getNetworkMillis(mHourlyTransferStats);
+    }
+
+    private static long getNetworkMillis(TransferStats stats) {
+        return stats.getConnectMillis() + stats.getTimeToFirstByteMillis()
+                + Math.max(0, stats.getDownloadMillis() - stats.getHandlerMillis());
+    }
+
+    /**
+     * @return The reason the sync failed, or null if it succeeded
+     */
+    Exception getError() {
+        return mError;
+    }
+
+    /**
+     * Checks whether the location's forecast holds any weather from today onwards.
+     *
+     * @return true if there is at least one row of weather for today or later
+     */
+    private boolean hasForecastFromToday() {
+        /* One row is enough to know, so don't let the provider look for more */
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.buildPageUri(mWeatherUri, 1, 0),
+                new String[]{WeatherContract.WeatherEntry._ID},
+                WeatherContract.WeatherEntry.getSqlSelectForTodayOnwards(),
+                null,
+                null);
+
+        if (cursor == null) return false;
+
+        boolean hasForecast = cursor.getCount() != 0;
+        cursor.close();
+        return hasForecast;
+    }
+
+    /**
+     * Checks whether the location's hourly forecast holds any step that hasn't passed yet.
+     *
+     * @return true if at least one stored step ends after now
+     */
+    private boolean hasHourlyForecast() {
+        long currentStepStart = System.currentTimeMillis()
+                - WeatherContract.HourlyEntry.STEP_MILLIS;
+        Cursor cursor = mContext.getContentResolver().query(
+                mHourlyUri,
+                new String[]{WeatherContract.HourlyEntry._ID},
+                WeatherContract.HourlyEntry.COLUMN_TIME + " > ?",
+                new String[]{Long.toString(currentStepStart)},
+                null);
+
+        if (cursor == null) return false;
+
+        boolean hasForecast = cursor.getCount() != 0;
+        cursor.close();
+        return hasForecast;
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.v4.os.CancellationSignal;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.utilities.NetworkUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Syncs the forecasts of every location Sunshine keeps: the one chosen in the settings and each
+ * location in the location table.
+ * <p>
+ * Most of the time of a sync is spent waiting for the server, so the forecasts are downloaded in
+ * parallel, at most {@link #MAX_PARALLEL_DOWNLOADS} at a time. With no more locations than that,
+ * a sync takes about as long as its slowest download rather than the sum of all of them. Each
+ * location is written in a transaction of its own as soon as its download is done, so a slow
+ * location never holds up the others, and a failed one leaves the others intact.
+ * <p>
+ * Every location gets a cancellation signal of its own, since a signal has room for a single
+ * cancel listener and each download needs one to disconnect its connection. Cancelling the
+ * signal of the sync cancels all of them.
+ */
+final class LocationSyncEngine {
+
+    /*
+     * Enough to hide the latency of the server for a handful of locations, without opening so
+     * many connections that they compete for a slow mobile network.
+     */
+    static final int MAX_PARALLEL_DOWNLOADS = 4;
+
+    /* Download threads that are idle for this long are stopped, so an idle app holds none */
+    private static final long IDLE_THREAD_TIMEOUT_SECONDS = 30;
+
+    private static final String[] LOCATION_PROJECTION = {
+            LocationEntry._ID,
+            LocationEntry.COLUMN_LOCATION_QUERY,
+    };
+
+    private static final int INDEX_LOCATION_ID = 0;
+    private static final int INDEX_LOCATION_QUERY = 1;
+
+    private static ThreadPoolExecutor sDownloadExecutor;
+
+    private LocationSyncEngine() {
+    }
+
+    /**
+     * Syncs every location and waits until all of them are done.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param cancellationSignal Stops every location's sync before it writes anything, and
+     *                           disconnects the downloads that are in flight
+     * @return The sync of each location. The first one is always the location chosen in the
+     * settings.
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     * @throws android.support.v4.os.OperationCanceledException If the sync was cancelled
+     */
+    static List<LocationSync> syncAllLocations(Context context,
+            CancellationSignal cancellationSignal) throws InterruptedException {
+
+        final List<CancellationSignal> locationSignals = new ArrayList<CancellationSignal>();
+
+        /* The hourly forecast is only downloaded if it was turned on */
+        boolean syncHourly = SunshinePreferences.isHourlyForecastEnabled(context);
+
+        List<LocationSync> locationSyncs = new ArrayList<LocationSync>();
+        locationSyncs.add(new LocationSync(context,
+                LocationEntry.PREFERRED_LOCATION_ID,
+                NetworkUtils.getUrl(context),
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                syncHourly ? NetworkUtils.getHourlyUrl(context) : null,
+                syncHourly ? WeatherContract.HourlyEntry.CONTENT_URI : null,
+                newLocationSignal(locationSignals)));
+
+        Cursor cursor = context.getContentResolver().query(
+                LocationEntry.CONTENT_URI, LOCATION_PROJECTION, null, null, null);
+        if (cursor != null) {
+            try {
+                while (cursor.moveToNext()) {
+                    long locationId = cursor.getLong(INDEX_LOCATION_ID);
+                    String locationQuery = cursor.getString(INDEX_LOCATION_QUERY);
+                    locationSyncs.add(new LocationSync(context,
+                            locationId,
+                            NetworkUtils.getUrlForLocationQuery(locationQuery),
+                            LocationEntry.buildWeatherUri(locationId),
+                            syncHourly
+                                    ? NetworkUtils.getHourlyUrlForLocationQuery(locationQuery)
+                                    : null,
+                            syncHourly ? LocationEntry.buildHourlyUri(locationId) : null,
+                            newLocationSignal(locationSignals)));
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /* Runs right away if the sync was already cancelled */
+        cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                for (CancellationSignal locationSignal : locationSignals) {
+                    locationSignal.cancel();
+                }
+            }
+        });
+        try {
+            if (locationSyncs.size() == 1) {
+                /* Nothing to run in parallel, so don't hand the work to another thread */
+                locationSyncs.get(0).call();
+            } else {
+                getDownloadExecutor().invokeAll(locationSyncs);
+            }
+        } finally {
+            cancellationSignal.setOnCancelListener(null);
+        }
+
+        /* A cancelled location sync only tells its Future, so ask the signal itself */
+        cancellationSignal.throwIfCanceled();
+        return locationSyncs;
+    }
+
+    private static CancellationSignal newLocationSignal(List<CancellationSignal> locationSignals) {
+        CancellationSignal locationSignal = new CancellationSignal();
+        locationSignals.add(locationSignal);
+        return locationSignal;
+    }
+
+    private static synchronized ThreadPoolExecutor getDownloadExecutor() {
+        if (sDownloadExecutor == null) {
+            final AtomicInteger threadCount = new AtomicInteger();
+            sDownloadExecutor = new ThreadPoolExecutor(
+                    MAX_PARALLEL_DOWNLOADS,
+                    MAX_PARALLEL_DOWNLOADS,
+                    IDLE_THREAD_TIMEOUT_SECONDS,
+                    TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        @Override
+                        public Thread newThread(@NonNull final Runnable runnable) {
+                            return new Thread(new Runnable() {
+                                @Override
+                                public void run() {
+                                    Process.setThreadPriority(
+                                            Process.THREAD_PRIORITY_BACKGROUND);
+                                    runnable.run();
+                                }
+                            }, "SunshineDownload-" + threadCount.incrementAndGet());
+                        }
+                    });
+            sDownloadExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sDownloadExecutor;
+    }
+}
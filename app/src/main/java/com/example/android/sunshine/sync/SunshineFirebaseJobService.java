@@ -15,8 +15,7 @@
  */
 package com.example.android.sunshine.sync;
 
-import android.content.Context;
-import android.os.AsyncTask;
+import android.os.Bundle;
 
 import com.firebase.jobdispatcher.Job;
 import com.firebase.jobdispatcher.JobParameters;
@@ -26,7 +25,14 @@ import com.firebase.jobdispatcher.RetryStrategy;
 
 public class SunshineFirebaseJobService extends JobService {
 
-    private AsyncTask<Void, Void, Void> mFetchWeatherTask;
+    /* Set in the Job's extras if it runs ahead of a usual time to open the app */
+    static final String EXTRA_PREFETCH = "prefetch";
+
+    /* Set in the Job's extras if it attempts the queued sync requests, see SyncRequestQueue */
+    static final String EXTRA_QUEUED_PRIORITY = "queued_priority";
+
+    /* Ticket of the sync requested by the running job, 0 while no job is running */
+    private long mSyncTicket;
 
     /**
      * The entry point to your Job. Implementations should offload work to another thread of
@@ -41,22 +47,46 @@ public class SunshineFirebaseJobService extends JobService {
     @Override
     public boolean onStartJob(final JobParameters jobParameters) {
 
-        mFetchWeatherTask = new AsyncTask<Void, Void, Void>(){
-            @Override
-            protected Void doInBackground(Void... voids) {
-                Context context = getApplicationContext();
-                SunshineSyncTask.syncWeather(context);
-                jobFinished(jobParameters, false);
-                return null;
-            }
+        /*
+         * If another sync brought in the forecast a short while ago, this one would only
+         * download what we already have. Plan the next one instead and tell the Job Dispatcher
+         * that we are done. A prefetch was only planned because the forecast would be old by
+         * the time the user opens the app, so it always runs. So does a queued request, whose
+         * sync is known not to have succeeded yet.
+         */
+        Bundle extras = jobParameters.getExtras();
+        boolean prefetch = extras != null && extras.getBoolean(EXTRA_PREFETCH);
+        boolean queued = extras != null && extras.containsKey(EXTRA_QUEUED_PRIORITY);
+        if (!prefetch && !queued && SyncSchedule.isDataFresh(this)) {
+            SunshineSyncUtils.scheduleFirebaseJobDispatcherSync(this);
+            return false;
+        }
 
+        /*
+         * The sync runs on the coordinator's own worker thread, merged with any sync that is
+         * already queued or running, so nothing here needs a thread of its own. The callback
+         * tells the Job Dispatcher that we are done, exactly once, unless the job is stopped
+         * first.
+         */
+        final SunshineSyncCoordinator coordinator =
+                SunshineSyncCoordinator.getInstance(getApplicationContext());
+        final long ticket = coordinator.requestSync(queued
+                ? extras.getInt(EXTRA_QUEUED_PRIORITY)
+                : SunshineSyncCoordinator.PRIORITY_PERIODIC);
+        synchronized (this) {
+            mSyncTicket = ticket;
+        }
+        coordinator.runWhenComplete(ticket, new Runnable() {
             @Override
-            protected void onPostExecute(Void aVoid) {
+            public void run() {
+                synchronized (SunshineFirebaseJobService.this) {
+                    if (mSyncTicket == ticket) {
+                        mSyncTicket = 0;
+                    }
+                }
                 jobFinished(jobParameters, false);
             }
-        };
-
-        mFetchWeatherTask.execute();
+        });
         return true;
     }
 
@@ -70,9 +100,25 @@ public class SunshineFirebaseJobService extends JobService {
      */
     @Override
     public boolean onStopJob(JobParameters jobParameters) {
-        if (mFetchWeatherTask != null) {
-            mFetchWeatherTask.cancel(true);
+        long ticket;
+        synchronized (this) {
+            ticket = mSyncTicket;
+            mSyncTicket = 0;
         }
-        return true;
+        if (ticket != 0) {
+            /*
+             * Cancels the sync if nobody but us is waiting for it. That disconnects its downloads
+             * and keeps it from writing anything it hasn't started to write.
+             */
+            SunshineSyncCoordinator.getInstance(getApplicationContext()).stopSync(ticket);
+        }
+
+        /*
+         * Every job is a single run, and the sync plans the next one when it ends. A sync that
+         * was still queued never runs, so plan it here. Replacing the job is all the retry we
+         * want, so the Job Dispatcher must not retry this one on top of it.
+         */
+        SunshineSyncUtils.scheduleFirebaseJobDispatcherSync(this);
+        return false;
     }
 }
\ No newline at end of file
@@ -0,0 +1,388 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.os.Process;
+import android.support.annotation.NonNull;
+import android.support.v4.os.CancellationSignal;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs every sync of Sunshine's weather on one worker thread, one at a time, and merges sync
+ * requests that pile up into as few executions as possible.
+ * <p>
+ * Syncs are requested from several places: the periodic job, the app's first launch, a change of
+ * location in the settings and the wearable asking for fresh data. Every request that arrives
+ * while a sync is already queued is merged into that queued sync. A request that arrives while a
+ * sync is running is normally merged into the running one, since that sync is about to produce
+ * exactly the data the request is asking for.
+ * <p>
+ * The exception is a request made by the user. The user may have just changed the location, so
+ * a sync that started before the request may download a forecast for the wrong place. A user
+ * request therefore cancels a running periodic or wearable sync and queues a new one. If the
+ * running sync was requested by the user as well, it is allowed to finish and a second sync is
+ * queued behind it.
+ * <p>
+ * Each request gets a ticket. Callers that need to know when the data has arrived can wait for
+ * their ticket with {@link #awaitCompletion(long)}, or, like a JobService that must not block
+ * the main thread, be called back with {@link #runWhenComplete(long, Runnable)}.
+ * <p>
+ * A periodic request can be taken back with {@link #stopSync(long)} when the job that made it
+ * is stopped. The running sync is cancelled only if nobody else is waiting for it. The cancel
+ * reaches into the open HTTP connections, so a sync that is stuck in a slow download stops right
+ * away rather than after the read timeout.
+ */
+public final class SunshineSyncCoordinator {
+
+    private static final String TAG = SunshineSyncCoordinator.class.getSimpleName();
+
+    /* A regular refresh scheduled by the job dispatcher */
+    public static final int PRIORITY_PERIODIC = 0;
+    /* The wearable asked for fresh data */
+    public static final int PRIORITY_WEAR = 1;
+    /* The user is waiting for the data, or just changed what should be synced */
+    public static final int PRIORITY_USER = 2;
+
+    private static final int NO_PRIORITY = -1;
+
+    /* What every sync runs, unless a test hands the coordinator something else */
+    private static final SyncRunner SUNSHINE_SYNC_TASK = new SyncRunner() {
+        @Override
+        public void runSync(Context context, CancellationSignal cancellationSignal) {
+            SunshineSyncTask.syncWeather(context, cancellationSignal);
+        }
+    };
+
+    private static SunshineSyncCoordinator sInstance;
+
+    private final Context mContext;
+    private final SyncRunner mSyncRunner;
+    private final ExecutorService mWorker;
+
+    /* Highest priority of the requests waiting for the next sync, NO_PRIORITY if none is queued */
+    private int mPendingPriority = NO_PRIORITY;
+    /* True while a task that runs the queued syncs has been handed to the worker */
+    private boolean mWorkerScheduled;
+
+    /* The sync that is running right now, null while the worker is idle */
+    private CancellationSignal mRunningSignal;
+    private int mRunningPriority = NO_PRIORITY;
+
+    /* The ticket handed out with the last request */
+    private long mLastTicket;
+    /* The last ticket that the running sync will satisfy once it finishes */
+    private long mRunningCoversTicket;
+    /* Every ticket up to this one belongs to a sync that has finished or was stopped */
+    private long mCompletedTicket;
+    /* True once the running sync was stopped by the job that asked for it */
+    private boolean mRunningStopped;
+
+    /* Callbacks waiting for their ticket to complete */
+    private final List<TicketCallback> mCallbacks = new ArrayList<TicketCallback>();
+
+    /**
+     * Creates a coordinator with a worker thread of its own. The app shares the one returned by
+     * {@link #getInstance(Context)}, tests create their own to run something other than the real
+     * sync.
+     *
+     * @param context    Any Context, only its application Context is kept
+     * @param syncRunner Runs each sync on the worker thread
+     */
+    SunshineSyncCoordinator(Context context, SyncRunner syncRunner) {
+        mContext = context.getApplicationContext();
+        mSyncRunner = syncRunner;
+        mWorker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull final Runnable runnable) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        runnable.run();
+                    }
+                }, "SunshineSync");
+            }
+        });
+    }
+
+    /**
+     * @param context Any Context, only its application Context is kept
+     * @return The coordinator that is shared by the whole process
+     */
+    public static synchronized SunshineSyncCoordinator getInstance(@NonNull Context context) {
+        if (sInstance == null) {
+            sInstance = new SunshineSyncCoordinator(context, SUNSHINE_SYNC_TASK);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Asks for the weather to be synced. Returns immediately, the sync runs on the coordinator's
+     * worker thread.
+     *
+     * @param priority One of {@link #PRIORITY_PERIODIC}, {@link #PRIORITY_WEAR} or
+     *                 {@link #PRIORITY_USER}
+     * @return A ticket that can be passed to {@link #awaitCompletion(long)}
+     */
+    public synchronized long requestSync(int priority) {
+        if (priority < PRIORITY_PERIODIC || priority > PRIORITY_USER) {
+            throw new IllegalArgumentException("Unknown sync priority: " + priority);
+        }
+        long ticket = ++mLastTicket;
+
+        if (mRunningSignal != null && mPendingPriority == NO_PRIORITY) {
+            if (priority == PRIORITY_USER && mRunningPriority < PRIORITY_USER) {
+                /* The running sync may be for stale settings. Stop it and start over. */
+                Log.d(TAG, "Sync with priority " + mRunningPriority
+                        + " preempted by a user request");
+                mRunningSignal.cancel();
+            } else if (priority < PRIORITY_USER && !mRunningStopped) {
+                /*
+                 * The running sync is about to deliver exactly what was asked for. It now has to
+                 * keep running for this request too, even if the one that started it is stopped.
+                 */
+                mRunningCoversTicket = ticket;
+                mRunningPriority = Math.max(mRunningPriority, priority);
+                return ticket;
+            }
+        }
+
+        /* Merge with whatever is already queued, keeping the highest priority */
+        mPendingPriority = Math.max(mPendingPriority, priority);
+        if (!mWorkerScheduled) {
+            mWorkerScheduled = true;
+            mWorker.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runPendingSyncs();
+                }
+            });
+        }
+        return ticket;
+    }
+
+    /**
+     * Requests a sync and blocks until the data it asked for has been synced. Must not be called
+     * on the main thread.
+     *
+     * @param priority One of the PRIORITY constants
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    public void requestSyncAndWait(int priority) throws InterruptedException {
+        awaitCompletion(requestSync(priority));
+    }
+
+    /**
+     * Blocks until a sync that started after the given ticket was handed out has finished, or
+     * until a running sync the ticket was merged into has finished. Must not be called on the
+     * main thread.
+     *
+     * @param ticket A ticket returned by {@link #requestSync(int)}
+     * @return false if the ticket was not issued by this process, in which case nothing waits for
+     * it and the caller should request a sync of its own
+     * @throws InterruptedException If the calling thread is interrupted while waiting
+     */
+    public synchronized boolean awaitCompletion(long ticket) throws InterruptedException {
+        if (ticket <= 0 || ticket > mLastTicket) {
+            return false;
+        }
+        while (mCompletedTicket < ticket) {
+            wait();
+        }
+        return true;
+    }
+
+    /**
+     * Runs the callback once the given ticket has completed, like
+     * {@link #awaitCompletion(long)} would return, but without blocking. The callback runs on
+     * the coordinator's worker thread, or right away on the calling thread if the ticket has
+     * already completed. It is run at most once.
+     *
+     * @param ticket   A ticket returned by {@link #requestSync(int)}
+     * @param callback What to run once the ticket has completed
+     * @return false if the ticket was not issued by this process, in which case the callback is
+     * never run
+     */
+    public boolean runWhenComplete(long ticket, @NonNull Runnable callback) {
+        synchronized (this) {
+            if (ticket <= 0 || ticket > mLastTicket) {
+                return false;
+            }
+            if (mCompletedTicket < ticket) {
+                mCallbacks.add(new TicketCallback(ticket, callback));
+                return true;
+            }
+        }
+        callback.run();
+        return true;
+    }
+
+    /**
+     * Takes back a periodic request, because the job that made it was stopped. Its callback, if
+     * any, is dropped and won't run. If the sync for the ticket is queued and no other request
+     * is waiting for it, it is taken out of the queue. If it is running and was asked for by
+     * periodic requests only, it is cancelled. A sync that a wearable or the user is waiting for
+     * runs to the end either way.
+     *
+     * @param ticket A ticket returned by {@link #requestSync(int)} for
+     *               {@link #PRIORITY_PERIODIC}
+     * @return true if the sync was stopped before it could deliver its data
+     */
+    public boolean stopSync(long ticket) {
+        List<Runnable> released;
+        synchronized (this) {
+            for (int i = mCallbacks.size() - 1; i >= 0; i--) {
+                if (mCallbacks.get(i).mTicket == ticket) {
+                    mCallbacks.remove(i);
+                }
+            }
+            if (ticket <= mCompletedTicket || ticket > mLastTicket) {
+                return false;
+            }
+
+            if (mRunningSignal != null && ticket <= mRunningCoversTicket) {
+                if (mRunningPriority != PRIORITY_PERIODIC) {
+                    return false;
+                }
+                Log.d(TAG, "Periodic sync stopped");
+                mRunningStopped = true;
+                /* Disconnects the downloads that are in flight, see LocationSyncEngine */
+                mRunningSignal.cancel();
+                return true;
+            }
+
+            /* A queued sync behind a running one may be for somebody else, leave it alone */
+            if (mRunningSignal != null || mPendingPriority != PRIORITY_PERIODIC) {
+                return false;
+            }
+            Log.d(TAG, "Queued periodic sync dropped");
+            mPendingPriority = NO_PRIORITY;
+            released = completeTickets(mLastTicket);
+        }
+        runCallbacks(released);
+        return true;
+    }
+
+    /**
+     * Marks every ticket up to the given one as completed and wakes up whoever waits for them.
+     * Must be called while holding the lock.
+     *
+     * @return The callbacks of those tickets, to be run once the lock has been released
+     */
+    private List<Runnable> completeTickets(long ticket) {
+        mCompletedTicket = Math.max(mCompletedTicket, ticket);
+        notifyAll();
+
+        List<Runnable> released = new ArrayList<Runnable>();
+        for (int i = 0; i < mCallbacks.size(); ) {
+            TicketCallback callback = mCallbacks.get(i);
+            if (callback.mTicket <= mCompletedTicket) {
+                released.add(callback.mCallback);
+                mCallbacks.remove(i);
+            } else {
+                i++;
+            }
+        }
+        return released;
+    }
+
+    private static void runCallbacks(List<Runnable> callbacks) {
+        for (Runnable callback : callbacks) {
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                /* Someone else's bug must not keep the next sync from running */
+                Log.e(TAG, "Sync callback failed", e);
+            }
+        }
+    }
+
+    /**
+     * Runs on the worker thread until no sync is left in the queue.
+     */
+    private void runPendingSyncs() {
+        while (true) {
+            CancellationSignal cancellationSignal;
+            int priority;
+            synchronized (this) {
+                if (mPendingPriority == NO_PRIORITY) {
+                    mWorkerScheduled = false;
+                    return;
+                }
+                priority = mPendingPriority;
+                mPendingPriority = NO_PRIORITY;
+
+                cancellationSignal = new CancellationSignal();
+                mRunningSignal = cancellationSignal;
+                mRunningPriority = priority;
+                mRunningCoversTicket = mLastTicket;
+                mRunningStopped = false;
+            }
+
+            try {
+                mSyncRunner.runSync(mContext, cancellationSignal);
+            } catch (RuntimeException e) {
+                /* Keep the worker alive, otherwise no sync would ever run again */
+                Log.e(TAG, "Sync failed", e);
+            } finally {
+                List<Runnable> released;
+                synchronized (this) {
+                    mRunningSignal = null;
+                    mRunningPriority = NO_PRIORITY;
+                    /*
+                     * A sync cancelled by a user request satisfies nobody. The request that
+                     * cancelled it is already queued, and the sync it starts will cover every
+                     * ticket issued until then. A sync that was stopped by its job only had
+                     * periodic requests waiting for it, and the next periodic sync is already
+                     * planned, so those are let go.
+                     */
+                    if (!cancellationSignal.isCanceled() || mRunningStopped) {
+                        released = completeTickets(mRunningCoversTicket);
+                    } else {
+                        released = new ArrayList<Runnable>();
+                        notifyAll();
+                    }
+                    mRunningStopped = false;
+                }
+                runCallbacks(released);
+            }
+        }
+    }
+
+    /**
+     * Runs one sync. It should return soon after the signal is cancelled.
+     */
+    interface SyncRunner {
+        void runSync(Context context, CancellationSignal cancellationSignal);
+    }
+
+    private static final class TicketCallback {
+        final long mTicket;
+        final Runnable mCallback;
+
+        TicketCallback(long ticket, Runnable callback) {
+            mTicket = ticket;
+            mCallback = callback;
+        }
+    }
+}
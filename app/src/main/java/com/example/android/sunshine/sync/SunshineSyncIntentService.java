@@ -17,6 +17,8 @@ package com.example.android.sunshine.sync;
 
 import android.app.IntentService;
 import android.content.Intent;
+import android.database.SQLException;
+import android.util.Log;
 
 /**
  * An {@link IntentService} subclass for handling asynchronous task requests in
@@ -24,12 +26,59 @@ import android.content.Intent;
  */
 public class SunshineSyncIntentService extends IntentService {
 
+    private static final String TAG = SunshineSyncIntentService.class.getSimpleName();
+
+    /*
+     * The sync itself runs on the SunshineSyncCoordinator's worker. This service writes the
+     * request to the SyncRequestQueue and keeps the process alive until the sync it was started
+     * for is done.
+     */
+    static final String EXTRA_SYNC_TICKET = "sync_ticket";
+    static final String EXTRA_SYNC_PRIORITY = "sync_priority";
+    static final String EXTRA_REQUESTED_TIME = "requested_time";
+
     public SunshineSyncIntentService() {
         super("SunshineSyncIntentService");
+
+        /*
+         * Should our process die before a request has been handled, the system starts the
+         * service again with the same Intent. Once the request is in the queue, the queue
+         * takes care of it.
+         */
+        setIntentRedelivery(true);
     }
 
     @Override
     protected void onHandleIntent(Intent intent) {
-        SunshineSyncTask.syncWeather(this);
+        SunshineSyncCoordinator coordinator = SunshineSyncCoordinator.getInstance(this);
+        long ticket = intent.getLongExtra(EXTRA_SYNC_TICKET, 0);
+        int priority = intent.getIntExtra(EXTRA_SYNC_PRIORITY,
+                SunshineSyncCoordinator.PRIORITY_USER);
+        long requestedTime = intent.getLongExtra(EXTRA_REQUESTED_TIME,
+                System.currentTimeMillis());
+
+        /*
+         * The sync has most likely started already. If it ends before the request is in the
+         * queue, the request stays queued and is attempted once more later, which costs little
+         * as the server answers "304 Not Modified" for a forecast we already have.
+         */
+        try {
+            SyncRequestQueue.enqueue(this, priority, requestedTime);
+        } catch (SQLException e) {
+            /* The sync runs anyway, it just won't be retried */
+            Log.w(TAG, "Sync request not queued", e);
+        }
+
+        try {
+            /*
+             * If our process was restarted since the sync was requested, the ticket means
+             * nothing to the new coordinator and we have to ask for the sync again.
+             */
+            if (!coordinator.awaitCompletion(ticket)) {
+                coordinator.requestSyncAndWait(priority);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 }
\ No newline at end of file
@@ -15,22 +15,28 @@
  */
 package com.example.android.sunshine.sync;
 
-import android.content.ContentResolver;
-import android.content.ContentValues;
 import android.content.Context;
+import android.database.SQLException;
+import android.os.Bundle;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 import android.text.format.DateUtils;
+import android.util.Log;
 
 import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherBatch;
 import com.example.android.sunshine.data.WeatherContract;
-import com.example.android.sunshine.utilities.NetworkUtils;
+import com.example.android.sunshine.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.utilities.ForecastPresentationTable;
 import com.example.android.sunshine.utilities.NotificationUtils;
-import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
 import com.example.android.sunshine.utilities.WearUtils;
 
-import java.net.URL;
+import java.util.List;
 
 public class SunshineSyncTask {
 
+    private static final String TAG = SunshineSyncTask.class.getSimpleName();
+
     /**
      * Performs the network request for updated weather, parses the JSON from that request, and
      * inserts the new weather information into our ContentProvider. Will notify the user that new
@@ -39,80 +45,242 @@ public class SunshineSyncTask {
      *
      * @param context Used to access utility methods and the ContentResolver
      */
-    synchronized public static void syncWeather(Context context) {
+    synchronized public static void syncWeather(final Context context) {
+        syncWeather(context, new CancellationSignal());
+    }
+
+    /**
+     * Same as {@link #syncWeather(Context)}, but gives up as soon as possible once the signal is
+     * cancelled. Cancelling only takes effect until the stored forecast starts being replaced.
+     * From then on the sync runs to the end, so the forecast is never left half written.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param cancellationSignal Cancelled by {@link SunshineSyncCoordinator} when a more
+     *                           important sync should take this one's place
+     */
+    synchronized public static void syncWeather(final Context context,
+            final CancellationSignal cancellationSignal) {
 
+        /*
+         * The sync runs in stages, one after the other. The record keeps track of how long each
+         * of them takes, what they download and write, and how the sync ends.
+         */
+        SyncRecord record = new SyncRecord();
         try {
+            cancellationSignal.throwIfCanceled();
+
+            record.startStage(SyncMetricsEntry.STAGE_FETCH);
+            /*
+             * Remember what the forecast of the location chosen in the settings looks like now,
+             * so we can tell afterwards how much the sync changed it.
+             */
+            WeatherBatch forecastBefore = getForecastSnapshot(context);
+            List<LocationSync> locationSyncs = fetch(context, cancellationSignal, record);
+
+            if (SunshinePreferences.isArchiveEnabled(context)) {
+                record.startStage(SyncMetricsEntry.STAGE_ARCHIVE);
+                record.addRowsChanged(compactArchive(context, cancellationSignal));
+            }
+
+            if (record.getRowsChanged() != 0) {
+                record.startStage(SyncMetricsEntry.STAGE_CHECKPOINT);
+                checkpoint(context);
+            }
+
+            record.startStage(SyncMetricsEntry.STAGE_PUBLISH);
+            publish(context, forecastBefore, locationSyncs.get(0));
+
+        } catch (OperationCanceledException e) {
+            /* A more important sync is about to take our place */
+            Log.d(TAG, "Sync cancelled");
+            record.cancel();
+        } catch (InterruptedException e) {
+            /* Let whoever interrupted us see it */
+            Thread.currentThread().interrupt();
+            record.cancel();
+        } catch (Exception e) {
+            /* Server probably invalid */
+            Log.e(TAG, "Sync failed", e);
+            record.fail(e);
+        } finally {
+            record.finish();
+            Log.d(TAG, "Sync: " + record);
+            try {
+                record.save(context);
+            } catch (SQLException e) {
+                /* Losing a record is no reason to lose the sync */
+                Log.w(TAG, "Sync record not saved", e);
+            }
+
+            /* Let the queued requests know whether they were served or need another attempt */
+            try {
+                SyncRequestQueue.onSyncFinished(context, record.getStartTime(),
+                        record.getOutcome());
+            } catch (SQLException e) {
+                Log.w(TAG, "Sync request queue not updated", e);
+            }
+
             /*
-             * The getUrl method will return the URL that we need to get the forecast JSON for the
-             * weather. It will decide whether to create a URL based off of the latitude and
-             * longitude or off of a simple location as a String.
+             * Whatever happened, plan the next periodic sync. After a success it follows the
+             * interval we just adapted, after a failure it is a retry.
              */
-            URL weatherRequestUrl = NetworkUtils.getUrl(context);
+            SunshineSyncUtils.scheduleFirebaseJobDispatcherSync(context);
+        }
+    }
+
+    /**
+     * The fetch stage. Downloads the forecast of the location chosen in the settings together
+     * with the forecasts of every other location we keep. Each location's forecast is parsed
+     * while it arrives and merged into the database as soon as it has been read.
+     *
+     * @param context            Used to access utility methods and the ContentResolver
+     * @param cancellationSignal Stops the locations that haven't been written yet
+     * @param record             Receives what each location's sync did
+     * @return The sync of each location, the one chosen in the settings first
+     * @throws InterruptedException If we are interrupted while waiting for the locations
+     */
+    private static List<LocationSync> fetch(Context context,
+            CancellationSignal cancellationSignal, SyncRecord record)
+            throws InterruptedException {
+        List<LocationSync> locationSyncs =
+                LocationSyncEngine.syncAllLocations(context, cancellationSignal);
+        for (LocationSync locationSync : locationSyncs) {
+            record.addLocation(locationSync);
+        }
+
+        /* Keep track of how many bytes this sync cost us on the wire */
+        SunshinePreferences.saveLastSyncTransferBytes(context,
+                record.getCompressedBytes(), record.getUncompressedBytes());
+        return locationSyncs;
+    }
+
+    /**
+     * The checkpoint stage. The new forecasts sit in the write-ahead log for now. Copy them into
+     * the database while we are still on a background thread. A passive checkpoint never waits,
+     * so a screen that is reading the forecast right now isn't held up by it.
+     *
+     * @param context Used to access the ContentResolver
+     */
+    private static void checkpoint(Context context) {
+        context.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_CHECKPOINT,
+                WeatherContract.CHECKPOINT_PASSIVE,
+                null);
+    }
+
+    /**
+     * The publish stage. The notification and the wearable only show the location chosen in the
+     * settings, and how often we sync depends on how much its forecast changes.
+     *
+     * @param context               Used to access utility methods and the ContentResolver
+     * @param forecastBefore        The preferred location's forecast before the fetch stage
+     * @param preferredLocationSync What the fetch stage did for the preferred location
+     */
+    private static void publish(Context context, WeatherBatch forecastBefore,
+            LocationSync preferredLocationSync) {
+        WeatherBatch forecast = null;
+        if (preferredLocationSync.getRowsChanged() != 0) {
+            forecast = getForecastSnapshot(context);
+        }
+        if (preferredLocationSync.getError() == null) {
+            SyncSchedule.onSyncSucceeded(context, forecastBefore, forecast);
+        }
+
+        /*
+         * If its forecast is unchanged, or its download failed, the notification and the
+         * wearable are still current.
+         */
+        if (!preferredLocationSync.isModified()) {
+            return;
+        }
 
-            /* Use the URL to retrieve the JSON */
-            String jsonWeatherResponse = NetworkUtils.getResponseFromHttpUrl(weatherRequestUrl);
+        /*
+         * In cases where our JSON contained an error code, no days were handed to the
+         * writer and the stored forecast was left as it is. If the forecast that came back
+         * is the same as the one we have, nothing was written either. We have no reason to
+         * notify the user if there wasn't any fresh data.
+         */
+        if (forecast != null) {
+            /*
+             * Format the strings the forecast list shows for the new days while we are
+             * still on a background thread, so the list only has to look them up. Reading
+             * the snapshot also left it in the provider's memory for the notification and
+             * the wearable below.
+             */
+            ForecastPresentationTable.precompute(context, forecast);
 
-            /* Parse the JSON into a list of weather values */
-            ContentValues[] weatherValues = OpenWeatherJsonUtils
-                    .getWeatherContentValuesFromJson(context, jsonWeatherResponse);
+            /*
+             * Finally, after we insert data into the ContentProvider, determine whether or not
+             * we should notify the user that the weather has been refreshed.
+             */
+            boolean notificationsEnabled = SunshinePreferences.areNotificationsEnabled(context);
 
             /*
-             * In cases where our JSON contained an error code, getWeatherContentValuesFromJson
-             * would have returned null. We need to check for those cases here to prevent any
-             * NullPointerExceptions being thrown. We also have no reason to insert fresh data if
-             * there isn't any to insert.
+             * If the last notification was shown was more than 1 day ago, we want to send
+             * another notification to the user that the weather has been updated. Remember,
+             * it's important that you shouldn't spam your users with notifications.
              */
-            if (weatherValues != null && weatherValues.length != 0) {
-                /* Get a handle on the ContentResolver to delete and insert data */
-                ContentResolver sunshineContentResolver = context.getContentResolver();
-
-                /* Delete old weather data because we don't need to keep multiple days' data */
-                sunshineContentResolver.delete(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        null,
-                        null);
-
-                /* Insert our new weather data into Sunshine's ContentProvider */
-                sunshineContentResolver.bulkInsert(
-                        WeatherContract.WeatherEntry.CONTENT_URI,
-                        weatherValues);
-
-                /*
-                 * Finally, after we insert data into the ContentProvider, determine whether or not
-                 * we should notify the user that the weather has been refreshed.
-                 */
-                boolean notificationsEnabled = SunshinePreferences.areNotificationsEnabled(context);
-
-                /*
-                 * If the last notification was shown was more than 1 day ago, we want to send
-                 * another notification to the user that the weather has been updated. Remember,
-                 * it's important that you shouldn't spam your users with notifications.
-                 */
-                long timeSinceLastNotification = SunshinePreferences
-                        .getEllapsedTimeSinceLastNotification(context);
-
-                boolean oneDayPassedSinceLastNotification = false;
-
-                if (timeSinceLastNotification >= DateUtils.DAY_IN_MILLIS) {
-                    oneDayPassedSinceLastNotification = true;
-                }
-
-                /*
-                 * We only want to show the notification if the user wants them shown and we
-                 * haven't shown a notification in the past day.
-                 */
-                if (notificationsEnabled && oneDayPassedSinceLastNotification) {
-                    NotificationUtils.notifyUserOfNewWeather(context);
-                }
-
-                /* If the code reaches this point, we have successfully performed our sync */
+            long timeSinceLastNotification = SunshinePreferences
+                    .getEllapsedTimeSinceLastNotification(context);
+
+            boolean oneDayPassedSinceLastNotification = false;
 
+            if (timeSinceLastNotification >= DateUtils.DAY_IN_MILLIS) {
+                oneDayPassedSinceLastNotification = true;
             }
-            WearUtils.updateWeatherForWear(context);
 
-        } catch (Exception e) {
-            /* Server probably invalid */
-            e.printStackTrace();
+            /*
+             * We only want to show the notification if the user wants them shown and we
+             * haven't shown a notification in the past day.
+             */
+            if (notificationsEnabled && oneDayPassedSinceLastNotification) {
+                NotificationUtils.notifyUserOfNewWeather(context);
+            }
+        }
+        WearUtils.updateWeatherForWear(context);
+    }
+
+    /**
+     * @param context Used to access the ContentResolver
+     * @return The forecast of the location chosen in the settings from today onwards
+     */
+    private static WeatherBatch getForecastSnapshot(Context context) {
+        Bundle snapshot = context.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_GET_FORECAST_SNAPSHOT,
+                null,
+                null);
+        return WeatherBatch.fromBundle(snapshot);
+    }
+
+    /**
+     * The archive stage. Rolls the days that just became history up into the archive, running
+     * steps of archive compaction until nothing is left to roll up. Each step is a short
+     * transaction of its own, so we can stop between steps if we are cancelled.
+     *
+     * @param context            Used to access SunshinePreferences and the ContentResolver
+     * @param cancellationSignal Stops the compaction between two steps, without an exception
+     * @return The number of rows the compaction changed
+     */
+    private static int compactArchive(Context context, CancellationSignal cancellationSignal) {
+        Bundle extras = SunshinePreferences.getArchiveCompactionExtras(context);
+        int rowsChanged = 0;
+        boolean hasMore = true;
+        /* The forecasts are already written, so a cancellation only skips what is left */
+        while (hasMore && !cancellationSignal.isCanceled()) {
+            Bundle result = context.getContentResolver().call(
+                    WeatherContract.ArchiveEntry.CONTENT_URI,
+                    WeatherContract.METHOD_COMPACT_ARCHIVE,
+                    null,
+                    extras);
+            if (result == null) {
+                break;
+            }
+            rowsChanged += result.getInt(WeatherContract.KEY_ROW_COUNT)
+                    + result.getInt(WeatherContract.KEY_DELETED_COUNT);
+            hasMore = result.getBoolean(WeatherContract.KEY_HAS_MORE);
         }
+        return rowsChanged;
     }
-}
\ No newline at end of file
+}
@@ -17,10 +17,10 @@ package com.example.android.sunshine.sync;
 
 import android.content.Context;
 import android.content.Intent;
-import android.database.Cursor;
-import android.net.Uri;
+import android.os.Bundle;
 import android.support.annotation.NonNull;
 
+import com.example.android.sunshine.data.WeatherBatch;
 import com.example.android.sunshine.data.WeatherContract;
 import com.firebase.jobdispatcher.Constraint;
 import com.firebase.jobdispatcher.Driver;
@@ -35,24 +35,55 @@ import java.util.concurrent.TimeUnit;
 public class SunshineSyncUtils {
 
     /*
-     * Interval at which to sync with the weather. Use TimeUnit for convenience, rather than
-     * writing out a bunch of multiplication ourselves and risk making a silly mistake.
+     * How much later than planned the periodic sync may run, as a part of its delay. The delay
+     * itself comes from SyncSchedule.
      */
-    private static final int SYNC_INTERVAL_HOURS = 3;
-    private static final int SYNC_INTERVAL_SECONDS = (int) TimeUnit.HOURS.toSeconds(SYNC_INTERVAL_HOURS);
-    private static final int SYNC_FLEXTIME_SECONDS = SYNC_INTERVAL_SECONDS / 3;
+    private static final int SYNC_FLEXTIME_DIVISOR = 3;
+
+    /*
+     * How much later than planned a prefetch may run. It starts UsagePredictor's lead time
+     * before the user usually opens the app, so it must not slip by much.
+     */
+    private static final int PREFETCH_FLEXTIME_SECONDS = (int) TimeUnit.MINUTES.toSeconds(10);
 
     private static boolean sInitialized;
 
     private static final String SUNSHINE_SYNC_TAG = "sunshine-sync";
 
+    /* The job that picks up the queued sync requests, see SyncRequestQueue */
+    private static final String SUNSHINE_QUEUED_SYNC_TAG = "sunshine-queued-sync";
+
+    /*
+     * How much later than due a queued request may be attempted. The delays of the queue are
+     * already jittered, so this only gives the Job Dispatcher room to batch.
+     */
+    private static final int QUEUED_SYNC_FLEXTIME_SECONDS = 30;
+
     /**
-     * Schedules a repeating sync of Sunshine's weather data using FirebaseJobDispatcher.
+     * Schedules the next periodic sync of Sunshine's weather data using FirebaseJobDispatcher.
+     * Every sync schedules the one after it once it is done, so the time in between can follow
+     * what {@link SyncSchedule} learns about the forecast.
+     *
      * @param context Context used to create the GooglePlayDriver that powers the
      *                FirebaseJobDispatcher
      */
     static void scheduleFirebaseJobDispatcherSync(@NonNull final Context context) {
 
+        int delaySeconds = (int) SyncSchedule.getNextSyncDelaySeconds(context);
+        int flextimeSeconds = delaySeconds / SYNC_FLEXTIME_DIVISOR;
+
+        /*
+         * If the user usually opens the app before the periodic sync is due, sync shortly
+         * before that instead, so the forecast list shows fresh weather right away.
+         */
+        Bundle extras = new Bundle();
+        long prefetchSeconds = SyncSchedule.getPrefetchDelaySeconds(context, delaySeconds);
+        if (prefetchSeconds >= 0) {
+            delaySeconds = (int) prefetchSeconds;
+            flextimeSeconds = PREFETCH_FLEXTIME_SECONDS;
+            extras.putBoolean(SunshineFirebaseJobService.EXTRA_PREFETCH, true);
+        }
+
         Driver driver = new GooglePlayDriver(context);
         FirebaseJobDispatcher dispatcher = new FirebaseJobDispatcher(driver);
 
@@ -75,19 +106,22 @@ public class SunshineSyncUtils {
                  */
                 .setLifetime(Lifetime.FOREVER)
                 /*
-                 * We want Sunshine's weather data to stay up to date, so we tell this Job to recur.
+                 * The Job doesn't recur. A recurring Job would keep the same interval forever,
+                 * so instead every sync schedules the next one when it is done.
                  */
-                .setRecurring(true)
+                .setRecurring(false)
                 /*
-                 * We want the weather data to be synced every 3 to 4 hours. The first argument for
-                 * Trigger's static executionWindow method is the start of the time frame when the
-                 * sync should be performed. The second argument is the latest point in time at
-                 * which the data should be synced. Please note that this end time is not
-                 * guaranteed, but is more of a guideline for FirebaseJobDispatcher to go off of.
+                 * The first argument for Trigger's static executionWindow method is the start of
+                 * the time frame when the sync should be performed. The second argument is the
+                 * latest point in time at which the data should be synced. Please note that this
+                 * end time is not guaranteed, but is more of a guideline for
+                 * FirebaseJobDispatcher to go off of.
                  */
                 .setTrigger(Trigger.executionWindow(
-                        SYNC_INTERVAL_SECONDS,
-                        SYNC_INTERVAL_SECONDS + SYNC_FLEXTIME_SECONDS))
+                        delaySeconds,
+                        delaySeconds + flextimeSeconds))
+                /* Tells the Job whether it is a prefetch */
+                .setExtras(extras)
                 /*
                  * If a Job with the tag with provided already exists, this new job will replace
                  * the old one.
@@ -99,6 +133,49 @@ public class SunshineSyncUtils {
         /* Schedule the Job with the dispatcher */
         dispatcher.schedule(syncSunshineJob);
     }
+
+    /**
+     * Plans the job that attempts the queued sync requests again, replacing the one planned
+     * before. Unlike the periodic job, it runs no matter how fresh the data is.
+     *
+     * @param context      Context used to create the GooglePlayDriver
+     * @param delaySeconds How many seconds from now the earliest request is due
+     * @param priority     The highest priority of the queued requests
+     */
+    static void scheduleQueuedSync(@NonNull final Context context, int delaySeconds,
+            int priority) {
+        FirebaseJobDispatcher dispatcher =
+                new FirebaseJobDispatcher(new GooglePlayDriver(context));
+
+        Bundle extras = new Bundle();
+        extras.putInt(SunshineFirebaseJobService.EXTRA_QUEUED_PRIORITY, priority);
+
+        Job queuedSyncJob = dispatcher.newJobBuilder()
+                .setService(SunshineFirebaseJobService.class)
+                .setTag(SUNSHINE_QUEUED_SYNC_TAG)
+                /* A retry without a network would only fail again */
+                .setConstraints(Constraint.ON_ANY_NETWORK)
+                /* The queue is kept in the database, so the job has to outlive a reboot too */
+                .setLifetime(Lifetime.FOREVER)
+                .setRecurring(false)
+                .setTrigger(Trigger.executionWindow(
+                        delaySeconds,
+                        delaySeconds + QUEUED_SYNC_FLEXTIME_SECONDS))
+                .setExtras(extras)
+                .setReplaceCurrent(true)
+                .build();
+
+        dispatcher.schedule(queuedSyncJob);
+    }
+
+    /**
+     * Cancels the job for queued sync requests, once there are none left.
+     *
+     * @param context Context used to create the GooglePlayDriver
+     */
+    static void cancelQueuedSync(@NonNull final Context context) {
+        new FirebaseJobDispatcher(new GooglePlayDriver(context)).cancel(SUNSHINE_QUEUED_SYNC_TAG);
+    }
     /**
      * Creates periodic sync tasks and checks to see if an immediate sync is required. If an
      * immediate sync is required, this method will take care of making sure that sync occurs.
@@ -118,7 +195,8 @@ public class SunshineSyncUtils {
 
         /*
          * This method call triggers Sunshine to create its task to synchronize weather data
-         * periodically.
+         * periodically. Should the chain of periodic syncs ever have been broken, this starts
+         * it again.
          */
         scheduleFirebaseJobDispatcherSync(context);
 
@@ -132,46 +210,28 @@ public class SunshineSyncUtils {
             @Override
             public void run() {
 
-                /* URI for every row of weather data in our weather table*/
-                Uri forecastQueryUri = WeatherContract.WeatherEntry.CONTENT_URI;
-
                 /*
-                 * Since this query is going to be used only as a check to see if we have any
-                 * data (rather than to display data), we just need to PROJECT the ID of each
-                 * row. In our queries where we display data, we need to PROJECT more columns
-                 * to determine what weather details need to be displayed.
+                 * The forecast snapshot tells us how many days we have from today onwards,
+                 * without opening a cursor. It is the same snapshot the notification and the
+                 * wearable read, so whoever asks first leaves it in the provider's memory for
+                 * the others.
                  */
-                String[] projectionColumns = {WeatherContract.WeatherEntry._ID};
-                String selectionStatement = WeatherContract.WeatherEntry
-                        .getSqlSelectForTodayOnwards();
-
-                /* Here, we perform the query to check to see if we have any weather data */
-                Cursor cursor = context.getContentResolver().query(
-                        forecastQueryUri,
-                        projectionColumns,
-                        selectionStatement,
+                Bundle forecast = context.getContentResolver().call(
+                        WeatherContract.WeatherEntry.CONTENT_URI,
+                        WeatherContract.METHOD_GET_FORECAST_SNAPSHOT,
                         null,
                         null);
+
                 /*
-                 * A Cursor object can be null for various different reasons. A few are
-                 * listed below.
-                 *
-                 *   1) Invalid URI
-                 *   2) A certain ContentProvider's query method returns null
-                 *   3) A RemoteException was thrown.
-                 *
-                 * Bottom line, it is generally a good idea to check if a Cursor returned
-                 * from a ContentResolver is null.
-                 *
-                 * If the Cursor was null OR if it was empty, we need to sync immediately to
+                 * If the snapshot was null OR if it was empty, we need to sync immediately to
                  * be able to display data to the user.
                  */
-                if (null == cursor || cursor.getCount() == 0) {
+                if (null == forecast || WeatherBatch.fromBundle(forecast).size() == 0) {
                     startImmediateSync(context);
                 }
 
-                /* Make sure to close the Cursor to avoid memory leaks! */
-                cursor.close();
+                /* Requests an earlier process didn't get done are attempted again */
+                SyncRequestQueue.resume(context);
             }
         });
 
@@ -186,7 +246,28 @@ public class SunshineSyncUtils {
      * @param context The Context used to start the IntentService for the sync.
      */
     public static void startImmediateSync(@NonNull final Context context) {
+        startImmediateSync(context, SunshineSyncCoordinator.PRIORITY_USER);
+    }
+
+    /**
+     * Requests a sync from the {@link SunshineSyncCoordinator}, which merges it with any sync
+     * that is already queued or running. The IntentService is started to put the request into
+     * the {@link SyncRequestQueue}, which keeps it until the sync succeeds, and to keep our
+     * process alive until the sync is done.
+     *
+     * @param context  The Context used to start the IntentService for the sync.
+     * @param priority One of the PRIORITY constants of {@link SunshineSyncCoordinator}
+     */
+    public static void startImmediateSync(@NonNull final Context context, int priority) {
+        /* Any sync that starts from now on covers this request */
+        long requestedTime = System.currentTimeMillis();
+        long ticket = SunshineSyncCoordinator.getInstance(context).requestSync(priority);
+
         Intent intentToSyncImmediately = new Intent(context, SunshineSyncIntentService.class);
+        intentToSyncImmediately.putExtra(SunshineSyncIntentService.EXTRA_SYNC_TICKET, ticket);
+        intentToSyncImmediately.putExtra(SunshineSyncIntentService.EXTRA_SYNC_PRIORITY, priority);
+        intentToSyncImmediately.putExtra(SunshineSyncIntentService.EXTRA_REQUESTED_TIME,
+                requestedTime);
         context.startService(intentToSyncImmediately);
     }
 }
\ No newline at end of file
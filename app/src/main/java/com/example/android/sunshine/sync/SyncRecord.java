@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.data.WeatherContract.SyncMetricsEntry;
+
+/**
+ * What one run of {@link SunshineSyncTask} did and where its time went. The sync runs in
+ * stages, see the STAGE constants of {@link SyncMetricsEntry}. It tells the record when a stage
+ * starts, which ends the stage before, and hands it every location once they are synced. Once
+ * the sync is over, the record works out the outcome and is stored through
+ * {@link WeatherContract#METHOD_RECORD_SYNC}.
+ * <p>
+ * A record is only used by the thread that runs the sync.
+ */
+final class SyncRecord {
+
+    private final long mStartTime = System.currentTimeMillis();
+    private final long mStartMillis = SystemClock.elapsedRealtime();
+
+    private String mStage;
+    private long mStageStartMillis;
+
+    private long mTotalMillis;
+    private long mFetchMillis;
+    private long mArchiveMillis;
+    private long mCheckpointMillis;
+    private long mPublishMillis;
+
+    private long mNetworkMillis;
+    private long mParseMillis;
+    private long mWriteMillis;
+
+    private int mLocationCount;
+    private int mFailedLocationCount;
+    private long mCompressedBytes;
+    private long mUncompressedBytes;
+    private int mRowsChanged;
+
+    private Exception mPreferredLocationError;
+    private Exception mLocationError;
+    private Exception mError;
+    private String mFailedStage;
+    private boolean mCancelled;
+    private int mOutcome;
+
+    /**
+     * Ends the current stage, if any, and starts the next one.
+     *
+     * @param stage One of the STAGE constants of {@link SyncMetricsEntry}
+     */
+    void startStage(String stage) {
+        endStage();
+        mStage = stage;
+        mStageStartMillis = SystemClock.elapsedRealtime();
+    }
+
+    /**
+     * Adds what the sync of one location did.
+     *
+     * @param locationSync A location the fetch stage synced
+     */
+    void addLocation(LocationSync locationSync) {
+        mLocationCount++;
+        mNetworkMillis += locationSync.getNetworkMillis();
+        mParseMillis += locationSync.getParseMillis();
+        mWriteMillis += locationSync.getWriteMillis();
+        mCompressedBytes += locationSync.getTransferStats().getCompressedBytes()
+                + locationSync.getHourlyTransferStats().getCompressedBytes();
+        mUncompressedBytes += locationSync.getTransferStats().getUncompressedBytes()
+                + locationSync.getHourlyTransferStats().getUncompressedBytes();
+        mRowsChanged += locationSync.getRowsChanged() + locationSync.getHourlyRowsChanged();
+
+        Exception error = locationSync.getError();
+        if (error != null) {
+            mFailedLocationCount++;
+            if (locationSync.getLocationId() == LocationEntry.PREFERRED_LOCATION_ID) {
+                mPreferredLocationError = error;
+            } else if (mLocationError == null) {
+                mLocationError = error;
+            }
+        }
+    }
+
+    /**
+     * @param rowsChanged Rows a stage other than fetch inserted, updated or deleted
+     */
+    void addRowsChanged(int rowsChanged) {
+        mRowsChanged += rowsChanged;
+    }
+
+    /**
+     * Records that the current stage failed, which ends the sync.
+     *
+     * @param error What went wrong
+     */
+    void fail(Exception error) {
+        mError = error;
+        mFailedStage = mStage;
+    }
+
+    /**
+     * Records that the sync was cancelled in the current stage, which ends it.
+     */
+    void cancel() {
+        mCancelled = true;
+        mFailedStage = mStage;
+    }
+
+    /**
+     * Ends the last stage and works out how the sync ended. Call once the sync is over.
+     */
+    void finish() {
+        endStage();
+        mTotalMillis = SystemClock.elapsedRealtime() - mStartMillis;
+
+        if (mCancelled) {
+            mOutcome = SyncMetricsEntry.OUTCOME_CANCELLED;
+        } else if (mError != null) {
+            mOutcome = SyncMetricsEntry.OUTCOME_FAILED;
+        } else if (mPreferredLocationError != null) {
+            mOutcome = SyncMetricsEntry.OUTCOME_FAILED;
+            mFailedStage = SyncMetricsEntry.STAGE_FETCH;
+            mError = mPreferredLocationError;
+        } else if (mLocationError != null) {
+            mOutcome = SyncMetricsEntry.OUTCOME_PARTIAL;
+            mFailedStage = SyncMetricsEntry.STAGE_FETCH;
+            mError = mLocationError;
+        } else if (mRowsChanged != 0) {
+            mOutcome = SyncMetricsEntry.OUTCOME_UPDATED;
+        } else {
+            mOutcome = SyncMetricsEntry.OUTCOME_UNCHANGED;
+        }
+    }
+
+    /**
+     * Stores the finished record in the sync metrics table.
+     *
+     * @param context Used to access the ContentResolver
+     */
+    void save(Context context) {
+        context.getContentResolver().call(
+                WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_RECORD_SYNC,
+                null,
+                toBundle());
+    }
+
+    /**
+     * @return When the sync started, in milliseconds since the epoch
+     */
+    long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     * @return How the sync ended, one of the OUTCOME constants of {@link SyncMetricsEntry}.
+     * Only known once {@link #finish()} was called.
+     */
+    int getOutcome() {
+        return mOutcome;
+    }
+
+    long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    long getUncompressedBytes() {
+        return mUncompressedBytes;
+    }
+
+    int getRowsChanged() {
+        return mRowsChanged;
+    }
+
+    /**
+     * @return The record, with the columns of {@link SyncMetricsEntry} as keys
+     */
+    Bundle toBundle() {
+        Bundle record = new Bundle();
+        record.putLong(SyncMetricsEntry.COLUMN_START_TIME, mStartTime);
+        record.putInt(SyncMetricsEntry.COLUMN_OUTCOME, mOutcome);
+        record.putString(SyncMetricsEntry.COLUMN_FAILED_STAGE, mFailedStage);
+        record.putString(SyncMetricsEntry.COLUMN_ERROR,
+                mError == null ? null : mError.toString());
+        record.putLong(SyncMetricsEntry.COLUMN_TOTAL_MILLIS, mTotalMillis);
+        record.putLong(SyncMetricsEntry.COLUMN_FETCH_MILLIS, mFetchMillis);
+        record.putLong(SyncMetricsEntry.COLUMN_ARCHIVE_MILLIS, mArchiveMillis);
+        record.putLong(SyncMetricsEntry.COLUMN_CHECKPOINT_MILLIS, mCheckpointMillis);
+        record.putLong(SyncMetricsEntry.COLUMN_PUBLISH_MILLIS, mPublishMillis);
+        record.putLong(SyncMetricsEntry.COLUMN_NETWORK_MILLIS, mNetworkMillis);
+        record.putLong(SyncMetricsEntry.COLUMN_PARSE_MILLIS, mParseMillis);
+        record.putLong(SyncMetricsEntry.COLUMN_WRITE_MILLIS, mWriteMillis);
+        record.putInt(SyncMetricsEntry.COLUMN_LOCATION_COUNT, mLocationCount);
+        record.putInt(SyncMetricsEntry.COLUMN_FAILED_LOCATION_COUNT, mFailedLocationCount);
+        record.putLong(SyncMetricsEntry.COLUMN_COMPRESSED_BYTES, mCompressedBytes);
+        record.putLong(SyncMetricsEntry.COLUMN_UNCOMPRESSED_BYTES, mUncompressedBytes);
+        record.putInt(SyncMetricsEntry.COLUMN_ROWS_CHANGED, mRowsChanged);
+        return record;
+    }
+
+    private void endStage() {
+        if (mStage == null) {
+            return;
+        }
+        long millis = SystemClock.elapsedRealtime() - mStageStartMillis;
+        switch (mStage) {
+            case SyncMetricsEntry.STAGE_FETCH:
+                mFetchMillis += millis;
+                break;
+            case SyncMetricsEntry.STAGE_ARCHIVE:
+                mArchiveMillis += millis;
+                break;
+            case SyncMetricsEntry.STAGE_CHECKPOINT:
+                mCheckpointMillis += millis;
+                break;
+            case SyncMetricsEntry.STAGE_PUBLISH:
+                mPublishMillis += millis;
+                break;
+        }
+        mStage = null;
+    }
+
+    @Override
+    public String toString() {
+        return "outcome=" + mOutcome
+                + (mFailedStage == null ? "" : ", failed in " + mFailedStage)
+                + ", total=" + mTotalMillis + "ms"
+                + ", fetch=" + mFetchMillis + "ms"
+                + " (network=" + mNetworkMillis + "ms"
+                + ", parse=" + mParseMillis + "ms"
+                + ", write=" + mWriteMillis + "ms)"
+                + ", archive=" + mArchiveMillis + "ms"
+                + ", checkpoint=" + mCheckpointMillis + "ms"
+                + ", publish=" + mPublishMillis + "ms"
+                + ", locations=" + mLocationCount + " (" + mFailedLocationCount + " failed)"
+                + ", compressed=" + mCompressedBytes
+                + ", uncompressed=" + mUncompressedBytes
+                + ", rows=" + mRowsChanged;
+    }
+}
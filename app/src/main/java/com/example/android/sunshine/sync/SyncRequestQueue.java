@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+import android.os.Bundle;
+
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherContract.SyncMetricsEntry;
+import com.example.android.sunshine.data.WeatherContract.SyncRequestEntry;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps every sync that was asked for right away in the queue of {@link SyncRequestEntry} until
+ * a sync that covers it has succeeded. The {@link SunshineSyncCoordinator} only lives as long as
+ * our process, so without the queue, a request whose process died, or whose sync failed on a
+ * flaky network, would wait for the next periodic sync, hours later.
+ * <p>
+ * Every queued request has a time when it is due to be attempted again, and a job of the Job
+ * Dispatcher is kept planned for the earliest of them. Unlike our process, that job survives
+ * until it has run. It only runs with a network, so requests wait while there is none.
+ * <ul>
+ * <li>A new request is due shortly after it was made. Its sync normally succeeds long before,
+ * so the job only runs if our process died in the meantime.</li>
+ * <li>After a failed sync, the requests it covered are due again after a delay that doubles
+ * with every failure, starting at {@link #BASE_RETRY_DELAY_MILLIS}. A short outage is over
+ * quickly, while a server that is down isn't asked again every few seconds.</li>
+ * <li>The delays are jittered, so phones that lost the network together don't all come back
+ * to the server at the same moment.</li>
+ * <li>After {@link #MAX_ATTEMPTS} failures, a request is dropped and the periodic sync takes
+ * over.</li>
+ * </ul>
+ * Asking for a sync that is already queued doesn't queue it again.
+ */
+final class SyncRequestQueue {
+
+    /* If our process dies before its sync is done, the request is picked up this much later */
+    static final long RESUME_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    /* The delay after the first failed attempt. It doubles with every failure after that. */
+    static final long BASE_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    /* The longest delay between two attempts, the same as for a failed periodic sync */
+    static final long MAX_RETRY_DELAY_MILLIS =
+            TimeUnit.SECONDS.toMillis(SyncSchedule.RETRY_DELAY_SECONDS);
+
+    /* With the delays above, a request is given up about an hour and a half after it failed */
+    static final int MAX_ATTEMPTS = 8;
+
+    private static final Random sRandom = new Random();
+
+    private SyncRequestQueue() {
+    }
+
+    /**
+     * Queues a request for a sync and plans the job that picks it up, should our process die
+     * before the sync is done. Must not be called on the main thread.
+     *
+     * @param context       Used to access the ContentResolver
+     * @param priority      One of the PRIORITY constants of {@link SunshineSyncCoordinator}
+     * @param requestedTime When the sync was asked for, in milliseconds since the epoch. A
+     *                      sync that started later covers the request.
+     */
+    static void enqueue(Context context, int priority, long requestedTime) {
+        Bundle extras = new Bundle();
+        extras.putInt(WeatherContract.KEY_SYNC_PRIORITY, priority);
+        extras.putLong(WeatherContract.KEY_REQUESTED_TIME, requestedTime);
+        extras.putLong(WeatherContract.KEY_NEXT_ATTEMPT_TIME,
+                System.currentTimeMillis() + RESUME_DELAY_MILLIS);
+        Bundle queue = context.getContentResolver().call(
+                WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_ENQUEUE_SYNC_REQUEST,
+                null,
+                extras);
+        scheduleNextAttempt(context, queue);
+    }
+
+    /**
+     * Removes the requests a sync covered from the queue if it succeeded, or plans their next
+     * attempt if it failed. A cancelled sync leaves the queue alone, so its requests stay due
+     * when they were. Called on the thread that ran the sync, once it is over.
+     *
+     * @param context   Used to access the ContentResolver
+     * @param startTime When the sync started, in milliseconds since the epoch
+     * @param outcome   How the sync ended, one of the OUTCOME constants of
+     *                  {@link SyncMetricsEntry}
+     */
+    static void onSyncFinished(Context context, long startTime, int outcome) {
+        if (outcome == SyncMetricsEntry.OUTCOME_CANCELLED) {
+            return;
+        }
+
+        /*
+         * The sync covers every request made before it started. Requests for a wearable or a
+         * periodic sync are merged into a running sync, so it covers them even if they were
+         * made later. A user request made later may be for a different location, and starts a
+         * sync of its own.
+         */
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherContract.KEY_SYNC_START_TIME, startTime);
+        extras.putInt(WeatherContract.KEY_SYNC_PRIORITY, SunshineSyncCoordinator.PRIORITY_USER);
+
+        /* A failure of a location other than the preferred one isn't worth a retry of its own */
+        boolean succeeded = outcome != SyncMetricsEntry.OUTCOME_FAILED;
+        extras.putBoolean(WeatherContract.KEY_SYNC_SUCCEEDED, succeeded);
+        if (!succeeded) {
+            Bundle queue = getQueue(context);
+            if (queue == null || queue.getInt(WeatherContract.KEY_ROW_COUNT) == 0) {
+                /* Nobody asked for this sync, the periodic sync plans its own retry */
+                return;
+            }
+            int attempt = queue.getInt(WeatherContract.KEY_ATTEMPT_COUNT) + 1;
+            extras.putLong(WeatherContract.KEY_NEXT_ATTEMPT_TIME, System.currentTimeMillis()
+                    + getRetryDelayMillis(attempt, sRandom.nextDouble()));
+            extras.putInt(WeatherContract.KEY_MAX_ATTEMPTS, MAX_ATTEMPTS);
+        }
+
+        Bundle queue = context.getContentResolver().call(
+                WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_FINISH_SYNC_REQUESTS,
+                null,
+                extras);
+        if (queue == null) {
+            return;
+        }
+
+        /* Most syncs are periodic ones nobody queued. Then there is no job to plan or cancel. */
+        if (queue.getInt(WeatherContract.KEY_ROW_COUNT) != 0
+                || queue.getInt(WeatherContract.KEY_DELETED_COUNT) != 0) {
+            scheduleNextAttempt(context, queue);
+        }
+    }
+
+    /**
+     * Plans the job for the requests left in the queue by an earlier process. The job survives
+     * a restart of our process on its own, but not every way the app can be stopped, like an
+     * update. Must not be called on the main thread.
+     *
+     * @param context Used to access the ContentResolver
+     */
+    static void resume(Context context) {
+        Bundle queue = getQueue(context);
+        if (queue != null && queue.getInt(WeatherContract.KEY_ROW_COUNT) != 0) {
+            scheduleNextAttempt(context, queue);
+        }
+    }
+
+    /**
+     * @param attempt The number of the attempt that failed, starting at 1
+     * @param random  A random number from 0 inclusive to 1 exclusive
+     * @return How long to wait before the next attempt. It is at least half of the backoff,
+     * which doubles with every attempt up to {@link #MAX_RETRY_DELAY_MILLIS}, and at most all
+     * of it.
+     */
+    static long getRetryDelayMillis(int attempt, double random) {
+        long backoffMillis = BASE_RETRY_DELAY_MILLIS;
+        for (int doubling = 1; doubling < attempt && backoffMillis < MAX_RETRY_DELAY_MILLIS;
+                doubling++) {
+            backoffMillis *= 2;
+        }
+        backoffMillis = Math.min(backoffMillis, MAX_RETRY_DELAY_MILLIS);
+        long halfMillis = backoffMillis / 2;
+        return halfMillis + (long) (random * (backoffMillis - halfMillis));
+    }
+
+    private static Bundle getQueue(Context context) {
+        return context.getContentResolver().call(
+                WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_GET_SYNC_QUEUE,
+                null,
+                null);
+    }
+
+    /**
+     * Plans the job for the earliest request of the queue, or cancels it if the queue is empty.
+     *
+     * @param queue The queue, as described at {@link WeatherContract#METHOD_GET_SYNC_QUEUE}
+     */
+    private static void scheduleNextAttempt(Context context, Bundle queue) {
+        if (queue == null || queue.getInt(WeatherContract.KEY_ROW_COUNT) == 0) {
+            SunshineSyncUtils.cancelQueuedSync(context);
+            return;
+        }
+        long delayMillis = queue.getLong(WeatherContract.KEY_NEXT_ATTEMPT_TIME)
+                - System.currentTimeMillis();
+        SunshineSyncUtils.scheduleQueuedSync(context,
+                (int) TimeUnit.MILLISECONDS.toSeconds(Math.max(0, delayMillis)),
+                queue.getInt(WeatherContract.KEY_SYNC_PRIORITY));
+    }
+}
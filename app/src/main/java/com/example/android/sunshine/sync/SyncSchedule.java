@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherBatch;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decides when the next periodic sync should run. Instead of waking up every three hours no
+ * matter what, the interval adapts to how much the forecast actually changes:
+ * <ul>
+ * <li>a sync that changed nothing that matters makes the interval longer, up to half a day,</li>
+ * <li>a sync that changed the next days a lot makes it shorter, down to an hour,</li>
+ * <li>the sync after midnight is never put off for long, since the forecast gains a new day
+ * and today's weather becomes yesterday's,</li>
+ * <li>a periodic sync is skipped if another sync brought fresh data in the meantime,</li>
+ * <li>and a sync runs shortly before the times the user usually opens the app, as learned by
+ * {@link UsagePredictor}, unless the forecast would still be fresh by then.</li>
+ * </ul>
+ * What counts as a change that matters is a different weather condition, or a high or low that
+ * moved by a degree or more, on one of the next few days. The days after that change with every
+ * forecast, but nobody plans by them.
+ * <p>
+ * The interval and the time of the last successful sync are kept in {@link SunshinePreferences}.
+ */
+final class SyncSchedule {
+
+    /* The interval never leaves these bounds, and starts out in between */
+    static final long MIN_INTERVAL_SECONDS = TimeUnit.HOURS.toSeconds(1);
+    static final long DEFAULT_INTERVAL_SECONDS = TimeUnit.HOURS.toSeconds(3);
+    static final long MAX_INTERVAL_SECONDS = TimeUnit.HOURS.toSeconds(12);
+
+    /* How long to wait before trying again after a sync that failed */
+    static final long RETRY_DELAY_SECONDS = TimeUnit.MINUTES.toSeconds(30);
+
+    /* How long after local midnight the forecast of the new day should be in */
+    static final long DAY_CHANGE_DELAY_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
+    /* Only changes to this many days, starting with today, count as changes that matter */
+    static final int SIGNIFICANT_DAYS = 3;
+
+    /* A high or low that moved by less than this many °C isn't worth a sync of its own */
+    static final double SIGNIFICANT_TEMP_CHANGE = 1.0;
+
+    /* A prefetch is only worth it if the forecast would be at least this old by then */
+    static final long PREFETCH_MIN_AGE_SECONDS = TimeUnit.HOURS.toSeconds(1);
+
+    /* A periodic sync is skipped while the data is younger than this part of the interval */
+    private static final int FRESH_INTERVAL_DIVISOR = 2;
+
+    private SyncSchedule() {
+    }
+
+    /**
+     * Adapts the interval to the outcome of a successful sync and remembers when it happened.
+     * Without a forecast to compare with, as on the first sync or right after the location
+     * changed, the interval stays as it is.
+     *
+     * @param context Used to access SunshinePreferences
+     * @param before  The preferred location's forecast from today onwards before the sync
+     * @param after   The same forecast after the sync, or null if the sync didn't change it
+     */
+    static void onSyncSucceeded(Context context, WeatherBatch before, WeatherBatch after) {
+        long interval = SunshinePreferences.getSyncIntervalSeconds(context,
+                DEFAULT_INTERVAL_SECONDS);
+        if (after == null) {
+            interval = adaptInterval(interval, 0);
+        } else if (before.size() > 0) {
+            interval = adaptInterval(interval, countSignificantChanges(before, after));
+        }
+        SunshinePreferences.saveSuccessfulSync(context, System.currentTimeMillis(), interval);
+    }
+
+    /**
+     * @param context Used to access SunshinePreferences
+     * @return true if the last successful sync is recent enough that a periodic sync would
+     * only download what we already have
+     */
+    static boolean isDataFresh(Context context) {
+        return isFresh(SunshinePreferences.getLastSuccessfulSyncTime(context),
+                SunshinePreferences.getSyncIntervalSeconds(context, DEFAULT_INTERVAL_SECONDS),
+                System.currentTimeMillis());
+    }
+
+    /**
+     * @param context Used to access SunshinePreferences
+     * @return How many seconds from now the next periodic sync should run
+     */
+    static long getNextSyncDelaySeconds(Context context) {
+        return getNextSyncDelaySeconds(
+                SunshinePreferences.getLastSuccessfulSyncTime(context),
+                SunshinePreferences.getSyncIntervalSeconds(context, DEFAULT_INTERVAL_SECONDS),
+                System.currentTimeMillis(),
+                TimeZone.getDefault());
+    }
+
+    /**
+     * @param context      Used to access SunshinePreferences
+     * @param delaySeconds What {@link #getNextSyncDelaySeconds(Context)} returned
+     * @return How many seconds from now a sync should run instead to have the forecast fresh
+     * when the user usually opens the app, or -1 if the periodic sync comes first anyway
+     */
+    static long getPrefetchDelaySeconds(Context context, long delaySeconds) {
+        return getPrefetchDelaySeconds(delaySeconds,
+                UsagePredictor.getSecondsUntilPrefetch(context),
+                SunshinePreferences.getLastSuccessfulSyncTime(context),
+                System.currentTimeMillis());
+    }
+
+    /**
+     * Counts the days among the next {@link #SIGNIFICANT_DAYS} whose forecast changed in a way a
+     * user would notice.
+     *
+     * @param before The forecast from today onwards before the sync
+     * @param after  The forecast from today onwards after the sync
+     * @return The number of days that are new, or whose condition, high or low changed
+     */
+    static int countSignificantChanges(WeatherBatch before, WeatherBatch after) {
+        int changes = 0;
+        for (int row = 0; row < after.size() && row < SIGNIFICANT_DAYS; row++) {
+            int beforeRow = findDate(before, after.getDate(row));
+            if (beforeRow == -1
+                    || before.getWeatherId(beforeRow) != after.getWeatherId(row)
+                    || Math.abs(before.getMaxTemp(beforeRow) - after.getMaxTemp(row))
+                            >= SIGNIFICANT_TEMP_CHANGE
+                    || Math.abs(before.getMinTemp(beforeRow) - after.getMinTemp(row))
+                            >= SIGNIFICANT_TEMP_CHANGE) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * @param intervalSeconds    The interval so far
+     * @param significantChanges The number of days the last sync changed significantly
+     * @return The interval until the sync after the next one: half a time longer if nothing
+     * changed, half as long if more than one day changed, the same otherwise
+     */
+    static long adaptInterval(long intervalSeconds, int significantChanges) {
+        if (significantChanges == 0) {
+            return Math.min(MAX_INTERVAL_SECONDS, intervalSeconds * 3 / 2);
+        } else if (significantChanges > 1) {
+            return Math.max(MIN_INTERVAL_SECONDS, intervalSeconds / 2);
+        }
+        return intervalSeconds;
+    }
+
+    /**
+     * @param lastSyncMillis  When the last successful sync happened, 0 if never
+     * @param intervalSeconds The current interval
+     * @param nowMillis       The current time
+     * @return true if the data is younger than half the interval
+     */
+    static boolean isFresh(long lastSyncMillis, long intervalSeconds, long nowMillis) {
+        long ageMillis = nowMillis - lastSyncMillis;
+        return lastSyncMillis > 0 && ageMillis >= 0
+                && ageMillis < TimeUnit.SECONDS.toMillis(intervalSeconds)
+                / FRESH_INTERVAL_DIVISOR;
+    }
+
+    /**
+     * @param lastSyncMillis  When the last successful sync happened, 0 if never
+     * @param intervalSeconds The current interval
+     * @param nowMillis       The current time
+     * @param timeZone        The time zone whose midnight starts a new day
+     * @return How many seconds from now the next periodic sync should run: one interval after
+     * the last successful sync, but no earlier than the retry delay and no later than shortly
+     * after the next midnight
+     */
+    static long getNextSyncDelaySeconds(long lastSyncMillis, long intervalSeconds,
+            long nowMillis, TimeZone timeZone) {
+        long ageSeconds = TimeUnit.MILLISECONDS.toSeconds(nowMillis - lastSyncMillis);
+        long delaySeconds = Math.max(RETRY_DELAY_SECONDS, intervalSeconds - ageSeconds);
+
+        long localMillis = nowMillis + timeZone.getOffset(nowMillis);
+        long dayMillis = TimeUnit.DAYS.toMillis(1);
+        long secondsUntilMidnight =
+                TimeUnit.MILLISECONDS.toSeconds(dayMillis - localMillis % dayMillis);
+        return Math.min(delaySeconds, secondsUntilMidnight + DAY_CHANGE_DELAY_SECONDS);
+    }
+
+    /**
+     * @param delaySeconds    The delay of the next periodic sync
+     * @param prefetchSeconds The delay {@link UsagePredictor} suggests, -1 if none
+     * @param lastSyncMillis  When the last successful sync happened, 0 if never
+     * @param nowMillis       The current time
+     * @return The prefetch delay if the prefetch comes before the periodic sync and the
+     * forecast would be old enough by then, -1 otherwise
+     */
+    static long getPrefetchDelaySeconds(long delaySeconds, long prefetchSeconds,
+            long lastSyncMillis, long nowMillis) {
+        if (prefetchSeconds < 0 || prefetchSeconds >= delaySeconds) {
+            return -1;
+        }
+        long ageSeconds = TimeUnit.MILLISECONDS.toSeconds(nowMillis - lastSyncMillis);
+        if (ageSeconds + prefetchSeconds < PREFETCH_MIN_AGE_SECONDS) {
+            return -1;
+        }
+        return prefetchSeconds;
+    }
+
+    private static int findDate(WeatherBatch batch, long date) {
+        for (int row = 0; row < batch.size(); row++) {
+            if (batch.getDate(row) == date) {
+                return row;
+            }
+        }
+        return -1;
+    }
+}
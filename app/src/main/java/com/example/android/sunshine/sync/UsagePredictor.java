@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.Context;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Learns at what times of the day the user usually opens Sunshine, so a sync can run shortly
+ * before. A forecast that is already fresh when the list appears feels faster than any sync
+ * that starts once the app is open.
+ * <p>
+ * The day is split into half hours. Every time the forecast list is opened, the half hour it
+ * happened in gains weight, and every day that passes lets all of them lose some, so the
+ * pattern follows the user when their habits change. Everything stays on the device, in
+ * {@link SunshinePreferences}.
+ */
+public final class UsagePredictor {
+
+    static final int BUCKETS_PER_DAY = 48;
+    static final long BUCKET_MILLIS = TimeUnit.DAYS.toMillis(1) / BUCKETS_PER_DAY;
+
+    /* Opens this close to the one before, like after turning the screen, count only once */
+    static final long MIN_MILLIS_BETWEEN_OPENS = TimeUnit.MINUTES.toMillis(10);
+
+    /* How much an open still counts a day later. After two weeks it is down to a tenth. */
+    static final double DAILY_DECAY = 0.85;
+
+    /* A half hour is a usual time to open the app once it holds this share of all the weight */
+    static final double USUAL_SHARE = 0.1;
+
+    /* Until the opens add up to this much weight, we don't know the user well enough */
+    static final double MIN_TOTAL_WEIGHT = 3;
+
+    /* How long before a usual time to open the app the sync should start */
+    static final long PREFETCH_LEAD_MILLIS = TimeUnit.MINUTES.toMillis(20);
+
+    private UsagePredictor() {
+    }
+
+    /**
+     * Records that the user opened the forecast list just now.
+     *
+     * @param context Used to access SunshinePreferences
+     */
+    public static void recordAppOpen(Context context) {
+        float[] weights = SunshinePreferences.getAppOpenWeights(context, BUCKETS_PER_DAY);
+        long now = System.currentTimeMillis();
+        if (recordOpen(weights, SunshinePreferences.getLastAppOpenTime(context), now,
+                TimeZone.getDefault())) {
+            SunshinePreferences.saveAppOpen(context, weights, now);
+        }
+    }
+
+    /**
+     * @param context Used to access SunshinePreferences
+     * @return How many seconds from now a sync should start to have the forecast fresh for the
+     * next usual time to open the app, or -1 if we don't know of one
+     */
+    static long getSecondsUntilPrefetch(Context context) {
+        return getSecondsUntilPrefetch(
+                SunshinePreferences.getAppOpenWeights(context, BUCKETS_PER_DAY),
+                System.currentTimeMillis(),
+                TimeZone.getDefault());
+    }
+
+    /**
+     * Adds an open to the weights, after letting them fade for every day since the last open.
+     *
+     * @param weights        The weight of each half hour, changed in place
+     * @param lastOpenMillis When the app was opened before, 0 if never
+     * @param nowMillis      When the app was opened now
+     * @param timeZone       The time zone the user lives in
+     * @return false if the open came too soon after the last one and the weights are unchanged
+     */
+    static boolean recordOpen(float[] weights, long lastOpenMillis, long nowMillis,
+            TimeZone timeZone) {
+        if (lastOpenMillis > 0 && nowMillis - lastOpenMillis >= 0
+                && nowMillis - lastOpenMillis < MIN_MILLIS_BETWEEN_OPENS) {
+            return false;
+        }
+
+        long dayMillis = TimeUnit.DAYS.toMillis(1);
+        long localNow = nowMillis + timeZone.getOffset(nowMillis);
+        if (lastOpenMillis > 0) {
+            long localLastOpen = lastOpenMillis + timeZone.getOffset(lastOpenMillis);
+            long days = localNow / dayMillis - localLastOpen / dayMillis;
+            if (days > 0) {
+                float decay = (float) Math.pow(DAILY_DECAY, days);
+                for (int bucket = 0; bucket < weights.length; bucket++) {
+                    weights[bucket] *= decay;
+                }
+            }
+        }
+
+        weights[(int) (localNow % dayMillis / BUCKET_MILLIS)] += 1;
+        return true;
+    }
+
+    /**
+     * Finds the next half hour within a day that is a usual time to open the app and whose
+     * prefetch still lies ahead.
+     *
+     * @param weights   The weight of each half hour
+     * @param nowMillis The current time
+     * @param timeZone  The time zone the user lives in
+     * @return Seconds from now until the prefetch for that half hour, or -1 if there is none
+     */
+    static long getSecondsUntilPrefetch(float[] weights, long nowMillis, TimeZone timeZone) {
+        double totalWeight = 0;
+        for (float weight : weights) {
+            totalWeight += weight;
+        }
+        if (totalWeight < MIN_TOTAL_WEIGHT) {
+            return -1;
+        }
+
+        long localNow = nowMillis + timeZone.getOffset(nowMillis);
+        long currentBucket = localNow / BUCKET_MILLIS;
+        for (long bucket = currentBucket; bucket <= currentBucket + BUCKETS_PER_DAY; bucket++) {
+            long prefetchMillis = bucket * BUCKET_MILLIS - PREFETCH_LEAD_MILLIS - localNow;
+            if (prefetchMillis > 0
+                    && weights[(int) (bucket % BUCKETS_PER_DAY)] >= USUAL_SHARE * totalWeight) {
+                return TimeUnit.MILLISECONDS.toSeconds(prefetchMillis);
+            }
+        }
+        return -1;
+    }
+}
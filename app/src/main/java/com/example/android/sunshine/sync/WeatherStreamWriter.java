@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.sync;
+
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.os.Bundle;
+import android.support.v4.os.CancellationSignal;
+
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherBatch;
+import com.example.android.sunshine.data.WeatherContract;
+import com.example.android.sunshine.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.utilities.OpenWeatherJsonUtils;
+
+/**
+ * Collects the weather that is being parsed from the network and merges it into the stored
+ * forecast with a single provider call. The days are appended to a columnar {@link WeatherBatch},
+ * which costs a few dozen bytes per day, so holding the whole forecast until the response has
+ * been read is cheap.
+ * <p>
+ * The provider compares the new forecast with the stored one inside one transaction and only
+ * writes the days that changed. Readers never see an empty table, and only the days that
+ * actually changed are announced to observers. If the response turns out to contain no days at
+ * all, the stored forecast is left untouched. The cancellation signal is honored up to the
+ * moment the forecast is written.
+ * <p>
+ * Each writer belongs to one location. The coordinates the server reports for the city are
+ * stored in SunshinePreferences for the location chosen in the settings, and in the location
+ * table for any other location.
+ */
+class WeatherStreamWriter implements OpenWeatherJsonUtils.WeatherBatchHandler {
+
+    /* Enough room for the forecast we ask the server for, the batch grows if there is more */
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Context mContext;
+    private final ContentResolver mContentResolver;
+    private final CancellationSignal mCancellationSignal;
+    private final long mLocationId;
+    private final WeatherBatch mBatch = new WeatherBatch(INITIAL_CAPACITY);
+
+    private int mRowsChanged;
+
+    /**
+     * @param context            Used to access the ContentResolver and SunshinePreferences
+     * @param cancellationSignal Stops the writer before it writes anything
+     * @param locationId         _ID of the location the forecast is for, or
+     *                           {@link LocationEntry#PREFERRED_LOCATION_ID}
+     */
+    WeatherStreamWriter(Context context, CancellationSignal cancellationSignal, long locationId) {
+        mContext = context;
+        mContentResolver = context.getContentResolver();
+        mCancellationSignal = cancellationSignal;
+        mLocationId = locationId;
+    }
+
+    /**
+     * @return The batch the stream parser should append the parsed days to
+     */
+    WeatherBatch getBatch() {
+        return mBatch;
+    }
+
+    @Override
+    public void onCityRead(double latitude, double longitude) {
+        if (mLocationId == LocationEntry.PREFERRED_LOCATION_ID) {
+            SunshinePreferences.setLocationDetails(mContext, latitude, longitude);
+            return;
+        }
+
+        /* Only write if the coordinates changed, which after the first sync they rarely do */
+        String latitudeString = Double.toString(latitude);
+        String longitudeString = Double.toString(longitude);
+        ContentValues coordinates = new ContentValues();
+        coordinates.put(LocationEntry.COLUMN_COORD_LAT, latitude);
+        coordinates.put(LocationEntry.COLUMN_COORD_LONG, longitude);
+        mContentResolver.update(LocationEntry.buildLocationUri(mLocationId),
+                coordinates,
+                LocationEntry.COLUMN_COORD_LAT + " != ? OR "
+                        + LocationEntry.COLUMN_COORD_LONG + " != ?",
+                new String[]{latitudeString, longitudeString});
+    }
+
+    @Override
+    public void onDayRead(WeatherBatch batch) {
+        mCancellationSignal.throwIfCanceled();
+    }
+
+    /**
+     * Merges the days that were read into the stored forecast. Must be called once parsing has
+     * finished.
+     */
+    void finish() {
+        if (mBatch.size() == 0) {
+            return;
+        }
+
+        /* Last chance to stop. From here on the new forecast is written in full. */
+        mCancellationSignal.throwIfCanceled();
+
+        Bundle extras = mBatch.toBundle();
+        extras.putLong(WeatherContract.KEY_LOCATION_ID, mLocationId);
+        extras.putBoolean(WeatherContract.KEY_KEEP_HISTORY,
+                SunshinePreferences.isArchiveEnabled(mContext));
+        Bundle result = mContentResolver.call(WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_MERGE_FORECAST, null, extras);
+        if (result != null) {
+            mRowsChanged = result.getInt(WeatherContract.KEY_INSERTED_COUNT)
+                    + result.getInt(WeatherContract.KEY_UPDATED_COUNT)
+                    + result.getInt(WeatherContract.KEY_DELETED_COUNT);
+        }
+
+        mBatch.clear();
+    }
+
+    /**
+     * @return The number of rows the merge inserted, updated or deleted
+     */
+    int getRowsChanged() {
+        return mRowsChanged;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.content.Context;
+import android.support.v4.util.LongSparseArray;
+
+import com.example.android.sunshine.R;
+import com.example.android.sunshine.data.WeatherBatch;
+
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * The strings the forecast list shows for each day, formatted ahead of time. Formatting a day
+ * takes a friendly date, a weather description, two temperatures and three accessibility
+ * strings, each of them a resource lookup and most of them a String.format. Done on every bind,
+ * that is a lot of work for a list that mostly shows the same days over and over.
+ * <p>
+ * The table holds one {@link Row} per date, with the temperatures formatted in both metric and
+ * imperial units, so switching units in the settings only picks the other string. It is filled
+ * by {@link #precompute(Context, WeatherBatch)} once a sync has written a new forecast, and
+ * rows that are missing are formatted the first time they are asked for.
+ * <p>
+ * A friendly date like "Tomorrow" depends on the day it is shown on, and every string depends on
+ * the locale. The table belongs to one locale and one local day, and is emptied when either of
+ * them changes. A row also remembers the values it was formatted from, so a day whose forecast
+ * changed is formatted again instead of showing old strings.
+ */
+public final class ForecastPresentationTable {
+
+    /* The indices of the two unit systems in the arrays of a Row */
+    private static final int UNITS_METRIC = 0;
+    private static final int UNITS_IMPERIAL = 1;
+
+    private static final LongSparseArray<Row> sRows = new LongSparseArray<Row>();
+
+    /* The locale and local day the rows were formatted for */
+    private static Locale sLocale;
+    private static long sLocalDay;
+
+    private ForecastPresentationTable() {
+    }
+
+    /**
+     * The formatted strings of one day.
+     */
+    public static final class Row {
+
+        /* The values the strings were formatted from */
+        private final int mSourceWeatherId;
+        private final double mSourceHigh;
+        private final double mSourceLow;
+
+        private final String mDate;
+        private final String mDescription;
+        private final String mDescriptionA11y;
+        private final String[] mHigh = new String[2];
+        private final String[] mHighA11y = new String[2];
+        private final String[] mLow = new String[2];
+        private final String[] mLowA11y = new String[2];
+
+        private Row(Context context, long date, int weatherId, double high, double low) {
+            mSourceWeatherId = weatherId;
+            mSourceHigh = high;
+            mSourceLow = low;
+
+            mDate = SunshineDateUtils.getFriendlyDateString(context, date, false);
+            mDescription = SunshineWeatherUtils.getStringForWeatherCondition(context, weatherId);
+            mDescriptionA11y = context.getString(R.string.a11y_forecast, mDescription);
+
+            for (int units = UNITS_METRIC; units <= UNITS_IMPERIAL; units++) {
+                boolean isMetric = units == UNITS_METRIC;
+                mHigh[units] = SunshineWeatherUtils.formatTemperature(context, high, isMetric);
+                mHighA11y[units] = context.getString(R.string.a11y_high_temp, mHigh[units]);
+                mLow[units] = SunshineWeatherUtils.formatTemperature(context, low, isMetric);
+                mLowA11y[units] = context.getString(R.string.a11y_low_temp, mLow[units]);
+            }
+        }
+
+        private boolean isFormattedFrom(int weatherId, double high, double low) {
+            return mSourceWeatherId == weatherId && mSourceHigh == high && mSourceLow == low;
+        }
+
+        public String getDate() {
+            return mDate;
+        }
+
+        public String getDescription() {
+            return mDescription;
+        }
+
+        public String getDescriptionA11y() {
+            return mDescriptionA11y;
+        }
+
+        public String getHighTemperature(boolean isMetric) {
+            return mHigh[isMetric ? UNITS_METRIC : UNITS_IMPERIAL];
+        }
+
+        public String getHighTemperatureA11y(boolean isMetric) {
+            return mHighA11y[isMetric ? UNITS_METRIC : UNITS_IMPERIAL];
+        }
+
+        public String getLowTemperature(boolean isMetric) {
+            return mLow[isMetric ? UNITS_METRIC : UNITS_IMPERIAL];
+        }
+
+        public String getLowTemperatureA11y(boolean isMetric) {
+            return mLowA11y[isMetric ? UNITS_METRIC : UNITS_IMPERIAL];
+        }
+    }
+
+    /**
+     * Returns the formatted strings of a day, formatting them first if the table doesn't have
+     * them yet.
+     *
+     * @param context   Used for resources and the locale
+     * @param date      Normalized UTC date of the day
+     * @param weatherId Weather condition code of the day
+     * @param high      Maximum temperature in °C
+     * @param low       Minimum temperature in °C
+     * @return The strings of the day
+     */
+    public static synchronized Row getRow(Context context, long date, int weatherId,
+            double high, double low) {
+        dropRowsIfStale(context);
+        Row row = sRows.get(date);
+        if (row == null || !row.isFormattedFrom(weatherId, high, low)) {
+            row = new Row(context, date, weatherId, high, low);
+            sRows.put(date, row);
+        }
+        return row;
+    }
+
+    /**
+     * Formats every day of a forecast that the table doesn't hold yet, so that the forecast list
+     * finds its strings ready when it binds. Call from a background thread after a sync wrote a
+     * new forecast.
+     *
+     * @param context  Used for resources and the locale
+     * @param forecast The forecast from today onwards, as WeatherContract's
+     *                 METHOD_GET_FORECAST_SNAPSHOT hands it out
+     */
+    public static void precompute(Context context, WeatherBatch forecast) {
+        for (int row = 0; row < forecast.size(); row++) {
+            getRow(context, forecast.getDate(row), forecast.getWeatherId(row),
+                    forecast.getMaxTemp(row), forecast.getMinTemp(row));
+        }
+    }
+
+    private static void dropRowsIfStale(Context context) {
+        Locale locale = context.getResources().getConfiguration().locale;
+        long now = System.currentTimeMillis();
+        long localDay = (now + TimeZone.getDefault().getOffset(now))
+                / SunshineDateUtils.DAY_IN_MILLIS;
+
+        if (localDay != sLocalDay || !locale.equals(sLocale)) {
+            sRows.clear();
+            sLocale = locale;
+            sLocalDay = localDay;
+        }
+    }
+}
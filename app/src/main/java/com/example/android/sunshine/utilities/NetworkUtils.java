@@ -16,17 +16,27 @@
 package com.example.android.sunshine.utilities;
 
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.SystemClock;
+import android.support.v4.os.CancellationSignal;
+import android.support.v4.os.OperationCanceledException;
 import android.util.Log;
 
+import com.example.android.sunshine.BuildConfig;
 import com.example.android.sunshine.data.SunshinePreferences;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PushbackInputStream;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 
 /**
  * These utilities will be used to communicate with the weather servers.
@@ -56,6 +66,16 @@ public final class NetworkUtils {
 
     private static final String FORECAST_BASE_URL = STATIC_WEATHER_URL;
 
+    /*
+     * The fake weather server only knows the daily forecast. The forecast in steps of three
+     * hours comes from OpenWeatherMap's 5 day / 3 hour forecast, which answers the same query
+     * parameters as the daily one but needs an API key of your own. The key is sent as the appid
+     * parameter and comes from BuildConfig.OPEN_WEATHER_MAP_API_KEY, see app/build.gradle.
+     * Without it, the hourly forecast isn't synced at all.
+     */
+    private static final String HOURLY_FORECAST_BASE_URL =
+            "https://api.openweathermap.org/data/2.5/forecast";
+
     /*
      * NOTE: These values only effect responses from OpenWeatherMap, NOT from the fake weather
      * server. They are simply here to allow us to teach you how to build a URL if you were to use
@@ -69,6 +89,8 @@ public final class NetworkUtils {
     private static final String units = "metric";
     /* The number of days we want our API to return */
     private static final int numDays = 14;
+    /* The number of three hour steps we want, which is all five days the API offers */
+    private static final int numHourlySteps = 40;
 
     /* The query parameter allows us to provide a location string to the API */
     private static final String QUERY_PARAM = "q";
@@ -82,10 +104,34 @@ public final class NetworkUtils {
     private static final String UNITS_PARAM = "units";
     /* The days parameter allows us to designate how many days of weather data we want */
     private static final String DAYS_PARAM = "cnt";
+    /* The API key parameter identifies us to OpenWeatherMap */
+    private static final String APPID_PARAM = "appid";
+
+    /*
+     * Validators from the last successful response of each URL are kept in their own
+     * SharedPreferences file, keyed by the URL plus one of the suffixes below.
+     */
+    private static final String HTTP_VALIDATORS_PREFERENCES = "http_validators";
+    private static final String KEY_SUFFIX_ETAG = "|etag";
+    private static final String KEY_SUFFIX_LAST_MODIFIED = "|last_modified";
+
+    private static final String HEADER_ETAG = "ETag";
+    private static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    private static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    private static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+    private static final String HEADER_ACCEPT_ENCODING = "Accept-Encoding";
+
+    /* Compression we are able to decode. The forecast JSON usually shrinks to a fraction. */
+    private static final String ENCODING_GZIP = "gzip";
+    private static final String ENCODING_DEFLATE = "deflate";
+    private static final String ENCODING_IDENTITY = "identity";
+    private static final String ACCEPTED_ENCODINGS = ENCODING_GZIP + ", " + ENCODING_DEFLATE;
+
+    private static final int DRAIN_BUFFER_SIZE = 1024;
 
     /**
      * Retrieves the proper URL to query for the weather data. The reason for both this method as
-     * well as {@link #buildUrlWithLocationQuery(String)} is two fold.
+     * well as {@link #buildUrlWithLocationQuery(String, int, String, String)} is two fold.
      * <p>
      * 1) You should be able to just use one method when you need to create the URL within the
      * app instead of calling both methods.
@@ -102,29 +148,79 @@ public final class NetworkUtils {
             double[] preferredCoordinates = SunshinePreferences.getLocationCoordinates(context);
             double latitude = preferredCoordinates[0];
             double longitude = preferredCoordinates[1];
-            return buildUrlWithLatitudeLongitude(latitude, longitude);
+            return buildUrlWithLatitudeLongitude(FORECAST_BASE_URL, numDays, null,
+                    latitude, longitude);
         } else {
             String locationQuery = SunshinePreferences.getPreferredWeatherLocation(context);
-            return buildUrlWithLocationQuery(locationQuery);
+            return buildUrlWithLocationQuery(FORECAST_BASE_URL, numDays, null, locationQuery);
         }
     }
 
+    /**
+     * Retrieves the URL of the hourly forecast of the location chosen in the settings, the same
+     * way {@link #getUrl(Context)} does for the daily forecast.
+     *
+     * @param context used to access other Utility methods
+     * @return URL to query the hourly forecast
+     */
+    public static URL getHourlyUrl(Context context) {
+        if (SunshinePreferences.isLocationLatLonAvailable(context)) {
+            double[] preferredCoordinates = SunshinePreferences.getLocationCoordinates(context);
+            return buildUrlWithLatitudeLongitude(HOURLY_FORECAST_BASE_URL, numHourlySteps,
+                    BuildConfig.OPEN_WEATHER_MAP_API_KEY,
+                    preferredCoordinates[0], preferredCoordinates[1]);
+        } else {
+            String locationQuery = SunshinePreferences.getPreferredWeatherLocation(context);
+            return buildUrlWithLocationQuery(HOURLY_FORECAST_BASE_URL, numHourlySteps,
+                    BuildConfig.OPEN_WEATHER_MAP_API_KEY, locationQuery);
+        }
+    }
+
+    /**
+     * Builds the URL for the forecast of a location other than the one chosen in the settings.
+     *
+     * @param locationQuery The location setting stored for that location
+     * @return URL to query weather service
+     */
+    public static URL getUrlForLocationQuery(String locationQuery) {
+        return buildUrlWithLocationQuery(FORECAST_BASE_URL, numDays, null, locationQuery);
+    }
+
+    /**
+     * Builds the URL for the hourly forecast of a location other than the one chosen in the
+     * settings.
+     *
+     * @param locationQuery The location setting stored for that location
+     * @return URL to query the hourly forecast
+     */
+    public static URL getHourlyUrlForLocationQuery(String locationQuery) {
+        return buildUrlWithLocationQuery(HOURLY_FORECAST_BASE_URL, numHourlySteps,
+                BuildConfig.OPEN_WEATHER_MAP_API_KEY, locationQuery);
+    }
+
     /**
      * Builds the URL used to talk to the weather server using latitude and longitude of a
      * location.
      *
+     * @param baseUrl   The forecast to query, daily or hourly
+     * @param count     The number of days or steps to ask for
+     * @param apiKey    The API key to send along, or null if the server doesn't need one
      * @param latitude  The latitude of the location
      * @param longitude The longitude of the location
      * @return The Url to use to query the weather server.
      */
-    private static URL buildUrlWithLatitudeLongitude(Double latitude, Double longitude) {
-        Uri weatherQueryUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+    private static URL buildUrlWithLatitudeLongitude(String baseUrl, int count, String apiKey,
+            Double latitude, Double longitude) {
+        Uri.Builder builder = Uri.parse(baseUrl).buildUpon()
                 .appendQueryParameter(LAT_PARAM, String.valueOf(latitude))
                 .appendQueryParameter(LON_PARAM, String.valueOf(longitude))
                 .appendQueryParameter(FORMAT_PARAM, format)
                 .appendQueryParameter(UNITS_PARAM, units)
-                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                .build();
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(count));
+        if (apiKey != null) {
+            builder.appendQueryParameter(APPID_PARAM, apiKey);
+        }
+        Uri weatherQueryUri = builder.build();
 
         try {
             URL weatherQueryUrl = new URL(weatherQueryUri.toString());
@@ -140,16 +236,23 @@ public final class NetworkUtils {
      * Builds the URL used to talk to the weather server using a location. This location is based
      * on the query capabilities of the weather provider that we are using.
      *
+     * @param baseUrl       The forecast to query, daily or hourly
+     * @param count         The number of days or steps to ask for
+     * @param apiKey        The API key to send along, or null if the server doesn't need one
      * @param locationQuery The location that will be queried for.
      * @return The URL to use to query the weather server.
      */
-    private static URL buildUrlWithLocationQuery(String locationQuery) {
-        Uri weatherQueryUri = Uri.parse(FORECAST_BASE_URL).buildUpon()
+    private static URL buildUrlWithLocationQuery(String baseUrl, int count, String apiKey,
+            String locationQuery) {
+        Uri.Builder builder = Uri.parse(baseUrl).buildUpon()
                 .appendQueryParameter(QUERY_PARAM, locationQuery)
                 .appendQueryParameter(FORMAT_PARAM, format)
                 .appendQueryParameter(UNITS_PARAM, units)
-                .appendQueryParameter(DAYS_PARAM, Integer.toString(numDays))
-                .build();
+                .appendQueryParameter(DAYS_PARAM, Integer.toString(count));
+        if (apiKey != null) {
+            builder.appendQueryParameter(APPID_PARAM, apiKey);
+        }
+        Uri weatherQueryUri = builder.build();
 
         try {
             URL weatherQueryUrl = new URL(weatherQueryUri.toString());
@@ -162,29 +265,309 @@ public final class NetworkUtils {
     }
 
     /**
-     * This method returns the entire result from the HTTP response.
+     * Opens the HTTP response for the given URL and hands its body to the handler as a stream.
+     * The body is never buffered into a String, so callers can pull-parse it and keep memory use
+     * independent of the payload size.
+     * <p>
+     * The request is made conditional on the ETag and Last-Modified validators stored for this
+     * URL by the previous successful call. If the server answers "304 Not Modified", the handler
+     * is not called at all. Validators are only stored once the handler has returned normally,
+     * so a response that failed to be processed is downloaded in full again next time.
+     * <p>
+     * The server may send the body gzip or deflate compressed. It is decompressed on the fly, so
+     * the handler always reads plain bytes.
+     * <p>
+     * The connection comes from {@link SunshineHttpClient}, which applies its timeouts. Once the
+     * body has been read completely, the connection is kept alive for the next request.
      *
-     * @param url The URL to fetch the HTTP response from.
-     * @return The contents of the HTTP response, null if no response
+     * @param context Used to access the stored validators
+     * @param url     The URL to fetch the HTTP response from.
+     * @param handler Consumes the response body. The stream is closed once the handler returns.
+     * @param stats   Receives the encoding, the compressed and uncompressed size of the body,
+     *                the connect, time to first byte and download timings, and how much of the
+     *                download time the handler spent on its own work
+     * @return true if a new response body was handled, false if the server reported that the
+     * content has not changed since the last call
      * @throws IOException Related to network and stream reading
      */
-    public static String getResponseFromHttpUrl(URL url) throws IOException {
-        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+    public static boolean readResponseFromHttpUrl(Context context, URL url,
+            ResponseHandler handler, TransferStats stats) throws IOException {
+        return readResponseFromHttpUrl(context, url, handler, stats, null);
+    }
+
+    /**
+     * Same as {@link #readResponseFromHttpUrl(Context, URL, ResponseHandler, TransferStats)},
+     * but gives up as soon as the signal is cancelled. A read that blocks on the socket can't
+     * be interrupted, and would otherwise only return once the read timeout has passed. Instead,
+     * cancelling disconnects the connection from under it, which makes the read fail at once.
+     * <p>
+     * The signal's cancel listener is ours while the request runs, and is cleared before this
+     * method returns. A signal that is shared by several requests running at the same time
+     * can't be used here, give each of them a signal of its own.
+     *
+     * @param cancellationSignal Stops the request, may be null
+     * @throws OperationCanceledException If the signal was cancelled before the response was
+     *                                    handled completely. The validators are left as they
+     *                                    were, so the response is downloaded again next time.
+     */
+    public static boolean readResponseFromHttpUrl(Context context, URL url,
+            ResponseHandler handler, TransferStats stats,
+            CancellationSignal cancellationSignal) throws IOException {
+        SharedPreferences validators =
+                context.getSharedPreferences(HTTP_VALIDATORS_PREFERENCES, Context.MODE_PRIVATE);
+        String urlKey = url.toString();
+
+        SunshineHttpClient httpClient = SunshineHttpClient.getInstance();
+        final HttpURLConnection urlConnection = httpClient.open(url);
+        boolean reusable = false;
         try {
-            InputStream in = urlConnection.getInputStream();
+            if (cancellationSignal != null) {
+                /* Runs right away if the signal was already cancelled */
+                cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                    @Override
+                    public void onCancel() {
+                        urlConnection.disconnect();
+                    }
+                });
+                cancellationSignal.throwIfCanceled();
+            }
+
+            /*
+             * Setting Accept-Encoding ourselves turns off the transparent gzip support of
+             * HttpURLConnection. We decompress the body below instead, which lets us see how
+             * many bytes actually went over the wire.
+             */
+            urlConnection.setRequestProperty(HEADER_ACCEPT_ENCODING, ACCEPTED_ENCODINGS);
+
+            String entityTag = validators.getString(urlKey + KEY_SUFFIX_ETAG, null);
+            if (entityTag != null) {
+                urlConnection.setRequestProperty(HEADER_IF_NONE_MATCH, entityTag);
+            }
+            String lastModified = validators.getString(urlKey + KEY_SUFFIX_LAST_MODIFIED, null);
+            if (lastModified != null) {
+                urlConnection.setRequestProperty(HEADER_IF_MODIFIED_SINCE, lastModified);
+            }
 
-            Scanner scanner = new Scanner(in);
-            scanner.useDelimiter("\\A");
+            /*
+             * Connecting explicitly lets us tell the time spent on DNS, TCP and TLS apart from the
+             * time the server took to answer. A pooled connection connects almost instantly.
+             */
+            long startMillis = SystemClock.elapsedRealtime();
+            urlConnection.connect();
+            long connectedMillis = SystemClock.elapsedRealtime();
+            int responseCode = urlConnection.getResponseCode();
+            long firstByteMillis = SystemClock.elapsedRealtime();
+            stats.setTimings(connectedMillis - startMillis, firstByteMillis - connectedMillis, 0);
 
-            boolean hasInput = scanner.hasNext();
-            String response = null;
-            if (hasInput) {
-                response = scanner.next();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                Log.v(TAG, "Not modified: " + url);
+                /* A 304 never has a body, so there is nothing left on the socket */
+                reusable = true;
+                return false;
             }
-            scanner.close();
-            return response;
+
+            String contentEncoding = urlConnection.getContentEncoding();
+            stats.setContentEncoding(contentEncoding);
+
+            CountingInputStream wireIn = new CountingInputStream(urlConnection.getInputStream());
+            CountingInputStream bodyIn = null;
+            try {
+                bodyIn = new CountingInputStream(decodeContent(wireIn, contentEncoding));
+                long handlerStartNanos = System.nanoTime();
+                handler.onResponse(bodyIn);
+
+                /*
+                 * Whatever time the handler didn't spend waiting for the body to arrive and be
+                 * decompressed, it spent on its own work, like parsing.
+                 */
+                stats.setHandlerMillis(TimeUnit.NANOSECONDS.toMillis(
+                        System.nanoTime() - handlerStartNanos - bodyIn.getReadNanos()));
+
+                /*
+                 * Parsers usually stop right after the last token they need. Reading the rest of
+                 * the body also consumes the gzip trailer, which verifies the checksum and makes
+                 * the byte counts cover the complete response.
+                 */
+                bodyIn.drain();
+                /* An Inflater may stop before the end of what the server sent */
+                wireIn.drain();
+                reusable = true;
+            } finally {
+                stats.setTimings(connectedMillis - startMillis, firstByteMillis - connectedMillis,
+                        SystemClock.elapsedRealtime() - firstByteMillis);
+                if (bodyIn != null) {
+                    stats.addBytes(wireIn.getCount(), bodyIn.getCount());
+                    bodyIn.close();
+                } else {
+                    wireIn.close();
+                }
+            }
+
+            SharedPreferences.Editor editor = validators.edit();
+            putOrRemove(editor, urlKey + KEY_SUFFIX_ETAG,
+                    urlConnection.getHeaderField(HEADER_ETAG));
+            putOrRemove(editor, urlKey + KEY_SUFFIX_LAST_MODIFIED,
+                    urlConnection.getHeaderField(HEADER_LAST_MODIFIED));
+            editor.apply();
+
+            return true;
+        } catch (IOException e) {
+            /* The connection failed because we disconnected it */
+            if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                throw new OperationCanceledException();
+            }
+            throw e;
         } finally {
-            urlConnection.disconnect();
+            if (cancellationSignal != null) {
+                /* Waits for a cancel that is disconnecting us right now to finish */
+                cancellationSignal.setOnCancelListener(null);
+            }
+            /* Unless the body was read to the end, the socket can't be handed to the next request */
+            httpClient.release(urlConnection, reusable);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Forgets every stored ETag and Last-Modified validator, which makes the next request for
+     * any URL unconditional. This must be called whenever the data that was built from earlier
+     * responses is lost, otherwise the server would keep telling us that nothing has changed.
+     *
+     * @param context Used to access the stored validators
+     */
+    public static void clearResponseValidators(Context context) {
+        context.getSharedPreferences(HTTP_VALIDATORS_PREFERENCES, Context.MODE_PRIVATE)
+                .edit()
+                .clear()
+                .apply();
+    }
+
+    /**
+     * Forgets the ETag and Last-Modified validators of one URL, which makes the next request for
+     * it unconditional. Use this when only the data built from that URL was lost.
+     *
+     * @param context Used to access the stored validators
+     * @param url     The URL whose validators are dropped
+     */
+    public static void clearResponseValidators(Context context, URL url) {
+        String urlKey = url.toString();
+        context.getSharedPreferences(HTTP_VALIDATORS_PREFERENCES, Context.MODE_PRIVATE)
+                .edit()
+                .remove(urlKey + KEY_SUFFIX_ETAG)
+                .remove(urlKey + KEY_SUFFIX_LAST_MODIFIED)
+                .apply();
+    }
+
+    /**
+     * Wraps the raw response body in a decompressing stream that matches its Content-Encoding.
+     *
+     * @param in              The body as received from the network
+     * @param contentEncoding The Content-Encoding header of the response, may be null
+     * @return A stream that yields the uncompressed body
+     * @throws IOException If the compressed stream header cannot be read
+     */
+    static InputStream decodeContent(InputStream in, String contentEncoding)
+            throws IOException {
+        if (contentEncoding == null || ENCODING_IDENTITY.equalsIgnoreCase(contentEncoding)) {
+            return in;
+        }
+        if (ENCODING_GZIP.equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(in);
+        }
+        if (ENCODING_DEFLATE.equalsIgnoreCase(contentEncoding)) {
+            /*
+             * HTTP's "deflate" is supposed to be zlib wrapped, but plenty of servers send a raw
+             * deflate stream instead. The first two bytes of a zlib stream form a header that
+             * we can recognize, so peek at them to pick the right Inflater.
+             */
+            PushbackInputStream pushbackIn = new PushbackInputStream(in, 2);
+            int first = pushbackIn.read();
+            int second = pushbackIn.read();
+            if (second != -1) pushbackIn.unread(second);
+            if (first != -1) pushbackIn.unread(first);
+
+            boolean zlibWrapped = first != -1 && second != -1
+                    && (first & 0x0f) == 8
+                    && ((first << 8) | second) % 31 == 0;
+            return new InflaterInputStream(pushbackIn, new Inflater(!zlibWrapped));
+        }
+        throw new IOException("Unsupported Content-Encoding: " + contentEncoding);
+    }
+
+    private static void putOrRemove(SharedPreferences.Editor editor, String key, String value) {
+        if (value != null) {
+            editor.putString(key, value);
+        } else {
+            editor.remove(key);
+        }
+    }
+
+    /**
+     * An InputStream that counts the bytes read through it.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+
+        private long mCount;
+
+        /* Time spent inside read, waiting for the network and decompressing */
+        private long mReadNanos;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            long startNanos = System.nanoTime();
+            int b = super.read();
+            mReadNanos += System.nanoTime() - startNanos;
+            if (b != -1) mCount++;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            long startNanos = System.nanoTime();
+            int read = super.read(buffer, offset, length);
+            mReadNanos += System.nanoTime() - startNanos;
+            if (read > 0) mCount += read;
+            return read;
+        }
+
+        @Override
+        public long skip(long byteCount) throws IOException {
+            long skipped = super.skip(byteCount);
+            mCount += skipped;
+            return skipped;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return false;
+        }
+
+        /**
+         * Reads and discards everything up to the end of the stream.
+         */
+        void drain() throws IOException {
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            while (read(buffer, 0, buffer.length) != -1) {
+                /* Keep reading until the end of the stream */
+            }
+        }
+
+        long getCount() {
+            return mCount;
+        }
+
+        long getReadNanos() {
+            return mReadNanos;
+        }
+    }
+
+    /**
+     * Receives the body of an HTTP response as it arrives from the network.
+     */
+    public interface ResponseHandler {
+        void onResponse(InputStream in) throws IOException;
+    }
+}
@@ -15,16 +15,17 @@
  */
 package com.example.android.sunshine.utilities;
 
-import android.content.ContentValues;
-import android.content.Context;
+import android.text.format.DateUtils;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.MalformedJsonException;
 
-import com.example.android.sunshine.data.SunshinePreferences;
-import com.example.android.sunshine.data.WeatherContract;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import com.example.android.sunshine.data.HourlyBatch;
+import com.example.android.sunshine.data.WeatherBatch;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.net.HttpURLConnection;
 
 /**
@@ -60,125 +61,379 @@ public final class OpenWeatherJsonUtils {
 
     private static final String OWM_MESSAGE_CODE = "cod";
 
+    /*
+     * The hourly forecast has one element per step in its "list" array. The time of the step is
+     * given in seconds, and the values of the step are spread over a few objects.
+     */
+    private static final String OWM_DATE_TIME = "dt";
+    private static final String OWM_MAIN = "main";
+    private static final String OWM_WIND = "wind";
+
+    /* Values that must be present for each day when streaming, one bit each */
+    private static final int VALUE_PRESSURE = 1;
+    private static final int VALUE_HUMIDITY = 1 << 1;
+    private static final int VALUE_WIND_SPEED = 1 << 2;
+    private static final int VALUE_WIND_DIRECTION = 1 << 3;
+    private static final int VALUE_MAX_TEMP = 1 << 4;
+    private static final int VALUE_MIN_TEMP = 1 << 5;
+    private static final int VALUE_WEATHER_ID = 1 << 6;
+    private static final int ALL_DAY_VALUES = (1 << 7) - 1;
+
+    /* Values that must be present for each step of the hourly forecast, one bit each */
+    private static final int VALUE_TIME = 1 << 7;
+    private static final int VALUE_TEMP = 1 << 8;
+    private static final int ALL_STEP_VALUES = VALUE_TIME | VALUE_TEMP | VALUE_PRESSURE
+            | VALUE_HUMIDITY | VALUE_WIND_SPEED | VALUE_WIND_DIRECTION | VALUE_WEATHER_ID;
+
     /**
-     * This method parses JSON from a web response and returns an array of Strings
-     * describing the weather over various days from the forecast.
+     * Pull-parses the forecast JSON straight from the response stream and appends each day to
+     * the batch as soon as that day has been read. Neither the raw response nor a JSONObject tree
+     * is ever held in memory, and the values go straight into primitive columns, so the work per
+     * day stays the same no matter how many days the server returns.
+     * <p/>
+     * The handler is called after every day that was appended. It decides when the batch is
+     * large enough to be written and cleared.
      * <p/>
-     * Later on, we'll be parsing the JSON into structured data within the
-     * getFullWeatherDataFromJson function, leveraging the data we have stored in the JSON. For
-     * now, we just convert the JSON into human-readable strings.
+     * This returns without any values if the response carries an error code. The city's coordinates are handed to the
+     * handler instead of being stored in SunshinePreferences, since the forecast may be for a
+     * location other than the one chosen in the settings.
      *
-     * @param forecastJsonStr JSON response from server
+     * @param in      Response body from the server
+     * @param batch   Receives one row per day, in order
+     * @param handler Receives the city's coordinates, and is called after each day has been
+     *                appended to the batch
      *
-     * @return Array of Strings describing weather data
+     * @return The number of days read
      *
-     * @throws JSONException If JSON data cannot be properly parsed
+     * @throws IOException If the stream cannot be read or does not contain a valid forecast
+     */
+    public static int readWeatherBatchFromStream(InputStream in, WeatherBatch batch,
+            WeatherBatchHandler handler) throws IOException {
+
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        int daysRead = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                /* Is there an error? */
+                if (reader.nextInt() != HttpURLConnection.HTTP_OK) {
+                    /* Location invalid or server probably down */
+                    return daysRead;
+                }
+            } else if (OWM_CITY.equals(name)) {
+                readCityFromJson(reader, handler);
+            } else if (OWM_LIST.equals(name)) {
+                long normalizedUtcStartDay = SunshineDateUtils.getNormalizedUtcDateForToday();
+
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    /*
+                     * We ignore the datetime values embedded in the JSON and assume that the
+                     * days are returned in order (which is not guaranteed to be correct).
+                     */
+                    long dateTimeMillis =
+                            normalizedUtcStartDay + SunshineDateUtils.DAY_IN_MILLIS * daysRead;
+                    readDayFromJson(reader, dateTimeMillis, batch);
+                    daysRead++;
+                    handler.onDayRead(batch);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return daysRead;
+    }
+
+    /**
+     * Reads the "city" object and hands its coordinates to the handler.
+     */
+    private static void readCityFromJson(JsonReader reader, WeatherBatchHandler handler)
+            throws IOException {
+        double cityLatitude = Double.NaN;
+        double cityLongitude = Double.NaN;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (OWM_COORD.equals(reader.nextName())) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String name = reader.nextName();
+                    if (OWM_LATITUDE.equals(name)) {
+                        cityLatitude = reader.nextDouble();
+                    } else if (OWM_LONGITUDE.equals(name)) {
+                        cityLongitude = reader.nextDouble();
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (Double.isNaN(cityLatitude) || Double.isNaN(cityLongitude)) {
+            throw new MalformedJsonException("City coordinates missing from forecast");
+        }
+
+        handler.onCityRead(cityLatitude, cityLongitude);
+    }
+
+    /**
+     * Reads one element of the "list" array and appends it to the batch.
      */
-    public static ContentValues[] getWeatherContentValuesFromJson(Context context, String forecastJsonStr)
-            throws JSONException {
-
-        JSONObject forecastJson = new JSONObject(forecastJsonStr);
-
-        /* Is there an error? */
-        if (forecastJson.has(OWM_MESSAGE_CODE)) {
-            int errorCode = forecastJson.getInt(OWM_MESSAGE_CODE);
-
-            switch (errorCode) {
-                case HttpURLConnection.HTTP_OK:
-                    break;
-                case HttpURLConnection.HTTP_NOT_FOUND:
-                    /* Location invalid */
-                    return null;
-                default:
-                    /* Server probably down */
-                    return null;
+    private static void readDayFromJson(JsonReader reader, long dateTimeMillis,
+            WeatherBatch batch) throws IOException {
+
+        double pressure = 0;
+        double humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+        double high = 0;
+        double low = 0;
+        int weatherId = 0;
+
+        /* One bit per value, so we can tell a missing value from a value that is 0 */
+        int valuesRead = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (OWM_PRESSURE.equals(name)) {
+                pressure = reader.nextDouble();
+                valuesRead |= VALUE_PRESSURE;
+            } else if (OWM_HUMIDITY.equals(name)) {
+                /* Humidity is stored as a whole percentage */
+                humidity = (int) reader.nextDouble();
+                valuesRead |= VALUE_HUMIDITY;
+            } else if (OWM_WINDSPEED.equals(name)) {
+                windSpeed = reader.nextDouble();
+                valuesRead |= VALUE_WIND_SPEED;
+            } else if (OWM_WIND_DIRECTION.equals(name)) {
+                windDirection = reader.nextDouble();
+                valuesRead |= VALUE_WIND_DIRECTION;
+            } else if (OWM_TEMPERATURE.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String temperatureName = reader.nextName();
+                    if (OWM_MAX.equals(temperatureName)) {
+                        high = reader.nextDouble();
+                        valuesRead |= VALUE_MAX_TEMP;
+                    } else if (OWM_MIN.equals(temperatureName)) {
+                        low = reader.nextDouble();
+                        valuesRead |= VALUE_MIN_TEMP;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                weatherId = readWeatherIdFromJson(reader);
+                if (weatherId != NO_WEATHER_ID) {
+                    valuesRead |= VALUE_WEATHER_ID;
+                }
+            } else {
+                reader.skipValue();
             }
         }
+        reader.endObject();
 
-        JSONArray jsonWeatherArray = forecastJson.getJSONArray(OWM_LIST);
+        /* Every column of the weather table is NOT NULL, so a day must carry all of them */
+        if (valuesRead != ALL_DAY_VALUES) {
+            throw new MalformedJsonException("Incomplete forecast for day " + dateTimeMillis);
+        }
 
-        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        batch.add(dateTimeMillis, weatherId, low, high, humidity, pressure, windSpeed,
+                windDirection);
+    }
 
-        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
-        double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
-        double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+    /* Returned by readWeatherIdFromJson if the array doesn't carry a weather code */
+    private static final int NO_WEATHER_ID = -1;
 
-        SunshinePreferences.setLocationDetails(context, cityLatitude, cityLongitude);
+    /**
+     * Reads a "weather" array. Only its first element carries the weather code we use.
+     *
+     * @return The weather code, or {@link #NO_WEATHER_ID} if there is none
+     */
+    private static int readWeatherIdFromJson(JsonReader reader) throws IOException {
+        int weatherId = NO_WEATHER_ID;
+
+        reader.beginArray();
+        if (reader.hasNext()) {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (OWM_WEATHER_ID.equals(reader.nextName())) {
+                    weatherId = (int) reader.nextDouble();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        }
+        while (reader.hasNext()) {
+            reader.skipValue();
+        }
+        reader.endArray();
 
-        ContentValues[] weatherContentValues = new ContentValues[jsonWeatherArray.length()];
+        return weatherId;
+    }
 
-        /*
-         * OWM returns daily forecasts based upon the local time of the city that is being asked
-         * for, which means that we need to know the GMT offset to translate this data properly.
-         * Since this data is also sent in-order and the first day is always the current day, we're
-         * going to take advantage of that to get a nice normalized UTC date for all of our weather.
-         */
-//        long now = System.currentTimeMillis();
-//        long normalizedUtcStartDay = SunshineDateUtils.normalizeDate(now);
-
-        long normalizedUtcStartDay = SunshineDateUtils.getNormalizedUtcDateForToday();
-
-        for (int i = 0; i < jsonWeatherArray.length(); i++) {
-
-            long dateTimeMillis;
-            double pressure;
-            int humidity;
-            double windSpeed;
-            double windDirection;
-
-            double high;
-            double low;
-
-            int weatherId;
-
-            /* Get the JSON object representing the day */
-            JSONObject dayForecast = jsonWeatherArray.getJSONObject(i);
-
-            /*
-             * We ignore all the datetime values embedded in the JSON and assume that
-             * the values are returned in-order by day (which is not guaranteed to be correct).
-             */
-            dateTimeMillis = normalizedUtcStartDay + SunshineDateUtils.DAY_IN_MILLIS * i;
-
-            pressure = dayForecast.getDouble(OWM_PRESSURE);
-            humidity = dayForecast.getInt(OWM_HUMIDITY);
-            windSpeed = dayForecast.getDouble(OWM_WINDSPEED);
-            windDirection = dayForecast.getDouble(OWM_WIND_DIRECTION);
-
-            /*
-             * Description is in a child array called "weather", which is 1 element long.
-             * That element also contains a weather code.
-             */
-            JSONObject weatherObject =
-                    dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
-
-            weatherId = weatherObject.getInt(OWM_WEATHER_ID);
-
-            /*
-             * Temperatures are sent by Open Weather Map in a child object called "temp".
-             *
-             * Editor's Note: Try not to name variables "temp" when working with temperature.
-             * It confuses everybody. Temp could easily mean any number of things, including
-             * temperature, temporary variable, temporary folder, temporary employee, or many
-             * others, and is just a bad variable name.
-             */
-            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
-            high = temperatureObject.getDouble(OWM_MAX);
-            low = temperatureObject.getDouble(OWM_MIN);
-
-            ContentValues weatherValues = new ContentValues();
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DATE, dateTimeMillis);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_HUMIDITY, humidity);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_PRESSURE, pressure);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WIND_SPEED, windSpeed);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_DEGREES, windDirection);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP, high);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP, low);
-            weatherValues.put(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID, weatherId);
-
-            weatherContentValues[i] = weatherValues;
+    /**
+     * Pull-parses the JSON of an hourly forecast straight from the response stream, the same
+     * way {@link #readWeatherBatchFromStream} parses the daily one. Each step is appended to the
+     * batch as soon as it has been read, so the 40 steps of a five day forecast never exist as
+     * a string or a JSONObject tree.
+     * <p/>
+     * Unlike the days of the daily forecast, the steps keep the time the server gives them.
+     * The city is skipped, as the daily forecast of the same location already reports it.
+     *
+     * @param in      Response body from the server
+     * @param batch   Receives one row per step, in order
+     * @param handler Called after each step has been appended to the batch
+     *
+     * @return The number of steps read
+     *
+     * @throws IOException If the stream cannot be read or does not contain a valid forecast
+     */
+    public static int readHourlyBatchFromStream(InputStream in, HourlyBatch batch,
+            HourlyBatchHandler handler) throws IOException {
+
+        JsonReader reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+        int stepsRead = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (OWM_MESSAGE_CODE.equals(name)) {
+                /* The hourly forecast sends its code as a string, which nextInt parses too */
+                if (reader.nextInt() != HttpURLConnection.HTTP_OK) {
+                    return stepsRead;
+                }
+            } else if (OWM_LIST.equals(name)) {
+                reader.beginArray();
+                while (reader.hasNext()) {
+                    readStepFromJson(reader, batch);
+                    stepsRead++;
+                    handler.onStepRead(batch);
+                }
+                reader.endArray();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        return stepsRead;
+    }
+
+    /**
+     * Reads one element of the "list" array of an hourly forecast and appends it to the batch.
+     */
+    private static void readStepFromJson(JsonReader reader, HourlyBatch batch)
+            throws IOException {
+
+        long timeMillis = 0;
+        double temp = 0;
+        double pressure = 0;
+        double humidity = 0;
+        double windSpeed = 0;
+        double windDirection = 0;
+        int weatherId = 0;
+
+        int valuesRead = 0;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+
+            if (OWM_DATE_TIME.equals(name)) {
+                timeMillis = reader.nextLong() * DateUtils.SECOND_IN_MILLIS;
+                valuesRead |= VALUE_TIME;
+            } else if (OWM_MAIN.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String mainName = reader.nextName();
+                    if (OWM_TEMPERATURE.equals(mainName)) {
+                        temp = reader.nextDouble();
+                        valuesRead |= VALUE_TEMP;
+                    } else if (OWM_PRESSURE.equals(mainName)) {
+                        pressure = reader.nextDouble();
+                        valuesRead |= VALUE_PRESSURE;
+                    } else if (OWM_HUMIDITY.equals(mainName)) {
+                        humidity = (int) reader.nextDouble();
+                        valuesRead |= VALUE_HUMIDITY;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WIND.equals(name)) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String windName = reader.nextName();
+                    if (OWM_WINDSPEED.equals(windName)) {
+                        windSpeed = reader.nextDouble();
+                        valuesRead |= VALUE_WIND_SPEED;
+                    } else if (OWM_WIND_DIRECTION.equals(windName)) {
+                        windDirection = reader.nextDouble();
+                        valuesRead |= VALUE_WIND_DIRECTION;
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (OWM_WEATHER.equals(name) && reader.peek() == JsonToken.BEGIN_ARRAY) {
+                weatherId = readWeatherIdFromJson(reader);
+                if (weatherId != NO_WEATHER_ID) {
+                    valuesRead |= VALUE_WEATHER_ID;
+                }
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        /* Every column of the hourly table is NOT NULL, so a step must carry all of them */
+        if (valuesRead != ALL_STEP_VALUES) {
+            throw new MalformedJsonException("Incomplete forecast for step " + timeMillis);
         }
 
-        return weatherContentValues;
+        batch.add(timeMillis, weatherId, temp, humidity, pressure, windSpeed, windDirection);
+    }
+
+    /**
+     * Receives the steps the stream parser reads from the hourly forecast JSON.
+     */
+    public interface HourlyBatchHandler {
+
+        /**
+         * Called each time the stream parser has appended a step to the batch.
+         */
+        void onStepRead(HourlyBatch batch) throws IOException;
+    }
+
+    /**
+     * Receives what the stream parser reads from the forecast JSON.
+     */
+    public interface WeatherBatchHandler {
+
+        /**
+         * Called with the coordinates of the city the server picked for the request.
+         */
+        void onCityRead(double latitude, double longitude);
+
+        /**
+         * Called each time the stream parser has appended a day to the batch.
+         */
+        void onDayRead(WeatherBatch batch) throws IOException;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Measures how long it takes from the start of our process to the first forecast row on screen,
+ * and where that time goes. Every milestone is logged once per process with the milliseconds
+ * since the process started, so "adb logcat -s StartupTracer" shows the whole startup at a glance.
+ * <p>
+ * The stages in between are also written as sections to the system trace from Jelly Bean MR2
+ * on, where they show up in systrace next to the main thread's frames.
+ */
+public final class StartupTracer {
+
+    private static final String TAG = StartupTracer.class.getSimpleName();
+
+    /* The milestones of a cold start, in the order they usually happen */
+    public static final String MILESTONE_PROVIDER_CREATED = "provider created";
+    public static final String MILESTONE_DATABASE_OPEN = "database open";
+    public static final String MILESTONE_FORECAST_PRELOADED = "forecast preloaded";
+    public static final String MILESTONE_FORECAST_LOADED = "forecast loaded";
+    public static final String MILESTONE_FIRST_FORECAST_ROW = "first forecast row";
+
+    /*
+     * From Nougat on, Android tells us when our process was started. Before that, the first
+     * class to use us is our ContentProvider, which Android creates before anything else of
+     * ours, so the time this class is loaded is close enough.
+     */
+    private static final long sProcessStartMillis =
+            Build.VERSION.SDK_INT >= Build.VERSION_CODES.N
+                    ? Process.getStartElapsedRealtime()
+                    : SystemClock.elapsedRealtime();
+
+    private static final Map<String, Long> sMilestones = new HashMap<String, Long>();
+
+    private StartupTracer() {
+    }
+
+    /**
+     * Records that a milestone was reached. Only the first time counts, so this is cheap to call
+     * from code that runs again and again, like binding a list item.
+     *
+     * @param milestone One of the MILESTONE constants of this class
+     */
+    public static void mark(String milestone) {
+        long millisSinceStart = SystemClock.elapsedRealtime() - sProcessStartMillis;
+        synchronized (sMilestones) {
+            if (sMilestones.containsKey(milestone)) {
+                return;
+            }
+            sMilestones.put(milestone, millisSinceStart);
+        }
+        Log.i(TAG, milestone + " at +" + millisSinceStart + " ms");
+    }
+
+    /**
+     * @param milestone One of the MILESTONE constants of this class
+     * @return The milliseconds from the start of the process to the milestone, or -1 if it
+     * wasn't reached yet
+     */
+    public static long getMillisSinceStart(String milestone) {
+        synchronized (sMilestones) {
+            Long millisSinceStart = sMilestones.get(milestone);
+            return millisSinceStart == null ? -1 : millisSinceStart;
+        }
+    }
+
+    /**
+     * Begins a section of the system trace. Must be followed by {@link #endSection()} on the
+     * same thread.
+     *
+     * @param name The name the section shows up with in systrace
+     */
+    public static void beginSection(String name) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.beginSection(name);
+        }
+    }
+
+    /**
+     * Ends the section this thread began last.
+     */
+    public static void endSection() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2) {
+            Trace.endSection();
+        }
+    }
+}
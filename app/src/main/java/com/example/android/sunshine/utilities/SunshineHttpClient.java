@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.text.format.DateUtils;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.URL;
+
+/**
+ * The one place in Sunshine that opens HTTP connections. There is a single instance per process,
+ * which owns the timeouts of every request and decides when a connection may be kept alive.
+ * <p>
+ * HttpURLConnection already keeps a pool of idle connections, but a connection only goes back
+ * into that pool if its response body was read to the end and closed, and if nobody called
+ * {@link HttpURLConnection#disconnect()} on it. Callers therefore never disconnect themselves.
+ * They hand the connection back with {@link #release(HttpURLConnection, boolean)} and say whether
+ * the body was consumed completely. A sync that follows shortly after another one then reuses the
+ * open socket and skips the DNS lookup, the TCP handshake and the TLS handshake.
+ */
+public final class SunshineHttpClient {
+
+    private static final String TAG = SunshineHttpClient.class.getSimpleName();
+
+    /*
+     * Without a connect timeout, a request to an unreachable server can hang for minutes. Without
+     * a read timeout, a server that stops sending halfway through the body hangs forever, and
+     * with it the sync that is waiting for the forecast.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 15 * 1000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 20 * 1000;
+
+    /* Prewarming is a best effort, so it gives up much sooner than a real request would */
+    private static final int PREWARM_TIMEOUT_MILLIS = 5 * 1000;
+
+    /*
+     * Idle connections are dropped by the pool after a few minutes anyway. Prewarming more often
+     * than this would only open connections that are still sitting in the pool.
+     */
+    private static final long PREWARM_INTERVAL_MILLIS = DateUtils.MINUTE_IN_MILLIS;
+
+    private static final String METHOD_HEAD = "HEAD";
+
+    /* How many idle connections per host HttpURLConnection keeps around */
+    private static final String MAX_IDLE_CONNECTIONS = "5";
+
+    private static final int DRAIN_BUFFER_SIZE = 1024;
+
+    private static SunshineHttpClient sInstance;
+
+    private volatile int mConnectTimeoutMillis = DEFAULT_CONNECT_TIMEOUT_MILLIS;
+    private volatile int mReadTimeoutMillis = DEFAULT_READ_TIMEOUT_MILLIS;
+
+    private long mLastPrewarmElapsedMillis;
+    private boolean mPrewarmRunning;
+
+    private SunshineHttpClient() {
+        /*
+         * Keep-alive is on by default, but these properties are process-wide and could have been
+         * switched off by a library. Make sure the pool is available to us.
+         */
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", MAX_IDLE_CONNECTIONS);
+    }
+
+    /**
+     * @return The HTTP client that is shared by the whole process
+     */
+    public static synchronized SunshineHttpClient getInstance() {
+        if (sInstance == null) {
+            sInstance = new SunshineHttpClient();
+        }
+        return sInstance;
+    }
+
+    /**
+     * Changes the timeouts used by every connection opened from now on.
+     *
+     * @param connectTimeoutMillis Time allowed to establish the connection, including TLS
+     * @param readTimeoutMillis    Time allowed between two packets of the response
+     */
+    public void setTimeouts(int connectTimeoutMillis, int readTimeoutMillis) {
+        if (connectTimeoutMillis <= 0 || readTimeoutMillis <= 0) {
+            throw new IllegalArgumentException("Timeouts must be positive: "
+                    + connectTimeoutMillis + ", " + readTimeoutMillis);
+        }
+        mConnectTimeoutMillis = connectTimeoutMillis;
+        mReadTimeoutMillis = readTimeoutMillis;
+    }
+
+    public int getConnectTimeoutMillis() {
+        return mConnectTimeoutMillis;
+    }
+
+    public int getReadTimeoutMillis() {
+        return mReadTimeoutMillis;
+    }
+
+    /**
+     * Creates a connection for the given URL with our timeouts applied. Nothing is sent over the
+     * network until the caller connects or asks for the response.
+     *
+     * @param url The URL to open
+     * @return A connection that must be handed back with {@link #release}
+     * @throws IOException If the URL cannot be opened
+     */
+    public HttpURLConnection open(URL url) throws IOException {
+        HttpURLConnection urlConnection = (HttpURLConnection) url.openConnection();
+        urlConnection.setConnectTimeout(mConnectTimeoutMillis);
+        urlConnection.setReadTimeout(mReadTimeoutMillis);
+        urlConnection.setUseCaches(false);
+        return urlConnection;
+    }
+
+    /**
+     * Hands a connection back once the caller is done with it.
+     *
+     * @param urlConnection The connection returned by {@link #open(URL)}
+     * @param reusable      true if the response body was read to the end and closed. Only then
+     *                      can the socket go back into the pool. Otherwise it is closed, since
+     *                      leftover bytes would corrupt the next response read from it.
+     */
+    public void release(HttpURLConnection urlConnection, boolean reusable) {
+        if (!reusable) {
+            urlConnection.disconnect();
+        }
+    }
+
+    /**
+     * Resolves the host of the given URL and opens a connection to it on a background thread,
+     * so that the first real request finds a connection that has already done its DNS lookup and
+     * TLS handshake. Calling this repeatedly is cheap: requests that come in while a prewarm is
+     * running, or shortly after one finished, are ignored.
+     *
+     * @param url Any URL on the server we are about to talk to, may be null
+     */
+    public void prewarm(final URL url) {
+        if (url == null) return;
+
+        synchronized (this) {
+            long now = SystemClock.elapsedRealtime();
+            if (mPrewarmRunning || (mLastPrewarmElapsedMillis != 0
+                    && now - mLastPrewarmElapsedMillis < PREWARM_INTERVAL_MILLIS)) {
+                return;
+            }
+            mPrewarmRunning = true;
+            mLastPrewarmElapsedMillis = now;
+        }
+
+        Thread prewarmThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    warmUp(url);
+                } finally {
+                    synchronized (SunshineHttpClient.this) {
+                        mPrewarmRunning = false;
+                    }
+                }
+            }
+        }, "SunshineHttpPrewarm");
+        prewarmThread.start();
+    }
+
+    private void warmUp(URL url) {
+        long startMillis = SystemClock.elapsedRealtime();
+        HttpURLConnection urlConnection = null;
+        boolean reusable = false;
+        try {
+            /* Fill the system's DNS cache, even if the server turns out to refuse HEAD */
+            InetAddress.getAllByName(url.getHost());
+
+            /*
+             * A HEAD request has no body, so the connection is free to go back into the pool as
+             * soon as the response headers have arrived.
+             */
+            urlConnection = (HttpURLConnection) url.openConnection();
+            urlConnection.setConnectTimeout(PREWARM_TIMEOUT_MILLIS);
+            urlConnection.setReadTimeout(PREWARM_TIMEOUT_MILLIS);
+            urlConnection.setUseCaches(false);
+            urlConnection.setRequestMethod(METHOD_HEAD);
+            int responseCode = urlConnection.getResponseCode();
+
+            InputStream in = responseCode < HttpURLConnection.HTTP_BAD_REQUEST
+                    ? urlConnection.getInputStream()
+                    : urlConnection.getErrorStream();
+            if (in != null) {
+                drain(in);
+            }
+            reusable = true;
+
+            Log.v(TAG, "Prewarmed " + url.getHost() + " in "
+                    + (SystemClock.elapsedRealtime() - startMillis) + " ms");
+        } catch (IOException e) {
+            /* Not being able to prewarm is not an error, the real request will just be slower */
+            Log.v(TAG, "Prewarm of " + url.getHost() + " failed: " + e);
+        } finally {
+            if (urlConnection != null) {
+                release(urlConnection, reusable);
+            }
+        }
+    }
+
+    /**
+     * Reads and discards everything up to the end of the stream, then closes it.
+     */
+    static void drain(InputStream in) throws IOException {
+        try {
+            byte[] buffer = new byte[DRAIN_BUFFER_SIZE];
+            while (in.read(buffer) != -1) {
+                /* Keep reading until the end of the stream */
+            }
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -55,7 +55,24 @@ public final class SunshineWeatherUtils {
      * "21°"
      */
     public static String formatTemperature(Context context, double temperature) {
-        if (!SunshinePreferences.isMetric(context)) {
+        return formatTemperature(context, temperature, SunshinePreferences.isMetric(context));
+    }
+
+    /**
+     * Same as {@link #formatTemperature(Context, double)}, but in the given units instead of the
+     * ones the user prefers. This lets {@link ForecastPresentationTable} format a day in both
+     * units up front, without reading the preferences for every temperature.
+     *
+     * @param context     Android Context to access resources
+     * @param temperature Temperature in degrees Celsius (°C)
+     * @param isMetric    True for Celsius, false for Fahrenheit
+     *
+     * @return Formatted temperature String in the following form:
+     * "21°"
+     */
+    public static String formatTemperature(Context context, double temperature,
+            boolean isMetric) {
+        if (!isMetric) {
             temperature = celsiusToFahrenheit(temperature);
         }
 
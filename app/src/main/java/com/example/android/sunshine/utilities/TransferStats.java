@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.utilities;
+
+/**
+ * Collects what a single HTTP response cost us on the wire, in bytes and in time. It is filled in by
+ * {@link NetworkUtils#readResponseFromHttpUrl} and read by the caller once the request is done.
+ */
+public final class TransferStats {
+
+    /* The Content-Encoding the server used for the body, or null for identity */
+    private String mContentEncoding;
+
+    /* Bytes of the body as they were received from the network */
+    private long mCompressedBytes;
+
+    /* Bytes of the body after decompression, as seen by the parser */
+    private long mUncompressedBytes;
+
+    /* Time spent on DNS, TCP and TLS. Close to zero when a pooled connection was reused. */
+    private long mConnectMillis;
+
+    /* Time from the connection being ready to the response headers having arrived */
+    private long mTimeToFirstByteMillis;
+
+    /* Time spent reading, decompressing and handling the response body */
+    private long mDownloadMillis;
+
+    /*
+     * The part of the download time the handler spent on its own, outside of reading the body.
+     * For a parser that pulls from the stream, this is the time it took to parse, plus whatever
+     * else the handler did with the result.
+     */
+    private long mHandlerMillis;
+
+    void setContentEncoding(String contentEncoding) {
+        mContentEncoding = contentEncoding;
+    }
+
+    void addBytes(long compressedBytes, long uncompressedBytes) {
+        mCompressedBytes += compressedBytes;
+        mUncompressedBytes += uncompressedBytes;
+    }
+
+    void setTimings(long connectMillis, long timeToFirstByteMillis, long downloadMillis) {
+        mConnectMillis = connectMillis;
+        mTimeToFirstByteMillis = timeToFirstByteMillis;
+        mDownloadMillis = downloadMillis;
+    }
+
+    void setHandlerMillis(long handlerMillis) {
+        mHandlerMillis = handlerMillis;
+    }
+
+    public String getContentEncoding() {
+        return mContentEncoding;
+    }
+
+    public long getCompressedBytes() {
+        return mCompressedBytes;
+    }
+
+    public long getUncompressedBytes() {
+        return mUncompressedBytes;
+    }
+
+    public long getConnectMillis() {
+        return mConnectMillis;
+    }
+
+    public long getTimeToFirstByteMillis() {
+        return mTimeToFirstByteMillis;
+    }
+
+    public long getDownloadMillis() {
+        return mDownloadMillis;
+    }
+
+    public long getHandlerMillis() {
+        return mHandlerMillis;
+    }
+
+    @Override
+    public String toString() {
+        return "encoding=" + (mContentEncoding == null ? "identity" : mContentEncoding)
+                + ", compressed=" + mCompressedBytes
+                + ", uncompressed=" + mUncompressedBytes
+                + ", connect=" + mConnectMillis + "ms"
+                + ", ttfb=" + mTimeToFirstByteMillis + "ms"
+                + ", download=" + mDownloadMillis + "ms"
+                + ", handler=" + mHandlerMillis + "ms";
+    }
+}
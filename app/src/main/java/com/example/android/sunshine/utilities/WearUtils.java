@@ -2,15 +2,15 @@ package com.example.android.sunshine.utilities;
 
 import android.content.Context;
 import android.content.res.Resources;
-import android.database.Cursor;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.net.Uri;
 import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 
+import com.example.android.sunshine.data.SunshinePreferences;
+import com.example.android.sunshine.data.WeatherBatch;
 import com.example.android.sunshine.data.WeatherContract;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
@@ -23,17 +23,12 @@ import java.io.ByteArrayOutputStream;
 
 
 public class WearUtils {
-    private static final String[] WEATHER_WEAR_PROJECTION = {
-            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
-            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
-            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
-    };
-
-    private static final int INDEX_WEATHER_ID = 0;
-    private static final int INDEX_MAX_TEMP = 1;
-    private static final int INDEX_MIN_TEMP = 2;
     private static GoogleApiClient googleApiClient;
 
+    /* The version of the forecast snapshot we last sent to the wearable, and in which units */
+    private static long lastSentSnapshotVersion = -1;
+    private static boolean lastSentMetric;
+
     public static void updateWeatherForWear(final Context context) {
         googleApiClient = new GoogleApiClient.Builder(context).addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
             @Override
@@ -56,19 +51,30 @@ public class WearUtils {
     }
 
     private static void prepareData(Context context) {
-        Uri todaysWeatherUri = WeatherContract.WeatherEntry
-                .buildWeatherUriWithDate(SunshineDateUtils.normalizeDate(System.currentTimeMillis()));
-        Cursor todayWeatherCursor = context.getContentResolver().query(
-                todaysWeatherUri,
-                WEATHER_WEAR_PROJECTION,
-                null,
+        long today = SunshineDateUtils.normalizeDate(System.currentTimeMillis());
+        boolean metric = SunshinePreferences.isMetric(context);
+
+        /*
+         * If the forecast hasn't changed since we last sent it, the wearable already has it. The
+         * temperatures are sent as formatted strings, so that only holds in the same units.
+         */
+        Bundle extras = new Bundle();
+        extras.putLong(WeatherContract.KEY_SNAPSHOT_VERSION,
+                metric == lastSentMetric ? lastSentSnapshotVersion : -1);
+        Bundle snapshot = context.getContentResolver().call(
+                WeatherContract.WeatherEntry.CONTENT_URI,
+                WeatherContract.METHOD_GET_FORECAST_SNAPSHOT,
                 null,
-                null);
+                extras);
+        if (snapshot.getBoolean(WeatherContract.KEY_SNAPSHOT_UNCHANGED)) {
+            return;
+        }
+        WeatherBatch forecast = WeatherBatch.fromBundle(snapshot);
 
-        if (todayWeatherCursor.moveToFirst()) {
-            int weatherId = todayWeatherCursor.getInt(INDEX_WEATHER_ID);
-            double high = todayWeatherCursor.getDouble(INDEX_MAX_TEMP);
-            double low = todayWeatherCursor.getDouble(INDEX_MIN_TEMP);
+        if (forecast.size() > 0 && forecast.getDate(0) == today) {
+            int weatherId = forecast.getWeatherId(0);
+            double high = forecast.getMaxTemp(0);
+            double low = forecast.getMinTemp(0);
 
             Resources resources = context.getResources();
             int smallArtRessourceId = SunshineWeatherUtils
@@ -92,8 +98,8 @@ public class WearUtils {
             putDataMapRequest.setUrgent();
             PutDataRequest putDataRequest = putDataMapRequest.asPutDataRequest();
             Wearable.DataApi.putDataItem(googleApiClient, putDataRequest);
+            lastSentSnapshotVersion = snapshot.getLong(WeatherContract.KEY_SNAPSHOT_VERSION);
+            lastSentMetric = metric;
         }
-
-        todayWeatherCursor.close();
     }
 }